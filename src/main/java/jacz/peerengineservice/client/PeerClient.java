@@ -151,7 +151,7 @@ public class PeerClient {
             stop();
             throw e;
         }
-        resourceStreamingManager = new ResourceStreamingManager(ownPeerId, resourceTransferEvents, connectedPeersMessenger, transferStatisticsPath, peerClientConnectionManager);
+        resourceStreamingManager = new ResourceStreamingManager(ownPeerId, resourceTransferEvents, connectedPeersMessenger, transferStatisticsPath, peerClientConnectionManager, peerClientConnectionManager::isFavoritePeer);
         // initialize the list synchronizer utility (better here than in the client side)
         dataSynchronizer = new DataSynchronizer(this, dataAccessorContainer);
         PeerClient.errorHandler = new ErrorHandlerBridge(this, errorHandler);
@@ -526,6 +526,22 @@ public class PeerClient {
         peerClientConnectionManager.setMaxUploadSpeed(speed);
     }
 
+    public int getMaxUploadSlots() {
+        return resourceStreamingManager.getUploadSlotManager().getMaxActiveSlots();
+    }
+
+    public void setMaxUploadSlots(int maxUploadSlots) {
+        resourceStreamingManager.getUploadSlotManager().setMaxActiveSlots(maxUploadSlots);
+    }
+
+    public int getMaxActiveDownloads() {
+        return resourceStreamingManager.getDownloadsManager().getMaxActiveDownloads();
+    }
+
+    public void setMaxActiveDownloads(int maxActiveDownloads) {
+        resourceStreamingManager.getDownloadsManager().setMaxActiveDownloads(maxActiveDownloads);
+    }
+
     public double getDownloadPartSelectionAccuracy() {
         return peerClientConnectionManager.getDownloadPartSelectionAccuracy();
     }
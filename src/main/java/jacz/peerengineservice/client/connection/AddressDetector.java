@@ -0,0 +1,25 @@
+package jacz.peerengineservice.client.connection;
+
+import java.io.IOException;
+
+/**
+ * Detects the local and external addresses of our machine. Detections might block, so they are never invoked from
+ * the connection state machines directly
+ */
+public interface AddressDetector {
+
+    /**
+     * Detects the local address assigned to our machine
+     *
+     * @return the detected local address
+     * @throws IOException the local address could not be detected
+     */
+    String detectLocalAddress() throws IOException;
+
+    /**
+     * Detects the external address of our machine (the address of our gateway, if any)
+     *
+     * @return the detected external address, or null if it could not be detected
+     */
+    String detectExternalAddress();
+}
@@ -0,0 +1,81 @@
+package jacz.peerengineservice.client.connection;
+
+import org.aanguita.jacuzzi.io.http.HttpClient;
+import org.aanguita.jacuzzi.lists.tuple.Duple;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.Collections;
+
+/**
+ * Default address detection.
+ * <p/>
+ * The local address is the one the system routes external traffic through. It is found by connecting an UDP socket,
+ * which sends no packets, and falls back to enumerating the network interfaces. The external address is asked to
+ * an external ip service
+ */
+public class DefaultAddressDetector implements AddressDetector {
+
+    /**
+     * Any public address works, no traffic is sent to it
+     */
+    private static final String ROUTING_PROBE_ADDRESS = "8.8.8.8";
+
+    private static final int ROUTING_PROBE_PORT = 53;
+
+    private static final String EXTERNAL_IP_SERVICE_URL = "https://api.ipify.org";
+
+    @Override
+    public String detectLocalAddress() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(InetAddress.getByName(ROUTING_PROBE_ADDRESS), ROUTING_PROBE_PORT);
+            InetAddress localAddress = socket.getLocalAddress();
+            if (localAddress != null && !localAddress.isAnyLocalAddress()) {
+                return localAddress.getHostAddress();
+            }
+        } catch (SocketException e) {
+            // no route available -> check the interfaces
+        }
+        return detectLocalAddressFromInterfaces();
+    }
+
+    private static String detectLocalAddressFromInterfaces() throws IOException {
+        String candidate = null;
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || networkInterface.isLoopback() || networkInterface.isVirtual()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                if (address instanceof Inet4Address && !address.isLinkLocalAddress()) {
+                    if (address.isSiteLocalAddress()) {
+                        // private network address, the preferred one
+                        return address.getHostAddress();
+                    } else if (candidate == null) {
+                        candidate = address.getHostAddress();
+                    }
+                }
+            }
+        }
+        if (candidate == null) {
+            throw new IOException("Could not fetch local address");
+        }
+        return candidate;
+    }
+
+    @Override
+    public String detectExternalAddress() {
+        try {
+            Duple<Integer, String> result = HttpClient.httpRequest(
+                    EXTERNAL_IP_SERVICE_URL,
+                    HttpClient.Verb.GET,
+                    HttpClient.ContentType.PLAIN);
+            if (result.element1 == 200) {
+                return result.element2.trim();
+            } else {
+                return null;
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
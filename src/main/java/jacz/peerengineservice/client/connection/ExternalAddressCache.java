@@ -0,0 +1,123 @@
+package jacz.peerengineservice.client.connection;
+
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the external address of our machine.
+ * <p/>
+ * A detected address is valid for some time. After that, the address is detected again. If a detection fails, the
+ * following detections are delayed with an exponential backoff (a detector throwing an exception also counts as a failed
+ * detection), and the last known address (if any) keeps being
+ * used meanwhile. Addresses can also be reported by other sources (e.g. the peer server), which refreshes the cache
+ */
+class ExternalAddressCache {
+
+    static final long DEFAULT_TTL = 600000L;
+
+    static final long MIN_BACKOFF = 10000L;
+
+    static final long MAX_BACKOFF = 300000L;
+
+    private final Supplier<String> detector;
+
+    private final long ttl;
+
+    private final long minBackoff;
+
+    private final long maxBackoff;
+
+    private final LongSupplier clock;
+
+    private String address;
+
+    /**
+     * Time until which the stored address is valid
+     */
+    private long expiration;
+
+    private long backoff;
+
+    /**
+     * Time before which detections are not allowed, after a failed detection
+     */
+    private long nextDetectionAllowed;
+
+    ExternalAddressCache(Supplier<String> detector) {
+        this(detector, DEFAULT_TTL, MIN_BACKOFF, MAX_BACKOFF);
+    }
+
+    ExternalAddressCache(Supplier<String> detector, long ttl, long minBackoff, long maxBackoff) {
+        this(detector, ttl, minBackoff, maxBackoff, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock source of the current time, in millis (used for expirations and backoffs)
+     */
+    ExternalAddressCache(Supplier<String> detector, long ttl, long minBackoff, long maxBackoff, LongSupplier clock) {
+        this.detector = detector;
+        this.ttl = ttl;
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        this.clock = clock;
+        address = null;
+        expiration = 0L;
+        backoff = 0L;
+        nextDetectionAllowed = 0L;
+    }
+
+    /**
+     * Retrieves the external address, detecting it if the cached one has expired. Might block during the detection
+     *
+     * @return the external address, or null if it is not known
+     */
+    synchronized String get() {
+        long now = clock.getAsLong();
+        if (address != null && now < expiration || now < nextDetectionAllowed) {
+            return address;
+        }
+        String detectedAddress;
+        try {
+            detectedAddress = detector.get();
+        } catch (RuntimeException e) {
+            // failed detection
+            detectedAddress = null;
+        }
+        now = clock.getAsLong();
+        if (detectedAddress != null) {
+            store(detectedAddress, now);
+        } else {
+            backoff = backoff == 0L ? minBackoff : Math.min(backoff * 2, maxBackoff);
+            nextDetectionAllowed = now + backoff;
+        }
+        return address;
+    }
+
+    /**
+     * Reports the external address, detected by some other source
+     *
+     * @param address the external address
+     */
+    synchronized void report(String address) {
+        if (address != null) {
+            store(address, clock.getAsLong());
+        }
+    }
+
+    private void store(String address, long now) {
+        this.address = address;
+        expiration = now + ttl;
+        backoff = 0L;
+        nextDetectionAllowed = 0L;
+    }
+
+    /**
+     * Forgets the cached address (e.g. because the network has changed)
+     */
+    synchronized void invalidate() {
+        address = null;
+        expiration = 0L;
+        backoff = 0L;
+        nextDetectionAllowed = 0L;
+    }
+}
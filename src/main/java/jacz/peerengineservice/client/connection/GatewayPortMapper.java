@@ -0,0 +1,220 @@
+package jacz.peerengineservice.client.connection;
+
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+
+/**
+ * Creates and maintains the NAT rule of the local server in the UPnP gateway.
+ * <p/>
+ * The gateway and the external port used in the last connection are cached in the network configuration. On each
+ * mapping, the cached gateway is loaded directly from its description and validated, and the cached external port
+ * is tried first. Full discovery of gateways and probing of external ports are only performed when the cached
+ * values are not valid anymore.
+ * <p/>
+ * Once created, the rule is periodically checked (and recreated if needed) in a background timer. If it cannot be
+ * recreated, the mapping is marked as lost and the owner is notified
+ */
+class GatewayPortMapper {
+
+    static final long DEFAULT_RENEWAL_PERIOD = 600000L;
+
+    private final UpnpAPI.GatewayLocator gatewayLocator;
+
+    private final NetworkConfiguration networkConfiguration;
+
+    private final long renewalPeriod;
+
+    /**
+     * Invoked (in the renewal thread) when the NAT rule is lost and cannot be recreated
+     */
+    private final Runnable mappingLostListener;
+
+    private volatile UpnpAPI.Gateway gateway;
+
+    private volatile int externalPort;
+
+    private volatile int internalPort;
+
+    private volatile String mappingDescription;
+
+    private Timer renewalTimer;
+
+    /**
+     * Incremented each time the renewal is stopped, so renewals of previous mappings do nothing
+     */
+    private int mappingGeneration;
+
+    private volatile boolean mappingLost;
+
+    GatewayPortMapper(NetworkConfiguration networkConfiguration, Runnable mappingLostListener) {
+        this(UpnpAPI.DEVICE_GATEWAY_LOCATOR, networkConfiguration, DEFAULT_RENEWAL_PERIOD, mappingLostListener);
+    }
+
+    GatewayPortMapper(UpnpAPI.GatewayLocator gatewayLocator, NetworkConfiguration networkConfiguration, long renewalPeriod, Runnable mappingLostListener) {
+        this.gatewayLocator = gatewayLocator;
+        this.networkConfiguration = networkConfiguration;
+        this.renewalPeriod = renewalPeriod;
+        this.mappingLostListener = mappingLostListener;
+        gateway = null;
+        externalPort = -1;
+        renewalTimer = null;
+        mappingGeneration = 0;
+        mappingLost = false;
+    }
+
+    /**
+     * Creates a NAT rule in the gateway that routes traffic to our local server
+     *
+     * @param externalAddress     our external address, which identifies the gateway
+     * @param defaultExternalPort external port to try if there is no valid cached port
+     * @param internalPort        port of our local server
+     * @param mappingDescription  description of the NAT rule. Rules with this description are considered ours
+     * @return the external port of the created rule
+     * @throws UpnpAPI.NoGatewayException no gateway with the given external address was found
+     * @throws UpnpAPI.UpnpException      error creating the rule
+     */
+    synchronized int map(String externalAddress, int defaultExternalPort, int internalPort, String mappingDescription) throws UpnpAPI.NoGatewayException, UpnpAPI.UpnpException {
+        stopRenewal();
+        this.internalPort = internalPort;
+        this.mappingDescription = mappingDescription;
+        UpnpAPI.Gateway cachedGateway = loadCachedGateway(externalAddress);
+        if (cachedGateway != null) {
+            try {
+                return mapped(cachedGateway, mapInGateway(cachedGateway, defaultExternalPort));
+            } catch (UpnpAPI.UpnpException e) {
+                // the cached gateway is not working properly -> fall back to discovery
+            }
+        }
+        networkConfiguration.clearGateway();
+        UpnpAPI.Gateway discoveredGateway = gatewayLocator.discover(externalAddress);
+        networkConfiguration.setGateway(discoveredGateway.getLocation(), discoveredGateway.getLocalAddress());
+        return mapped(discoveredGateway, mapInGateway(discoveredGateway, defaultExternalPort));
+    }
+
+    private UpnpAPI.Gateway loadCachedGateway(String externalAddress) {
+        String location = networkConfiguration.getGatewayLocation();
+        String localAddress = networkConfiguration.getGatewayLocalAddress();
+        if (location == null || localAddress == null) {
+            return null;
+        }
+        try {
+            UpnpAPI.Gateway cachedGateway = gatewayLocator.load(location, localAddress);
+            return externalAddress.equals(cachedGateway.getExternalIPAddress()) ? cachedGateway : null;
+        } catch (UpnpAPI.UpnpException e) {
+            return null;
+        }
+    }
+
+    private int mapInGateway(UpnpAPI.Gateway gateway, int defaultExternalPort) throws UpnpAPI.UpnpException {
+        Integer cachedExternalPort = networkConfiguration.getMappedExternalPort();
+        if (cachedExternalPort != null && tryCachedPort(gateway, cachedExternalPort)) {
+            return cachedExternalPort;
+        }
+        int port = UpnpAPI.mapPortFrom(gateway, mappingDescription, defaultExternalPort, internalPort, true);
+        if (port == -1) {
+            throw new UpnpAPI.UpnpException("No free external port in gateway");
+        }
+        return port;
+    }
+
+    /**
+     * Tries to reuse the external port of the last connection
+     *
+     * @return true if the rule is in place in the cached port, false if the port is taken by someone else
+     */
+    private boolean tryCachedPort(UpnpAPI.Gateway gateway, int cachedExternalPort) throws UpnpAPI.UpnpException {
+        UpnpAPI.PortMapping portMapping = gateway.getPortMapping(cachedExternalPort);
+        if (portMapping == null) {
+            gateway.addPortMapping(cachedExternalPort, internalPort, mappingDescription);
+            return true;
+        } else if (mappingDescription.equals(portMapping.description)) {
+            if (!isOurRule(gateway, portMapping)) {
+                // our rule from a previous run, pointing to an old local port or address
+                gateway.deletePortMapping(cachedExternalPort);
+                gateway.addPortMapping(cachedExternalPort, internalPort, mappingDescription);
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean isOurRule(UpnpAPI.Gateway gateway, UpnpAPI.PortMapping portMapping) {
+        return portMapping != null &&
+                mappingDescription.equals(portMapping.description) &&
+                portMapping.internalPort == internalPort &&
+                gateway.getLocalAddress().equals(portMapping.internalClient);
+    }
+
+    private int mapped(UpnpAPI.Gateway gateway, int externalPort) {
+        this.gateway = gateway;
+        this.externalPort = externalPort;
+        mappingLost = false;
+        networkConfiguration.setMappedExternalPort(externalPort);
+        int generation = mappingGeneration;
+        renewalTimer = new Timer(renewalPeriod, timer -> {
+            renew(generation);
+            return null;
+        }, this.getClass().getName() + "Renewal");
+        return externalPort;
+    }
+
+    /**
+     * Checks that our rule is still in the gateway (routers often lose them when rebooted), and recreates it if not.
+     * Runs in the renewal timer. Stopping the timer does not wait for a running renewal, so renewals take the same
+     * lock as mappings, and do nothing if the mapping they were scheduled for is gone
+     *
+     * @param generation mapping generation at the time the renewal timer was created
+     */
+    private void renew(int generation) {
+        synchronized (this) {
+            if (generation != mappingGeneration || gateway == null || mappingLost) {
+                return;
+            }
+            try {
+                UpnpAPI.PortMapping portMapping = gateway.getPortMapping(externalPort);
+                if (portMapping == null) {
+                    gateway.addPortMapping(externalPort, internalPort, mappingDescription);
+                } else if (!isOurRule(gateway, portMapping)) {
+                    throw new UpnpAPI.UpnpException("External port taken by another rule");
+                }
+                return;
+            } catch (UpnpAPI.UpnpException e) {
+                mappingLost = true;
+            }
+        }
+        mappingLostListener.run();
+    }
+
+    /**
+     * @return true if the rule was lost and could not be recreated. A new mapping is required
+     */
+    boolean isMappingLost() {
+        return mappingLost;
+    }
+
+    /**
+     * Removes our rule from the gateway. The gateway and the external port remain cached for the next mapping
+     *
+     * @throws UpnpAPI.UpnpException error removing the rule
+     */
+    synchronized void unmap() throws UpnpAPI.UpnpException {
+        stopRenewal();
+        if (gateway != null) {
+            UpnpAPI.Gateway mappedGateway = gateway;
+            gateway = null;
+            mappedGateway.deletePortMapping(externalPort);
+        }
+    }
+
+    private void stopRenewal() {
+        mappingGeneration++;
+        if (renewalTimer != null) {
+            renewalTimer.stop();
+            renewalTimer = null;
+        }
+    }
+
+    synchronized void stop() {
+        stopRenewal();
+    }
+}
@@ -10,7 +10,6 @@ import org.aanguita.jacuzzi.AI.evolve.EvolvingState;
 import org.aanguita.jacuzzi.AI.evolve.EvolvingStateController;
 import org.aanguita.jacuzzi.network.IP4Port;
 import org.aanguita.jacuzzi.numeric.NumericUtil;
-import org.bitlet.weupnp.GatewayDevice;
 
 import java.io.IOException;
 
@@ -132,6 +131,11 @@ public class LocalServerManager {
 
     private final NetworkConfiguration networkConfiguration;
 
+    /**
+     * Creates and renews our NAT rule in the gateway, reusing the gateway and rule of previous connections
+     */
+    private final GatewayPortMapper gatewayPortMapper;
+
     /**
      * Actions to invoke upon certain events
      */
@@ -160,6 +164,7 @@ public class LocalServerManager {
         this.peerClientConnectionManager = peerClientConnectionManager;
         this.networkConfiguration = networkConfiguration;
         this.connectionEvents = connectionEvents;
+        gatewayPortMapper = new GatewayPortMapper(networkConfiguration, this::updateState);
         serverModule = null;
         listeningPort = -1;
         dynamicState = new EvolvingState<>(ConnectionState.LocalServerConnectionsState.CLOSED, false, new EvolvingState.Transitions<ConnectionState.LocalServerConnectionsState, Boolean>() {
@@ -196,6 +201,11 @@ public class LocalServerManager {
 
                         case OPEN:
                         case WAITING_FOR_NAT_RULE_TRY:
+                            if (!LocalServerManager.this.peerClientConnectionManager.getNetworkTopologyManager().isInWishedState()) {
+                                // the server was opened while the network topology is still being detected. We
+                                // will be evolved again when the detection finishes
+                                break;
+                            }
                             // check gateway
                             if (LocalServerManager.this.peerClientConnectionManager.getNetworkTopologyManager().hasGateway()) {
                                 // there is a gateway in the network. Both local port and external port are used
@@ -252,6 +262,14 @@ public class LocalServerManager {
                                 tryToCloseServer(controller);
                                 return false;
                             }
+                            if (gatewayRuleCreated && gatewayPortMapper.isMappingLost()) {
+                                // the gateway lost our NAT rule and it could not be renewed -> create it again
+                                gatewayRuleCreated = false;
+                                controller.setState(ConnectionState.LocalServerConnectionsState.WAITING_FOR_NAT_RULE_TRY);
+                                connectionEvents.errorCreatingNATRule(actualExternalPort, getActualLocalPort(), ConnectionState.LocalServerConnectionsState.WAITING_FOR_NAT_RULE_TRY);
+                                actualExternalPort = -1;
+                                return false;
+                            }
                             // otherwise, everything ok
                             break;
                     }
@@ -272,7 +290,7 @@ public class LocalServerManager {
                     // we must close our server and kick all connected clients
                     connectionEvents.tryingToDestroyNATRule(actualExternalPort, getActualLocalPort(), ConnectionState.LocalServerConnectionsState.DESTROYING_NAT_RULE);
                     try {
-                        destroyGatewayForwardingRule(actualExternalPort);
+                        destroyGatewayForwardingRule();
                         connectionEvents.NATRuleDestroyed(actualExternalPort, getActualLocalPort(), ConnectionState.LocalServerConnectionsState.OPEN);
                     } catch (Exception e) {
                         connectionEvents.couldNotDestroyNATRule(actualExternalPort, getActualLocalPort(), ConnectionState.LocalServerConnectionsState.OPEN);
@@ -292,6 +310,8 @@ public class LocalServerManager {
                 connectionEvents.localServerClosed(listeningPort, ConnectionState.LocalServerConnectionsState.CLOSED);
             }
         }, "LocalServerManager");
+        dynamicState.setEnterStateHook(ConnectionState.LocalServerConnectionsState.LISTENING, peerClientConnectionManager::serviceStateChanged);
+        dynamicState.setEnterStateHook(ConnectionState.LocalServerConnectionsState.CLOSED, peerClientConnectionManager::serviceStateChanged);
         dynamicState.setEvolveStateTimer(ConnectionState.LocalServerConnectionsState.WAITING_FOR_OPENING_TRY, RETRY_CONNECTION_DELAY);
         dynamicState.setEvolveStateTimer(ConnectionState.LocalServerConnectionsState.WAITING_FOR_NAT_RULE_TRY, RETRY_CONNECTION_DELAY);
         dynamicState.setEvolveStateTimer(state -> true, GENERAL_REMINDER);
@@ -327,6 +347,7 @@ public class LocalServerManager {
         setWishForConnect(false);
         dynamicState.blockUntilGoalReached(500);
         dynamicState.stop();
+        gatewayPortMapper.stop();
     }
 
     synchronized void updateState() {
@@ -341,13 +362,11 @@ public class LocalServerManager {
     }
 
     private int createGatewayForwardingRule(int defaultExternalPort) throws UpnpAPI.NoGatewayException, UpnpAPI.UpnpException {
-        GatewayDevice gatewayDevice = UpnpAPI.fetchGatewayDevice(peerClientConnectionManager.getNetworkTopologyManager().getExternalAddress());
-        return UpnpAPI.mapPortFrom(gatewayDevice, generateNATRuleDescription(), defaultExternalPort, getActualLocalPort(), true);
+        return gatewayPortMapper.map(peerClientConnectionManager.getNetworkTopologyManager().getExternalAddress(), defaultExternalPort, getActualLocalPort(), generateNATRuleDescription());
     }
 
-    private void destroyGatewayForwardingRule(int externalPort) throws UpnpAPI.NoGatewayException, UpnpAPI.UpnpException {
-        GatewayDevice gatewayDevice = UpnpAPI.fetchGatewayDevice(peerClientConnectionManager.getNetworkTopologyManager().getExternalAddress());
-        UpnpAPI.unmapPort(gatewayDevice, externalPort);
+    private void destroyGatewayForwardingRule() throws UpnpAPI.UpnpException {
+        gatewayPortMapper.unmap();
     }
 
     private String generateNATRuleDescription() {
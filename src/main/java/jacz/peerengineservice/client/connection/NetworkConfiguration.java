@@ -6,7 +6,8 @@ import org.aanguita.jacuzzi.io.serialization.localstorage.VersionedLocalStorage;
 import java.io.IOException;
 
 /**
- * Read-only network configuration given by the client
+ * Read-only network configuration given by the client. It also caches the gateway and NAT rule used in the last
+ * connection, so they can be reused in the next one
  */
 public class NetworkConfiguration implements Updater {
 
@@ -28,6 +29,19 @@ public class NetworkConfiguration implements Updater {
      */
     private static final String EXTERNAL_PORT = "externalPort";
 
+    /**
+     * Location of the description of the last gateway used for port mapping, and our local address for it. Allows
+     * loading the gateway again without discovery. Not set until a gateway is found
+     */
+    private static final String GATEWAY_LOCATION = "gatewayLocation";
+
+    private static final String GATEWAY_LOCAL_ADDRESS = "gatewayLocalAddress";
+
+    /**
+     * External port of the last successful NAT rule created in the gateway. Not set until a rule is created
+     */
+    private static final String MAPPED_EXTERNAL_PORT = "mappedExternalPort";
+
     private final VersionedLocalStorage localStorage;
 
     public NetworkConfiguration(String localStoragePath, int localPort, int externalPort) throws IOException {
@@ -56,6 +70,41 @@ public class NetworkConfiguration implements Updater {
         return localStorage.setInteger(EXTERNAL_PORT, port);
     }
 
+    /**
+     * @return the location of the cached gateway, or null if there is no cached gateway
+     */
+    public synchronized String getGatewayLocation() {
+        return emptyToNull(localStorage.getString(GATEWAY_LOCATION));
+    }
+
+    public synchronized String getGatewayLocalAddress() {
+        return emptyToNull(localStorage.getString(GATEWAY_LOCAL_ADDRESS));
+    }
+
+    public synchronized void setGateway(String location, String localAddress) {
+        localStorage.setString(GATEWAY_LOCATION, location);
+        localStorage.setString(GATEWAY_LOCAL_ADDRESS, localAddress);
+    }
+
+    public synchronized void clearGateway() {
+        setGateway("", "");
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @return the external port of the last successful NAT rule, or null if no rule was created yet
+     */
+    public synchronized Integer getMappedExternalPort() {
+        return localStorage.getInteger(MAPPED_EXTERNAL_PORT);
+    }
+
+    public synchronized void setMappedExternalPort(int port) {
+        localStorage.setInteger(MAPPED_EXTERNAL_PORT, port);
+    }
+
     @Override
     public String update(VersionedLocalStorage versionedLocalStorage, String storedVersion) {
         // no versions yet, cannot be invoked
@@ -2,69 +2,22 @@ package jacz.peerengineservice.client.connection;
 
 import org.aanguita.jacuzzi.AI.evolve.EvolvingState;
 import org.aanguita.jacuzzi.AI.evolve.EvolvingStateController;
-import org.aanguita.jacuzzi.io.http.HttpClient;
-import org.aanguita.jacuzzi.lists.tuple.Duple;
 import org.aanguita.jacuzzi.numeric.NumericUtil;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Handles the detection of local and external ip addresses. It also performs regular checks to see if those values
  * change
+ * <p/>
+ * Detection is delegated to an AddressDetector. The external address is cached, and detected in a separate thread
+ * so the state machine never blocks on it. The peer server can also report our external address
  */
 public class NetworkTopologyManager {
 
-    /**
-     * This class checks that the local internet address is not modified. In case of modification, it notifies the PeerClientConfigurationManager
-     * <p/>
-     * This class must be stopped after its use
-     */
-    private static class AddressChecker {
-
-        /**
-         * Detects the local address assigned to our machine
-         *
-         * @return the detected local address, or null if no detection
-         */
-        public static String detectLocalAddress() throws IOException {
-            try {
-                Socket s = new Socket("www.google.com", 80);
-                String localAddress = s.getLocalAddress().getHostAddress();
-                s.close();
-                return localAddress;
-            } catch (UnknownHostException e) {
-                return null;
-            }
-        }
-    }
-
-    private static class ExternalIPService {
-
-        /**
-         * Detects the external address assigned to our machine
-         *
-         * @return the value has changed from the last detection
-         */
-        public static String detectExternalAddress() {
-            try {
-                Duple<Integer, String> result = HttpClient.httpRequest(
-                        "https://api.ipify.org",
-                        HttpClient.Verb.GET,
-                        HttpClient.ContentType.PLAIN);
-                if (result.element1 == 200) {
-                    return result.element2.trim();
-                } else {
-                    return null;
-                }
-            } catch (Exception e) {
-                return null;
-            }
-        }
-    }
-
-
     private final static long REPEAT_ADDRESS_FETCH = 10000L;
 
     private final static long REGULAR_ADDRESS_FETCH = 10L * 600L;
@@ -82,6 +35,20 @@ public class NetworkTopologyManager {
      */
     private final ConnectionEventsBridge connectionEvents;
 
+    private final AddressDetector addressDetector;
+
+    private final ExternalAddressCache externalAddressCache;
+
+    /**
+     * Runs the external address detections
+     */
+    private final ExecutorService detectionExecutor;
+
+    /**
+     * Ongoing detection of the external address, or null if there is none
+     */
+    private CompletableFuture<String> externalAddressDetection;
+
     private String localAddress;
 
     private String externalAddress;
@@ -91,8 +58,19 @@ public class NetworkTopologyManager {
     public NetworkTopologyManager(
             PeerClientConnectionManager peerClientConnectionManager,
             final ConnectionEventsBridge connectionEvents) {
+        this(peerClientConnectionManager, connectionEvents, new DefaultAddressDetector());
+    }
+
+    public NetworkTopologyManager(
+            PeerClientConnectionManager peerClientConnectionManager,
+            final ConnectionEventsBridge connectionEvents,
+            AddressDetector addressDetector) {
         this.peerClientConnectionManager = peerClientConnectionManager;
         this.connectionEvents = connectionEvents;
+        this.addressDetector = addressDetector;
+        externalAddressCache = new ExternalAddressCache(addressDetector::detectExternalAddress);
+        detectionExecutor = Executors.newSingleThreadExecutor();
+        externalAddressDetection = null;
         localAddress = null;
         externalAddress = null;
         dynamicState = new EvolvingState<>(ConnectionState.NetworkTopologyState.NO_DATA, false, new EvolvingState.Transitions<ConnectionState.NetworkTopologyState, Boolean>() {
@@ -133,6 +111,7 @@ public class NetworkTopologyManager {
             @Override
             public void run() {
                 connectionEvents.externalAddressFetched(getExternalAddress(), hasGateway(), ConnectionState.NetworkTopologyState.ALL_FETCHED);
+                NetworkTopologyManager.this.peerClientConnectionManager.serviceStateChanged();
             }
         });
         dynamicState.setEvolveStateTimer(ConnectionState.NetworkTopologyState.NO_DATA, REPEAT_ADDRESS_FETCH);
@@ -170,12 +149,16 @@ public class NetworkTopologyManager {
     }
 
     private boolean tryToFetchLocalAddress() throws IOException {
-        String newLocalAddress = AddressChecker.detectLocalAddress();
+        String newLocalAddress = addressDetector.detectLocalAddress();
         if (newLocalAddress == null) {
             throw new IOException("Could not fetch local address");
         }
         if (!newLocalAddress.equals(localAddress)) {
-            // local address has changed
+            // local address has changed. We might be in a different network, so the external address must be
+            // detected again
+            if (localAddress != null) {
+                externalAddressCache.invalidate();
+            }
             localAddress = newLocalAddress;
             return true;
         } else {
@@ -185,8 +168,24 @@ public class NetworkTopologyManager {
     }
 
     private boolean fetchExternalAddress(ConnectionState.NetworkTopologyState state, EvolvingStateController<ConnectionState.NetworkTopologyState, Boolean> controller) {
-        connectionEvents.tryingToFetchExternalAddress(state);
-        externalAddress = ExternalIPService.detectExternalAddress();
+        if (externalAddressDetection == null) {
+            // start the detection in the background. We will be evolved when it finishes
+            synchronized (detectionExecutor) {
+                if (detectionExecutor.isShutdown()) {
+                    // stopped
+                    return true;
+                }
+                connectionEvents.tryingToFetchExternalAddress(state);
+                // an unexpected error counts as a failed detection, and must not reach the state machine
+                externalAddressDetection = CompletableFuture.supplyAsync(externalAddressCache::get, detectionExecutor).exceptionally(t -> null);
+            }
+            externalAddressDetection.whenComplete((address, throwable) -> dynamicState.evolve());
+            return true;
+        } else if (!externalAddressDetection.isDone()) {
+            return true;
+        }
+        externalAddress = externalAddressDetection.getNow(null);
+        externalAddressDetection = null;
         if (externalAddress != null) {
             // external address successfully fetched
             controller.setState(ConnectionState.NetworkTopologyState.ALL_FETCHED);
@@ -199,6 +198,15 @@ public class NetworkTopologyManager {
         return true;
     }
 
+    /**
+     * Reports our external address, as seen by some other party (e.g. the peer server)
+     *
+     * @param externalAddress our external address
+     */
+    void reportExternalAddress(String externalAddress) {
+        externalAddressCache.report(externalAddress);
+    }
+
     public String getLocalAddress() {
         return localAddress;
     }
@@ -223,5 +231,8 @@ public class NetworkTopologyManager {
         setWishForConnect(false);
         dynamicState.blockUntilGoalReached(500);
         dynamicState.stop();
+        synchronized (detectionExecutor) {
+            detectionExecutor.shutdownNow();
+        }
     }
 }
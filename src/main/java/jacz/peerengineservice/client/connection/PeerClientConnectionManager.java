@@ -13,12 +13,14 @@ import jacz.peerengineservice.util.PeerRelationship;
 import jacz.peerengineservice.util.datatransfer.TransfersConfig;
 import org.aanguita.jacuzzi.AI.evolve.EvolvingState;
 import org.aanguita.jacuzzi.AI.evolve.EvolvingStateController;
-import org.aanguita.jacuzzi.concurrency.ThreadUtil;
 
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -33,7 +35,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * This class works with a one-step-at-a-time scheme. The idea is that the client, through some set methods, can establish whether he wishes us
  * to connect to the server or not, to what server, and which port to listen to connections from. Periodically, we will perform one step to be
  * closer to what he wishes. This way the code is much simpler and clearer (it was getting to messy to code the complete workflow in order to
- * connect to the server and to all available friends).
+ * connect to the server and to all available friends). Steps are triggered by the state changes of the services
+ * involved, which are brought up following their dependencies (see ServiceDependencyGraph).
  * <p/>
  * We store a few variables to know in which state are we (connected to the server or not, open server for friends to connect or closed, server
  * data to which we are connected, port we are using for listening to incoming connections, etc)
@@ -47,7 +50,18 @@ public class PeerClientConnectionManager implements TransfersConfig {
         DISCONNECTING
     }
 
-    private static final long DELAY = 500L;
+    /**
+     * Fallback re-evaluation of the connection state, in case a state change notification from a service is missed
+     */
+    private static final long GENERAL_REMINDER = 5000L;
+
+    private static final String NETWORK_TOPOLOGY = "networkTopology";
+
+    private static final String LOCAL_SERVER = "localServer";
+
+    private static final String PEER_SERVER = "peerServer";
+
+    private static final String PEER_CONNECTIONS = "peerConnections";
 
     /**
      * Actions to invoke upon certain events
@@ -81,10 +95,22 @@ public class PeerClientConnectionManager implements TransfersConfig {
 
     private final ConnectedPeers connectedPeers;
 
+    /**
+     * Dependencies between the above services
+     */
+    private final ServiceDependencyGraph serviceGraph;
+
     private final EvolvingState<ConnectionState, Boolean> dynamicState;
 
+    /**
+     * Processes the state changes reported by the services
+     */
+    private final ExecutorService stateChangeExecutor;
+
     private final AtomicBoolean wishForConnection;
 
+    private final List<TransfersConfig.Listener> transfersConfigListeners;
+
     public PeerClientConnectionManager(
             ConnectionEvents connectionEvents,
             PeerClientPrivateInterface peerClientPrivateInterface,
@@ -96,10 +122,25 @@ public class PeerClientConnectionManager implements TransfersConfig {
             String peerKnowledgeBasePath,
             String networkConfigurationPath,
             PeersEvents peersEvents) throws IOException {
+        this(connectionEvents, peerClientPrivateInterface, connectedPeers, ownPeerId, ownPeerEncryption, serverURL, peerConnectionConfigPath, peerKnowledgeBasePath, networkConfigurationPath, peersEvents, new DefaultAddressDetector());
+    }
+
+    public PeerClientConnectionManager(
+            ConnectionEvents connectionEvents,
+            PeerClientPrivateInterface peerClientPrivateInterface,
+            ConnectedPeers connectedPeers,
+            PeerId ownPeerId,
+            PeerEncryption ownPeerEncryption,
+            String serverURL,
+            String peerConnectionConfigPath,
+            String peerKnowledgeBasePath,
+            String networkConfigurationPath,
+            PeersEvents peersEvents,
+            AddressDetector addressDetector) throws IOException {
         this.connectionEvents = new ConnectionEventsBridge(connectionEvents, this);
         this.networkConfiguration = new NetworkConfiguration(networkConfigurationPath);
 
-        networkTopologyManager = new NetworkTopologyManager(this, this.connectionEvents);
+        networkTopologyManager = new NetworkTopologyManager(this, this.connectionEvents, addressDetector);
         localServerManager = new LocalServerManager(
                 ownPeerId,
                 this,
@@ -116,9 +157,26 @@ public class PeerClientConnectionManager implements TransfersConfig {
                 peerClientPrivateInterface,
                 this,
                 peersEvents);
+        transfersConfigListeners = new CopyOnWriteArrayList<>();
+        peerConnectionManager.addConfigListener((previous, current) -> {
+            if (current.transfersConfigDiffers(previous)) {
+                for (TransfersConfig.Listener listener : transfersConfigListeners) {
+                    listener.transfersConfigChanged(this);
+                }
+            }
+        });
 
         this.connectedPeers = connectedPeers;
 
+        // the local server opens while the network topology is detected. It only waits for the topology to decide
+        // about the NAT rule. The peer server needs both, and the peer connections need the peer server
+        stateChangeExecutor = Executors.newSingleThreadExecutor();
+        serviceGraph = new ServiceDependencyGraph();
+        serviceGraph.addService(NETWORK_TOPOLOGY, networkTopologyManager::setWishForConnect, networkTopologyManager::isInWishedState);
+        serviceGraph.addService(LOCAL_SERVER, localServerManager::setWishForConnect, localServerManager::isInWishedState);
+        serviceGraph.addService(PEER_SERVER, peerServerManager::setWishForConnect, peerServerManager::isInWishedState, NETWORK_TOPOLOGY, LOCAL_SERVER);
+        serviceGraph.addService(PEER_CONNECTIONS, peerConnectionManager::setWishForConnect, () -> true, PEER_SERVER);
+
         dynamicState = new EvolvingState<>(PeerClientConnectionManager.ConnectionState.DISCONNECTED, false, new EvolvingState.Transitions<ConnectionState, Boolean>() {
             @Override
             public boolean runTransition(ConnectionState connectionState, Boolean goal, EvolvingStateController<ConnectionState, Boolean> controller) {
@@ -130,37 +188,12 @@ public class PeerClientConnectionManager implements TransfersConfig {
                             return false;
 
                         case CONNECTING:
-                            // first, connect the network topology manager
-                            networkTopologyManager.setWishForConnect(true);
-                            if (!networkTopologyManager.isInWishedState()) {
-                                // disconnect next services and wait
-                                localServerManager.setWishForConnect(false);
-                                peerServerManager.setWishForConnect(false);
-                                peerConnectionManager.setWishForConnect(false);
-                                delay();
-                                return false;
-                            }
-
-                            // second, open the server for listening to incoming peer connections, then connect to the peer server
-                            localServerManager.setWishForConnect(true);
-                            if (!localServerManager.isInWishedState()) {
-                                peerServerManager.setWishForConnect(false);
-                                peerConnectionManager.setWishForConnect(false);
-                                delay();
-                                return false;
-                            }
-
-                            // third, connect to the peer server
-                            peerServerManager.setWishForConnect(true);
-                            if (!peerServerManager.isInWishedState()) {
-                                peerConnectionManager.setWishForConnect(false);
-                                delay();
-                                return false;
+                            // bring up every service whose dependencies are ready. We are notified whenever
+                            // a service changes its state, so there is no need to wait here
+                            if (!serviceGraph.connect()) {
+                                return true;
                             }
 
-                            // fourth, activate the friend search
-                            peerConnectionManager.setWishForConnect(true);
-
                             // finally, set the state to connected
                             controller.setState(PeerClientConnectionManager.ConnectionState.CONNECTED);
                             return true;
@@ -175,19 +208,8 @@ public class PeerClientConnectionManager implements TransfersConfig {
                             return false;
 
                         case DISCONNECTING:
-                            if (!peerServerManager.isInWishedState()) {
-                                delay();
-                                return false;
-                            }
-
-                            if (!localServerManager.isInWishedState()) {
-                                delay();
-                                return false;
-                            }
-
-                            if (!networkTopologyManager.isInWishedState()) {
-                                delay();
-                                return false;
+                            if (!serviceGraph.isInWishedState()) {
+                                return true;
                             }
 
                             // and set the state to disconnected
@@ -204,6 +226,8 @@ public class PeerClientConnectionManager implements TransfersConfig {
                 return goal && connectionState == PeerClientConnectionManager.ConnectionState.CONNECTED || !goal && connectionState == PeerClientConnectionManager.ConnectionState.DISCONNECTED;
             }
         }, "PeerClientConnectionManager");
+        // services notify their state changes, this timer only covers lost notifications
+        dynamicState.setEvolveStateTimer(state -> true, GENERAL_REMINDER);
         wishForConnection = new AtomicBoolean(false);
     }
 
@@ -251,6 +275,13 @@ public class PeerClientConnectionManager implements TransfersConfig {
         return wishForConnection.get();
     }
 
+    /**
+     * @return true if all services reached the wish for connection (connected or disconnected)
+     */
+    boolean isInWishedState() {
+        return dynamicState.hasReachedGoal();
+    }
+
     /**
      * Disconnects and stops all resources and blocks until all resources are freed
      */
@@ -262,6 +293,9 @@ public class PeerClientConnectionManager implements TransfersConfig {
         peerConnectionManager.stop();
         dynamicState.blockUntilGoalReached(500);
         dynamicState.stop();
+        synchronized (stateChangeExecutor) {
+            stateChangeExecutor.shutdownNow();
+        }
         connectionEvents.stop();
     }
 
@@ -321,11 +355,8 @@ public class PeerClientConnectionManager implements TransfersConfig {
     }
 
     private void disconnectServices() {
-        peerConnectionManager.setWishForConnect(false);
-        peerServerManager.setWishForConnect(false);
+        serviceGraph.disconnect();
         connectedPeers.disconnectAllPeers();
-        localServerManager.setWishForConnect(false);
-        networkTopologyManager.setWishForConnect(false);
     }
 
     public synchronized PeerRelationship getPeerRelationship(PeerId peerId) {
@@ -432,7 +463,8 @@ public class PeerClientConnectionManager implements TransfersConfig {
         peerConnectionManager.setAdditionalCountries(additionalCountries);
     }
 
-    public synchronized Float getMaxDownloadSpeed() {
+    @Override
+    public Float getMaxDownloadSpeed() {
         return peerConnectionManager.getMaxDownloadSpeed();
     }
 
@@ -440,7 +472,8 @@ public class PeerClientConnectionManager implements TransfersConfig {
         peerConnectionManager.setMaxDownloadSpeed(speed);
     }
 
-    public synchronized Float getMaxUploadSpeed() {
+    @Override
+    public Float getMaxUploadSpeed() {
         return peerConnectionManager.getMaxUploadSpeed();
     }
 
@@ -448,6 +481,7 @@ public class PeerClientConnectionManager implements TransfersConfig {
         peerConnectionManager.setMaxUploadSpeed(speed);
     }
 
+    @Override
     public double getDownloadPartSelectionAccuracy() {
         return peerConnectionManager.getDownloadPartSelectionAccuracy();
     }
@@ -456,8 +490,31 @@ public class PeerClientConnectionManager implements TransfersConfig {
         peerConnectionManager.setDownloadPartSelectionAccuracy(accuracy);
     }
 
-    private void delay() {
-        ThreadUtil.safeSleep(DELAY);
+    @Override
+    public void addTransfersConfigListener(TransfersConfig.Listener listener) {
+        transfersConfigListeners.add(listener);
+    }
+
+    @Override
+    public void removeTransfersConfigListener(TransfersConfig.Listener listener) {
+        transfersConfigListeners.remove(listener);
+    }
+
+    /**
+     * A service (network topology, local server or peer server) reports a change in its state. The local server
+     * might be waiting for the network topology, and we might be able to bring up the next services
+     */
+    void serviceStateChanged() {
+        // services invoke this from their own state machines, so we evaluate the changes in a separate thread.
+        // Services keep reporting while we are stopped, but there is nothing left to evaluate
+        synchronized (stateChangeExecutor) {
+            if (!stateChangeExecutor.isShutdown()) {
+                stateChangeExecutor.submit(() -> {
+                    localServerManager.updateState();
+                    dynamicState.evolve();
+                });
+            }
+        }
     }
 
     /**
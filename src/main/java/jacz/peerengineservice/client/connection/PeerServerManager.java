@@ -5,6 +5,8 @@ import org.aanguita.jacuzzi.AI.evolve.EvolvingState;
 import org.aanguita.jacuzzi.AI.evolve.EvolvingStateController;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class defines an evolving state for handling connection with the central server
@@ -33,9 +35,9 @@ public class PeerServerManager {
     private final PeerId ownPeerId;
 
     /**
-     * URL (including version) of the server
+     * Client of the server (URL including version)
      */
-    private final String serverURL;
+    private final ServerAPI serverAPI;
 
     /**
      * The PeerClientConnectionManager that created us
@@ -65,7 +67,7 @@ public class PeerServerManager {
             PeerClientConnectionManager peerClientConnectionManager,
             ConnectionEventsBridge connectionEvents) {
         this.ownPeerId = ownPeerId;
-        this.serverURL = serverURL;
+        this.serverAPI = new ServerAPI(serverURL);
         this.peerClientConnectionManager = peerClientConnectionManager;
         this.connectionEvents = connectionEvents;
 
@@ -117,6 +119,8 @@ public class PeerServerManager {
                         || !goal && (state == ConnectionState.ConnectionToServerState.DISCONNECTED || state == ConnectionState.ConnectionToServerState.UNREGISTERED);
             }
         }, "PeerServerManager");
+        dynamicState.setEnterStateHook(ConnectionState.ConnectionToServerState.CONNECTED, peerClientConnectionManager::serviceStateChanged);
+        dynamicState.setEnterStateHook(ConnectionState.ConnectionToServerState.DISCONNECTED, peerClientConnectionManager::serviceStateChanged);
         dynamicState.setEvolveStateTimer(ConnectionState.ConnectionToServerState.UNREGISTERED, RETRY_CONNECTION_DELAY);
         dynamicState.setEvolveStateTimer(ConnectionState.ConnectionToServerState.DISCONNECTED, RETRY_CONNECTION_DELAY);
         dynamicState.setEvolveStateTimer(ConnectionState.ConnectionToServerState.WAITING_FOR_NEXT_CONNECTION_TRY, RETRY_CONNECTION_DELAY);
@@ -156,7 +160,7 @@ public class PeerServerManager {
         connectionEvents.tryingToRegisterWithServer(ConnectionState.ConnectionToServerState.REGISTERING);
         try {
             ServerAPI.RegistrationResponse registrationResponse =
-                    ServerAPI.register(serverURL, new ServerAPI.RegistrationRequest(ownPeerId));
+                    serverAPI.register(new ServerAPI.RegistrationRequest(ownPeerId));
             switch (registrationResponse) {
 
                 case OK:
@@ -188,8 +192,7 @@ public class PeerServerManager {
         connectionEvents.tryingToConnectToServer(ConnectionState.ConnectionToServerState.CONNECTING);
         try {
             ServerAPI.ConnectionResponse connectionResponse =
-                    ServerAPI.connect(
-                            serverURL,
+                    serverAPI.connect(
                             new ServerAPI.ConnectionRequest(
                                     ownPeerId,
                                     actualConnectionData.localAddress,
@@ -207,6 +210,7 @@ public class PeerServerManager {
                     // set up the timer for refreshing the connection
                     setupConnectionRefreshTimer(connectionResponse.getMinReminderTime(), connectionResponse.getMaxReminderTime());
                     connectionEvents.connectionToServerEstablished(ConnectionState.ConnectionToServerState.CONNECTED);
+                    CompletableFuture.runAsync(this::fetchOwnExternalAddress);
                     return false;
                 case UNREGISTERED_PEER:
                     controller.setState(ConnectionState.ConnectionToServerState.UNREGISTERED);
@@ -241,6 +245,23 @@ public class PeerServerManager {
         }
     }
 
+    /**
+     * Asks the server for our own info, which includes our external address as seen by the server. It is reported
+     * to the network topology manager, so later detections do not need to use external services
+     */
+    private void fetchOwnExternalAddress() {
+        try {
+            ServerAPI.InfoResponse infoResponse = serverAPI.info(new ServerAPI.InfoRequest(Collections.singletonList(ownPeerId)));
+            for (ServerAPI.PeerIdInfo peerIdInfo : infoResponse.getPeerIdInfoList()) {
+                if (peerIdInfo.getPeerId().equals(ownPeerId)) {
+                    peerClientConnectionManager.getNetworkTopologyManager().reportExternalAddress(peerIdInfo.getExternalIPAddress());
+                }
+            }
+        } catch (IOException | ServerAccessException | IllegalArgumentException e) {
+            // ignore, the address will be detected by other means
+        }
+    }
+
     private void setupConnectionRefreshTimer(long minReminderTime, long maxReminderTime) {
         dynamicState.setRunnableStateTimer(ConnectionState.ConnectionToServerState.CONNECTED, (minReminderTime + maxReminderTime) / 2, new Runnable() {
             @Override
@@ -252,7 +273,7 @@ public class PeerServerManager {
 
     private void disconnectFromPeerServer(EvolvingStateController<ConnectionState.ConnectionToServerState, Boolean> controller) {
         try {
-            ServerAPI.disconnect(serverURL, new ServerAPI.UpdateRequest(peerServerSessionID));
+            serverAPI.disconnect(new ServerAPI.UpdateRequest(peerServerSessionID));
         } catch (Exception e) {
             // ignore
         } finally {
@@ -266,7 +287,7 @@ public class PeerServerManager {
         if (dynamicState.state() == ConnectionState.ConnectionToServerState.CONNECTED) {
             try {
                 ServerAPI.RefreshResponse refreshResponse =
-                        ServerAPI.refresh(serverURL, new ServerAPI.UpdateRequest(peerServerSessionID));
+                        serverAPI.refresh(new ServerAPI.UpdateRequest(peerServerSessionID));
                 switch (refreshResponse) {
 
                     case OK:
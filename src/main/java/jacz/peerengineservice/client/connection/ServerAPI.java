@@ -4,15 +4,24 @@ import com.google.gson.Gson;
 import com.neovisionaries.i18n.CountryCode;
 import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.client.PeerClient;
-import org.aanguita.jacuzzi.io.http.HttpClient;
 import org.aanguita.jacuzzi.lists.tuple.Duple;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This class provides methods for accessing the remote server functionality
+ * <p/>
+ * Objects of this class are clients for one server, and are thread-safe. They share one json codec, and reuse
+ * persistent (keep-alive) connections to the server. The static methods are kept for one-off calls
  */
 public class ServerAPI {
 
@@ -205,7 +214,7 @@ public class ServerAPI {
 
         private final List<PeerIdInfo> peerIdInfoList;
 
-        private InfoResponse(List<PeerIdInfo> peerIdInfoList) {
+        public InfoResponse(List<PeerIdInfo> peerIdInfoList) {
             this.peerIdInfoList = peerIdInfoList;
         }
 
@@ -327,24 +336,53 @@ public class ServerAPI {
         }
     }
 
-    public static String hello(String serverURL) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "hello"),
-                HttpClient.Verb.GET,
-                HttpClient.ContentType.JSON);
+    /**
+     * Shared json codec (Gson instances are thread-safe)
+     */
+    private static final Gson GSON = new Gson();
+
+    private static final String JSON_CONTENT_TYPE = "application/json";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+    private final String serverURL;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    /**
+     * Whether gzip-compressed responses are accepted
+     */
+    private final boolean gzip;
+
+    public ServerAPI(String serverURL) {
+        this(serverURL, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, true);
+    }
+
+    public ServerAPI(String serverURL, int connectTimeout, int readTimeout, boolean gzip) {
+        this.serverURL = serverURL;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.gzip = gzip;
+    }
+
+    public String getServerURL() {
+        return serverURL;
+    }
+
+    public String hello() throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("hello", null);
         checkError(result);
         return result.element2;
     }
 
-    public static RegistrationResponse register(String serverURL, RegistrationRequest registrationRequest) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "register"),
-                HttpClient.Verb.POST,
-                HttpClient.ContentType.JSON,
-                HttpClient.ContentType.JSON,
-                new Gson().toJson(registrationRequest));
+    public RegistrationResponse register(RegistrationRequest registrationRequest) throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("register", GSON.toJson(registrationRequest));
         checkError(result);
-        RegistrationResponseJSON registrationResponseJSON = new Gson().fromJson(result.element2, RegistrationResponseJSON.class);
+        RegistrationResponseJSON registrationResponseJSON = GSON.fromJson(result.element2, RegistrationResponseJSON.class);
         try {
             return RegistrationResponse.valueOf(registrationResponseJSON.response);
         } catch (IllegalArgumentException e) {
@@ -354,16 +392,10 @@ public class ServerAPI {
         }
     }
 
-    public static ConnectionResponse connect(String serverURL, ConnectionRequest connectionRequest) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "connect"),
-                HttpClient.Verb.POST,
-                HttpClient.ContentType.JSON,
-                HttpClient.ContentType.JSON,
-                new Gson().toJson(connectionRequest));
-
+    public ConnectionResponse connect(ConnectionRequest connectionRequest) throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("connect", GSON.toJson(connectionRequest));
         checkError(result);
-        ConnectionResponseJSON connectionResponseJSON = new Gson().fromJson(result.element2, ConnectionResponseJSON.class);
+        ConnectionResponseJSON connectionResponseJSON = GSON.fromJson(result.element2, ConnectionResponseJSON.class);
         try {
             return ConnectionResponse.buildConnectionResponse(connectionResponseJSON);
         } catch (IllegalArgumentException e) {
@@ -373,15 +405,10 @@ public class ServerAPI {
         }
     }
 
-    public static RefreshResponse refresh(String serverURL, UpdateRequest updateRequest) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "refresh"),
-                HttpClient.Verb.POST,
-                HttpClient.ContentType.JSON,
-                HttpClient.ContentType.JSON,
-                new Gson().toJson(updateRequest));
+    public RefreshResponse refresh(UpdateRequest updateRequest) throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("refresh", GSON.toJson(updateRequest));
         checkError(result);
-        UpdateResponseJSON updateResponseJSON = new Gson().fromJson(result.element2, UpdateResponseJSON.class);
+        UpdateResponseJSON updateResponseJSON = GSON.fromJson(result.element2, UpdateResponseJSON.class);
         try {
             return RefreshResponse.valueOf(updateResponseJSON.response);
         } catch (IllegalArgumentException e) {
@@ -391,15 +418,10 @@ public class ServerAPI {
         }
     }
 
-    public static DisconnectResponse disconnect(String serverURL, UpdateRequest updateRequest) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "disconnect"),
-                HttpClient.Verb.POST,
-                HttpClient.ContentType.JSON,
-                HttpClient.ContentType.JSON,
-                new Gson().toJson(updateRequest));
+    public DisconnectResponse disconnect(UpdateRequest updateRequest) throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("disconnect", GSON.toJson(updateRequest));
         checkError(result);
-        UpdateResponseJSON updateResponseJSON = new Gson().fromJson(result.element2, UpdateResponseJSON.class);
+        UpdateResponseJSON updateResponseJSON = GSON.fromJson(result.element2, UpdateResponseJSON.class);
         try {
             return DisconnectResponse.valueOf(updateResponseJSON.response);
         } catch (IllegalArgumentException e) {
@@ -409,15 +431,10 @@ public class ServerAPI {
         }
     }
 
-    public static InfoResponse info(String serverURL, InfoRequest infoRequest) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "info"),
-                HttpClient.Verb.POST,
-                HttpClient.ContentType.JSON,
-                HttpClient.ContentType.JSON,
-                new Gson().toJson(infoRequest));
+    public InfoResponse info(InfoRequest infoRequest) throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("info", GSON.toJson(infoRequest));
         checkError(result);
-        InfoResponseJSON infoResponseJson = new Gson().fromJson(result.element2, InfoResponseJSON.class);
+        InfoResponseJSON infoResponseJson = GSON.fromJson(result.element2, InfoResponseJSON.class);
         try {
             return InfoResponse.buildInfoResponse(infoResponseJson);
         } catch (Exception e) {
@@ -427,15 +444,10 @@ public class ServerAPI {
         }
     }
 
-    public static InfoResponse regularPeersRequest(String serverURL, RegularPeersRequest regularPeersRequest) throws IOException, ServerAccessException {
-        Duple<Integer, String> result = HttpClient.httpRequest(
-                getURL(serverURL, "regular_peers_request"),
-                HttpClient.Verb.POST,
-                HttpClient.ContentType.JSON,
-                HttpClient.ContentType.JSON,
-                new Gson().toJson(regularPeersRequest));
+    public InfoResponse regularPeersRequest(RegularPeersRequest regularPeersRequest) throws IOException, ServerAccessException {
+        Duple<Integer, String> result = httpRequest("regular_peers_request", GSON.toJson(regularPeersRequest));
         checkError(result);
-        InfoResponseJSON infoResponseJson = new Gson().fromJson(result.element2, InfoResponseJSON.class);
+        InfoResponseJSON infoResponseJson = GSON.fromJson(result.element2, InfoResponseJSON.class);
         try {
             return InfoResponse.buildInfoResponse(infoResponseJson);
         } catch (Exception e) {
@@ -445,6 +457,80 @@ public class ServerAPI {
         }
     }
 
+    public static String hello(String serverURL) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).hello();
+    }
+
+    public static RegistrationResponse register(String serverURL, RegistrationRequest registrationRequest) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).register(registrationRequest);
+    }
+
+    public static ConnectionResponse connect(String serverURL, ConnectionRequest connectionRequest) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).connect(connectionRequest);
+    }
+
+    public static RefreshResponse refresh(String serverURL, UpdateRequest updateRequest) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).refresh(updateRequest);
+    }
+
+    public static DisconnectResponse disconnect(String serverURL, UpdateRequest updateRequest) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).disconnect(updateRequest);
+    }
+
+    public static InfoResponse info(String serverURL, InfoRequest infoRequest) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).info(infoRequest);
+    }
+
+    public static InfoResponse regularPeersRequest(String serverURL, RegularPeersRequest regularPeersRequest) throws IOException, ServerAccessException {
+        return new ServerAPI(serverURL).regularPeersRequest(regularPeersRequest);
+    }
+
+    /**
+     * Performs one request to the server. The response is fully read and its stream closed, so the underlying
+     * connection goes back to the keep-alive pool and is reused by later requests to the same server
+     *
+     * @param method server method
+     * @param body   json body for POST requests, null for GET requests
+     * @return the response code and the response body
+     */
+    private Duple<Integer, String> httpRequest(String method, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(getURL(serverURL, method)).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Accept", JSON_CONTENT_TYPE);
+        if (gzip) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        if (body != null) {
+            byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", JSON_CONTENT_TYPE + "; charset=utf-8");
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(bodyBytes);
+            }
+        } else {
+            connection.setRequestMethod("GET");
+        }
+        int responseCode = connection.getResponseCode();
+        InputStream inputStream = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (inputStream == null) {
+            return new Duple<>(responseCode, "");
+        }
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+        try (InputStream responseStream = inputStream) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = responseStream.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            return new Duple<>(responseCode, new String(response.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
     private static String getURL(String serverURL, String method) {
         return serverURL + method;
     }
@@ -0,0 +1,103 @@
+package jacz.peerengineservice.client.connection;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Dependency graph of the services that compose the connection of a peer client (network topology detection, local
+ * server, peer server, peer connections).
+ * <p/>
+ * Each service is wished to connect as soon as all the services it depends on are in their wished state, so
+ * independent services come up concurrently. The graph does not wait for anything: the owner re-evaluates it every
+ * time a service reports a state change
+ */
+class ServiceDependencyGraph {
+
+    private static final class Service {
+
+        private final Consumer<Boolean> wishForConnect;
+
+        private final BooleanSupplier inWishedState;
+
+        private final List<Service> dependencies;
+
+        private Service(Consumer<Boolean> wishForConnect, BooleanSupplier inWishedState, List<Service> dependencies) {
+            this.wishForConnect = wishForConnect;
+            this.inWishedState = inWishedState;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * Services in insertion order. Since dependencies must be added before, this is a topological order
+     */
+    private final Map<String, Service> services;
+
+    ServiceDependencyGraph() {
+        services = new LinkedHashMap<>();
+    }
+
+    /**
+     * Adds a service to the graph
+     *
+     * @param name           name of the service
+     * @param wishForConnect sets the wish of the service for being connected
+     * @param inWishedState  tells if the service has reached its wished state
+     * @param dependencies   names of the services (already added) that must be connected before this one
+     */
+    synchronized void addService(String name, Consumer<Boolean> wishForConnect, BooleanSupplier inWishedState, String... dependencies) {
+        List<Service> dependencyList = new ArrayList<>();
+        for (String dependency : dependencies) {
+            if (!services.containsKey(dependency)) {
+                throw new IllegalArgumentException("Unknown dependency " + dependency + " for service " + name);
+            }
+            dependencyList.add(services.get(dependency));
+        }
+        services.put(name, new Service(wishForConnect, inWishedState, dependencyList));
+    }
+
+    /**
+     * Moves all services one step towards connection. Services whose dependencies are connected are wished to
+     * connect. The rest are wished to disconnect
+     *
+     * @return true if all services are connected, false otherwise
+     */
+    synchronized boolean connect() {
+        Set<Service> connected = new HashSet<>();
+        for (Service service : services.values()) {
+            if (connected.containsAll(service.dependencies)) {
+                service.wishForConnect.accept(true);
+                if (service.inWishedState.getAsBoolean()) {
+                    connected.add(service);
+                }
+            } else {
+                service.wishForConnect.accept(false);
+            }
+        }
+        return connected.size() == services.size();
+    }
+
+    /**
+     * Wishes all services to disconnect, in reverse dependency order
+     */
+    synchronized void disconnect() {
+        List<Service> serviceList = new ArrayList<>(services.values());
+        Collections.reverse(serviceList);
+        for (Service service : serviceList) {
+            service.wishForConnect.accept(false);
+        }
+    }
+
+    /**
+     * @return true if all services are in their wished state
+     */
+    synchronized boolean isInWishedState() {
+        for (Service service : services.values()) {
+            if (!service.inWishedState.getAsBoolean()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -54,6 +54,104 @@ public class UpnpAPI {
     }
 
 
+    /**
+     * A UPnP gateway device, as used for port mapping. Allows using local fake gateways in tests
+     */
+    public interface Gateway {
+
+        /**
+         * @return the url of the root description of the gateway, which allows loading it again without discovery
+         */
+        String getLocation();
+
+        /**
+         * @return our local address in the network of the gateway
+         */
+        String getLocalAddress();
+
+        String getExternalIPAddress() throws UpnpException;
+
+        /**
+         * @return the mapping of the given external port, or null if the port is not mapped
+         */
+        PortMapping getPortMapping(int externalPort) throws UpnpException;
+
+        void addPortMapping(int externalPort, int internalPort, String mappingDescription) throws UpnpException;
+
+        void deletePortMapping(int externalPort) throws UpnpException;
+    }
+
+    /**
+     * Finds gateways, either by discovery or by loading a known description
+     */
+    public interface GatewayLocator {
+
+        Gateway discover(String externalIPAddress) throws UpnpException, NoGatewayException;
+
+        Gateway load(String location, String localAddress) throws UpnpException;
+    }
+
+    /**
+     * Gateway implementation over the weupnp gateway devices
+     */
+    public static class DeviceGateway implements Gateway {
+
+        private final GatewayDevice gatewayDevice;
+
+        public DeviceGateway(GatewayDevice gatewayDevice) {
+            this.gatewayDevice = gatewayDevice;
+        }
+
+        @Override
+        public String getLocation() {
+            return gatewayDevice.getLocation();
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return gatewayDevice.getLocalAddress().getHostAddress();
+        }
+
+        @Override
+        public String getExternalIPAddress() throws UpnpException {
+            try {
+                return gatewayDevice.getExternalIPAddress();
+            } catch (IOException | SAXException e) {
+                throw new UpnpException(e.getMessage());
+            }
+        }
+
+        @Override
+        public PortMapping getPortMapping(int externalPort) throws UpnpException {
+            return fetchPort(gatewayDevice, externalPort);
+        }
+
+        @Override
+        public void addPortMapping(int externalPort, int internalPort, String mappingDescription) throws UpnpException {
+            generatePortMapping(gatewayDevice, mappingDescription, externalPort, internalPort);
+        }
+
+        @Override
+        public void deletePortMapping(int externalPort) throws UpnpException {
+            unmapPort(gatewayDevice, externalPort);
+        }
+    }
+
+    /**
+     * Locates gateways through SSDP discovery, or by loading their description directly
+     */
+    public static final GatewayLocator DEVICE_GATEWAY_LOCATOR = new GatewayLocator() {
+        @Override
+        public Gateway discover(String externalIPAddress) throws UpnpException, NoGatewayException {
+            return new DeviceGateway(fetchGatewayDevice(externalIPAddress));
+        }
+
+        @Override
+        public Gateway load(String location, String localAddress) throws UpnpException {
+            return new DeviceGateway(loadGatewayDevice(location, localAddress));
+        }
+    };
+
     private static final String PROTOCOL = "TCP";
 
     private static final int INITIAL_PORT = 1024;
@@ -87,13 +185,32 @@ public class UpnpAPI {
         }
     }
 
+    /**
+     * Loads a gateway device from the location of its description, without discovery
+     *
+     * @param location     url of the root description of the gateway
+     * @param localAddress our local address in the network of the gateway
+     * @return the loaded gateway device
+     * @throws UpnpException the description could not be loaded
+     */
+    public static GatewayDevice loadGatewayDevice(String location, String localAddress) throws UpnpException {
+        try {
+            GatewayDevice gatewayDevice = new GatewayDevice();
+            gatewayDevice.setLocation(location);
+            gatewayDevice.setLocalAddress(InetAddress.getByName(localAddress));
+            gatewayDevice.loadDescription();
+            return gatewayDevice;
+        } catch (IOException | SAXException e) {
+            throw new UpnpException(e.getMessage());
+        }
+    }
+
     /**
      * @param externalPort the port to fetch
      * @return true if port is free, false otherwise
      * @throws UpnpException
-     * @throws NoGatewayException
      */
-    public static PortMapping fetchPort(GatewayDevice activeGW, int externalPort) throws UpnpException, NoGatewayException {
+    public static PortMapping fetchPort(GatewayDevice activeGW, int externalPort) throws UpnpException {
         try {
             PortMappingEntry portMapping = new PortMappingEntry();
             boolean existsPort = activeGW.getSpecificPortMappingEntry(externalPort, PROTOCOL, portMapping);
@@ -112,7 +229,7 @@ public class UpnpAPI {
         }
     }
 
-    public static void mapPort(GatewayDevice activeGW, String mappingDescription, int externalPort, int internalPort, boolean replace) throws UpnpException, NoGatewayException {
+    public static void mapPort(GatewayDevice activeGW, String mappingDescription, int externalPort, int internalPort, boolean replace) throws UpnpException {
         PortMapping portMapping = fetchPort(activeGW, externalPort);
         if (portMapping != null) {
             if (replace && portMapping.description.equals(mappingDescription)) {
@@ -124,7 +241,7 @@ public class UpnpAPI {
         generatePortMapping(activeGW, mappingDescription, externalPort, internalPort);
     }
 
-    private static void generatePortMapping(GatewayDevice activeGW, String mappingDescription, int externalPort, int internalPort) throws UpnpException, NoGatewayException {
+    private static void generatePortMapping(GatewayDevice activeGW, String mappingDescription, int externalPort, int internalPort) throws UpnpException {
         try {
             InetAddress localAddress = activeGW.getLocalAddress();
             activeGW.addPortMapping(externalPort, internalPort, localAddress.getHostAddress(), PROTOCOL, mappingDescription);
@@ -133,7 +250,11 @@ public class UpnpAPI {
         }
     }
 
-    public static int mapPortFrom(GatewayDevice activeGW, String mappingDescription, int initialExternalPort, int internalPort, boolean replace) throws UpnpException, NoGatewayException {
+    public static int mapPortFrom(GatewayDevice activeGW, String mappingDescription, int initialExternalPort, int internalPort, boolean replace) throws UpnpException {
+        return mapPortFrom(new DeviceGateway(activeGW), mappingDescription, initialExternalPort, internalPort, replace);
+    }
+
+    public static int mapPortFrom(Gateway activeGW, String mappingDescription, int initialExternalPort, int internalPort, boolean replace) throws UpnpException {
         // search for a free port
 //        PortMapping portMapping = fetchPort(activeGW, externalPort);
 //        while (externalPort <= FINAL_PORT && portMapping != null) {
@@ -141,9 +262,9 @@ public class UpnpAPI {
         int externalPort = initialExternalPort;
         boolean finished = false;
         while (!finished) {
-            PortMapping portMapping = fetchPort(activeGW, externalPort);
+            PortMapping portMapping = activeGW.getPortMapping(externalPort);
             if (portMapping != null && replace && portMapping.description.equals(mappingDescription)) {
-                unmapPort(activeGW, externalPort);
+                activeGW.deletePortMapping(externalPort);
                 portMapping = null;
             }
             if (portMapping == null) {
@@ -167,12 +288,12 @@ public class UpnpAPI {
 //            }
         }
         if (externalPort != -1) {
-            generatePortMapping(activeGW, mappingDescription, externalPort, internalPort);
+            activeGW.addPortMapping(externalPort, internalPort, mappingDescription);
         }
         return externalPort;
     }
 
-    public static void unmapPort(GatewayDevice activeGW, int externalPort) throws UpnpException, NoGatewayException {
+    public static void unmapPort(GatewayDevice activeGW, int externalPort) throws UpnpException {
 
         try {
             activeGW.deletePortMapping(externalPort, PROTOCOL);
@@ -259,17 +259,13 @@ public class ConnectionEstablishmentClientFSM implements TimedChannelFSMAction<C
                 case WRONG_AUTHENTICATION_FALSE_PEER:
                     return State.CONNECTION_DENIED;
                 case REGULAR_SPOTS_TEMPORARILY_FULL:
-                    peerEntryFacade.openTransaction();
                     peerEntryFacade.setRelationshipToUs(Management.Relationship.REGULAR);
                     peerEntryFacade.setWishForRegularConnections(Management.ConnectionWish.NOT_NOW);
                     peerEntryFacade.updateConnectionAttempt();
-                    peerEntryFacade.commitTransaction();
                     return State.CONNECTION_DENIED;
                 case BLOCKED:
-                    peerEntryFacade.openTransaction();
                     peerEntryFacade.setRelationshipToUs(Management.Relationship.BLOCKED);
                     peerEntryFacade.updateConnectionAttempt();
-                    peerEntryFacade.commitTransaction();
                     return State.CONNECTION_DENIED;
                 case DENY:
                     // peer no longer available, no need to update any info
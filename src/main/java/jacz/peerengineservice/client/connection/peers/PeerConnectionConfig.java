@@ -6,13 +6,101 @@ import org.aanguita.jacuzzi.io.serialization.localstorage.VersionedLocalStorage;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Connection configuration
+ * <p/>
+ * Values are read from an immutable snapshot of the local storage, which is rebuilt only when a setter modifies
+ * the storage. Getters are therefore cheap and lock-free. Listeners are notified after each change
  */
 public class PeerConnectionConfig implements Updater {
 
+    /**
+     * Immutable copy of the configuration values
+     */
+    public static final class Snapshot {
+
+        private final int maxRegularConnections;
+
+        private final boolean wishRegularConnections;
+
+        private final CountryCode mainCountry;
+
+        private final List<CountryCode> additionalCountries;
+
+        private final int maxRegularConnectionsForAdditionalCountries;
+
+        private final Float maxDownloadSpeed;
+
+        private final Float maxUploadSpeed;
+
+        private final double downloadPartSelectionAccuracy;
+
+        private Snapshot(VersionedLocalStorage localStorage) {
+            maxRegularConnections = localStorage.getInteger(MAX_REGULAR_CONNECTIONS);
+            wishRegularConnections = localStorage.getBoolean(WISH_REGULAR_CONNECTIONS);
+            mainCountry = localStorage.getEnum(MAIN_COUNTRY, CountryCode.class);
+            additionalCountries = Collections.unmodifiableList(new ArrayList<>(localStorage.getEnumList(ADDITIONAL_COUNTRIES, CountryCode.class)));
+            maxRegularConnectionsForAdditionalCountries = localStorage.getInteger(MAX_REGULAR_CONNECTIONS_FOR_ADDITIONAL_COUNTRIES);
+            maxDownloadSpeed = localStorage.getFloat(MAX_DOWNLOAD_SPEED);
+            maxUploadSpeed = localStorage.getFloat(MAX_UPLOAD_SPEED);
+            downloadPartSelectionAccuracy = localStorage.getDouble(DOWNLOAD_PART_SELECTION_ACCURACY);
+        }
+
+        public int getMaxRegularConnections() {
+            return maxRegularConnections;
+        }
+
+        public boolean isWishRegularConnections() {
+            return wishRegularConnections;
+        }
+
+        public CountryCode getMainCountry() {
+            return mainCountry;
+        }
+
+        public List<CountryCode> getAdditionalCountries() {
+            return additionalCountries;
+        }
+
+        public int getMaxRegularConnectionsForAdditionalCountries() {
+            return maxRegularConnectionsForAdditionalCountries;
+        }
+
+        public Float getMaxDownloadSpeed() {
+            return maxDownloadSpeed;
+        }
+
+        public Float getMaxUploadSpeed() {
+            return maxUploadSpeed;
+        }
+
+        public double getDownloadPartSelectionAccuracy() {
+            return downloadPartSelectionAccuracy;
+        }
+
+        /**
+         * @return true if any of the values related to transfers differs from another snapshot
+         */
+        public boolean transfersConfigDiffers(Snapshot other) {
+            return !Objects.equals(maxDownloadSpeed, other.maxDownloadSpeed)
+                    || !Objects.equals(maxUploadSpeed, other.maxUploadSpeed)
+                    || downloadPartSelectionAccuracy != other.downloadPartSelectionAccuracy;
+        }
+    }
+
+    /**
+     * Listener for changes in the configuration
+     */
+    public interface Listener {
+
+        void configChanged(Snapshot previous, Snapshot current);
+    }
+
     private static final int MIN_REGULAR_CONNECTIONS_FOR_OTHER_COUNTRIES = 5;
 
     private static final int DEFAULT_MAX_REGULAR_CONNECTIONS = 100;
@@ -60,9 +148,14 @@ public class PeerConnectionConfig implements Updater {
 
     private final VersionedLocalStorage localStorage;
 
+    private volatile Snapshot snapshot;
+
+    private final List<Listener> listeners;
+
 
     public PeerConnectionConfig(String localStoragePath, CountryCode mainCountry) throws IOException {
         localStorage = VersionedLocalStorage.createNew(localStoragePath, CURRENT_VERSION);
+        listeners = new CopyOnWriteArrayList<>();
         setMaxRegularConnections(DEFAULT_MAX_REGULAR_CONNECTIONS);
         setWishRegularConnections(DEFAULT_REGULAR_WISH);
         setMainCountry(mainCountry);
@@ -71,90 +164,151 @@ public class PeerConnectionConfig implements Updater {
         setMaxDownloadSpeed(null);
         setMaxUploadSpeed(null);
         setDownloadPartSelectionAccuracy(DEFAULT_PART_SELECTION_ACCURACY);
+        snapshot = new Snapshot(localStorage);
     }
 
     public PeerConnectionConfig(String localStoragePath) throws IOException {
         localStorage = new VersionedLocalStorage(localStoragePath, this, CURRENT_VERSION);
+        listeners = new CopyOnWriteArrayList<>();
+        snapshot = new Snapshot(localStorage);
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Rebuilds the snapshot after a modification of the local storage, and notifies the listeners
+     */
+    private void storageModified() {
+        Snapshot previous;
+        Snapshot current;
+        synchronized (this) {
+            previous = snapshot;
+            if (previous == null) {
+                // still in construction, the snapshot is built at the end
+                return;
+            }
+            current = new Snapshot(localStorage);
+            snapshot = current;
+        }
+        for (Listener listener : listeners) {
+            listener.configChanged(previous, current);
+        }
     }
 
     public int getMaxRegularConnections() {
-        return localStorage.getInteger(MAX_REGULAR_CONNECTIONS);
+        return snapshot.getMaxRegularConnections();
     }
 
     public boolean setMaxRegularConnections(int maxRegularConnections) {
-        return localStorage.setInteger(MAX_REGULAR_CONNECTIONS, maxRegularConnections);
+        if (localStorage.setInteger(MAX_REGULAR_CONNECTIONS, maxRegularConnections)) {
+            storageModified();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public boolean isWishRegularConnections() {
-        return localStorage.getBoolean(WISH_REGULAR_CONNECTIONS);
+        return snapshot.isWishRegularConnections();
     }
 
     public boolean setWishRegularConnections(boolean wishRegularConnections) {
-        return localStorage.setBoolean(WISH_REGULAR_CONNECTIONS, wishRegularConnections);
+        if (localStorage.setBoolean(WISH_REGULAR_CONNECTIONS, wishRegularConnections)) {
+            storageModified();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public CountryCode getMainCountry() {
-        return localStorage.getEnum(MAIN_COUNTRY, CountryCode.class);
+        return snapshot.getMainCountry();
     }
 
     public boolean setMainCountry(CountryCode mainCountry) {
-        return localStorage.setEnum(MAIN_COUNTRY, CountryCode.class, mainCountry);
+        if (localStorage.setEnum(MAIN_COUNTRY, CountryCode.class, mainCountry)) {
+            storageModified();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public List<CountryCode> getAdditionalCountries() {
-        return localStorage.getEnumList(ADDITIONAL_COUNTRIES, CountryCode.class);
+        return new ArrayList<>(snapshot.getAdditionalCountries());
     }
 
     public boolean isAdditionalCountry(CountryCode country) {
-        return getAdditionalCountries().contains(country);
+        return snapshot.getAdditionalCountries().contains(country);
     }
 
     public List<CountryCode> getAllCountries() {
-        List<CountryCode> allCountries = getAdditionalCountries();
-        allCountries.add(getMainCountry());
+        Snapshot snapshot = this.snapshot;
+        List<CountryCode> allCountries = new ArrayList<>(snapshot.getAdditionalCountries());
+        allCountries.add(snapshot.getMainCountry());
         return allCountries;
     }
 
     public void setAdditionalCountries(List<CountryCode> additionalCountries) {
         localStorage.setEnumList(ADDITIONAL_COUNTRIES, CountryCode.class, additionalCountries);
+        storageModified();
     }
 
     public int getMaxRegularConnectionsForAdditionalCountries() {
-        return localStorage.getInteger(MAX_REGULAR_CONNECTIONS_FOR_ADDITIONAL_COUNTRIES);
+        return snapshot.getMaxRegularConnectionsForAdditionalCountries();
     }
 
     public int getMaxRegularConnectionsForOtherCountries() {
+        Snapshot snapshot = this.snapshot;
         return Math.max(
-                getAdditionalCountries().size() * getMaxRegularConnectionsForAdditionalCountries() + 1,
+                snapshot.getAdditionalCountries().size() * snapshot.getMaxRegularConnectionsForAdditionalCountries() + 1,
                 MIN_REGULAR_CONNECTIONS_FOR_OTHER_COUNTRIES);
     }
 
     public boolean setMaxRegularConnectionsForAdditionalCountries(int maxRegularConnectionsForAdditionalLanguages) {
-        return localStorage.setInteger(MAX_REGULAR_CONNECTIONS_FOR_ADDITIONAL_COUNTRIES, maxRegularConnectionsForAdditionalLanguages);
+        if (localStorage.setInteger(MAX_REGULAR_CONNECTIONS_FOR_ADDITIONAL_COUNTRIES, maxRegularConnectionsForAdditionalLanguages)) {
+            storageModified();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public Float getMaxDownloadSpeed() {
-        return localStorage.getFloat(MAX_DOWNLOAD_SPEED);
+        return snapshot.getMaxDownloadSpeed();
     }
 
     public void setMaxDownloadSpeed(Float speed) {
         localStorage.setFloat(MAX_DOWNLOAD_SPEED, speed);
+        storageModified();
     }
 
     public Float getMaxUploadSpeed() {
-        return localStorage.getFloat(MAX_UPLOAD_SPEED);
+        return snapshot.getMaxUploadSpeed();
     }
 
     public void setMaxUploadSpeed(Float speed) {
         localStorage.setFloat(MAX_UPLOAD_SPEED, speed);
+        storageModified();
     }
 
     public double getDownloadPartSelectionAccuracy() {
-        return localStorage.getDouble(DOWNLOAD_PART_SELECTION_ACCURACY);
+        return snapshot.getDownloadPartSelectionAccuracy();
     }
 
     public void setDownloadPartSelectionAccuracy(double accuracy) {
         localStorage.setDouble(DOWNLOAD_PART_SELECTION_ACCURACY, accuracy);
+        storageModified();
     }
 
     @Override
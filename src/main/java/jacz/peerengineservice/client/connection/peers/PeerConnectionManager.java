@@ -75,9 +75,14 @@ public class PeerConnectionManager {
     private PeerAddress ownPeerAddress;
 
     /**
-     * URL (including version) of the server
+     * Client of the server (URL including version)
      */
-    private final String serverURL;
+    private final ServerAPI serverAPI;
+
+    /**
+     * Resolves peer info through the server, with caching and batching
+     */
+    private final PeerInfoResolver peerInfoResolver;
 
     private final PeerKnowledgeBase peerKnowledgeBase;
 
@@ -128,7 +133,8 @@ public class PeerConnectionManager {
         this.ownPeerId = ownPeerId;
         this.ownPeerEncryption = ownPeerEncryption;
         this.ownPeerAddress = null;
-        this.serverURL = serverURL;
+        this.serverAPI = new ServerAPI(serverURL);
+        this.peerInfoResolver = new PeerInfoResolver(this::requestPeersInfo);
         this.peerKnowledgeBase = new PeerKnowledgeBase(peerKnowledgeBasePath);
         this.peerConnectionConfig = new PeerConnectionConfig(peerConnectionConfigPath);
         this.favoritesConnectionManager = new FavoritesConnectionManager(this, peerKnowledgeBase);
@@ -184,7 +190,7 @@ public class PeerConnectionManager {
         disconnectionsManager.checkDisconnections();
     }
 
-    public synchronized Float getMaxDownloadSpeed() {
+    public Float getMaxDownloadSpeed() {
         return peerConnectionConfig.getMaxDownloadSpeed();
     }
 
@@ -192,7 +198,7 @@ public class PeerConnectionManager {
         peerConnectionConfig.setMaxDownloadSpeed(speed);
     }
 
-    public synchronized Float getMaxUploadSpeed() {
+    public Float getMaxUploadSpeed() {
         return peerConnectionConfig.getMaxUploadSpeed();
     }
 
@@ -208,6 +214,10 @@ public class PeerConnectionManager {
         peerConnectionConfig.setDownloadPartSelectionAccuracy(accuracy);
     }
 
+    public void addConfigListener(PeerConnectionConfig.Listener listener) {
+        peerConnectionConfig.addListener(listener);
+    }
+
     public int getMaxRegularConnectionsForOtherCountries() {
         return peerConnectionConfig.getMaxRegularConnectionsForOtherCountries();
     }
@@ -287,21 +297,28 @@ public class PeerConnectionManager {
         return peerEntryFacade.getLastConnectionAttempt() != null && peerEntryFacade.getLastConnectionAttempt().getTime() + OLD_CONNECTION_THRESHOLD < System.currentTimeMillis();
     }
 
-    synchronized void askForSpecificPeersInfo(List<PeerId> requiredPeers) {
+    void askForSpecificPeersInfo(List<PeerId> requiredPeers) {
         if (!requiredPeers.isEmpty()) {
-            // request peers data to the server
+            // request peers data to the server. Peers recently resolved are not requested again, and info received
+            // from the server is digested by the resolver source
             try {
-                ServerAPI.InfoResponse infoResponse = ServerAPI.info(serverURL, new ServerAPI.InfoRequest(requiredPeers));
-                digestServerInfoResponse(infoResponse);
+                peerInfoResolver.resolve(requiredPeers);
             } catch (IOException | ServerAccessException e) {
                 // error connecting with the server -> will retry later
             }
         }
     }
 
+    private ServerAPI.InfoResponse requestPeersInfo(List<PeerId> peerIds) throws IOException, ServerAccessException {
+        ServerAPI.InfoResponse infoResponse = serverAPI.info(new ServerAPI.InfoRequest(peerIds));
+        digestServerInfoResponse(infoResponse);
+        return infoResponse;
+    }
+
     synchronized boolean askForMoreRegularPeers(CountryCode country) {
         try {
-            ServerAPI.InfoResponse infoResponse = ServerAPI.regularPeersRequest(serverURL, new ServerAPI.RegularPeersRequest(country));
+            ServerAPI.InfoResponse infoResponse = serverAPI.regularPeersRequest(new ServerAPI.RegularPeersRequest(country));
+            peerInfoResolver.store(infoResponse.getPeerIdInfoList());
             return digestServerInfoResponse(infoResponse);
         } catch (IOException | ServerAccessException e) {
             // error connecting with the server -> will retry later
@@ -309,28 +326,26 @@ public class PeerConnectionManager {
         }
     }
 
-    private boolean digestServerInfoResponse(ServerAPI.InfoResponse infoResponse) {
-        boolean hasLoadedAny = false;
+    private synchronized boolean digestServerInfoResponse(ServerAPI.InfoResponse infoResponse) {
+        // all received peers are loaded in the knowledge base at once
+        List<PeerKnowledgeBase.PeerDataUpdate> peerDataUpdates = new ArrayList<>();
         for (ServerAPI.PeerIdInfo peerIdInfo : infoResponse.getPeerIdInfoList()) {
             // we must filter out our own peer id, as the server might provide this info to us
             if (!peerIdInfo.getPeerId().equals(ownPeerId)) {
-                // update info for each peer
-                PeerEntryFacade peerEntryFacade = peerKnowledgeBase.getPeerEntryFacade(peerIdInfo.getPeerId());
-                peerEntryFacade.openTransaction();
-                peerEntryFacade.setMainCountry(peerIdInfo.getMainCountry());
-                if (peerIdInfo.isWishRegularConnections()) {
-                    peerEntryFacade.setWishForRegularConnections(Management.ConnectionWish.YES);
-                } else {
-                    peerEntryFacade.setWishForRegularConnections(Management.ConnectionWish.NO);
-                }
                 IP4Port externalAddress = new IP4Port(peerIdInfo.getExternalIPAddress(), peerIdInfo.getExternalMainServerPort());
                 IP4Port localAddress = new IP4Port(peerIdInfo.getLocalIPAddress(), peerIdInfo.getLocalMainServerPort());
-                peerEntryFacade.setPeerAddress(new PeerAddress(externalAddress, localAddress));
-                peerEntryFacade.commitTransaction();
-                hasLoadedAny = true;
+                peerDataUpdates.add(new PeerKnowledgeBase.PeerDataUpdate(
+                        peerIdInfo.getPeerId(),
+                        peerIdInfo.getMainCountry(),
+                        peerIdInfo.isWishRegularConnections() ? Management.ConnectionWish.YES : Management.ConnectionWish.NO,
+                        new PeerAddress(externalAddress, localAddress)));
             }
         }
-        return hasLoadedAny;
+        peerKnowledgeBase.updatePeers(peerDataUpdates);
+        if (!peerDataUpdates.isEmpty()) {
+            regularsConnectionManager.knowledgeBaseUpdated();
+        }
+        return !peerDataUpdates.isEmpty();
     }
 
     synchronized void attemptConnection(PeerEntryFacade peerEntryFacade) {
@@ -362,6 +377,7 @@ public class PeerConnectionManager {
             } catch (IOException e2) {
                 // peer not available or wrong/outdated peer data
                 invalidatePeerAddressInfo(peerEntryFacade.getPeerId());
+                regularsConnectionManager.connectionAttemptFailed(peerEntryFacade.getPeerId());
             }
         }
     }
@@ -639,6 +655,7 @@ public class PeerConnectionManager {
         // the client invokes this one. This PeerClient itself asked for it, so no confirmation is returned
         // if something is wrong, the PeerClient must deal with it itself, since connection is already established
         ongoingClientConnections.remove(peerId);
+        regularsConnectionManager.connectionAttemptSucceeded(peerId);
         peerKnowledgeBase.getPeerEntryFacade(peerId).setRelationshipToUs(serverToClientRelationship);
         connectionCompleted(peerId, ccp, serverMainCountry);
     }
@@ -684,7 +701,10 @@ public class PeerConnectionManager {
             } catch (IOException e) {
                 // peer not available or wrong peer data received
                 invalidatePeerAddressInfo(serverPeerId);
+                regularsConnectionManager.connectionAttemptFailed(serverPeerId);
             }
+        } else {
+            regularsConnectionManager.connectionAttemptFailed(serverPeerId);
         }
     }
 
@@ -711,15 +731,17 @@ public class PeerConnectionManager {
     void processExtraPeersInfo(List<PeersLookingForRegularConnectionsRecord.PeerRecord> peerRecords, CountryCode country) {
         // some peer records received from other peer -> load into pkb
         logger.info("Extra peers info received from server: " + peerRecords + ". Country: " + country);
+        List<PeerKnowledgeBase.PeerDataUpdate> peerDataUpdates = new ArrayList<>();
         for (PeersLookingForRegularConnectionsRecord.PeerRecord peerRecord : peerRecords) {
             // avoid owr own peer to be processed
             if (!peerRecord.getPeerId().equals(ownPeerId)) {
-                PeerEntryFacade peerEntryFacade = peerKnowledgeBase.getPeerEntryFacade(peerRecord.getPeerId());
-                peerEntryFacade.setPeerAddress(peerRecord.peerAddress);
-                peerEntryFacade.setMainCountry(country);
-                peerEntryFacade.setWishForRegularConnections(Management.ConnectionWish.YES);
+                peerDataUpdates.add(new PeerKnowledgeBase.PeerDataUpdate(peerRecord.getPeerId(), country, Management.ConnectionWish.YES, peerRecord.peerAddress));
             }
         }
+        peerKnowledgeBase.updatePeers(peerDataUpdates);
+        if (!peerDataUpdates.isEmpty()) {
+            regularsConnectionManager.knowledgeBaseUpdated();
+        }
     }
 
     /**
@@ -786,6 +808,7 @@ public class PeerConnectionManager {
         regularsConnectionManager.stop();
         disconnectionsManager.stop();
         peersEvents.stop();
+        peerKnowledgeBase.stop();
     }
 
     public static byte[] getConcurrentChannelsExceptConnection() {
@@ -0,0 +1,170 @@
+package jacz.peerengineservice.client.connection.peers;
+
+import jacz.peerengineservice.PeerId;
+import jacz.peerengineservice.client.connection.ServerAPI;
+import jacz.peerengineservice.client.connection.ServerAccessException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Resolves the info of peers (addresses, country...) through the peer server.
+ * <p/>
+ * Resolved info is cached for a while, including peers that the server does not know about. Concurrent lookups of
+ * the same peer share one server call, and the peers to look up are sent to the server in batches
+ */
+class PeerInfoResolver {
+
+    /**
+     * Source of peer info (usually, the info method of the server API)
+     */
+    interface InfoSource {
+
+        ServerAPI.InfoResponse info(List<PeerId> peerIds) throws IOException, ServerAccessException;
+    }
+
+    private static final class CacheEntry {
+
+        /**
+         * Info of the peer, or null if the server does not know the peer
+         */
+        private final ServerAPI.PeerIdInfo peerIdInfo;
+
+        private final long expiration;
+
+        private CacheEntry(ServerAPI.PeerIdInfo peerIdInfo, long expiration) {
+            this.peerIdInfo = peerIdInfo;
+            this.expiration = expiration;
+        }
+    }
+
+    static final long DEFAULT_TTL = 30000L;
+
+    static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private final InfoSource infoSource;
+
+    private final long ttl;
+
+    private final int maxBatchSize;
+
+    private final Map<PeerId, CacheEntry> cache;
+
+    /**
+     * Lookups currently in progress. Their futures complete with the info of the peer (or null if unknown)
+     */
+    private final Map<PeerId, CompletableFuture<ServerAPI.PeerIdInfo>> ongoingLookups;
+
+    PeerInfoResolver(InfoSource infoSource) {
+        this(infoSource, DEFAULT_TTL, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    PeerInfoResolver(InfoSource infoSource, long ttl, int maxBatchSize) {
+        this.infoSource = infoSource;
+        this.ttl = ttl;
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+        cache = new HashMap<>();
+        ongoingLookups = new HashMap<>();
+    }
+
+    /**
+     * Resolves the info of a set of peers. Peers that are not cached nor being looked up by other threads are
+     * looked up by this thread. Peers whose lookup fails are not included in the result
+     *
+     * @param peerIds peers to resolve
+     * @return the info of the resolved peers known by the server
+     * @throws IOException           error connecting with the server in the lookups of this thread
+     * @throws ServerAccessException error reported by the server in the lookups of this thread
+     */
+    Map<PeerId, ServerAPI.PeerIdInfo> resolve(Collection<PeerId> peerIds) throws IOException, ServerAccessException {
+        Map<PeerId, ServerAPI.PeerIdInfo> resolved = new HashMap<>();
+        Map<PeerId, CompletableFuture<ServerAPI.PeerIdInfo>> ownLookups = new HashMap<>();
+        Map<PeerId, CompletableFuture<ServerAPI.PeerIdInfo>> otherLookups = new HashMap<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (PeerId peerId : new LinkedHashSet<>(peerIds)) {
+                CacheEntry cacheEntry = cache.get(peerId);
+                if (cacheEntry != null && cacheEntry.expiration > now) {
+                    if (cacheEntry.peerIdInfo != null) {
+                        resolved.put(peerId, cacheEntry.peerIdInfo);
+                    }
+                } else if (ongoingLookups.containsKey(peerId)) {
+                    otherLookups.put(peerId, ongoingLookups.get(peerId));
+                } else {
+                    CompletableFuture<ServerAPI.PeerIdInfo> lookup = new CompletableFuture<>();
+                    ongoingLookups.put(peerId, lookup);
+                    ownLookups.put(peerId, lookup);
+                }
+            }
+        }
+        try {
+            lookup(ownLookups);
+        } finally {
+            // any lookup not completed due to errors is released, so other threads do not wait forever
+            synchronized (this) {
+                for (Map.Entry<PeerId, CompletableFuture<ServerAPI.PeerIdInfo>> ownLookup : ownLookups.entrySet()) {
+                    ongoingLookups.remove(ownLookup.getKey(), ownLookup.getValue());
+                    ownLookup.getValue().completeExceptionally(new IOException("Lookup failed"));
+                }
+            }
+        }
+        ownLookups.putAll(otherLookups);
+        for (Map.Entry<PeerId, CompletableFuture<ServerAPI.PeerIdInfo>> lookup : ownLookups.entrySet()) {
+            try {
+                ServerAPI.PeerIdInfo peerIdInfo = lookup.getValue().get();
+                if (peerIdInfo != null) {
+                    resolved.put(lookup.getKey(), peerIdInfo);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // the lookup failed in another thread -> ignore this peer
+            }
+        }
+        return resolved;
+    }
+
+    private void lookup(Map<PeerId, CompletableFuture<ServerAPI.PeerIdInfo>> lookups) throws IOException, ServerAccessException {
+        List<PeerId> peerIds = new ArrayList<>(lookups.keySet());
+        for (int i = 0; i < peerIds.size(); i += maxBatchSize) {
+            List<PeerId> batch = peerIds.subList(i, Math.min(i + maxBatchSize, peerIds.size()));
+            ServerAPI.InfoResponse infoResponse = infoSource.info(batch);
+            Map<PeerId, ServerAPI.PeerIdInfo> batchInfo = new HashMap<>();
+            for (ServerAPI.PeerIdInfo peerIdInfo : infoResponse.getPeerIdInfoList()) {
+                batchInfo.put(peerIdInfo.getPeerId(), peerIdInfo);
+            }
+            synchronized (this) {
+                long expiration = System.currentTimeMillis() + ttl;
+                for (PeerId peerId : batch) {
+                    cache.put(peerId, new CacheEntry(batchInfo.get(peerId), expiration));
+                    ongoingLookups.remove(peerId, lookups.get(peerId));
+                }
+                purge();
+            }
+            for (PeerId peerId : batch) {
+                lookups.get(peerId).complete(batchInfo.get(peerId));
+            }
+        }
+    }
+
+    /**
+     * Stores peer info obtained by other means (e.g. in a request for regular peers)
+     *
+     * @param peerIdInfoList info of peers
+     */
+    synchronized void store(List<ServerAPI.PeerIdInfo> peerIdInfoList) {
+        long expiration = System.currentTimeMillis() + ttl;
+        for (ServerAPI.PeerIdInfo peerIdInfo : peerIdInfoList) {
+            cache.put(peerIdInfo.getPeerId(), new CacheEntry(peerIdInfo, expiration));
+        }
+        purge();
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        cache.values().removeIf(cacheEntry -> cacheEntry.expiration <= now);
+    }
+}
@@ -17,44 +17,6 @@ import java.util.*;
  */
 public class RegularsConnectionManager {
 
-    private class TargetPeerList {
-
-        private final List<PeerEntryFacade> targetPeers;
-
-        public TargetPeerList(List<PeerEntryFacade> targetPeers) {
-            this.targetPeers = targetPeers;
-            filterTargetPeers();
-        }
-
-        private void filterTargetPeers() {
-            // remove target peers who do not meet conditions for connecting
-            Iterator<PeerEntryFacade> it = targetPeers.iterator();
-            while (it.hasNext()) {
-                PeerEntryFacade peerEntryFacade = it.next();
-                if (peerConnectionManager.discardConnectionAttempt(peerEntryFacade)) {
-                    // invalid target peer -> remove
-                    it.remove();
-                }
-            }
-        }
-
-        public boolean isEmpty() {
-            return targetPeers.isEmpty();
-        }
-
-        public int size() {
-            return targetPeers.size();
-        }
-
-        public List<PeerEntryFacade> retrieveTargetBatch(int maxSize) {
-            List<PeerEntryFacade> targets = new ArrayList<>();
-            while (!targetPeers.isEmpty() && targets.size() < TARGET_BATCH_SIZE && targets.size() < maxSize) {
-                targets.add(targetPeers.remove(0));
-            }
-            return targets;
-        }
-    }
-
     private class PeersRequiringMoreInfoBag {
 
         private final int maxCapacity;
@@ -145,8 +107,6 @@ public class RegularsConnectionManager {
 
     private static final int SMALL_TARGET_LIST = 50;
 
-    private static final int TARGET_BATCH_SIZE = 5;
-
     private static final int PEERS_REQUIRING_MORE_INFO_BAG_SIZE = 15;
 
 
@@ -159,7 +119,7 @@ public class RegularsConnectionManager {
 
     private final PeerConnectionConfig peerConnectionConfig;
 
-    private TargetPeerList targetPeers;
+    private final RegularsConnectionScheduler scheduler;
 
     private final PeersRequiringMoreInfoBag peersRequiringMoreInfoBag;
 
@@ -169,6 +129,7 @@ public class RegularsConnectionManager {
         this.peerConnectionManager = peerConnectionManager;
         this.connectedPeers = connectedPeers;
         this.peerConnectionConfig = peerConnectionConfig;
+        scheduler = new RegularsConnectionScheduler();
         peersRequiringMoreInfoBag = new PeersRequiringMoreInfoBag(PEERS_REQUIRING_MORE_INFO_BAG_SIZE);
         dynamicState = new EvolvingState<>(new State(), false, new EvolvingState.Transitions<State, Boolean>() {
             @Override
@@ -185,13 +146,13 @@ public class RegularsConnectionManager {
                             // look for a language that needs more connections (start by currentLanguage)
                             if (findCountryNeedingMoreConnections(state)) {
                                 // country found, attempt connections with it
-                                targetPeers = getTargetPeers(state.currentCountry, peerKnowledgeBase);
-                                if (targetPeers.size() < SMALL_TARGET_LIST) {
+                                refreshTargetPeers(state.currentCountry, peerKnowledgeBase);
+                                if (scheduler.candidateCount(state.currentCountry) < SMALL_TARGET_LIST) {
                                     // we have ver few valid regular peers for this country -> ask for more
                                     logger.info("Requesting more regular peers to the server...");
                                     peerConnectionManager.askForMoreRegularPeers(state.currentCountry);
                                 }
-                                if (!targetPeers.isEmpty()) {
+                                if (scheduler.hasReadyCandidates(state.currentCountry)) {
                                     // there are target peers -> try to connect with them
                                     peersRequiringMoreInfoBag.clear();
                                     logger.info("Start attempting connections to target peers");
@@ -215,7 +176,7 @@ public class RegularsConnectionManager {
                         case ATTEMPTING_CONNECTIONS:
                             // check if we have reached the desired level of connections, or there are no more
                             // available target peers
-                            if (haveEnoughConnections(state.currentCountry) || targetPeers.isEmpty()) {
+                            if (haveEnoughConnections(state.currentCountry) || !scheduler.hasReadyCandidates(state.currentCountry)) {
                                 // go to idle and try another country
                                 logger.info("No more connection attempts needed");
                                 logger.info(peersRequiringMoreInfoBag.getPeers().size() + " peers have invalid address");
@@ -254,11 +215,10 @@ public class RegularsConnectionManager {
         dynamicState.setEvolveStateTimer(state -> true, GENERAL_DELAY);
     }
 
-    private TargetPeerList getTargetPeers(CountryCode currentCountry, PeerKnowledgeBase peerKnowledgeBase) {
-        logger.info("Building target peer list for " + currentCountry.name());
-        List<PeerEntryFacade> targetPeers = peerKnowledgeBase.getRegularPeers(PeerKnowledgeBase.ConnectedQuery.DISCONNECTED, currentCountry);
-        logger.info("Built target list with " + targetPeers.size() + " peers");
-        return new TargetPeerList(targetPeers);
+    private void refreshTargetPeers(CountryCode currentCountry, PeerKnowledgeBase peerKnowledgeBase) {
+        if (scheduler.refreshIfNeeded(currentCountry, peerKnowledgeBase)) {
+            logger.info("Built target list for " + currentCountry.name() + " with " + scheduler.candidateCount(currentCountry) + " peers");
+        }
     }
 
     private boolean findCountryNeedingMoreConnections(State state) {
@@ -331,7 +291,8 @@ public class RegularsConnectionManager {
     }
 
     private void attemptMoreConnections() {
-        for (PeerEntryFacade target : targetPeers.retrieveTargetBatch(remainingConnections(dynamicState.state().currentCountry))) {
+        CountryCode country = dynamicState.state().currentCountry;
+        for (PeerEntryFacade target : scheduler.retrieveBatch(country, remainingConnections(country), peerConnectionManager::discardConnectionAttempt)) {
             peerConnectionManager.attemptConnection(target);
             if (target.getPeerAddress().isNull()) {
                 // the target peer has now an invalid peer address (maybe it was already invalid). Add it to the bag of
@@ -341,6 +302,21 @@ public class RegularsConnectionManager {
         }
     }
 
+    /**
+     * New regular peers have been loaded in the knowledge base
+     */
+    void knowledgeBaseUpdated() {
+        scheduler.knowledgeBaseUpdated();
+    }
+
+    void connectionAttemptSucceeded(PeerId peerId) {
+        scheduler.attemptSucceeded(peerId);
+    }
+
+    void connectionAttemptFailed(PeerId peerId) {
+        scheduler.attemptFailed(peerId);
+    }
+
     public void setConnectionGoal(boolean connect) {
         dynamicState.setGoal(connect);
         dynamicState.evolve();
@@ -354,5 +330,6 @@ public class RegularsConnectionManager {
         setConnectionGoal(false);
         dynamicState.blockUntilGoalReached(500);
         dynamicState.stop();
+        scheduler.clear();
     }
 }
@@ -0,0 +1,313 @@
+package jacz.peerengineservice.client.connection.peers;
+
+import com.neovisionaries.i18n.CountryCode;
+import jacz.peerengineservice.PeerId;
+import jacz.peerengineservice.client.connection.peers.kb.PeerEntryFacade;
+import jacz.peerengineservice.client.connection.peers.kb.PeerKnowledgeBase;
+
+import java.util.*;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the candidates for regular connections in memory, so the peer knowledge base does not need to be queried
+ * on every connection cycle.
+ * <p/>
+ * Candidates of each country are kept in a priority queue. Peers that have never failed come first, ordered by
+ * affinity and by the order provided by the knowledge base. Peers whose connection attempts fail are pushed back
+ * with an exponential backoff, so we do not waste attempts on dead peers. The size of each batch of connection
+ * attempts is adapted to the remaining connections and to the observed success ratio.
+ * <p/>
+ * The knowledge base is only queried again for a country when its in-memory queue is empty, when new peers have
+ * been loaded in the knowledge base, or after a long refresh interval. If all candidates are backed off, no query
+ * is made: we just wait until the first of them can be attempted again. Refreshes are merged into the existing
+ * queue, so backoff information survives them.
+ * <p/>
+ * All methods are synchronized, as attempts are reported from connection FSMs running in other threads
+ */
+class RegularsConnectionScheduler {
+
+    private static class Candidate {
+
+        private final PeerId peerId;
+
+        private final CountryCode country;
+
+        private PeerEntryFacade peerEntryFacade;
+
+        private int affinity;
+
+        /**
+         * Order in which this candidate was given by the last knowledge base query (lower comes first)
+         */
+        private long order;
+
+        private int failures;
+
+        /**
+         * Time at which this candidate can be attempted again (0 if it never failed)
+         */
+        private long nextAttempt;
+
+        private Candidate(PeerEntryFacade peerEntryFacade, CountryCode country, long order) {
+            this.peerId = peerEntryFacade.getPeerId();
+            this.country = country;
+            update(peerEntryFacade, order);
+            failures = 0;
+            nextAttempt = 0L;
+        }
+
+        /**
+         * @return true if the position of this candidate in its queue changed
+         */
+        private boolean update(PeerEntryFacade peerEntryFacade, long order) {
+            this.peerEntryFacade = peerEntryFacade;
+            int affinity = peerEntryFacade.getAffinity();
+            boolean changed = affinity != this.affinity || order != this.order;
+            this.affinity = affinity;
+            this.order = order;
+            return changed;
+        }
+    }
+
+    private static final Comparator<Candidate> CANDIDATE_COMPARATOR = (c1, c2) -> {
+        if (c1.nextAttempt != c2.nextAttempt) {
+            return Long.compare(c1.nextAttempt, c2.nextAttempt);
+        } else if (c1.affinity != c2.affinity) {
+            return Integer.compare(c2.affinity, c1.affinity);
+        } else {
+            return Long.compare(c1.order, c2.order);
+        }
+    };
+
+    private static final long BASE_BACKOFF = 10000L;
+
+    private static final long MAX_BACKOFF = 1000L * 60L * 30L;
+
+    /**
+     * Attempts that are not reported back after this time are considered failed
+     */
+    private static final long IN_FLIGHT_TIMEOUT = 30000L;
+
+    /**
+     * Even if nothing changed, the knowledge base is queried again after this time
+     */
+    private static final long REFRESH_INTERVAL = 1000L * 60L * 5L;
+
+    private static final int MIN_BATCH_SIZE = 5;
+
+    private static final int MAX_BATCH_SIZE = 40;
+
+    private static final double INITIAL_SUCCESS_RATIO = 0.5d;
+
+    private static final double MIN_SUCCESS_RATIO = 0.1d;
+
+    /**
+     * Weight of the last result in the success ratio moving average
+     */
+    private static final double SUCCESS_RATIO_WEIGHT = 0.2d;
+
+    private final Map<PeerId, Candidate> candidates;
+
+    private final Map<CountryCode, PriorityQueue<Candidate>> queues;
+
+    private final Map<CountryCode, Long> lastRefresh;
+
+    /**
+     * Attempted candidates whose result is still unknown, with the time of the attempt
+     */
+    private final Map<PeerId, Long> inFlight;
+
+    /**
+     * Source of the current time (replaceable for testing)
+     */
+    private final LongSupplier clock;
+
+    private double successRatio;
+
+    RegularsConnectionScheduler() {
+        this(System::currentTimeMillis);
+    }
+
+    RegularsConnectionScheduler(LongSupplier clock) {
+        this.clock = clock;
+        candidates = new HashMap<>();
+        queues = new HashMap<>();
+        lastRefresh = new HashMap<>();
+        inFlight = new HashMap<>();
+        successRatio = INITIAL_SUCCESS_RATIO;
+    }
+
+    /**
+     * Retrieves the regular candidates for a country from the knowledge base, if needed
+     *
+     * @return true if the knowledge base was queried
+     */
+    synchronized boolean refreshIfNeeded(CountryCode country, PeerKnowledgeBase peerKnowledgeBase) {
+        return refreshIfNeeded(country, () -> peerKnowledgeBase.getRegularPeers(PeerKnowledgeBase.ConnectedQuery.DISCONNECTED, country));
+    }
+
+    /**
+     * Retrieves the regular candidates for a country from the given query, if needed
+     *
+     * @return true if the query was performed
+     */
+    synchronized boolean refreshIfNeeded(CountryCode country, Supplier<List<PeerEntryFacade>> regularPeersQuery) {
+        expireInFlight();
+        Long last = lastRefresh.get(country);
+        if (last == null || candidateCount(country) == 0 || last + REFRESH_INTERVAL < clock.getAsLong()) {
+            refresh(country, regularPeersQuery.get());
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void refresh(CountryCode country, List<PeerEntryFacade> peerEntryFacades) {
+        // merge the retrieved peers into the existing queue. Peers no longer retrieved (connected, or deleted)
+        // are removed. Failure info of known peers is kept
+        PriorityQueue<Candidate> queue = queues.computeIfAbsent(country, c -> new PriorityQueue<>(CANDIDATE_COMPARATOR));
+        Set<PeerId> retrieved = new HashSet<>();
+        boolean reorder = false;
+        long order = 0L;
+        for (PeerEntryFacade peerEntryFacade : peerEntryFacades) {
+            PeerId peerId = peerEntryFacade.getPeerId();
+            retrieved.add(peerId);
+            if (inFlight.containsKey(peerId)) {
+                continue;
+            }
+            Candidate candidate = candidates.get(peerId);
+            if (candidate == null || candidate.country != country) {
+                if (candidate != null && queues.containsKey(candidate.country)) {
+                    queues.get(candidate.country).remove(candidate);
+                }
+                candidate = new Candidate(peerEntryFacade, country, order++);
+                candidates.put(peerId, candidate);
+                queue.add(candidate);
+            } else {
+                reorder |= candidate.update(peerEntryFacade, order++);
+            }
+        }
+        queue.removeIf(candidate -> !retrieved.contains(candidate.peerId));
+        candidates.values().removeIf(candidate -> candidate.country == country && !retrieved.contains(candidate.peerId) && !inFlight.containsKey(candidate.peerId));
+        if (reorder) {
+            // the keys of some queued candidates changed -> restore the heap order
+            List<Candidate> queued = new ArrayList<>(queue);
+            queue.clear();
+            queue.addAll(queued);
+        }
+        lastRefresh.put(country, clock.getAsLong());
+    }
+
+    /**
+     * Reports that new peers have been loaded in the knowledge base, so the next refresh of each country must query it
+     */
+    synchronized void knowledgeBaseUpdated() {
+        lastRefresh.clear();
+    }
+
+    synchronized int candidateCount(CountryCode country) {
+        PriorityQueue<Candidate> queue = queues.get(country);
+        return queue != null ? queue.size() : 0;
+    }
+
+    synchronized boolean hasReadyCandidates(CountryCode country) {
+        PriorityQueue<Candidate> queue = queues.get(country);
+        return queue != null && !queue.isEmpty() && queue.peek().nextAttempt <= clock.getAsLong();
+    }
+
+    /**
+     * Retrieves the next batch of candidates ready for a connection attempt. Retrieved candidates are considered
+     * in flight until their result is reported
+     *
+     * @param country              country of the candidates
+     * @param remainingConnections connections still needed for this country
+     * @param discardFilter        filter for candidates which must not be attempted now
+     * @return the peers to attempt
+     */
+    synchronized List<PeerEntryFacade> retrieveBatch(CountryCode country, int remainingConnections, Predicate<PeerEntryFacade> discardFilter) {
+        expireInFlight();
+        List<PeerEntryFacade> batch = new ArrayList<>();
+        PriorityQueue<Candidate> queue = queues.get(country);
+        if (queue == null) {
+            return batch;
+        }
+        int batchSize = batchSize(remainingConnections);
+        long now = clock.getAsLong();
+        while (batch.size() < batchSize && !queue.isEmpty() && queue.peek().nextAttempt <= now) {
+            Candidate candidate = queue.poll();
+            if (discardFilter.test(candidate.peerEntryFacade)) {
+                // not valid now, it will come back in the next refresh if still valid
+                candidates.remove(candidate.peerId);
+            } else {
+                inFlight.put(candidate.peerId, now);
+                batch.add(candidate.peerEntryFacade);
+            }
+        }
+        return batch;
+    }
+
+    private int batchSize(int remainingConnections) {
+        // try enough peers to fill the remaining connections with the current success ratio, counting the
+        // attempts whose result is still unknown
+        int needed = (int) Math.ceil(remainingConnections / successRatio) - inFlight.size();
+        return Math.max(Math.min(needed, MAX_BATCH_SIZE), Math.min(MIN_BATCH_SIZE, remainingConnections));
+    }
+
+    synchronized void attemptSucceeded(PeerId peerId) {
+        if (inFlight.remove(peerId) != null) {
+            updateSuccessRatio(1d);
+            // connected peers are not candidates. If they disconnect, they will come back in a refresh
+            candidates.remove(peerId);
+        }
+    }
+
+    synchronized void attemptFailed(PeerId peerId) {
+        if (inFlight.remove(peerId) != null) {
+            updateSuccessRatio(0d);
+            backoff(peerId);
+        }
+    }
+
+    private void backoff(PeerId peerId) {
+        Candidate candidate = candidates.get(peerId);
+        if (candidate != null) {
+            candidate.failures++;
+            long backoff = BASE_BACKOFF << Math.min(candidate.failures - 1, 16);
+            candidate.nextAttempt = clock.getAsLong() + Math.min(backoff, MAX_BACKOFF);
+            PriorityQueue<Candidate> queue = queues.get(candidate.country);
+            if (queue != null) {
+                queue.add(candidate);
+            }
+        }
+    }
+
+    private void updateSuccessRatio(double result) {
+        successRatio = Math.max((1d - SUCCESS_RATIO_WEIGHT) * successRatio + SUCCESS_RATIO_WEIGHT * result, MIN_SUCCESS_RATIO);
+    }
+
+    private void expireInFlight() {
+        long now = clock.getAsLong();
+        Iterator<Map.Entry<PeerId, Long>> it = inFlight.entrySet().iterator();
+        List<PeerId> expired = new ArrayList<>();
+        while (it.hasNext()) {
+            Map.Entry<PeerId, Long> entry = it.next();
+            if (entry.getValue() + IN_FLIGHT_TIMEOUT < now) {
+                expired.add(entry.getKey());
+                it.remove();
+            }
+        }
+        for (PeerId peerId : expired) {
+            updateSuccessRatio(0d);
+            backoff(peerId);
+        }
+    }
+
+    synchronized void clear() {
+        candidates.clear();
+        queues.clear();
+        lastRefresh.clear();
+        inFlight.clear();
+    }
+}
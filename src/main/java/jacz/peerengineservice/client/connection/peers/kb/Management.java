@@ -1,6 +1,5 @@
 package jacz.peerengineservice.client.connection.peers.kb;
 
-import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ActiveJDBCController;
 import org.javalite.activejdbc.DB;
 
 /**
@@ -45,6 +44,38 @@ public class Management {
 
     static final TableField ADDRESS = new TableField("address", "TEXT");
 
+    /**
+     * Version of the database schema, stored in the user_version pragma of the database. Databases with an older
+     * version are migrated when the knowledge base is opened
+     */
+    static final int CURRENT_SCHEMA_VERSION = 1;
+
+    /**
+     * Index for the peer queries by relationship, connection status and country. Columns after the filtering ones
+     * follow the peer ordering, so results do not need to be sorted
+     */
+    static final String RELATIONSHIP_CONNECTED_COUNTRY_INDEX = "idx_peer_entries_relationship_connected_country";
+
+    /**
+     * Index for the peer queries by relationship and connection status (all countries)
+     */
+    static final String RELATIONSHIP_CONNECTED_INDEX = "idx_peer_entries_relationship_connected";
+
+    /**
+     * Index for the peer queries by relationship only
+     */
+    static final String RELATIONSHIP_INDEX = "idx_peer_entries_relationship";
+
+    /**
+     * Index for the clean-up of old entries
+     */
+    static final String LAST_SESSION_INDEX = "idx_peer_entries_last_session";
+
+    /**
+     * Ordering of peers in queries (see PeerKnowledgeBase)
+     */
+    static final String PEER_ORDER = AFFINITY.name + " DESC, " + LAST_CONNECTION_ATTEMPT.name + ", " + LAST_SESSION.name + " DESC";
+
     public enum Relationship {
         FAVORITE,
         REGULAR,
@@ -67,13 +98,13 @@ public class Management {
     }
 
     private static void dropKBDatabase(String path) {
-        DB db = ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, path);
+        DB db = PooledConnectionController.connect(path);
         db.exec("DROP TABLE IF EXISTS " + TABLE_NAME);
-        ActiveJDBCController.disconnect();
+        PooledConnectionController.disconnect(path);
     }
 
     public synchronized static void createKBDatabase(String dbPath) {
-        DB db = ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
+        DB db = PooledConnectionController.connect(dbPath);
 
         StringBuilder create = new StringBuilder("CREATE TABLE ").append(TABLE_NAME).append("(");
         appendField(create, PEER_ID, false);
@@ -88,8 +119,63 @@ public class Management {
         appendField(create, AFFINITY, false);
         appendField(create, ADDRESS, true);
         db.exec(create.toString());
+        migrate(db, 0);
+
+        PooledConnectionController.disconnect(dbPath);
+    }
+
+    /**
+     * Migrates an existing database to the current schema version, if needed
+     *
+     * @param dbPath path to the database
+     */
+    public synchronized static void updateKBDatabase(String dbPath) {
+        DB db = PooledConnectionController.connect(dbPath);
+        try {
+            int version = getSchemaVersion(db);
+            if (version < CURRENT_SCHEMA_VERSION) {
+                migrate(db, version);
+            }
+        } finally {
+            PooledConnectionController.disconnect(dbPath);
+        }
+    }
+
+    static int getSchemaVersion(DB db) {
+        Object version = db.firstCell("PRAGMA user_version");
+        return version != null ? Integer.parseInt(version.toString()) : 0;
+    }
+
+    private static void migrate(DB db, int fromVersion) {
+        db.openTransaction();
+        try {
+            for (int version = fromVersion + 1; version <= CURRENT_SCHEMA_VERSION; version++) {
+                applyMigration(db, version);
+            }
+            db.exec("PRAGMA user_version = " + CURRENT_SCHEMA_VERSION);
+            db.commitTransaction();
+        } catch (RuntimeException e) {
+            db.rollbackTransaction();
+            throw e;
+        }
+    }
+
+    private static void applyMigration(DB db, int version) {
+        switch (version) {
+            case 1:
+                // indexes for the peer queries and the clean-up of old entries
+                createIndex(db, RELATIONSHIP_CONNECTED_COUNTRY_INDEX, RELATIONSHIP.name + ", " + IS_CONNECTED.name + ", " + MAIN_COUNTRY.name + ", " + PEER_ORDER);
+                createIndex(db, RELATIONSHIP_CONNECTED_INDEX, RELATIONSHIP.name + ", " + IS_CONNECTED.name + ", " + PEER_ORDER);
+                createIndex(db, RELATIONSHIP_INDEX, RELATIONSHIP.name + ", " + PEER_ORDER);
+                createIndex(db, LAST_SESSION_INDEX, LAST_SESSION.name);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown schema version: " + version);
+        }
+    }
 
-        ActiveJDBCController.disconnect();
+    private static void createIndex(DB db, String indexName, String columns) {
+        db.exec("CREATE INDEX IF NOT EXISTS " + indexName + " ON " + TABLE_NAME + "(" + columns + ")");
     }
 
     private static void appendField(StringBuilder create, TableField field, boolean isFinal) {
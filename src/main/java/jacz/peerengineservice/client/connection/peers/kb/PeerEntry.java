@@ -10,4 +10,18 @@ import org.javalite.activejdbc.annotations.Table;
 @DbName(PeerKnowledgeBase.DATABASE)
 @Table("peer_entries")
 public class PeerEntry extends Model {
+
+    /**
+     * Set when the cache drops this entry after a bulk modification of the database. Stale entries are never
+     * written, and facades holding them read the entry again
+     */
+    private volatile boolean stale = false;
+
+    boolean isStale() {
+        return stale;
+    }
+
+    void markStale() {
+        stale = true;
+    }
 }
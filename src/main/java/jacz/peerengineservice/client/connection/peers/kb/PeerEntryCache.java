@@ -0,0 +1,270 @@
+package jacz.peerengineservice.client.connection.peers.kb;
+
+import jacz.peerengineservice.PeerId;
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+import org.aanguita.jacuzzi.concurrency.timer.TimerAction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory cache of peer entries, in front of the knowledge base database. Cached entries are read from memory.
+ * Modifications are not written immediately: modified entries are marked as dirty and written together in a single
+ * transaction periodically (every durability window), or when the knowledge base is stopped. This way, the several
+ * field changes produced by each connection event are coalesced into one write.
+ * <p/>
+ * Each peer has at most one cached PeerEntry instance, shared by all its facades. Accesses to the fields of an
+ * entry are synchronized on the entry itself. Evicted dirty entries are still returned by the cache until the next
+ * flush writes them. Entries that leave the cache (evicted clean entries, evicted dirty entries once written, and
+ * all cached entries after bulk modifications of the database) are marked as stale, so facades read them again
+ */
+class PeerEntryCache implements TimerAction {
+
+    /**
+     * Maximum number of entries kept in memory
+     */
+    private static final int MAX_CACHED_ENTRIES = 10000;
+
+    private final String dbPath;
+
+    /**
+     * Cached entries, by peer id, in access order
+     */
+    private final LinkedHashMap<String, PeerEntry> entries;
+
+    /**
+     * Entries modified since the last flush, by peer id
+     */
+    private final Map<String, PeerEntry> dirtyEntries;
+
+    /**
+     * Entries being written by the current flush, by peer id
+     */
+    private final Map<String, PeerEntry> flushingEntries;
+
+    /**
+     * Flushes are serialized, so concurrent write transactions do not collide in the database
+     */
+    private final Object flushLock;
+
+    /**
+     * Incremented on each invalidation, so entries read from the database during a bulk modification are not cached
+     */
+    private long generation;
+
+    private final Timer flushTimer;
+
+    PeerEntryCache(String dbPath, long durabilityWindow) {
+        this(dbPath, durabilityWindow, MAX_CACHED_ENTRIES);
+    }
+
+    PeerEntryCache(String dbPath, long durabilityWindow, int maxCachedEntries) {
+        this.dbPath = dbPath;
+        entries = new LinkedHashMap<String, PeerEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PeerEntry> eldest) {
+                if (size() > maxCachedEntries) {
+                    // dirty entries are evicted too. They stay in the dirty entries until the next flush
+                    markStaleIfNotPending(eldest.getKey(), eldest.getValue());
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+        dirtyEntries = new HashMap<>();
+        flushingEntries = new HashMap<>();
+        flushLock = new Object();
+        generation = 0L;
+        flushTimer = new Timer(durabilityWindow, this, this.getClass().getName() + "Flush");
+    }
+
+    synchronized PeerEntry get(String peerId) {
+        PeerEntry peerEntry = entries.get(peerId);
+        if (peerEntry == null) {
+            // an evicted entry not written yet must not be read again from the database
+            peerEntry = dirtyEntries.containsKey(peerId) ? dirtyEntries.get(peerId) : flushingEntries.get(peerId);
+            if (peerEntry != null) {
+                entries.put(peerId, peerEntry);
+            }
+        }
+        return peerEntry;
+    }
+
+    /**
+     * Retrieves the cached entry of a peer. If it is not cached, it is read from the database, or created if it
+     * does not exist
+     *
+     * @param peerId id of the peer
+     * @return the cached instance for this peer
+     */
+    PeerEntry load(String peerId) {
+        while (true) {
+            long readGeneration;
+            synchronized (this) {
+                PeerEntry peerEntry = get(peerId);
+                if (peerEntry != null) {
+                    return peerEntry;
+                }
+                readGeneration = generation;
+            }
+            PeerEntry peerEntry;
+            PooledConnectionController.connect(dbPath);
+            try {
+                peerEntry = PeerEntry.findFirst(Management.PEER_ID.name + " = ?", peerId);
+                if (peerEntry == null) {
+                    peerEntry = PeerEntryFacade.newPeerEntry(new PeerId(peerId));
+                    peerEntry.insert();
+                }
+            } finally {
+                PooledConnectionController.disconnect(dbPath);
+            }
+            synchronized (this) {
+                if (generation == readGeneration) {
+                    return cache(peerEntry);
+                }
+            }
+            // the database was invalidated while reading -> read again
+        }
+    }
+
+    /**
+     * Adds an entry read from the database to the cache. If the peer was already cached, the cached instance is
+     * kept, as it may contain modifications not yet written
+     *
+     * @param peerEntry entry read from the database
+     * @return the cached instance for this peer
+     */
+    synchronized PeerEntry cache(PeerEntry peerEntry) {
+        String peerId = peerEntry.getString(Management.PEER_ID.name);
+        PeerEntry cachedEntry = entries.get(peerId);
+        if (cachedEntry == null) {
+            entries.put(peerId, peerEntry);
+            cachedEntry = peerEntry;
+        }
+        return cachedEntry;
+    }
+
+    /**
+     * @return false if the entry is stale, so its modifications are discarded (they must be applied to the entry
+     * read again)
+     */
+    synchronized boolean markDirty(PeerEntry peerEntry) {
+        if (!peerEntry.isStale()) {
+            dirtyEntries.put(peerEntry.getString(Management.PEER_ID.name), peerEntry);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Marks an entry that is not cached anymore as stale, unless it is still returned because it was not written yet.
+     * This way a second instance for the same peer is never used
+     */
+    private void markStaleIfNotPending(String peerId, PeerEntry peerEntry) {
+        if (dirtyEntries.get(peerId) != peerEntry && flushingEntries.get(peerId) != peerEntry) {
+            peerEntry.markStale();
+        }
+    }
+
+    /**
+     * Writes all dirty entries to the database, in one transaction
+     */
+    void flush() {
+        synchronized (flushLock) {
+            write(takeDirtyEntries());
+        }
+    }
+
+    private synchronized List<PeerEntry> takeDirtyEntries() {
+        List<PeerEntry> toWrite = new ArrayList<>(dirtyEntries.values());
+        flushingEntries.putAll(dirtyEntries);
+        dirtyEntries.clear();
+        return toWrite;
+    }
+
+    private synchronized void flushFinished() {
+        Map<String, PeerEntry> flushedEntries = new HashMap<>(flushingEntries);
+        flushingEntries.clear();
+        // written entries that were evicted meanwhile are no longer returned
+        for (Map.Entry<String, PeerEntry> flushedEntry : flushedEntries.entrySet()) {
+            if (!entries.containsKey(flushedEntry.getKey())) {
+                markStaleIfNotPending(flushedEntry.getKey(), flushedEntry.getValue());
+            }
+        }
+    }
+
+    private void write(List<PeerEntry> toWrite) {
+        if (!toWrite.isEmpty()) {
+            boolean committed = false;
+            PooledConnectionController.connect(dbPath);
+            try {
+                PooledConnectionController.getDB().openTransaction();
+                for (PeerEntry peerEntry : toWrite) {
+                    synchronized (peerEntry) {
+                        peerEntry.saveIt();
+                    }
+                }
+                PooledConnectionController.getDB().commitTransaction();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    // the entries remain dirty, they will be written in the next flush
+                    PooledConnectionController.getDB().rollbackTransaction();
+                    for (PeerEntry peerEntry : toWrite) {
+                        markDirty(peerEntry);
+                    }
+                }
+                PooledConnectionController.disconnect(dbPath);
+                flushFinished();
+            }
+        }
+    }
+
+    /**
+     * Performs a bulk modification of the database, which cached entries would not reflect. Dirty entries are
+     * written first. Then all cached entries are marked as stale and dropped, so their facades read them again.
+     * Modifications of entries made during the bulk modification are discarded
+     *
+     * @param bulkModification the modification of the database
+     */
+    void invalidate(Runnable bulkModification) {
+        synchronized (flushLock) {
+            write(takeDirtyEntries());
+            dropAll();
+            try {
+                bulkModification.run();
+            } finally {
+                // entries read during the bulk modification may not reflect it
+                dropAll();
+            }
+        }
+    }
+
+    private synchronized void dropAll() {
+        generation++;
+        for (PeerEntry peerEntry : entries.values()) {
+            peerEntry.markStale();
+        }
+        for (PeerEntry peerEntry : dirtyEntries.values()) {
+            peerEntry.markStale();
+        }
+        entries.clear();
+        dirtyEntries.clear();
+    }
+
+    @Override
+    public Long wakeUp(Timer timer) {
+        flush();
+        return null;
+    }
+
+    void stop() {
+        flushTimer.stop();
+        flush();
+    }
+}
@@ -3,126 +3,135 @@ package jacz.peerengineservice.client.connection.peers.kb;
 import com.neovisionaries.i18n.CountryCode;
 import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.client.connection.PeerAddress;
-import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ActiveJDBCController;
 import org.javalite.activejdbc.Model;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Interface to the entries of the peer knowledge base. Objects of this class give access to a single entry,
  * corresponding to a single peer
+ * <p/>
+ * Entries are kept in the knowledge base cache. Getters read from memory, and setters mark the entry as dirty so
+ * the cache writes it to the database later. If the cache evicts or invalidates the entry, it is retrieved again
  */
 public class PeerEntryFacade {
 
-    private final PeerEntry peerEntry;
+    private final String peerId;
 
-    private final String dbPath;
+    private volatile PeerEntry currentEntry;
 
-    PeerEntryFacade(Model peerEntry, String dbPath) {
-        this.peerEntry = (PeerEntry) peerEntry;
-        this.dbPath = dbPath;
-    }
+    private final PeerEntryCache cache;
 
-    PeerEntryFacade(PeerId peerId, String dbPath) {
-        ActiveJDBCController.getDB().openTransaction();
-        peerEntry = new PeerEntry();
-        peerEntry.setString(Management.PEER_ID.name, peerId.toString());
-        init();
-        peerEntry.insert();
-        ActiveJDBCController.getDB().commitTransaction();
-        this.dbPath = dbPath;
+    PeerEntryFacade(PeerEntry peerEntry, PeerEntryCache cache) {
+        this.peerId = peerEntry.getString(Management.PEER_ID.name);
+        this.currentEntry = peerEntry;
+        this.cache = cache;
     }
 
-    private void init() {
+    static PeerEntry newPeerEntry(PeerId peerId) {
+        PeerEntry peerEntry = new PeerEntry();
+        peerEntry.setString(Management.PEER_ID.name, peerId.toString());
         // set all default fields
         peerEntry.setString(Management.RELATIONSHIP.name, Management.Relationship.REGULAR.name());
         peerEntry.setString(Management.RELATIONSHIP_TO_US.name, Management.Relationship.REGULAR.name());
         peerEntry.setString(Management.WISH_REGULAR_CONNECTIONS.name, Management.ConnectionWish.YES.name());
         peerEntry.setBoolean(Management.IS_CONNECTED.name, false);
         peerEntry.setInteger(Management.AFFINITY.name, 0);
+        return peerEntry;
     }
 
-    public void openTransaction() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        ActiveJDBCController.getDB().openTransaction();
-    }
-
-    public void commitTransaction() {
-        ActiveJDBCController.getDB().commitTransaction();
-        ActiveJDBCController.disconnect();
-    }
-
-    static List<PeerEntryFacade> buildList(List<? extends Model> peerEntries, String dbPath) {
+    static List<PeerEntryFacade> buildList(List<? extends Model> peerEntries, PeerEntryCache cache) {
         List<PeerEntryFacade> peerEntryFacades = new ArrayList<>();
         for (Model peerEntry : peerEntries) {
             if (peerEntry != null) {
-                peerEntryFacades.add(new PeerEntryFacade(peerEntry, dbPath));
+                peerEntryFacades.add(new PeerEntryFacade(cache.cache((PeerEntry) peerEntry), cache));
             }
         }
         return peerEntryFacades;
     }
 
+    private PeerEntry entry() {
+        PeerEntry peerEntry = currentEntry;
+        if (peerEntry.isStale()) {
+            peerEntry = cache.load(peerId);
+            currentEntry = peerEntry;
+        }
+        return peerEntry;
+    }
+
+    /**
+     * Applies a modification to the entry, and marks it as dirty. If the cache dropped the entry meanwhile (it was
+     * evicted or invalidated), the modification is applied again on the entry read again
+     */
+    private void modify(Consumer<PeerEntry> modification) {
+        while (true) {
+            PeerEntry peerEntry = entry();
+            synchronized (peerEntry) {
+                modification.accept(peerEntry);
+            }
+            if (cache.markDirty(peerEntry)) {
+                return;
+            }
+        }
+    }
+
     public PeerId getPeerId() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        PeerId peerId = new PeerId(peerEntry.getString(Management.PEER_ID.name));
-        ActiveJDBCController.disconnect();
-        return peerId;
+        return new PeerId(peerId);
     }
 
     public CountryCode getMainCountry() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        String mainCountry = peerEntry.getString(Management.MAIN_COUNTRY.name);
-        ActiveJDBCController.disconnect();
-        return mainCountry != null ? CountryCode.valueOf(mainCountry) : null;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            String mainCountry = peerEntry.getString(Management.MAIN_COUNTRY.name);
+            return mainCountry != null ? CountryCode.valueOf(mainCountry) : null;
+        }
     }
 
     public void setMainCountry(CountryCode mainCountry) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setString(Management.MAIN_COUNTRY.name, mainCountry.toString());
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setString(Management.MAIN_COUNTRY.name, mainCountry.toString());
+        });
     }
 
     public Management.Relationship getRelationship() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        String relationshipValue = peerEntry.getString(Management.RELATIONSHIP.name);
-        Management.Relationship relationship = relationshipValue != null ? Management.Relationship.valueOf(relationshipValue) : null;
-        ActiveJDBCController.disconnect();
-        return relationship;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            String relationshipValue = peerEntry.getString(Management.RELATIONSHIP.name);
+            return relationshipValue != null ? Management.Relationship.valueOf(relationshipValue) : null;
+        }
     }
 
     public void setRelationship(Management.Relationship relationship) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setString(Management.RELATIONSHIP.name, relationship.name());
-        peerEntry.setLong(Management.LAST_RELATIONSHIP_CHANGE.name, new Date().getTime());
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setString(Management.RELATIONSHIP.name, relationship.name());
+            peerEntry.setLong(Management.LAST_RELATIONSHIP_CHANGE.name, new Date().getTime());
+        });
     }
 
     public Management.Relationship getRelationshipToUs() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        String relationshipValue = peerEntry.getString(Management.RELATIONSHIP_TO_US.name);
-        Management.Relationship relationship = relationshipValue != null ? Management.Relationship.valueOf(relationshipValue) : null;
-        ActiveJDBCController.disconnect();
-        return relationship;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            String relationshipValue = peerEntry.getString(Management.RELATIONSHIP_TO_US.name);
+            return relationshipValue != null ? Management.Relationship.valueOf(relationshipValue) : null;
+        }
     }
 
     public void setRelationshipToUs(Management.Relationship relationship) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setString(Management.RELATIONSHIP_TO_US.name, relationship.name());
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setString(Management.RELATIONSHIP_TO_US.name, relationship.name());
+        });
     }
 
     public Management.ConnectionWish getWishForRegularConnections() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        String wishValue = peerEntry.getString(Management.WISH_REGULAR_CONNECTIONS.name);
-        Management.ConnectionWish wish = wishValue != null ? Management.ConnectionWish.valueOf(wishValue) : null;
-        ActiveJDBCController.disconnect();
-        return wish;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            String wishValue = peerEntry.getString(Management.WISH_REGULAR_CONNECTIONS.name);
+            return wishValue != null ? Management.ConnectionWish.valueOf(wishValue) : null;
+        }
     }
 
     public Boolean isWishForRegularConnections() {
@@ -131,92 +140,91 @@ public class PeerEntryFacade {
     }
 
     public void setWishForRegularConnections(Management.ConnectionWish wish) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setString(Management.WISH_REGULAR_CONNECTIONS.name, wish.name());
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setString(Management.WISH_REGULAR_CONNECTIONS.name, wish.name());
+        });
     }
 
     public boolean isConnected() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        boolean connected = peerEntry.getBoolean(Management.IS_CONNECTED.name);
-        ActiveJDBCController.disconnect();
-        return connected;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            return peerEntry.getBoolean(Management.IS_CONNECTED.name);
+        }
     }
 
     public void setConnected(boolean connected) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setBoolean(Management.IS_CONNECTED.name, connected);
-        if (!connected) {
-            // also update last session and "clear" last connection attempt
-            peerEntry.setLong(Management.LAST_SESSION.name, new Date().getTime());
-            peerEntry.setLong(Management.LAST_CONNECTION_ATTEMPT.name, null);
-        }
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setBoolean(Management.IS_CONNECTED.name, connected);
+            if (!connected) {
+                // also update last session and "clear" last connection attempt
+                peerEntry.setLong(Management.LAST_SESSION.name, new Date().getTime());
+                peerEntry.setLong(Management.LAST_CONNECTION_ATTEMPT.name, null);
+            }
+        });
     }
 
     public Date getLastSession() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        Long date = peerEntry.getLong(Management.LAST_SESSION.name);
-        ActiveJDBCController.disconnect();
-        return date != null ? new Date(date) : null;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            Long date = peerEntry.getLong(Management.LAST_SESSION.name);
+            return date != null ? new Date(date) : null;
+        }
     }
 
     public Date getLastConnectionAttempt() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        Long date = peerEntry.getLong(Management.LAST_CONNECTION_ATTEMPT.name);
-        ActiveJDBCController.disconnect();
-        return date != null ? new Date(date) : null;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            Long date = peerEntry.getLong(Management.LAST_CONNECTION_ATTEMPT.name);
+            return date != null ? new Date(date) : null;
+        }
     }
 
     public void updateConnectionAttempt() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setLong(Management.LAST_CONNECTION_ATTEMPT.name, new Date().getTime());
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setLong(Management.LAST_CONNECTION_ATTEMPT.name, new Date().getTime());
+        });
     }
 
     public Date getLastRelationshipChange() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        Long date = peerEntry.getLong(Management.LAST_RELATIONSHIP_CHANGE.name);
-        ActiveJDBCController.disconnect();
-        return date != null ? new Date(date) : null;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            Long date = peerEntry.getLong(Management.LAST_RELATIONSHIP_CHANGE.name);
+            return date != null ? new Date(date) : null;
+        }
     }
 
     public int getAffinity() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        int affinity = peerEntry.getInteger(Management.AFFINITY.name);
-        ActiveJDBCController.disconnect();
-        return affinity;
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            return peerEntry.getInteger(Management.AFFINITY.name);
+        }
     }
 
     public void setAffinity(int affinity) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setInteger(Management.AFFINITY.name, affinity);
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setInteger(Management.AFFINITY.name, affinity);
+        });
     }
 
     public PeerAddress getPeerAddress() {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        try {
-            String peerAddressString = peerEntry.getString(Management.ADDRESS.name);
-            return peerAddressString != null ? new PeerAddress(peerAddressString) : PeerAddress.nullPeerAddress();
-        } catch (IOException e) {
-            // delete stored peer address and return unknown address;
-            peerEntry.setString(Management.ADDRESS.name, null);
-            return null;
-        } finally {
-            ActiveJDBCController.disconnect();
+        PeerEntry peerEntry = entry();
+        synchronized (peerEntry) {
+            try {
+                String peerAddressString = peerEntry.getString(Management.ADDRESS.name);
+                return peerAddressString != null ? new PeerAddress(peerAddressString) : PeerAddress.nullPeerAddress();
+            } catch (IOException e) {
+                // delete stored peer address and return unknown address;
+                peerEntry.setString(Management.ADDRESS.name, null);
+                cache.markDirty(peerEntry);
+                return null;
+            }
         }
     }
 
     public void setPeerAddress(PeerAddress peerAddress) {
-        ActiveJDBCController.connect(PeerKnowledgeBase.DATABASE, dbPath);
-        peerEntry.setString(Management.ADDRESS.name, peerAddress.serialize());
-        peerEntry.saveIt();
-        ActiveJDBCController.disconnect();
+        modify(peerEntry -> {
+            peerEntry.setString(Management.ADDRESS.name, peerAddress.serialize());
+        });
     }
 
     @Override
@@ -3,10 +3,14 @@ package jacz.peerengineservice.client.connection.peers.kb;
 import com.neovisionaries.i18n.CountryCode;
 import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.client.connection.PeerAddress;
-import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ActiveJDBCController;
 import org.aanguita.jacuzzi.lists.tuple.Duple;
 
+import org.javalite.activejdbc.DB;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -38,18 +42,64 @@ public class PeerKnowledgeBase {
         }
     }
 
+    /**
+     * Data about a peer received from the server or from other peers, to be loaded in the knowledge base
+     */
+    public static class PeerDataUpdate {
+
+        private final PeerId peerId;
+
+        private final CountryCode mainCountry;
+
+        private final Management.ConnectionWish wishForRegularConnections;
+
+        private final PeerAddress peerAddress;
+
+        public PeerDataUpdate(PeerId peerId, CountryCode mainCountry, Management.ConnectionWish wishForRegularConnections, PeerAddress peerAddress) {
+            this.peerId = peerId;
+            this.mainCountry = mainCountry;
+            this.wishForRegularConnections = wishForRegularConnections;
+            this.peerAddress = peerAddress;
+        }
+    }
+
     /**
      * 2-week threshold, in milliseconds
      */
     private static final long ELDERLY_THRESHOLD = 1000L * 60L * 60L * 24L * 14L;
 
+    /**
+     * Rows inserted by each multi-row insert statement (limited by the maximum number of parameters of sqlite)
+     */
+    private static final int INSERT_ROWS_PER_STATEMENT = 150;
+
+    /**
+     * Default durability window for modified entries, in milliseconds
+     */
+    public static final long DEFAULT_DURABILITY_WINDOW = 2000L;
+
     static final String DATABASE = "peerKnowledgeBase";
 
     private final String dbPath;
 
+    private final PeerEntryCache cache;
+
     public PeerKnowledgeBase(String dbPath) {
+        this(dbPath, DEFAULT_DURABILITY_WINDOW);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param dbPath           path to the database file
+     * @param durabilityWindow maximum time, in milliseconds, that modifications of peer entries are kept in memory
+     *                         before being written to the database
+     */
+    public PeerKnowledgeBase(String dbPath, long durabilityWindow) {
         this.dbPath = dbPath;
+        Management.updateKBDatabase(dbPath);
         newSession();
+        cache = new PeerEntryCache(dbPath, durabilityWindow);
     }
 
     public static PeerKnowledgeBase createNew(String dbPath) {
@@ -59,7 +109,7 @@ public class PeerKnowledgeBase {
 
     private void newSession() {
         try {
-            ActiveJDBCController.connect(DATABASE, dbPath);
+            PooledConnectionController.connect(dbPath);
             // todo check null
             Long nullLong = null;
             PeerEntry.updateAll(Management.LAST_CONNECTION_ATTEMPT.name + " = ?", nullLong);
@@ -67,12 +117,13 @@ public class PeerKnowledgeBase {
             PeerEntry.updateAll(Management.IS_CONNECTED.name + " = ?", false);
             cleanOldEntries();
         } finally {
-            ActiveJDBCController.disconnect();
+            PooledConnectionController.disconnect(dbPath);
         }
     }
 
     public int getPeerCount(ConnectedQuery connectedQuery) {
-        ActiveJDBCController.connect(DATABASE, dbPath);
+        cache.flush();
+        PooledConnectionController.connect(dbPath);
         int count;
         if (connectedQuery.producesQuery()) {
             Duple<String, Object> buildQuery = connectedQuery.buildQuery();
@@ -80,7 +131,7 @@ public class PeerKnowledgeBase {
         } else {
             count = PeerEntry.count().intValue();
         }
-        ActiveJDBCController.disconnect();
+        PooledConnectionController.disconnect(dbPath);
         return count;
     }
 
@@ -123,32 +174,33 @@ public class PeerKnowledgeBase {
         // upon same last connection attempt (mainly, upon those with null last connection attempt), order by
         // last session, descending (newer last sessions come first, with null values (those we have never connected)
         // at the end of all. This way we favor those peers who we have contacted at least once in our lives
-        ActiveJDBCController.connect(DATABASE, dbPath);
+        // pending modifications are written first, so the query sees them
+        cache.flush();
+        PooledConnectionController.connect(dbPath);
         try {
             Duple<String, Object[]> queryAndParams = buildQuery(relationship, connectedQuery, country);
             return PeerEntryFacade.buildList(
                     PeerEntry.where(
                             queryAndParams.element1, queryAndParams.element2)
-                            .orderBy(Management.AFFINITY.name + " DESC")
-                            .orderBy(Management.LAST_CONNECTION_ATTEMPT.name)
-                            .orderBy(Management.LAST_SESSION.name + " DESC"),
-                    dbPath);
+                            .orderBy(Management.PEER_ORDER),
+                    cache);
         } finally {
-            ActiveJDBCController.disconnect();
+            PooledConnectionController.disconnect(dbPath);
         }
     }
 
     private int getPeersCount(Management.Relationship relationship, ConnectedQuery connectedQuery, String country) {
-        ActiveJDBCController.connect(DATABASE, dbPath);
+        cache.flush();
+        PooledConnectionController.connect(dbPath);
         try {
             Duple<String, Object[]> queryAndParams = buildQuery(relationship, connectedQuery, country);
             return PeerEntry.count(queryAndParams.element1, queryAndParams.element2).intValue();
         } finally {
-            ActiveJDBCController.disconnect();
+            PooledConnectionController.disconnect(dbPath);
         }
     }
 
-    private Duple<String, Object[]> buildQuery(Management.Relationship relationship, ConnectedQuery connectedQuery, String country) {
+    static Duple<String, Object[]> buildQuery(Management.Relationship relationship, ConnectedQuery connectedQuery, String country) {
         String query = Management.RELATIONSHIP.name + " = ?";
         List<Object> params = new ArrayList<>();
         params.add(relationship.name());
@@ -167,19 +219,101 @@ public class PeerKnowledgeBase {
     }
 
     public PeerEntryFacade getPeerEntryFacade(PeerId peerId) {
-        ActiveJDBCController.connect(DATABASE, dbPath);
-        PeerEntry peerEntry = getPeerEntry(peerId);
-        PeerEntryFacade peerEntryFacade = peerEntry != null ? new PeerEntryFacade(peerEntry, dbPath) : new PeerEntryFacade(peerId, dbPath);
-        ActiveJDBCController.disconnect();
-        return peerEntryFacade;
+        return new PeerEntryFacade(cache.load(peerId.toString()), cache);
     }
 
-    private PeerEntry getPeerEntry(PeerId peerId) {
-        ActiveJDBCController.connect(DATABASE, dbPath);
+    /**
+     * Loads data of several peers in the knowledge base, in a single transaction. Peers not present in the knowledge
+     * base are created first with default values (with multi-row inserts), and then all peers are updated with a
+     * batched statement
+     *
+     * @param peerDataUpdates data of the peers to load
+     */
+    public void updatePeers(Collection<PeerDataUpdate> peerDataUpdates) {
+        if (peerDataUpdates.isEmpty()) {
+            return;
+        }
+        cache.flush();
+        DB db = PooledConnectionController.connect(dbPath);
         try {
-            return PeerEntry.findFirst(Management.PEER_ID.name + " = ?", peerId.toString());
+            db.openTransaction();
+            insertMissingPeers(db, peerDataUpdates);
+            PreparedStatement update = db.startBatch(
+                    "UPDATE " + Management.TABLE_NAME + " SET " +
+                            Management.MAIN_COUNTRY.name + " = ?, " +
+                            Management.WISH_REGULAR_CONNECTIONS.name + " = ?, " +
+                            Management.ADDRESS.name + " = ? WHERE " +
+                            Management.PEER_ID.name + " = ?");
+            try {
+                for (PeerDataUpdate peerDataUpdate : peerDataUpdates) {
+                    db.addBatch(update,
+                            peerDataUpdate.mainCountry.toString(),
+                            peerDataUpdate.wishForRegularConnections.name(),
+                            peerDataUpdate.peerAddress.serialize(),
+                            peerDataUpdate.peerId.toString());
+                }
+                db.executeBatch(update);
+            } finally {
+                closeStatement(update);
+            }
+            db.commitTransaction();
+        } catch (RuntimeException e) {
+            db.rollbackTransaction();
+            throw e;
         } finally {
-            ActiveJDBCController.disconnect();
+            PooledConnectionController.disconnect(dbPath);
+        }
+        // cached entries must reflect the new data
+        for (PeerDataUpdate peerDataUpdate : peerDataUpdates) {
+            PeerEntry cachedEntry = cache.get(peerDataUpdate.peerId.toString());
+            if (cachedEntry != null) {
+                synchronized (cachedEntry) {
+                    cachedEntry.setString(Management.MAIN_COUNTRY.name, peerDataUpdate.mainCountry.toString());
+                    cachedEntry.setString(Management.WISH_REGULAR_CONNECTIONS.name, peerDataUpdate.wishForRegularConnections.name());
+                    cachedEntry.setString(Management.ADDRESS.name, peerDataUpdate.peerAddress.serialize());
+                }
+            }
+        }
+    }
+
+    private void insertMissingPeers(DB db, Collection<PeerDataUpdate> peerDataUpdates) {
+        // the default values are the same as the ones of new peer entries
+        String insertPrefix = "INSERT OR IGNORE INTO " + Management.TABLE_NAME + " (" +
+                Management.PEER_ID.name + ", " +
+                Management.RELATIONSHIP.name + ", " +
+                Management.RELATIONSHIP_TO_US.name + ", " +
+                Management.WISH_REGULAR_CONNECTIONS.name + ", " +
+                Management.IS_CONNECTED.name + ", " +
+                Management.AFFINITY.name + ") VALUES ";
+        StringBuilder insert = new StringBuilder(insertPrefix);
+        List<Object> params = new ArrayList<>();
+        int rows = 0;
+        for (PeerDataUpdate peerDataUpdate : peerDataUpdates) {
+            insert.append(rows == 0 ? "" : ", ").append("(?, ?, ?, ?, ?, ?)");
+            params.add(peerDataUpdate.peerId.toString());
+            params.add(Management.Relationship.REGULAR.name());
+            params.add(Management.Relationship.REGULAR.name());
+            params.add(Management.ConnectionWish.YES.name());
+            params.add(false);
+            params.add(0);
+            rows++;
+            if (rows == INSERT_ROWS_PER_STATEMENT) {
+                db.exec(insert.toString(), params.toArray());
+                insert = new StringBuilder(insertPrefix);
+                params.clear();
+                rows = 0;
+            }
+        }
+        if (rows > 0) {
+            db.exec(insert.toString(), params.toArray());
+        }
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // ignore
         }
     }
 
@@ -193,20 +327,32 @@ public class PeerKnowledgeBase {
     }
 
     public void clearAllPeerAddresses() {
-        try {
-            ActiveJDBCController.connect(DATABASE, dbPath);
-            PeerEntry.updateAll(Management.ADDRESS.name + " = ?", PeerAddress.nullPeerAddress());
-        } finally {
-            ActiveJDBCController.disconnect();
-        }
+        cache.invalidate(() -> {
+            try {
+                PooledConnectionController.connect(dbPath);
+                PeerEntry.updateAll(Management.ADDRESS.name + " = ?", PeerAddress.nullPeerAddress());
+            } finally {
+                PooledConnectionController.disconnect(dbPath);
+            }
+        });
     }
 
     public void clearAllData() {
-        try {
-            ActiveJDBCController.connect(DATABASE, dbPath);
-            PeerEntry.deleteAll();
-        } finally {
-            ActiveJDBCController.disconnect();
-        }
+        cache.invalidate(() -> {
+            try {
+                PooledConnectionController.connect(dbPath);
+                PeerEntry.deleteAll();
+            } finally {
+                PooledConnectionController.disconnect(dbPath);
+            }
+        });
+    }
+
+    /**
+     * Writes pending modifications and closes the pooled database connections of this knowledge base
+     */
+    public void stop() {
+        cache.stop();
+        PooledConnectionController.close(dbPath);
     }
 }
@@ -0,0 +1,308 @@
+package jacz.peerengineservice.client.connection.peers.kb;
+
+import org.javalite.activejdbc.DB;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Connection handling for the peer knowledge base. Instead of opening and closing the database file on every access
+ * (as the ActiveJDBCController of jacuzzi does), a small pool of long-lived connections is kept for each database
+ * path. Prepared statements are cached in each pooled connection, so repeated queries are not compiled again.
+ * <p/>
+ * Connecting a thread just attaches a pooled connection to it. Connections can be nested inside the same thread:
+ * only the outermost disconnect from a database gives its connection back to the pool. Nesting is tracked for each
+ * database path. A nested access to a different database suspends the connection of the enclosing one, which is
+ * attached again when the nested access ends.
+ * <p/>
+ * Pools are created lazily and closed when the knowledge base is stopped
+ */
+final class PooledConnectionController {
+
+    /**
+     * Pool of open connections to one database file
+     */
+    private static class ConnectionPool implements DataSource {
+
+        private final String url;
+
+        private final Deque<PooledConnection> idle;
+
+        private boolean closed;
+
+        private ConnectionPool(String dbPath) {
+            this.url = URL_PREFIX + dbPath;
+            this.idle = new ArrayDeque<>();
+            this.closed = false;
+        }
+
+        @Override
+        public synchronized Connection getConnection() throws SQLException {
+            PooledConnection pooledConnection = idle.poll();
+            if (pooledConnection == null) {
+                pooledConnection = new PooledConnection(this, DriverManager.getConnection(url));
+            }
+            return pooledConnection.acquire();
+        }
+
+        private synchronized void release(PooledConnection pooledConnection) throws SQLException {
+            if (!pooledConnection.physical.getAutoCommit()) {
+                // a transaction was left open -> discard it so the next user gets a clean connection
+                pooledConnection.physical.rollback();
+                pooledConnection.physical.setAutoCommit(true);
+            }
+            if (closed || idle.size() >= POOL_SIZE) {
+                pooledConnection.closePhysical();
+            } else {
+                idle.push(pooledConnection);
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            for (PooledConnection pooledConnection : idle) {
+                pooledConnection.closePhysical();
+            }
+            idle.clear();
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) throws SQLException {
+            return false;
+        }
+    }
+
+    /**
+     * A physical connection of the pool. Users receive a proxy whose close method gives the connection back to the
+     * pool, and whose single-argument prepareStatement method reuses cached statements
+     */
+    private static class PooledConnection implements InvocationHandler {
+
+        private final ConnectionPool pool;
+
+        private final Connection physical;
+
+        private final Map<String, PreparedStatement> statementCache;
+
+        private final Set<PreparedStatement> statementsInUse;
+
+        private boolean released;
+
+        private PooledConnection(ConnectionPool pool, Connection physical) {
+            this.pool = pool;
+            this.physical = physical;
+            statementCache = new HashMap<>();
+            statementsInUse = new HashSet<>();
+            released = true;
+        }
+
+        private Connection acquire() {
+            released = false;
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        statementsInUse.clear();
+                        pool.release(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || physical.isClosed();
+                case "prepareStatement":
+                    if (args.length == 1) {
+                        return prepareStatement((String) args[0]);
+                    }
+                    break;
+            }
+            return forward(physical, method, args);
+        }
+
+        private PreparedStatement prepareStatement(String sql) throws SQLException {
+            PreparedStatement statement = statementCache.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = physical.prepareStatement(sql);
+                statementCache.put(sql, statement);
+            } else if (statementsInUse.contains(statement)) {
+                // the cached statement is being used (nested query) -> give a non-cached one
+                return physical.prepareStatement(sql);
+            }
+            statementsInUse.add(statement);
+            PreparedStatement cachedStatement = statement;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class[]{PreparedStatement.class},
+                    (p, m, a) -> {
+                        if (m.getName().equals("close")) {
+                            // keep the statement open for reuse
+                            cachedStatement.clearParameters();
+                            statementsInUse.remove(cachedStatement);
+                            return null;
+                        } else {
+                            return forward(cachedStatement, m, a);
+                        }
+                    });
+        }
+
+        private void closePhysical() {
+            try {
+                for (PreparedStatement statement : statementCache.values()) {
+                    statement.close();
+                }
+                statementCache.clear();
+                physical.close();
+            } catch (SQLException e) {
+                // ignore, the connection is being discarded
+            }
+        }
+    }
+
+    private static final String URL_PREFIX = "jdbc:sqlite:";
+
+    /**
+     * Maximum idle connections kept in each pool
+     */
+    private static final int POOL_SIZE = 4;
+
+    private static final Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Connection state of one thread
+     */
+    private static class ThreadConnections {
+
+        /**
+         * Nesting level of the connection to each database
+         */
+        private final Map<String, Integer> depths = new HashMap<>();
+
+        /**
+         * Database of each open access, innermost first. The connection to the first one is attached to the thread
+         */
+        private final Deque<String> accesses = new ArrayDeque<>();
+
+        /**
+         * Connections to databases with open accesses which are not attached now
+         */
+        private final Map<String, Connection> suspended = new HashMap<>();
+    }
+
+    private static final ThreadLocal<ThreadConnections> threadConnections = ThreadLocal.withInitial(ThreadConnections::new);
+
+    private PooledConnectionController() {
+    }
+
+    static DB connect(String dbPath) {
+        ThreadConnections connections = threadConnections.get();
+        DB db = getDB();
+        String attached = connections.accesses.peek();
+        if (attached != null && !attached.equals(dbPath)) {
+            connections.suspended.put(attached, db.detach());
+        }
+        int depth = connections.depths.getOrDefault(dbPath, 0);
+        if (depth == 0) {
+            db.open(pools.computeIfAbsent(dbPath, ConnectionPool::new));
+        } else if (!dbPath.equals(attached)) {
+            db.attach(connections.suspended.remove(dbPath));
+        }
+        connections.depths.put(dbPath, depth + 1);
+        connections.accesses.push(dbPath);
+        return db;
+    }
+
+    static void disconnect(String dbPath) {
+        ThreadConnections connections = threadConnections.get();
+        if (!dbPath.equals(connections.accesses.peek())) {
+            // not connected to this database, or not the innermost access
+            return;
+        }
+        connections.accesses.pop();
+        DB db = getDB();
+        String next = connections.accesses.peek();
+        int depth = connections.depths.get(dbPath) - 1;
+        if (depth == 0) {
+            connections.depths.remove(dbPath);
+            db.close();
+        } else {
+            connections.depths.put(dbPath, depth);
+            if (!dbPath.equals(next)) {
+                connections.suspended.put(dbPath, db.detach());
+            }
+        }
+        if (next != null && !next.equals(dbPath)) {
+            db.attach(connections.suspended.remove(next));
+        }
+    }
+
+    static DB getDB() {
+        return new DB(PeerKnowledgeBase.DATABASE);
+    }
+
+    /**
+     * Closes the pooled connections to a database. Connections still in use are closed when they are given back.
+     * Further accesses create a new pool
+     */
+    static void close(String dbPath) {
+        ConnectionPool pool = pools.remove(dbPath);
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -6,7 +6,6 @@ import org.aanguita.jacuzzi.event.notification.NotificationEmitter;
 import org.aanguita.jacuzzi.event.notification.NotificationProcessor;
 import org.aanguita.jacuzzi.event.notification.NotificationReceiver;
 import org.aanguita.jacuzzi.id.AlphaNumFactory;
-import org.apache.commons.collections4.CollectionUtils;
 
 import java.util.*;
 
@@ -19,7 +18,10 @@ import java.util.*;
  * The client must keep this updated, adding peers when they connect and updating the shared files.
  * The ResourceStreamingManager will periodically read the values in here to correctly assign peers to active downloads
  * <p/>
- * No additional synchronization measures are needed at this class, as no clashed can be produced
+ * Providers are kept in bidirectional indexes (resource to peers and peer to resources), so updates involving one
+ * peer cost in proportion to the resources of that peer. Provider lookups do not lock, and never contend with updates.
+ * Updates of both indexes are serialized together with the emission of their notifications, so subscribers receive
+ * the changes in the same order as they were applied
  * <p/>
  * Strategy for not-connected peers: is it correct to add peers that are not connected, and leave them even if they
  * disconnect. Otherwise we would have to add/remove them for each connection/disconnection. This class takes into
@@ -31,6 +33,46 @@ import java.util.*;
  */
 public class ForeignStoreShare implements NotificationEmitter, NotificationReceiver {
 
+    /**
+     * Change in the providers of a resource. These are the messages submitted to subscribers, which receive them
+     * grouped (in order) after a short delay, and can apply them incrementally
+     */
+    public static final class ProviderChange {
+
+        private final String resourceID;
+
+        private final PeerId peerId;
+
+        /**
+         * True if the peer now provides the resource (or its connection status changed), false if it no longer
+         * provides it
+         */
+        private final boolean added;
+
+        public ProviderChange(String resourceID, PeerId peerId, boolean added) {
+            this.resourceID = resourceID;
+            this.peerId = peerId;
+            this.added = added;
+        }
+
+        public String getResourceID() {
+            return resourceID;
+        }
+
+        public PeerId getPeerId() {
+            return peerId;
+        }
+
+        public boolean isAdded() {
+            return added;
+        }
+
+        @Override
+        public String toString() {
+            return (added ? "+" : "-") + peerId + "@" + resourceID;
+        }
+    }
+
     /**
      * Base notification time delay for emitting updates on changes
      */
@@ -50,30 +92,37 @@ public class ForeignStoreShare implements NotificationEmitter, NotificationRecei
     private final PeerClient peerClient;
 
     /**
-     * For each file, a list of peers offering it is maintained
+     * For each file, the peers offering it (and for each peer, the files it offers)
      */
-    private final Map<String, Set<PeerId>> remoteResources;
+    private final ResourceProviderIndex remoteResources;
 
     /**
-     * The same table is maintained for volatile resources (temp files). These are handled differently, although
+     * The same index is maintained for volatile resources (temp files). These are handled differently, although
      * they provide files in a similar way. Volatile share is fully reported periodically, instead of changes with
      * respect to previous report
      */
-    private final Map<String, Set<PeerId>> volatileRemoteResources;
+    private final ResourceProviderIndex volatileRemoteResources;
 
     /**
-     * For submitting events to subscribers (each time the providers of a resource are modified)
+     * For submitting events to subscribers (each time the providers of a resource are modified). Each event carries
+     * one ProviderChange
      */
     private final NotificationProcessor notificationProcessor;
 
+    /**
+     * Lock for the updates of both indexes and the notifications of those updates
+     */
+    private final Object updateLock;
+
     /**
      * Class constructor
      */
     public ForeignStoreShare(PeerClient peerClient) {
         this.peerClient = peerClient;
-        remoteResources = new HashMap<>();
-        volatileRemoteResources = new HashMap<>();
+        remoteResources = new ResourceProviderIndex();
+        volatileRemoteResources = new ResourceProviderIndex();
         notificationProcessor = new NotificationProcessor();
+        updateLock = new Object();
         peerClient.subscribeToConnectedPeers(AlphaNumFactory.getStaticId(), this, RECEIVER_MILLIS, RECEIVER_TIME_FACTOR, RECEIVER_LIMIT);
     }
 
@@ -83,12 +132,12 @@ public class ForeignStoreShare implements NotificationEmitter, NotificationRecei
      * @param resourceID identifier of the resource
      * @param peerId     peer providing the resource
      */
-    public synchronized void addResourceProvider(String resourceID, PeerId peerId) {
-        if (!remoteResources.containsKey(resourceID)) {
-            remoteResources.put(resourceID, new HashSet<>());
+    public void addResourceProvider(String resourceID, PeerId peerId) {
+        synchronized (updateLock) {
+            if (remoteResources.add(resourceID, peerId)) {
+                notificationProcessor.newEvent(new ProviderChange(resourceID, peerId, true));
+            }
         }
-        remoteResources.get(resourceID).add(peerId);
-        notificationProcessor.newEvent(resourceID);
     }
 
     /**
@@ -97,31 +146,31 @@ public class ForeignStoreShare implements NotificationEmitter, NotificationRecei
      * @param resourceID identifier of the resource
      * @param peerId     peer no longer providing the resource
      */
-    public synchronized void removeResourceProvider(String resourceID, PeerId peerId) {
-        if (remoteResources.containsKey(resourceID) && remoteResources.get(resourceID).contains(peerId)) {
-            remoteResources.get(resourceID).remove(peerId);
-            if (remoteResources.get(resourceID).isEmpty()) {
-                remoteResources.remove(resourceID);
+    public void removeResourceProvider(String resourceID, PeerId peerId) {
+        synchronized (updateLock) {
+            if (remoteResources.remove(resourceID, peerId)) {
+                notifyRemovedProvider(resourceID, peerId);
             }
-            notificationProcessor.newEvent(resourceID);
         }
     }
 
-    public synchronized void reportVolatileResources(PeerId peerId, Set<String> resources) {
-        // first add peer to resources. Then remove peer from resources not mentioned
-        for (String resourceID : resources) {
-            if (!volatileRemoteResources.containsKey(resourceID)) {
-                volatileRemoteResources.put(resourceID, new HashSet<PeerId>());
+    /**
+     * Reports the full set of volatile resources of a peer, replacing the previous report
+     *
+     * @param peerId    peer providing the resources
+     * @param resources volatile resources currently provided by the peer
+     */
+    public void reportVolatileResources(PeerId peerId, Set<String> resources) {
+        Set<String> addedResources = new HashSet<>();
+        Set<String> removedResources = new HashSet<>();
+        synchronized (updateLock) {
+            volatileRemoteResources.replacePeerResources(peerId, resources, addedResources, removedResources);
+            for (String resourceID : addedResources) {
+                notificationProcessor.newEvent(new ProviderChange(resourceID, peerId, true));
             }
-            volatileRemoteResources.get(resourceID).add(peerId);
-            notificationProcessor.newEvent(resourceID);
-        }
-        for (String resourceID : CollectionUtils.subtract(volatileRemoteResources.keySet(), resources)) {
-            volatileRemoteResources.get(resourceID).remove(peerId);
-            if (volatileRemoteResources.get(resourceID).isEmpty()) {
-                volatileRemoteResources.remove(resourceID);
+            for (String resourceID : removedResources) {
+                notifyRemovedProvider(resourceID, peerId);
             }
-            notificationProcessor.newEvent(resourceID);
         }
     }
 
@@ -130,9 +179,21 @@ public class ForeignStoreShare implements NotificationEmitter, NotificationRecei
      *
      * @param peerId peer to remove
      */
-    public synchronized void removeResourceProvider(PeerId peerId) {
-        for (String resourceID : new HashSet<>(remoteResources.keySet())) {
-            removeResourceProvider(resourceID, peerId);
+    public void removeResourceProvider(PeerId peerId) {
+        synchronized (updateLock) {
+            for (String resourceID : remoteResources.removePeer(peerId)) {
+                notifyRemovedProvider(resourceID, peerId);
+            }
+        }
+    }
+
+    /**
+     * Must be invoked with the update lock, so the check of both indexes is not interleaved with other updates
+     */
+    private void notifyRemovedProvider(String resourceID, PeerId peerId) {
+        // the peer might still provide the resource as a volatile resource, or vice versa
+        if (!remoteResources.provides(resourceID, peerId) && !volatileRemoteResources.provides(resourceID, peerId)) {
+            notificationProcessor.newEvent(new ProviderChange(resourceID, peerId, false));
         }
     }
 
@@ -142,23 +203,13 @@ public class ForeignStoreShare implements NotificationEmitter, NotificationRecei
      * @param resourceID resource id
      * @return set with the peers that provide the specified resource
      */
-    public synchronized Set<PeerId> getForeignPeerShares(String resourceID) {
+    public Set<PeerId> getForeignPeerShares(String resourceID) {
         Set<PeerId> peerShares = new HashSet<>();
-        peerShares.addAll(addCorrectPeersWithResource(resourceID, remoteResources));
-        peerShares.addAll(addCorrectPeersWithResource(resourceID, volatileRemoteResources));
+        remoteResources.addProviders(resourceID, peerShares);
+        volatileRemoteResources.addProviders(resourceID, peerShares);
         return peerShares;
     }
 
-    private Set<PeerId> addCorrectPeersWithResource(String resourceID, Map<String, Set<PeerId>> resourceShare) {
-        Set<PeerId> peers = new HashSet<>();
-        if (resourceShare.containsKey(resourceID)) {
-            for (PeerId peerId : resourceShare.get(resourceID)) {
-                peers.add(peerId);
-            }
-        }
-        return peers;
-    }
-
     @Override
     public String subscribe(String receiverID, NotificationReceiver notificationReceiver) throws IllegalArgumentException {
         return notificationProcessor.subscribeReceiver(receiverID, notificationReceiver);
@@ -186,13 +237,15 @@ public class ForeignStoreShare implements NotificationEmitter, NotificationRecei
         for (Object o : groupedMessages) {
             affectedPeers.add((PeerId) o);
         }
-        Map<String, Set<PeerId>> remoteResourcesCopy;
-        synchronized (this) {
-            remoteResourcesCopy = new HashMap<>(remoteResources);
-        }
-        for (Map.Entry<String, Set<PeerId>> remoteResource : remoteResourcesCopy.entrySet()) {
-            if (CollectionUtils.containsAny(remoteResource.getValue(), affectedPeers)) {
-                notificationProcessor.newEvent(remoteResource.getKey());
+        // only the resources of the affected peers are notified
+        // (with the update lock, so these notifications do not contradict the ones of concurrent updates)
+        synchronized (updateLock) {
+            for (PeerId peerId : affectedPeers) {
+                Set<String> affectedResources = remoteResources.getResources(peerId);
+                affectedResources.addAll(volatileRemoteResources.getResources(peerId));
+                for (String resourceID : affectedResources) {
+                    notificationProcessor.newEvent(new ProviderChange(resourceID, peerId, true));
+                }
             }
         }
     }
@@ -0,0 +1,119 @@
+package jacz.peerengineservice.util;
+
+import jacz.peerengineservice.PeerId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bidirectional index between resources and the peers that provide them (resource -> peers and peer -> resources).
+ * <p/>
+ * Updates are serialized among them, and cost in proportion to the resources of the involved peer. Lookups do not
+ * lock, so they never contend with updates. Users that combine several indexes, or notify the updates, must serialize
+ * those themselves
+ */
+class ResourceProviderIndex {
+
+    private final Map<String, Set<PeerId>> resourceToPeers;
+
+    private final Map<PeerId, Set<String>> peerToResources;
+
+    ResourceProviderIndex() {
+        resourceToPeers = new ConcurrentHashMap<>();
+        peerToResources = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds a peer as provider of a resource
+     *
+     * @return true if the peer was not already providing the resource
+     */
+    synchronized boolean add(String resourceID, PeerId peerId) {
+        boolean added = resourceToPeers.computeIfAbsent(resourceID, k -> ConcurrentHashMap.newKeySet()).add(peerId);
+        peerToResources.computeIfAbsent(peerId, k -> ConcurrentHashMap.newKeySet()).add(resourceID);
+        return added;
+    }
+
+    /**
+     * Removes a peer as provider of a resource
+     *
+     * @return true if the peer was providing the resource
+     */
+    synchronized boolean remove(String resourceID, PeerId peerId) {
+        boolean removed = removeFrom(resourceToPeers, resourceID, peerId);
+        removeFrom(peerToResources, peerId, resourceID);
+        return removed;
+    }
+
+    /**
+     * Removes a peer as provider of all its resources
+     *
+     * @return the resources that the peer was providing
+     */
+    synchronized Set<String> removePeer(PeerId peerId) {
+        Set<String> resources = peerToResources.remove(peerId);
+        if (resources == null) {
+            return new HashSet<>();
+        }
+        for (String resourceID : resources) {
+            removeFrom(resourceToPeers, resourceID, peerId);
+        }
+        return new HashSet<>(resources);
+    }
+
+    /**
+     * Replaces the whole set of resources provided by a peer
+     *
+     * @param peerId           peer providing the resources
+     * @param resources        new set of resources of the peer
+     * @param addedResources   filled with the resources that the peer did not provide before
+     * @param removedResources filled with the resources that the peer no longer provides
+     */
+    synchronized void replacePeerResources(PeerId peerId, Set<String> resources, Set<String> addedResources, Set<String> removedResources) {
+        for (String resourceID : resources) {
+            if (add(resourceID, peerId)) {
+                addedResources.add(resourceID);
+            }
+        }
+        for (String resourceID : getResources(peerId)) {
+            if (!resources.contains(resourceID) && remove(resourceID, peerId)) {
+                removedResources.add(resourceID);
+            }
+        }
+    }
+
+    /**
+     * Adds the providers of a resource to a given set
+     */
+    void addProviders(String resourceID, Set<PeerId> peers) {
+        Set<PeerId> providers = resourceToPeers.get(resourceID);
+        if (providers != null) {
+            peers.addAll(providers);
+        }
+    }
+
+    boolean provides(String resourceID, PeerId peerId) {
+        Set<PeerId> providers = resourceToPeers.get(resourceID);
+        return providers != null && providers.contains(peerId);
+    }
+
+    /**
+     * Retrieves a copy of the resources provided by a peer
+     */
+    Set<String> getResources(PeerId peerId) {
+        Set<String> resources = peerToResources.get(peerId);
+        return resources != null ? new HashSet<>(resources) : new HashSet<>();
+    }
+
+    private static <K, V> boolean removeFrom(Map<K, Set<V>> map, K key, V value) {
+        Set<V> values = map.get(key);
+        if (values != null && values.remove(value)) {
+            if (values.isEmpty()) {
+                map.remove(key);
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
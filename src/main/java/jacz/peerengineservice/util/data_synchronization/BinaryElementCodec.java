@@ -0,0 +1,57 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class for compact element codecs. Implementations write and read the fields of each element directly, with
+ * no class or field metadata
+ *
+ * @param <T> type of the elements
+ */
+public abstract class BinaryElementCodec<T extends Serializable> implements ElementCodec {
+
+    private final Class<T> elementClass;
+
+    protected BinaryElementCodec(Class<T> elementClass) {
+        this.elementClass = elementClass;
+    }
+
+    @Override
+    public void encode(List<? extends Serializable> elements, DataOutputStream out) throws IOException {
+        for (Serializable element : elements) {
+            if (!elementClass.isInstance(element)) {
+                throw new NotSerializableException(element.getClass().getName());
+            }
+            writeElement(elementClass.cast(element), out);
+        }
+    }
+
+    @Override
+    public List<Serializable> decode(int elementCount, DataInputStream in) throws IOException {
+        List<Serializable> elements = new ArrayList<>(elementCount);
+        for (int i = 0; i < elementCount; i++) {
+            elements.add(readElement(in));
+        }
+        return elements;
+    }
+
+    protected abstract void writeElement(T element, DataOutput out) throws IOException;
+
+    protected abstract T readElement(DataInput in) throws IOException;
+
+    /**
+     * Writes a string that can be null
+     */
+    protected static void writeNullableUTF(String value, DataOutput out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    protected static String readNullableUTF(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
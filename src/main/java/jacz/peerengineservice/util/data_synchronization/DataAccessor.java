@@ -79,8 +79,47 @@ public interface DataAccessor {
      */
     List<? extends Serializable> getElementsFrom(long fromTimestamp) throws DataAccessException;
 
+    /**
+     * Retrieves a cursor over the elements with equal or newer timestamps than the given one, ordered by timestamp.
+     * This is the method actually used by the server FSM, which pulls elements from the cursor as it builds the
+     * element packets. Implementations handling large amounts of data should override it so elements are read
+     * lazily. By default, the cursor iterates over the list returned by getElementsFrom
+     * <p/>
+     * This method is only invoked in server mode.
+     *
+     * @param fromTimestamp the minimum timestamp required. If 0, all elements are requested
+     * @return a cursor over the required elements. Elements must implement the Serializable interface
+     * @throws DataAccessException error accessing the data
+     */
+    default ElementCursor getElementCursorFrom(long fromTimestamp) throws DataAccessException {
+        return new ListElementCursor(getElementsFrom(fromTimestamp));
+    }
+
     int elementsPerMessage();
 
+    /**
+     * Codec used for encoding the elements in the element packets. Both peers must use a codec with the same name.
+     * By default, elements are encoded with java serialization. Accessors with structured elements can
+     * provide a much more compact codec
+     *
+     * @return the codec for the elements of this accessor
+     */
+    default ElementCodec getElementCodec() {
+        return new SerializationElementCodec();
+    }
+
+    /**
+     * Whether element packets can be compressed. In client mode, it indicates if we accept compressed packets from
+     * the server. In server mode, if we compress the packets for clients that accept it.
+     * <p/>
+     * Compression costs some cpu, but usually pays off for large synch processes
+     *
+     * @return true if element packets can be compressed (default)
+     */
+    default boolean compressElements() {
+        return true;
+    }
+
     int CRCBytes();
 
     /**
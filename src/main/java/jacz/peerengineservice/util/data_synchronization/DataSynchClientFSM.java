@@ -8,15 +8,26 @@ import jacz.peerengineservice.client.PeerTimedFSMAction;
 import org.aanguita.jacuzzi.concurrency.task_executor.ThreadExecutor;
 import org.aanguita.jacuzzi.hash.CRC;
 import org.aanguita.jacuzzi.hash.CRCMismatchException;
-import org.aanguita.jacuzzi.io.serialization.MutableOffset;
-import org.aanguita.jacuzzi.io.serialization.Serializer;
 import org.aanguita.jacuzzi.notification.ProgressNotificationWithError;
 import org.aanguita.jacuzzi.numeric.NumericUtil;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Data synch client FSM
+ * <p/>
+ * The client sends a SynchRequest (including its receive window), and the server answers with a SynchRequestAnswer,
+ * its database ID and the synch mode. In reconciliation mode, the client first narrows the elements it needs with
+ * RangeHashRequests, and then sends an ElementRequest with their keys. Then the server sends element packets, each
+ * preceded by a sequence number, keeping up to a window of packets in flight. The client applies packets in sequence
+ * order and answers each received packet with a SynchAck, which cumulatively acknowledges the packets received so
+ * far and requests the retransmission of packets that failed the CRC check. The synch is complete when the last
+ * packet has been received (client) and acknowledged (server)
  *
  * todo catch runtime exceptions, also in server. They are not logged. Maybe it is in channel actions???
  */
@@ -29,7 +40,13 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
 
         WAITING_FOR_DATABASE_ID,
 
-        // We are waiting for the server to send us more packages
+        // We wait for the server to tell us the synch mode (timestamp or reconciliation)
+        WAITING_FOR_SYNCH_MODE,
+
+        // Reconciliation mode: we have asked the server for the hashes of the key ranges that differ
+        RECONCILING,
+
+        // We are receiving element packets from the server. Each received packet is acknowledged
         SYNCHING,
 
         // successfully synched all data
@@ -56,17 +73,101 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
 
         final Long lastTimestamp;
 
-        SynchRequest(String dataAccessorName, String databaseID, Long lastTimestamp) {
+        /**
+         * Maximum element packets that the server can send without being acknowledged
+         */
+        final int window;
+
+        /**
+         * Name of the element codec of the client accessor. It must match the codec of the server accessor
+         */
+        final String elementCodec;
+
+        /**
+         * Whether the server can compress the element packets
+         */
+        final boolean acceptsCompression;
+
+        /**
+         * Whether the client supports reconciliation mode
+         */
+        final boolean reconcile;
+
+        SynchRequest(String dataAccessorName, String databaseID, Long lastTimestamp, int window, String elementCodec, boolean acceptsCompression, boolean reconcile) {
             this.dataAccessorName = dataAccessorName;
             this.databaseID = databaseID;
             this.lastTimestamp = lastTimestamp;
+            this.window = window;
+            this.elementCodec = elementCodec;
+            this.acceptsCompression = acceptsCompression;
+            this.reconcile = reconcile;
+        }
+    }
+
+    /**
+     * Request of the hashes of key ranges, in reconciliation mode
+     */
+    static class RangeHashRequest implements Serializable {
+
+        final List<RangeReconciler.KeyRange> ranges;
+
+        RangeHashRequest(List<RangeReconciler.KeyRange> ranges) {
+            this.ranges = ranges;
         }
     }
 
+    /**
+     * Request of the elements found to differ in reconciliation mode. It ends the reconciliation, and the server
+     * proceeds to send the requested elements
+     */
+    static class ElementRequest implements Serializable {
+
+        final List<String> keys;
+
+        ElementRequest(List<String> keys) {
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Acknowledgement of received element packets
+     */
+    static class SynchAck implements Serializable {
+
+        /**
+         * Sequence number of the last packet received such that all previous packets were also received
+         */
+        final int cumulativeAck;
+
+        /**
+         * Packets that arrived corrupted, and must be sent again
+         */
+        final List<Integer> retransmit;
+
+        SynchAck(int cumulativeAck, List<Integer> retransmit) {
+            this.cumulativeAck = cumulativeAck;
+            this.retransmit = retransmit;
+        }
+    }
+
+    /**
+     * Maximum number of corrupted packets allowed in one synch process. Above this, the synch fails
+     */
+    private static final int MAX_CORRUPTED_PACKETS = 64;
+
     private String fsmID;
 
     private byte outgoingChannel;
 
+    private final DataSynchronizer dataSynchronizer;
+
+    private final DataSynchronizer.ClientSynchTask task;
+
+    /**
+     * Whether the data synchronizer has been notified of the end of this synch process
+     */
+    private final AtomicBoolean finished;
+
     private final DataAccessor dataAccessor;
 
     private String dataAccessorDatabaseID;
@@ -75,13 +176,38 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
 
     private final ProgressNotificationWithError<Integer, SynchError> progress;
 
+    private final int window;
+
+    private final SynchReceiveWindow<DataSynchServerFSM.ElementPacket> receiveWindow;
+
+    private final ElementCodec elementCodec;
+
+    private int corruptedPackets;
+
+    /**
+     * Range hashes of our elements (only in reconciliation mode)
+     */
+    private RangeReconciler rangeReconciler;
+
+    /**
+     * Keys of the elements that we need from the server, found during reconciliation
+     */
+    private List<String> differingKeys;
+
     private SynchError synchError;
 
 
-    public DataSynchClientFSM(DataAccessor dataAccessor, PeerId serverPeerId, ProgressNotificationWithError<Integer, SynchError> progress) {
-        this.dataAccessor = dataAccessor;
-        this.serverPeerId = serverPeerId;
-        this.progress = progress;
+    DataSynchClientFSM(DataSynchronizer dataSynchronizer, DataSynchronizer.ClientSynchTask task, int window) {
+        this.dataSynchronizer = dataSynchronizer;
+        this.task = task;
+        this.dataAccessor = task.dataAccessor;
+        this.serverPeerId = task.serverPeerId;
+        this.progress = task.progress;
+        this.window = window;
+        this.finished = new AtomicBoolean(false);
+        this.receiveWindow = new SynchReceiveWindow<>();
+        this.elementCodec = dataAccessor.getElementCodec();
+        this.corruptedPackets = 0;
         this.synchError = new SynchError(SynchError.Type.UNDEFINED, null);
     }
 
@@ -114,6 +240,9 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
                             case SERVER_BUSY:
                                 synchError = new SynchError(SynchError.Type.SERVER_BUSY, null);
                                 return State.REQUEST_DENIED;
+                            case INCOMPATIBLE_CODEC:
+                                synchError = new SynchError(SynchError.Type.REQUEST_DENIED, "Server uses a different element codec");
+                                return State.REQUEST_DENIED;
                             default:
                                 synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Unrecognized server request answer");
                                 return State.REQUEST_DENIED;
@@ -143,7 +272,7 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
 //                    if (progress != null) {
 //                        progress.addNotification(0);
 //                    }
-                    return State.SYNCHING;
+                    return State.WAITING_FOR_SYNCH_MODE;
 
                 } catch (ClassNotFoundException e) {
                     // invalid class found, error
@@ -152,6 +281,43 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
                     return State.ERROR;
                 }
 
+            case WAITING_FOR_SYNCH_MODE:
+                if (message == DataSynchServerFSM.SynchMode.TIMESTAMP) {
+                    return State.SYNCHING;
+                } else if (message == DataSynchServerFSM.SynchMode.RECONCILIATION && dataAccessor instanceof ReconcilableDataAccessor) {
+                    try {
+                        rangeReconciler = new RangeReconciler(((ReconcilableDataAccessor) dataAccessor).getElementDigests());
+                    } catch (DataAccessException e) {
+                        PeerClient.reportFatalError("Data access error in client synch FSM, getting element digests", serverPeerId, dataAccessor.getName(), fsmID);
+                        synchError = new SynchError(SynchError.Type.DATA_ACCESS_ERROR, "Could not access element digests");
+                        return State.ERROR;
+                    }
+                    differingKeys = new ArrayList<>();
+                    ccp.write(outgoingChannel, new RangeHashRequest(Collections.singletonList(RangeReconciler.KeyRange.ALL)));
+                    return State.RECONCILING;
+                } else {
+                    synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Unexpected synch mode: " + message);
+                    return State.ERROR;
+                }
+
+            case RECONCILING:
+                if (!(message instanceof DataSynchServerFSM.RangeHashResponse)) {
+                    synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Expected range hashes, received " + message);
+                    return State.ERROR;
+                }
+                List<RangeReconciler.KeyRange> nextRanges = new ArrayList<>();
+                rangeReconciler.compare(((DataSynchServerFSM.RangeHashResponse) message).rangeHashes, nextRanges, differingKeys);
+                if (!nextRanges.isEmpty()) {
+                    ccp.write(outgoingChannel, new RangeHashRequest(nextRanges));
+                    return State.RECONCILING;
+                } else {
+                    DataSynchronizer.logger.info("CLIENT SYNCH RECONCILED. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". fsmID: " + fsmID + ". elements: " + rangeReconciler.size() + ". requested: " + differingKeys.size());
+                    ccp.write(outgoingChannel, new ElementRequest(differingKeys));
+                    rangeReconciler = null;
+                    differingKeys = null;
+                    return State.SYNCHING;
+                }
+
             default:
                 synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Unexpected object data at state " + currentState);
                 return State.ERROR;
@@ -163,44 +329,57 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
         switch (currentState) {
             case SYNCHING:
                 DataSynchServerFSM.ElementPacket elementPacket = null;
+                int sequence;
                 try {
-                    data = CRC.extractDataWithCRC(data);
-                    Object message = Serializer.deserializeObject(data, new MutableOffset());
-                    if (!(message instanceof DataSynchServerFSM.ElementPacket)) {
-                        // unrecognized class
-                        throw new ClassNotFoundException("");
-                    }
-                    elementPacket = (DataSynchServerFSM.ElementPacket) message;
+                    sequence = DataSynchServerFSM.readSequence(data);
+                } catch (IllegalArgumentException e) {
+                    synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, e.getMessage());
+                    return State.ERROR;
+                }
+                try {
+                    data = CRC.extractDataWithCRC(DataSynchServerFSM.removeSequence(data));
+                    elementPacket = ElementPacketEncoding.decode(data, elementCodec);
                     if (elementPacket.SERVER_ERROR) {
                         // there was an error in the server
                         synchError = new SynchError(SynchError.Type.SERVER_ERROR, null);
                         return State.ERROR;
                     }
-                    for (Serializable element : elementPacket.elementPacket) {
-                        dataAccessor.setElement(element);
-                    }
-                    if (progress != null) {
-                        progress.addNotification(NumericUtil.displaceInRange(elementPacket.elementsSent, 0, elementPacket.totalElementsToSend, 0, DataSynchronizer.PROGRESS_MAX, NumericUtil.AmbiguityBehavior.MAX));
+                    DataSynchServerFSM.ElementPacket lastDelivered = null;
+                    for (DataSynchServerFSM.ElementPacket deliveredPacket : receiveWindow.received(sequence, elementPacket)) {
+                        for (Serializable element : deliveredPacket.elementPacket) {
+                            dataAccessor.setElement(element);
+                        }
+                        lastDelivered = deliveredPacket;
                     }
-                    if (elementPacket.elementsSent < elementPacket.totalElementsToSend) {
-                        // ask for more elements
-                        ccp.write(outgoingChannel, true);
-                        return State.SYNCHING;
-                    } else {
-                        return State.SUCCESS;
+                    sendAck(ccp);
+                    if (lastDelivered != null) {
+                        if (progress != null && lastDelivered.totalElementsToSend != ElementCursor.UNKNOWN_SIZE) {
+                            progress.addNotification(NumericUtil.displaceInRange(lastDelivered.elementsSent, 0, lastDelivered.totalElementsToSend, 0, DataSynchronizer.PROGRESS_MAX, NumericUtil.AmbiguityBehavior.MAX));
+                        }
+                        if (lastDelivered.lastPacket) {
+                            return State.SUCCESS;
+                        }
                     }
-                } catch (ClassNotFoundException e) {
-                    // invalid class found, error
+                    return State.SYNCHING;
+                } catch (IOException e) {
+                    // the packet could not be decoded, error
                     PeerClient.reportFatalError(e.toString(), serverPeerId, dataAccessor.getName(), fsmID);
-                    synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Received request object not recognized in state: " + currentState);
+                    synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Received element packet could not be decoded: " + e.getMessage());
                     return State.ERROR;
                 } catch (DataAccessException e) {
                     PeerClient.reportFatalError("Data access error in client synch FSM, setting element", serverPeerId, dataAccessor.getName(), fsmID, elementPacket);
                     synchError = new SynchError(SynchError.Type.DATA_ACCESS_ERROR, "Error adding element to data accessor");
                     return State.ERROR;
                 } catch (CRCMismatchException e) {
-                    synchError = new SynchError(SynchError.Type.TRANSMISSION_ERROR, "CRC check failed");
-                    return State.ERROR;
+                    // request the retransmission of this packet
+                    corruptedPackets++;
+                    if (corruptedPackets > MAX_CORRUPTED_PACKETS) {
+                        synchError = new SynchError(SynchError.Type.TRANSMISSION_ERROR, "CRC check failed");
+                        return State.ERROR;
+                    }
+                    receiveWindow.corrupted(sequence);
+                    sendAck(ccp);
+                    return State.SYNCHING;
                 }
 
             default:
@@ -209,14 +388,19 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
         }
     }
 
+    private void sendAck(ChannelConnectionPoint ccp) {
+        ccp.write(outgoingChannel, new SynchAck(receiveWindow.cumulativeAck(), receiveWindow.pollRetransmissions()));
+    }
+
     @Override
     public State init(ChannelConnectionPoint ccp) {
         try {
-            if (progress != null) {
+            if (progress != null && task.busyAttempts == 0) {
+                // retries after a server busy answer continue the same task
                 progress.beginTask();
             }
             dataAccessorDatabaseID = dataAccessor.getDatabaseID();
-            ccp.write(outgoingChannel, new SynchRequest(dataAccessor.getName(), dataAccessorDatabaseID, dataAccessor.getLastTimestamp()));
+            ccp.write(outgoingChannel, new SynchRequest(dataAccessor.getName(), dataAccessorDatabaseID, dataAccessor.getLastTimestamp(), window, elementCodec.getName(), dataAccessor.compressElements(), dataAccessor instanceof ReconcilableDataAccessor));
             return State.WAITING_FOR_REQUEST_ANSWER;
         } catch (DataAccessException e) {
             PeerClient.reportFatalError("Data access error in client synch FSM, getting last timestamp", serverPeerId, dataAccessor.getName(), fsmID);
@@ -231,6 +415,7 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
             case SUCCESS:
                 DataSynchronizer.logger.info("CLIENT SYNCH SUCCESS. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". fsmID: " + fsmID);
                 dataAccessor.endSynchProcess(DataAccessor.Mode.CLIENT, true);
+                notifyFinished(false);
                 if (progress != null) {
                     progress.completeTask();
                 }
@@ -242,6 +427,7 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
                     PeerClient.reportFatalError("Error in synch protocol", synchError);
                 }
                 dataAccessor.endSynchProcess(DataAccessor.Mode.CLIENT, false);
+                notifyFinished(false);
                 if (progress != null) {
                     progress.error(synchError);
                 }
@@ -250,7 +436,8 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
             case REQUEST_DENIED:
                 DataSynchronizer.logger.info("CLIENT SYNCH REQUEST DENIED. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". fsmID: " + fsmID + ". synchError: " + synchError);
                 dataAccessor.endSynchProcess(DataAccessor.Mode.CLIENT, false);
-                if (progress != null) {
+                boolean retry = notifyFinished(synchError.type == SynchError.Type.SERVER_BUSY);
+                if (progress != null && !retry) {
                     progress.error(synchError);
                 }
                 return true;
@@ -263,6 +450,7 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
         // we got disconnected from the other peer before the synch finished -> notify as an error
         DataSynchronizer.logger.info("CLIENT SYNCH ERROR. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". fsmID: " + fsmID + ". synchError: " + new SynchError(SynchError.Type.DISCONNECTED, null));
         dataAccessor.endSynchProcess(DataAccessor.Mode.CLIENT, false);
+        notifyFinished(false);
         if (progress != null) {
             progress.error(new SynchError(SynchError.Type.DISCONNECTED, null));
         }
@@ -279,11 +467,21 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
     public void timedOut(State state) {
         DataSynchronizer.logger.info("CLIENT SYNCH TIMEOUT. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". fsmID: " + fsmID);
         dataAccessor.endSynchProcess(DataAccessor.Mode.CLIENT, false);
+        notifyFinished(false);
         if (progress != null) {
             progress.timeout();
         }
     }
 
+    /**
+     * Notifies the data synchronizer that this synch process is over, only once
+     *
+     * @return true if the synch process will be retried
+     */
+    private boolean notifyFinished(boolean serverBusy) {
+        return finished.compareAndSet(false, true) && dataSynchronizer.clientSynchFinished(task, serverBusy);
+    }
+
     @Override
     public void setOutgoingChannel(byte channel) {
         outgoingChannel = channel;
@@ -295,6 +493,7 @@ public class DataSynchClientFSM implements PeerTimedFSMAction<DataSynchClientFSM
         // we register at the thread executor just for submitting this task. We unregister immediately after
         String threadExecutorId = ThreadExecutor.registerClient(this.getClass().getName() + "(" + dataAccessor.getName() + ")");
         ThreadExecutor.submit(() -> {
+            notifyFinished(false);
             if (progress != null) {
                 progress.error(new SynchError(SynchError.Type.REQUEST_DENIED, serverResponse.toString()));
             }
@@ -6,13 +6,14 @@ import jacz.peerengineservice.client.PeerClient;
 import jacz.peerengineservice.client.PeerFSMServerResponse;
 import jacz.peerengineservice.client.PeerTimedFSMAction;
 import org.aanguita.jacuzzi.hash.CRC;
-import org.aanguita.jacuzzi.io.serialization.Serializer;
 import org.aanguita.jacuzzi.notification.ProgressNotificationWithError;
 import org.aanguita.jacuzzi.numeric.NumericUtil;
 
-import java.io.NotSerializableException;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -27,13 +28,28 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
      */
     public static final String CUSTOM_FSM_NAME = PeerClient.OWN_CUSTOM_PREFIX + "DataSynchronizerFSM";
 
+    /**
+     * Maximum packets in flight allowed by the server, whatever the window advertised by the client
+     */
+    static final int MAX_WINDOW = 64;
+
+    /**
+     * Bytes of the sequence number that precedes each element packet (outside the CRC, so corrupted packets can
+     * still be identified)
+     */
+    private static final int SEQUENCE_BYTES = 4;
+
     enum State {
         // Initial state: the server peer waits for details of the request
         // if ok, we send an OK to the client, and initiate the synch
         WAITING_FOR_REQUEST,
 
-        // Synch state. We wait for ok confirmations from the client, indicating that he received
-        // the last data packet, to send more packets
+        // Reconciliation state. We answer the range hash requests of the client, until it requests the
+        // elements that it needs
+        RECONCILING,
+
+        // Synch state. Packets are sent as long as the send window allows it. We wait for acknowledgements
+        // from the client, which slide the window and might request retransmission of corrupted packets
         SYNCHING,
 
         // successfully synched all data
@@ -55,10 +71,37 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
         REQUEST_DENIED,
         SERVER_BUSY,
         SERVER_ERROR,
+        INCOMPATIBLE_CODEC,
         OK
     }
 
-    static class ElementPacket implements Serializable {
+    /**
+     * Mode of the synch process, sent to the client after the database ID
+     */
+    enum SynchMode {
+        // elements newer than the last timestamp of the client (or all elements) are sent
+        TIMESTAMP,
+
+        // the client narrows the differing elements through range hashes, and then requests them
+        RECONCILIATION
+    }
+
+    /**
+     * Answer to a range hash request, with the hashes of the sub-ranges of the requested ranges
+     */
+    static class RangeHashResponse implements Serializable {
+
+        final List<RangeReconciler.RangeHash> rangeHashes;
+
+        RangeHashResponse(List<RangeReconciler.RangeHash> rangeHashes) {
+            this.rangeHashes = rangeHashes;
+        }
+    }
+
+    /**
+     * Packet of elements sent to the client. Its binary format is given by ElementPacketEncoding
+     */
+    static class ElementPacket {
 
         final boolean SERVER_ERROR;
 
@@ -66,21 +109,30 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
 
         final int elementsSent;
 
+        /**
+         * Total elements of the synch process, or ElementCursor.UNKNOWN_SIZE if the server does not know it
+         */
         final int totalElementsToSend;
 
-        public ElementPacket(List<Serializable> elementPacket, int elementsSent, int totalElementsToSend) {
-            this(false, elementPacket, elementsSent, totalElementsToSend);
+        /**
+         * Whether this is the last packet of the synch process
+         */
+        final boolean lastPacket;
+
+        public ElementPacket(List<Serializable> elementPacket, int elementsSent, int totalElementsToSend, boolean lastPacket) {
+            this(false, elementPacket, elementsSent, totalElementsToSend, lastPacket);
         }
 
-        private ElementPacket(boolean SERVER_ERROR, List<Serializable> elementPacket, int elementsSent, int totalElementsToSend) {
+        private ElementPacket(boolean SERVER_ERROR, List<Serializable> elementPacket, int elementsSent, int totalElementsToSend, boolean lastPacket) {
             this.SERVER_ERROR = SERVER_ERROR;
             this.elementPacket = elementPacket;
             this.elementsSent = elementsSent;
             this.totalElementsToSend = totalElementsToSend;
+            this.lastPacket = lastPacket;
         }
 
         public static ElementPacket generateError() {
-            return new ElementPacket(true, null, 0, 0);
+            return new ElementPacket(true, null, 0, 0, true);
         }
     }
 
@@ -92,17 +144,51 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
 
     private final DataAccessorContainer dataAccessorContainer;
 
+    private final SynchAdmissionController admissionController;
+
+    /**
+     * Whether this synch process holds a slot of the admission controller
+     */
+    private boolean admitted;
+
     private String dataAccessorName;
 
     private DataAccessor dataAccessor;
 
-    private List<? extends Serializable> elementsToSend;
+    /**
+     * Cursor over the elements to send. Elements are pulled from it as packets are built, so at most the packets
+     * in the send window are held in memory
+     */
+    private ElementCursor elementsToSend;
+
+    private int totalElementsToSend;
 
     private int elementsPerMessage;
 
     private int CRCBytes;
 
-    private int elementToSendIndex;
+    private ElementCodec elementCodec;
+
+    /**
+     * Whether element packets are compressed (the client must accept it)
+     */
+    private boolean compress;
+
+    private int elementsSent;
+
+    /**
+     * Whether all elements have been put in a packet (the last packet might still be pending of acknowledgement)
+     */
+    private boolean allPacketsBuilt;
+
+    private SynchSendWindow sendWindow;
+
+    private int window;
+
+    /**
+     * Range hashes of our elements (only in reconciliation mode)
+     */
+    private RangeReconciler rangeReconciler;
 
     /**
      * Progress notifier for the server side. It is obtained form the list accessor (null if not used)
@@ -114,9 +200,11 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
     /**
      * Class constructor
      */
-    public DataSynchServerFSM(PeerId clientPeerId, DataAccessorContainer dataAccessorContainer) {
+    public DataSynchServerFSM(PeerId clientPeerId, DataAccessorContainer dataAccessorContainer, SynchAdmissionController admissionController) {
         this.clientPeerId = clientPeerId;
         this.dataAccessorContainer = dataAccessorContainer;
+        this.admissionController = admissionController;
+        this.admitted = false;
         this.dataAccessorName = null;
         this.synchError = new SynchError(SynchError.Type.UNDEFINED, null);
     }
@@ -131,8 +219,11 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
             case WAITING_FOR_REQUEST:
                 return processInitialRequest(message, ccp);
 
+            case RECONCILING:
+                return processReconciliationRequest(message, ccp);
+
             case SYNCHING:
-                return sendElementPack(ccp);
+                return processAck(message, ccp);
 
             default:
                 synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Unexpected object data at state " + currentState);
@@ -155,7 +246,19 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
             }
             DataSynchClientFSM.SynchRequest request = (DataSynchClientFSM.SynchRequest) message;
             dataAccessorName = request.dataAccessorName;
+            if (!admissionController.tryAdmit(clientPeerId)) {
+                // too many synch processes being served -> the client will retry later
+                throw new ServerBusyException();
+            }
+            admitted = true;
             dataAccessor = dataAccessorContainer.getAccessorForTransmitting(clientPeerId, dataAccessorName);
+            elementCodec = dataAccessor.getElementCodec();
+            if (!elementCodec.getName().equals(request.elementCodec)) {
+                synchError = new SynchError(SynchError.Type.REQUEST_DENIED, "Incompatible element codec: " + request.elementCodec);
+                ccp.write(outgoingChannel, SynchRequestAnswer.INCOMPATIBLE_CODEC);
+                return State.DENIED;
+            }
+            compress = request.acceptsCompression && dataAccessor.compressElements();
             DataSynchronizer.logger.info("SERVER SYNCH REQUEST ACCEPTED. clientPeer: " + clientPeerId + ". dataAccessorName: " + dataAccessorName + ". fsmID: " + fsmID);
 
             // valid request -> send ok and start synching
@@ -173,18 +276,24 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
             ccp.write(outgoingChannel, serverDatabaseID, false);
             String clientDatabaseID = request.databaseID;
             long lastTimestamp = request.lastTimestamp != null ? request.lastTimestamp : -1;
-            if ((clientDatabaseID == null && serverDatabaseID != null) ||
-                    (clientDatabaseID != null && !clientDatabaseID.equals(serverDatabaseID))) {
+            elementsPerMessage = Math.max(dataAccessor.elementsPerMessage(), 1);
+            CRCBytes = Math.max(dataAccessor.CRCBytes(), 0);
+            window = Math.min(request.window, MAX_WINDOW);
+            boolean databaseIDsMatch = clientDatabaseID == null ? serverDatabaseID == null : clientDatabaseID.equals(serverDatabaseID);
+            if ((!databaseIDsMatch || lastTimestamp < 0) && request.reconcile && dataAccessor instanceof ReconcilableDataAccessor) {
+                // the whole list would be required -> find out which elements the client actually needs
+                rangeReconciler = new RangeReconciler(((ReconcilableDataAccessor) dataAccessor).getElementDigests());
+                ccp.write(outgoingChannel, SynchMode.RECONCILIATION, true);
+                return State.RECONCILING;
+            }
+            ccp.write(outgoingChannel, SynchMode.TIMESTAMP, false);
+            if (!databaseIDsMatch) {
                 // the whole list is required, as database IDs do not match
-                elementsToSend = dataAccessor.getElementsFrom(0);
+                return startSending(dataAccessor.getElementCursorFrom(0), ccp);
             } else {
                 // pass the timestamp given by the client, as not the whole list is required
-                elementsToSend = dataAccessor.getElementsFrom(lastTimestamp + 1);
+                return startSending(dataAccessor.getElementCursorFrom(lastTimestamp + 1), ccp);
             }
-            elementToSendIndex = 0;
-            elementsPerMessage = Math.max(dataAccessor.elementsPerMessage(), 1);
-            CRCBytes = Math.max(dataAccessor.CRCBytes(), 0);
-            return sendElementPack(ccp);
         } catch (ClassNotFoundException e) {
             // invalid class found, error
             PeerClient.reportFatalError(e.toString(), clientPeerId, dataAccessorName, fsmID);
@@ -208,39 +317,143 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
         }
     }
 
-    public State sendElementPack(ChannelConnectionPoint ccp) throws IllegalArgumentException {
-        int packetSize = Math.min(elementsToSend.size() - elementToSendIndex, elementsPerMessage);
-        List<Serializable> packet = new ArrayList<>();
-        for (int index = elementToSendIndex; index < elementToSendIndex + packetSize; index++) {
-            packet.add(elementsToSend.get(index));
-        }
-        elementToSendIndex += packetSize;
-        byte[] bytePacket;
-        try {
-            bytePacket = Serializer.serializeObject(new ElementPacket(packet, elementToSendIndex, elementsToSend.size()));
-        } catch (NotSerializableException e) {
-            // elements are not serializable -> finish
-            synchError = new SynchError(SynchError.Type.DATA_NOT_SERIALIZABLE, null);
+    private State processReconciliationRequest(Object message, ChannelConnectionPoint ccp) {
+        if (message instanceof DataSynchClientFSM.RangeHashRequest) {
+            ccp.write(outgoingChannel, new RangeHashResponse(rangeReconciler.answer(((DataSynchClientFSM.RangeHashRequest) message).ranges)));
+            return State.RECONCILING;
+        } else if (message instanceof DataSynchClientFSM.ElementRequest) {
+            List<String> keys = ((DataSynchClientFSM.ElementRequest) message).keys;
+            DataSynchronizer.logger.info("SERVER SYNCH RECONCILED. clientPeer: " + clientPeerId + ". dataAccessorName: " + dataAccessorName + ". fsmID: " + fsmID + ". elements: " + rangeReconciler.size() + ". requested: " + keys.size());
+            rangeReconciler = null;
             try {
-                ccp.write(outgoingChannel, Serializer.serializeObject(ElementPacket.generateError()), true);
-            } catch (NotSerializableException e1) {
-                // ignore, cannot happen
+                return startSending(((ReconcilableDataAccessor) dataAccessor).getElementCursorForKeys(keys), ccp);
+            } catch (DataAccessException e) {
+                PeerClient.reportFatalError("Data access error in server synch FSM, retrieving elements by key", clientPeerId, dataAccessorName, fsmID);
+                synchError = new SynchError(SynchError.Type.DATA_ACCESS_ERROR, null);
+                // the client is waiting for element packets -> notify the error through an error packet
+                sendWindow = new SynchSendWindow(window);
+                return sendErrorPacket(ccp, new ArrayList<>());
             }
+        } else {
+            synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Expected reconciliation request, received " + message);
             return State.ERROR;
         }
-        bytePacket = CRC.addCRC(bytePacket, CRCBytes, true);
-        ccp.write(outgoingChannel, bytePacket);
-        if (progress != null) {
-            progress.addNotification(NumericUtil.displaceInRange(elementToSendIndex, 0, elementsToSend.size(), 0, DataSynchronizer.PROGRESS_MAX, NumericUtil.AmbiguityBehavior.MAX));
+    }
+
+    private State startSending(ElementCursor elementsToSend, ChannelConnectionPoint ccp) {
+        this.elementsToSend = elementsToSend;
+        totalElementsToSend = elementsToSend.size();
+        elementsSent = 0;
+        allPacketsBuilt = false;
+        sendWindow = new SynchSendWindow(window);
+        return sendElementPacks(ccp);
+    }
+
+    private State processAck(Object message, ChannelConnectionPoint ccp) {
+        if (!(message instanceof DataSynchClientFSM.SynchAck)) {
+            synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, "Expected synch ack, received " + message);
+            return State.ERROR;
         }
-        if (elementToSendIndex < elementsToSend.size()) {
-            // not finished yet
-            return State.SYNCHING;
-        } else {
+        DataSynchClientFSM.SynchAck ack = (DataSynchClientFSM.SynchAck) message;
+        List<Integer> toRetransmit;
+        try {
+            toRetransmit = sendWindow.acknowledge(ack.cumulativeAck, ack.retransmit);
+        } catch (IllegalArgumentException e) {
+            synchError = new SynchError(SynchError.Type.ERROR_IN_PROTOCOL, e.getMessage());
+            return State.ERROR;
+        }
+        for (int i = 0; i < toRetransmit.size(); i++) {
+            int sequence = toRetransmit.get(i);
+            ccp.write(outgoingChannel, addSequence(sequence, sendWindow.getPacket(sequence)), i == toRetransmit.size() - 1);
+        }
+        if (progress != null && totalElementsToSend != ElementCursor.UNKNOWN_SIZE) {
+            progress.addNotification(NumericUtil.displaceInRange(Math.min(sendWindow.getAcknowledgedPackets() * elementsPerMessage, totalElementsToSend), 0, totalElementsToSend, 0, DataSynchronizer.PROGRESS_MAX, NumericUtil.AmbiguityBehavior.MAX));
+        }
+        if (allPacketsBuilt && sendWindow.allAcknowledged()) {
             return State.SUCCESS;
+        } else {
+            return sendElementPacks(ccp);
         }
     }
 
+    /**
+     * Sends new element packets while the send window allows it
+     */
+    private State sendElementPacks(ChannelConnectionPoint ccp) {
+        List<byte[]> toSend = new ArrayList<>();
+        try {
+            while (!allPacketsBuilt && sendWindow.canSend()) {
+                List<Serializable> packet = new ArrayList<>();
+                while (packet.size() < elementsPerMessage && elementsToSend.hasNext()) {
+                    packet.add(elementsToSend.next());
+                }
+                elementsSent += packet.size();
+                allPacketsBuilt = !elementsToSend.hasNext();
+                byte[] bytePacket = CRC.addCRC(ElementPacketEncoding.encode(new ElementPacket(packet, elementsSent, totalElementsToSend, allPacketsBuilt), elementCodec, compress), CRCBytes, true);
+                toSend.add(addSequence(sendWindow.register(bytePacket), bytePacket));
+            }
+        } catch (IOException e) {
+            // elements cannot be encoded -> finish
+            synchError = new SynchError(SynchError.Type.DATA_NOT_SERIALIZABLE, e.toString());
+            return sendErrorPacket(ccp, toSend);
+        } catch (DataAccessException e) {
+            PeerClient.reportFatalError("Data access error in server synch FSM, retrieving elements", clientPeerId, dataAccessorName, fsmID);
+            synchError = new SynchError(SynchError.Type.DATA_ACCESS_ERROR, null);
+            return sendErrorPacket(ccp, toSend);
+        }
+        writePackets(ccp, toSend);
+        return State.SYNCHING;
+    }
+
+    private State sendErrorPacket(ChannelConnectionPoint ccp, List<byte[]> toSend) {
+        try {
+            byte[] errorPacket = CRC.addCRC(ElementPacketEncoding.encode(ElementPacket.generateError(), elementCodec, false), CRCBytes, true);
+            toSend.add(addSequence(sendWindow.register(errorPacket), errorPacket));
+            writePackets(ccp, toSend);
+        } catch (IOException e) {
+            // ignore, cannot happen
+        }
+        return State.ERROR;
+    }
+
+    private void writePackets(ChannelConnectionPoint ccp, List<byte[]> toSend) {
+        for (int i = 0; i < toSend.size(); i++) {
+            // flush only after the last packet of the burst
+            ccp.write(outgoingChannel, toSend.get(i), i == toSend.size() - 1);
+        }
+    }
+
+    private void closeCursor() {
+        if (elementsToSend != null) {
+            elementsToSend.close();
+        }
+    }
+
+    /**
+     * Frees our slot in the admission controller
+     */
+    private void release() {
+        if (admitted) {
+            admitted = false;
+            admissionController.release(clientPeerId);
+        }
+    }
+
+    static byte[] addSequence(int sequence, byte[] packet) {
+        return ByteBuffer.allocate(SEQUENCE_BYTES + packet.length).putInt(sequence).put(packet).array();
+    }
+
+    static int readSequence(byte[] data) throws IllegalArgumentException {
+        if (data.length < SEQUENCE_BYTES) {
+            throw new IllegalArgumentException("Element packet too short");
+        }
+        return ByteBuffer.wrap(data).getInt();
+    }
+
+    static byte[] removeSequence(byte[] data) {
+        return Arrays.copyOfRange(data, SEQUENCE_BYTES, data.length);
+    }
+
     @Override
     public State init(ChannelConnectionPoint ccp) {
         // initially, we wait for the original request from the client peer
@@ -252,6 +465,8 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
         switch (state) {
             case SUCCESS:
                 DataSynchronizer.logger.info("SERVER SYNCH SUCCESS. clientPeer: " + clientPeerId + ". dataAccessorName: " + dataAccessorName + ". fsmID: " + fsmID);
+                closeCursor();
+                release();
                 dataAccessor.endSynchProcess(DataAccessor.Mode.SERVER, true);
                 if (progress != null) {
                     progress.completeTask();
@@ -263,6 +478,8 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
                 if (synchError.type == SynchError.Type.ERROR_IN_PROTOCOL) {
                     PeerClient.reportFatalError("Error in synch protocol", synchError);
                 }
+                closeCursor();
+                release();
                 if (dataAccessor != null) {
                     dataAccessor.endSynchProcess(DataAccessor.Mode.SERVER, false);
                 }
@@ -273,6 +490,8 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
 
             case DENIED:
                 DataSynchronizer.logger.info("SERVER SYNCH REQUEST DENIED. clientPeer: " + clientPeerId + ". dataAccessorName: " + dataAccessorName + ". fsmID: " + fsmID + ". synchError: " + synchError);
+                closeCursor();
+                release();
                 if (dataAccessor != null) {
                     dataAccessor.endSynchProcess(DataAccessor.Mode.SERVER, false);
                 }
@@ -287,6 +506,8 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
     @Override
     public void disconnected(ChannelConnectionPoint ccp) {
         // we got disconnected from the other peer before the synch finished -> notify as an error
+        closeCursor();
+        release();
         if (dataAccessor != null) {
             dataAccessor.endSynchProcess(DataAccessor.Mode.SERVER, false);
         }
@@ -305,6 +526,8 @@ public class DataSynchServerFSM implements PeerTimedFSMAction<DataSynchServerFSM
     @Override
     public void timedOut(State state) {
         DataSynchronizer.logger.info("SERVER SYNCH TIMEOUT. clientPeer: " + clientPeerId + ". dataAccessorName: " + dataAccessorName + ". fsmID: " + fsmID);
+        closeCursor();
+        release();
         if (dataAccessor != null) {
             dataAccessor.endSynchProcess(DataAccessor.Mode.SERVER, false);
         }
@@ -11,13 +11,16 @@ public class DataSynchServerFSMFactory implements PeerFSMFactory {
 
     private final DataAccessorContainer dataAccessorContainer;
 
+    private final SynchAdmissionController admissionController;
+
     public DataSynchServerFSMFactory(DataSynchronizer dataSynchronizer) {
         this.dataAccessorContainer = dataSynchronizer.getDataAccessorContainer();
+        this.admissionController = dataSynchronizer.getAdmissionController();
     }
 
     @Override
     public PeerFSMAction buildPeerFSMAction(PeerId clientPeerId) {
-        return new DataSynchServerFSM(clientPeerId, dataAccessorContainer);
+        return new DataSynchServerFSM(clientPeerId, dataAccessorContainer, admissionController);
     }
 
     @Override
@@ -3,19 +3,71 @@ package jacz.peerengineservice.util.data_synchronization;
 import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.UnavailablePeerException;
 import jacz.peerengineservice.client.PeerClient;
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
 import org.aanguita.jacuzzi.notification.ProgressNotificationWithError;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.*;
+
 /**
  * Data Synchronizer
+ * <p/>
+ * Synch processes with different accessors run in parallel, up to a configurable limit. Requests over the limit, or
+ * for an accessor already being synched, are queued and started when possible. Requests answered with SERVER_BUSY
+ * are retried a few times after a delay.
+ * <p/>
+ * In server mode, the number of synch processes served at the same time is limited by an admission controller
  */
 public class DataSynchronizer {
 
+    /**
+     * A synch process requested by our client, possibly queued
+     */
+    static class ClientSynchTask {
+
+        final PeerId serverPeerId;
+
+        final DataAccessor dataAccessor;
+
+        final long timeout;
+
+        final ProgressNotificationWithError<Integer, SynchError> progress;
+
+        /**
+         * Attempts of this synch process that were answered with SERVER_BUSY
+         */
+        int busyAttempts;
+
+        ClientSynchTask(PeerId serverPeerId, DataAccessor dataAccessor, long timeout, ProgressNotificationWithError<Integer, SynchError> progress) {
+            this.serverPeerId = serverPeerId;
+            this.dataAccessor = dataAccessor;
+            this.timeout = timeout;
+            this.progress = progress;
+            this.busyAttempts = 0;
+        }
+    }
+
     static final long SERVER_FSM_TIMEOUT = 15000;
 
     public static final int PROGRESS_MAX = 100;
 
+    /**
+     * Default maximum of element packets in flight during a synch process (the server might use a lower value)
+     */
+    public static final int DEFAULT_WINDOW = 32;
+
+    public static final int DEFAULT_MAX_CONCURRENT_CLIENT_SYNCHS = 4;
+
+    public static final int DEFAULT_MAX_CONCURRENT_SERVER_SYNCHS = 8;
+
+    /**
+     * Times that a synch request answered with SERVER_BUSY is retried
+     */
+    static final int MAX_BUSY_RETRIES = 5;
+
+    static final long BUSY_RETRY_DELAY = 2000L;
+
     static final Logger logger = LoggerFactory.getLogger(DataSynchronizer.class);
 
     /**
@@ -28,41 +80,218 @@ public class DataSynchronizer {
      */
     private DataAccessorContainer dataAccessorContainer;
 
+    /**
+     * Window advertised to servers in our synch requests
+     */
+    private volatile int window;
+
+    private int maxConcurrentClientSynchs;
+
+    /**
+     * Accessors of the client synch processes currently running (compared by identity)
+     */
+    private final Set<DataAccessor> activeAccessors;
+
+    private final Deque<ClientSynchTask> pendingSynchs;
+
+    private final SynchAdmissionController admissionController;
+
+    private final Random random;
 
     public DataSynchronizer(PeerClient peerClient, DataAccessorContainer dataAccessorContainer) {
         this.peerClient = peerClient;
         this.dataAccessorContainer = dataAccessorContainer;
+        this.window = DEFAULT_WINDOW;
+        this.maxConcurrentClientSynchs = DEFAULT_MAX_CONCURRENT_CLIENT_SYNCHS;
+        this.activeAccessors = Collections.newSetFromMap(new IdentityHashMap<>());
+        this.pendingSynchs = new ArrayDeque<>();
+        this.admissionController = new SynchAdmissionController(DEFAULT_MAX_CONCURRENT_SERVER_SYNCHS);
+        this.random = new Random();
     }
 
-    public synchronized boolean synchronizeData(
+    /**
+     * Requests the synchronization of an accessor with a server peer, without progress notifications. As the
+     * errors of a queued process could not be reported, the request is never queued
+     *
+     * @return true if the synch process was initiated, false if it could not be initiated now (the caller can
+     * retry later)
+     * @throws UnavailablePeerException the server peer is not connected
+     */
+    public boolean synchronizeData(
             PeerId serverPeerId,
             DataAccessor dataAccessor,
             long timeout) throws UnavailablePeerException {
         return synchronizeData(serverPeerId, dataAccessor, timeout, null);
     }
 
-    public synchronized boolean synchronizeData(
+    /**
+     * Requests the synchronization of an accessor with a server peer. If the maximum number of concurrent synch
+     * processes is reached, or the accessor is already being synched, the request is queued. Requests are only
+     * queued if a progress is given, since errors in starting a queued process are reported through it
+     *
+     * @return true if the synch process was initiated or queued, false if it could not be initiated
+     * @throws UnavailablePeerException the server peer is not connected
+     */
+    public boolean synchronizeData(
             PeerId serverPeerId,
             DataAccessor dataAccessor,
             long timeout,
             final ProgressNotificationWithError<Integer, SynchError> progress) throws UnavailablePeerException {
+        ClientSynchTask task = new ClientSynchTask(serverPeerId, dataAccessor, timeout, progress);
+        synchronized (this) {
+            if (!canStart(task)) {
+                if (progress == null) {
+                    logger.info("CLIENT SYNCH REQUEST REJECTED (synch limit reached). serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". timeout: " + timeout);
+                    return false;
+                }
+                pendingSynchs.add(task);
+                logger.info("CLIENT SYNCH REQUEST QUEUED. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". timeout: " + timeout);
+                return true;
+            }
+            activeAccessors.add(dataAccessor);
+        }
+        return start(task);
+    }
+
+    private boolean canStart(ClientSynchTask task) {
+        return activeAccessors.size() < maxConcurrentClientSynchs && !activeAccessors.contains(task.dataAccessor);
+    }
+
+    private boolean start(ClientSynchTask task) throws UnavailablePeerException {
         // same for server FSM
-        DataSynchClientFSM dataSynchClientFSM = new DataSynchClientFSM(dataAccessor, serverPeerId, progress);
-        String fsmID = peerClient.registerTimedCustomFSM(
-                serverPeerId,
-                dataSynchClientFSM,
-                DataSynchServerFSM.CUSTOM_FSM_NAME,
-                timeout
-        );
+        DataSynchClientFSM dataSynchClientFSM = new DataSynchClientFSM(this, task, window);
+        String fsmID;
+        try {
+            fsmID = peerClient.registerTimedCustomFSM(
+                    task.serverPeerId,
+                    dataSynchClientFSM,
+                    DataSynchServerFSM.CUSTOM_FSM_NAME,
+                    task.timeout
+            );
+        } catch (UnavailablePeerException e) {
+            clientSynchFinished(task, false);
+            throw e;
+        }
         if (fsmID != null) {
-            logger.info("CLIENT SYNCH REQUEST INITIATED. serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". timeout: " + timeout + ". fsmID: " + fsmID);
+            logger.info("CLIENT SYNCH REQUEST INITIATED. serverPeer: " + task.serverPeerId + ". dataAccessorName: " + task.dataAccessor.getName() + ". timeout: " + task.timeout + ". fsmID: " + fsmID);
             return true;
         } else {
-            logger.info("CLIENT SYNCH REQUEST FAILED TO INITIATE (peer client busy). serverPeer: " + serverPeerId + ". dataAccessorName: " + dataAccessor.getName() + ". timeout: " + timeout);
+            logger.info("CLIENT SYNCH REQUEST FAILED TO INITIATE (peer client busy). serverPeer: " + task.serverPeerId + ". dataAccessorName: " + task.dataAccessor.getName() + ". timeout: " + task.timeout);
+            clientSynchFinished(task, false);
             return false;
         }
     }
 
+    /**
+     * Starts a synch process that was queued. Errors are reported through its progress
+     */
+    private void startQueued(ClientSynchTask task) {
+        try {
+            if (!start(task) && task.progress != null) {
+                task.progress.error(new SynchError(SynchError.Type.REQUEST_DENIED, "Peer client busy"));
+            }
+        } catch (UnavailablePeerException e) {
+            if (task.progress != null) {
+                task.progress.error(new SynchError(SynchError.Type.DISCONNECTED, null));
+            }
+        }
+    }
+
+    /**
+     * Invoked when a client synch process finishes, so queued processes can start
+     *
+     * @param task       the finished synch process
+     * @param serverBusy whether the server answered with SERVER_BUSY
+     * @return true if the synch process will be retried later (its progress must not be notified of the error)
+     */
+    boolean clientSynchFinished(ClientSynchTask task, boolean serverBusy) {
+        boolean retry = serverBusy && task.busyAttempts < MAX_BUSY_RETRIES;
+        List<ClientSynchTask> toStart = new ArrayList<>();
+        synchronized (this) {
+            activeAccessors.remove(task.dataAccessor);
+            Iterator<ClientSynchTask> it = pendingSynchs.iterator();
+            while (it.hasNext()) {
+                ClientSynchTask pendingTask = it.next();
+                if (canStart(pendingTask)) {
+                    it.remove();
+                    activeAccessors.add(pendingTask.dataAccessor);
+                    toStart.add(pendingTask);
+                }
+            }
+        }
+        for (ClientSynchTask pendingTask : toStart) {
+            startQueued(pendingTask);
+        }
+        if (retry) {
+            task.busyAttempts++;
+            // random component, so the retries of many clients do not arrive at the same time
+            long delay = BUSY_RETRY_DELAY * task.busyAttempts + random.nextInt((int) BUSY_RETRY_DELAY);
+            logger.info("CLIENT SYNCH RETRY SCHEDULED (server busy). serverPeer: " + task.serverPeerId + ". dataAccessorName: " + task.dataAccessor.getName() + ". delay: " + delay);
+            new Timer(delay, timer -> {
+                retry(task);
+                return 0L;
+            }, true, this.getClass().getName() + "BusyRetry");
+        }
+        return retry;
+    }
+
+    private void retry(ClientSynchTask task) {
+        synchronized (this) {
+            if (!canStart(task)) {
+                pendingSynchs.addFirst(task);
+                return;
+            }
+            activeAccessors.add(task.dataAccessor);
+        }
+        startQueued(task);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Sets the maximum number of element packets that a server can send us without waiting for our
+     * acknowledgement. A value of 1 means stop-and-wait
+     *
+     * @param window the new window size (at least 1)
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(window, 1);
+    }
+
+    public synchronized int getMaxConcurrentClientSynchs() {
+        return maxConcurrentClientSynchs;
+    }
+
+    /**
+     * Sets the maximum number of client synch processes that run at the same time. Processes already running are
+     * not affected
+     *
+     * @param maxConcurrentClientSynchs the new maximum (at least 1)
+     */
+    public synchronized void setMaxConcurrentClientSynchs(int maxConcurrentClientSynchs) {
+        this.maxConcurrentClientSynchs = Math.max(maxConcurrentClientSynchs, 1);
+    }
+
+    public int getMaxConcurrentServerSynchs() {
+        return admissionController.getMaxConcurrentSynchs();
+    }
+
+    /**
+     * Sets the maximum number of synch processes that we serve at the same time. Further requests are answered
+     * with SERVER_BUSY, and served in order of arrival of the requesting peers
+     *
+     * @param maxConcurrentServerSynchs the new maximum (at least 1)
+     */
+    public void setMaxConcurrentServerSynchs(int maxConcurrentServerSynchs) {
+        admissionController.setMaxConcurrentSynchs(maxConcurrentServerSynchs);
+    }
+
+    SynchAdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
     public DataAccessorContainer getDataAccessorContainer() {
         return dataAccessorContainer;
     }
@@ -0,0 +1,43 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Encoding of the elements of a data accessor in the element packets of a synch process. Both peers must use
+ * codecs with the same name for an accessor, otherwise the synch request is denied.
+ * <p/>
+ * The default codec (SerializationElementCodec) works with any Serializable element. Accessors with structured
+ * elements can provide a more compact codec, for instance by extending BinaryElementCodec
+ */
+public interface ElementCodec {
+
+    /**
+     * Name of this codec, checked by the server peer
+     *
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Encodes the elements of one packet
+     *
+     * @param elements elements to encode
+     * @param out      stream where the encoded elements must be written
+     * @throws IOException the elements could not be encoded
+     */
+    void encode(List<? extends Serializable> elements, DataOutputStream out) throws IOException;
+
+    /**
+     * Decodes the elements of one packet
+     *
+     * @param elementCount number of elements in the packet
+     * @param in           stream with the encoded elements
+     * @return the decoded elements, in the order they were encoded
+     * @throws IOException the elements could not be decoded
+     */
+    List<Serializable> decode(int elementCount, DataInputStream in) throws IOException;
+}
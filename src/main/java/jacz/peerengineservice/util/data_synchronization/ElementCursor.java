@@ -0,0 +1,37 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.Serializable;
+
+/**
+ * Cursor over the elements that a data accessor provides in server mode. Elements are pulled lazily by the server
+ * FSM as element packets are built, so implementations do not need to load all requested elements in memory.
+ * <p/>
+ * The cursor is closed when the synch process ends, successfully or not
+ */
+public interface ElementCursor extends AutoCloseable {
+
+    /**
+     * Size value for cursors that do not know in advance how many elements they will provide
+     */
+    int UNKNOWN_SIZE = -1;
+
+    boolean hasNext() throws DataAccessException;
+
+    Serializable next() throws DataAccessException;
+
+    /**
+     * Total number of elements of this cursor. Only used for progress notifications
+     *
+     * @return the total number of elements, or UNKNOWN_SIZE
+     */
+    default int size() {
+        return UNKNOWN_SIZE;
+    }
+
+    /**
+     * Releases the resources of this cursor
+     */
+    @Override
+    default void close() {
+    }
+}
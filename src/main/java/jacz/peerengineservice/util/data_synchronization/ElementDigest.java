@@ -0,0 +1,37 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.Serializable;
+
+/**
+ * Digest of an element, used in reconciliation mode. It contains the unique key of the element and a hash of its
+ * contents. Two elements with the same key and hash are considered equal
+ */
+public final class ElementDigest implements Serializable {
+
+    public final String key;
+
+    public final long hash;
+
+    public ElementDigest(String key, long hash) {
+        this.key = key;
+        this.hash = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ElementDigest that = (ElementDigest) o;
+        return hash == that.hash && key.equals(that.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * key.hashCode() + (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return key + ":" + hash;
+    }
+}
@@ -0,0 +1,100 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary format of the element packets sent by the server FSM. A packet consists of a small fixed header (flags,
+ * elements sent, total elements and element count), followed by the elements encoded with the codec of the data
+ * accessor. If compression was accepted by the client, the encoded elements are deflated, as long as this actually
+ * makes them shorter
+ */
+final class ElementPacketEncoding {
+
+    private static final int SERVER_ERROR_FLAG = 0x01;
+
+    private static final int LAST_PACKET_FLAG = 0x02;
+
+    private static final int COMPRESSED_FLAG = 0x04;
+
+    /**
+     * Encoded elements shorter than this are never compressed
+     */
+    static final int MIN_COMPRESSION_SIZE = 128;
+
+    private ElementPacketEncoding() {
+    }
+
+    static byte[] encode(DataSynchServerFSM.ElementPacket elementPacket, ElementCodec codec, boolean compress) throws IOException {
+        int flags = 0;
+        byte[] body = new byte[0];
+        if (elementPacket.SERVER_ERROR) {
+            flags |= SERVER_ERROR_FLAG;
+        } else {
+            ByteArrayOutputStream bodyStream = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(bodyStream);
+            codec.encode(elementPacket.elementPacket, bodyOut);
+            bodyOut.flush();
+            body = bodyStream.toByteArray();
+            if (compress && body.length >= MIN_COMPRESSION_SIZE) {
+                byte[] compressedBody = deflate(body);
+                if (compressedBody.length < body.length) {
+                    body = compressedBody;
+                    flags |= COMPRESSED_FLAG;
+                }
+            }
+        }
+        if (elementPacket.lastPacket) {
+            flags |= LAST_PACKET_FLAG;
+        }
+        ByteArrayOutputStream packetStream = new ByteArrayOutputStream(13 + body.length);
+        DataOutputStream out = new DataOutputStream(packetStream);
+        out.writeByte(flags);
+        out.writeInt(elementPacket.elementsSent);
+        out.writeInt(elementPacket.totalElementsToSend);
+        out.writeInt(elementPacket.elementPacket != null ? elementPacket.elementPacket.size() : 0);
+        out.write(body);
+        out.flush();
+        return packetStream.toByteArray();
+    }
+
+    static DataSynchServerFSM.ElementPacket decode(byte[] data, ElementCodec codec) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int flags = in.readUnsignedByte();
+        if ((flags & SERVER_ERROR_FLAG) != 0) {
+            return DataSynchServerFSM.ElementPacket.generateError();
+        }
+        int elementsSent = in.readInt();
+        int totalElementsToSend = in.readInt();
+        int elementCount = in.readInt();
+        if (elementCount < 0) {
+            throw new IOException("Invalid element count: " + elementCount);
+        }
+        if ((flags & COMPRESSED_FLAG) != 0) {
+            try (DataInputStream bodyIn = new DataInputStream(new InflaterInputStream(in))) {
+                return new DataSynchServerFSM.ElementPacket(codec.decode(elementCount, bodyIn), elementsSent, totalElementsToSend, (flags & LAST_PACKET_FLAG) != 0);
+            }
+        } else {
+            return new DataSynchServerFSM.ElementPacket(codec.decode(elementCount, in), elementsSent, totalElementsToSend, (flags & LAST_PACKET_FLAG) != 0);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            // if the buffer filled up before finishing, compression does not pay off -> return something not shorter
+            return deflater.finished() ? Arrays.copyOf(buffer, length) : data;
+        } finally {
+            deflater.end();
+        }
+    }
+}
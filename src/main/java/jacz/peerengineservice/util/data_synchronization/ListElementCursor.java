@@ -0,0 +1,35 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Element cursor over an already materialized list of elements. Used by data accessors that only implement the list
+ * method
+ */
+class ListElementCursor implements ElementCursor {
+
+    private final List<? extends Serializable> elements;
+
+    private int index;
+
+    ListElementCursor(List<? extends Serializable> elements) {
+        this.elements = elements;
+        this.index = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return index < elements.size();
+    }
+
+    @Override
+    public Serializable next() {
+        return elements.get(index++);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+}
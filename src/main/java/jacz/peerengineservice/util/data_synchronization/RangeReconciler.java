@@ -0,0 +1,183 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Range-hash reconciliation of the element digests of two peers, in the style of a Merkle tree.
+ * <p/>
+ * Elements are sorted by key. The hash of a key range is the xor of the mixed digests of its elements, so it can be
+ * obtained in constant time from prefix hashes. The client asks the server for the hashes of some ranges (initially,
+ * the whole key space). The server splits each range in up to FANOUT sub-ranges of similar size, and answers with
+ * their hashes. Sub-ranges with few elements are answered with their element digests instead. The client compares
+ * these hashes with its own: equal ranges are discarded, differing ranges are asked again, and differing leaf
+ * digests give the keys of the elements that must be transferred
+ */
+class RangeReconciler {
+
+    /**
+     * Range of keys, from (inclusive) to (exclusive). Null values mean unbounded
+     */
+    static final class KeyRange implements Serializable {
+
+        static final KeyRange ALL = new KeyRange(null, null);
+
+        final String from;
+
+        final String to;
+
+        KeyRange(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + from + ", " + to + ")";
+        }
+    }
+
+    /**
+     * Hash of a key range in the server. Leaf ranges include the digests of their elements
+     */
+    static final class RangeHash implements Serializable {
+
+        final KeyRange range;
+
+        final long hash;
+
+        final int count;
+
+        final List<ElementDigest> digests;
+
+        RangeHash(KeyRange range, long hash, int count, List<ElementDigest> digests) {
+            this.range = range;
+            this.hash = hash;
+            this.count = count;
+            this.digests = digests;
+        }
+
+        boolean isLeaf() {
+            return digests != null;
+        }
+    }
+
+    static final int FANOUT = 16;
+
+    /**
+     * Ranges with this many elements or less are answered with their digests
+     */
+    static final int LEAF_SIZE = 32;
+
+    private final List<ElementDigest> digests;
+
+    private final String[] keys;
+
+    /**
+     * prefixHashes[i] is the hash of the first i elements
+     */
+    private final long[] prefixHashes;
+
+    RangeReconciler(List<ElementDigest> elementDigests) {
+        digests = new ArrayList<>(elementDigests);
+        digests.sort(Comparator.comparing(digest -> digest.key));
+        keys = new String[digests.size()];
+        prefixHashes = new long[digests.size() + 1];
+        for (int i = 0; i < digests.size(); i++) {
+            keys[i] = digests.get(i).key;
+            prefixHashes[i + 1] = prefixHashes[i] ^ mix(digests.get(i));
+        }
+    }
+
+    /**
+     * Server side: splits the requested ranges and computes the hashes of the sub-ranges
+     */
+    List<RangeHash> answer(List<KeyRange> ranges) {
+        List<RangeHash> rangeHashes = new ArrayList<>();
+        for (KeyRange range : ranges) {
+            int start = lowerBound(range.from, 0);
+            int end = lowerBound(range.to, keys.length);
+            int count = end - start;
+            if (count <= LEAF_SIZE) {
+                rangeHashes.add(new RangeHash(range, hash(start, end), count, new ArrayList<>(digests.subList(start, end))));
+            } else {
+                int subRangeStart = start;
+                for (int i = 1; i <= FANOUT; i++) {
+                    int subRangeEnd = i < FANOUT ? start + (int) ((long) count * i / FANOUT) : end;
+                    String from = subRangeStart == start ? range.from : keys[subRangeStart];
+                    String to = subRangeEnd == end ? range.to : keys[subRangeEnd];
+                    int subRangeCount = subRangeEnd - subRangeStart;
+                    List<ElementDigest> leafDigests = subRangeCount <= LEAF_SIZE ? new ArrayList<>(digests.subList(subRangeStart, subRangeEnd)) : null;
+                    rangeHashes.add(new RangeHash(new KeyRange(from, to), hash(subRangeStart, subRangeEnd), subRangeCount, leafDigests));
+                    subRangeStart = subRangeEnd;
+                }
+            }
+        }
+        return rangeHashes;
+    }
+
+    /**
+     * Client side: compares the hashes received from the server with our own
+     *
+     * @param rangeHashes    hashes received from the server
+     * @param nextRanges     filled with the ranges that differ, and must be asked again
+     * @param differingKeys  filled with the keys of the elements that we miss or that are different in the server
+     */
+    void compare(List<RangeHash> rangeHashes, List<KeyRange> nextRanges, List<String> differingKeys) {
+        for (RangeHash rangeHash : rangeHashes) {
+            int start = lowerBound(rangeHash.range.from, 0);
+            int end = lowerBound(rangeHash.range.to, keys.length);
+            if (rangeHash.count == end - start && rangeHash.hash == hash(start, end)) {
+                // equal range
+                continue;
+            }
+            if (rangeHash.isLeaf()) {
+                Set<ElementDigest> ownDigests = new HashSet<>(digests.subList(start, end));
+                for (ElementDigest digest : rangeHash.digests) {
+                    if (!ownDigests.contains(digest)) {
+                        differingKeys.add(digest.key);
+                    }
+                }
+            } else {
+                nextRanges.add(rangeHash.range);
+            }
+        }
+    }
+
+    int size() {
+        return digests.size();
+    }
+
+    private long hash(int start, int end) {
+        return prefixHashes[end] ^ prefixHashes[start];
+    }
+
+    /**
+     * Index of the first key equal or greater than the given one
+     *
+     * @param key          searched key
+     * @param defaultIndex index returned for null keys (unbounded)
+     */
+    private int lowerBound(String key, int defaultIndex) {
+        if (key == null) {
+            return defaultIndex;
+        }
+        int index = Arrays.binarySearch(keys, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static long mix(ElementDigest digest) {
+        // 64-bit hash of the key, combined with the element hash and finalized (murmur3 fmix64)
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < digest.key.length(); i++) {
+            h = (h ^ digest.key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= digest.hash * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,33 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.util.List;
+
+/**
+ * Data accessor that supports reconciliation mode. If the accessors of both peers implement this interface and the
+ * synch process would otherwise require the whole data (database IDs do not match, or the client does not provide
+ * a last timestamp), the peers compare hashes of key ranges instead, recursively narrowing the ranges that differ.
+ * Only the elements that are missing or different in the client are then transferred.
+ * <p/>
+ * Elements that the client has and the server does not are not transferred nor reported, as in the timestamp mode
+ */
+public interface ReconcilableDataAccessor extends DataAccessor {
+
+    /**
+     * Retrieves the digests of all the elements of this accessor. Each key must appear only once
+     *
+     * @return the digests of all elements, in any order
+     * @throws DataAccessException error accessing the data
+     */
+    List<ElementDigest> getElementDigests() throws DataAccessException;
+
+    /**
+     * Retrieves a cursor over the elements with the given keys
+     * <p/>
+     * This method is only invoked in server mode.
+     *
+     * @param keys keys of the required elements
+     * @return a cursor over the required elements
+     * @throws DataAccessException error accessing the data
+     */
+    ElementCursor getElementCursorForKeys(List<String> keys) throws DataAccessException;
+}
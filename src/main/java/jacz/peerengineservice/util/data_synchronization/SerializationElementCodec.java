@@ -0,0 +1,42 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Default element codec, based on java serialization. All elements of a packet are written in a single object
+ * stream, so class descriptors and repeated objects are only written once per packet
+ */
+public class SerializationElementCodec implements ElementCodec {
+
+    public static final String NAME = "serialization";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void encode(List<? extends Serializable> elements, DataOutputStream out) throws IOException {
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+        for (Serializable element : elements) {
+            objectOutputStream.writeObject(element);
+        }
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public List<Serializable> decode(int elementCount, DataInputStream in) throws IOException {
+        ObjectInputStream objectInputStream = new ObjectInputStream(in);
+        List<Serializable> elements = new ArrayList<>(elementCount);
+        try {
+            for (int i = 0; i < elementCount; i++) {
+                elements.add((Serializable) objectInputStream.readObject());
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unrecognized element class", e);
+        }
+        return elements;
+    }
+}
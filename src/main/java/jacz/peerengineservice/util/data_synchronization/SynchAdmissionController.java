@@ -0,0 +1,98 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import jacz.peerengineservice.PeerId;
+
+import java.util.*;
+
+/**
+ * Admission control for server synch processes. It limits the number of synch processes that we serve at the same
+ * time, whatever the peers and accessors involved.
+ * <p/>
+ * Peers whose requests are turned away (answered with SERVER_BUSY) are kept in a waiting queue, with one entry per
+ * peer. Freed slots are reserved for the peers at the head of the queue, in order, so a peer with many accessors
+ * to synch cannot starve the others: after being admitted, its next request goes to the back of the queue. Peers
+ * that do not retry in a while are removed from the queue
+ */
+class SynchAdmissionController {
+
+    /**
+     * Waiting peers that do not retry within this time lose their place in the queue
+     */
+    static final long WAITING_EXPIRATION = 3 * DataSynchronizer.BUSY_RETRY_DELAY;
+
+    private int maxConcurrentSynchs;
+
+    private int activeSynchs;
+
+    private final Map<PeerId, Integer> activeSynchsPerPeer;
+
+    /**
+     * Peers waiting for a slot, in arrival order, with the time of their last request
+     */
+    private final LinkedHashMap<PeerId, Long> waitingPeers;
+
+    SynchAdmissionController(int maxConcurrentSynchs) {
+        this.maxConcurrentSynchs = Math.max(maxConcurrentSynchs, 1);
+        activeSynchs = 0;
+        activeSynchsPerPeer = new HashMap<>();
+        waitingPeers = new LinkedHashMap<>();
+    }
+
+    /**
+     * Tries to admit a new synch process requested by a peer
+     *
+     * @param peerId peer requesting the synch
+     * @return true if the synch can proceed (it must be released later), false if the request must be answered
+     * with SERVER_BUSY
+     */
+    synchronized boolean tryAdmit(PeerId peerId) {
+        long now = System.currentTimeMillis();
+        waitingPeers.values().removeIf(lastRequest -> lastRequest + WAITING_EXPIRATION < now);
+        int freeSlots = maxConcurrentSynchs - activeSynchs;
+        int position = 0;
+        for (PeerId waitingPeer : waitingPeers.keySet()) {
+            if (waitingPeer.equals(peerId)) {
+                break;
+            }
+            position++;
+        }
+        if (position < freeSlots) {
+            waitingPeers.remove(peerId);
+            activeSynchs++;
+            activeSynchsPerPeer.merge(peerId, 1, Integer::sum);
+            return true;
+        } else {
+            // peers already waiting keep their place in the queue (insertion order is not modified by put)
+            waitingPeers.put(peerId, now);
+            return false;
+        }
+    }
+
+    synchronized void release(PeerId peerId) {
+        Integer peerSynchs = activeSynchsPerPeer.get(peerId);
+        if (peerSynchs != null) {
+            activeSynchs--;
+            if (peerSynchs > 1) {
+                activeSynchsPerPeer.put(peerId, peerSynchs - 1);
+            } else {
+                activeSynchsPerPeer.remove(peerId);
+            }
+        }
+    }
+
+    synchronized int getMaxConcurrentSynchs() {
+        return maxConcurrentSynchs;
+    }
+
+    synchronized void setMaxConcurrentSynchs(int maxConcurrentSynchs) {
+        this.maxConcurrentSynchs = Math.max(maxConcurrentSynchs, 1);
+    }
+
+    synchronized int getActiveSynchs() {
+        return activeSynchs;
+    }
+
+    synchronized int getWaitingPeers() {
+        return waitingPeers.size();
+    }
+}
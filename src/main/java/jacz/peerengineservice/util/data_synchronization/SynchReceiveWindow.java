@@ -0,0 +1,78 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.util.*;
+
+/**
+ * Receiving end of the sliding window used by the client FSM. Packets are delivered in sequence order. Packets
+ * arriving after a corrupted one are buffered until the corrupted packet is retransmitted.
+ *
+ * @param <T> type of the received packets
+ */
+class SynchReceiveWindow<T> {
+
+    private int nextExpected;
+
+    /**
+     * Packets received ahead of the next expected one
+     */
+    private final Map<Integer, T> buffered;
+
+    /**
+     * Corrupted packets whose retransmission has not been requested yet
+     */
+    private final SortedSet<Integer> corrupted;
+
+    SynchReceiveWindow() {
+        nextExpected = 0;
+        buffered = new HashMap<>();
+        corrupted = new TreeSet<>();
+    }
+
+    /**
+     * A valid packet was received
+     *
+     * @param sequence sequence number of the packet
+     * @param packet   received packet
+     * @return the packets that can now be delivered, in order (might be empty)
+     */
+    List<T> received(int sequence, T packet) {
+        List<T> deliverable = new ArrayList<>();
+        if (sequence < nextExpected || buffered.containsKey(sequence)) {
+            // duplicate
+            return deliverable;
+        }
+        corrupted.remove(sequence);
+        buffered.put(sequence, packet);
+        while (buffered.containsKey(nextExpected)) {
+            deliverable.add(buffered.remove(nextExpected));
+            nextExpected++;
+        }
+        return deliverable;
+    }
+
+    /**
+     * A packet failed its integrity check, so its retransmission will be requested in the next acknowledgement
+     *
+     * @param sequence sequence number of the packet
+     */
+    void corrupted(int sequence) {
+        if (sequence >= nextExpected && !buffered.containsKey(sequence)) {
+            corrupted.add(sequence);
+        }
+    }
+
+    int cumulativeAck() {
+        return nextExpected - 1;
+    }
+
+    /**
+     * Retrieves the packets whose retransmission must be requested, and clears them
+     *
+     * @return sequence numbers of corrupted packets, in order
+     */
+    List<Integer> pollRetransmissions() {
+        List<Integer> retransmissions = new ArrayList<>(corrupted);
+        corrupted.clear();
+        return retransmissions;
+    }
+}
@@ -0,0 +1,140 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Sliding window of element packets sent by the server FSM and not yet acknowledged by the client.
+ * <p/>
+ * Several packets can be in flight at the same time, so the synch time is bounded by the bandwidth of the link
+ * rather than by its round trip time. The client acknowledges cumulatively (all packets up to a sequence number) and
+ * can request the retransmission of specific packets that arrived corrupted. Unacknowledged packets are kept so they
+ * can be retransmitted.
+ * <p/>
+ * The window size is adaptive: it starts small and grows with each acknowledged packet (doubling every round trip)
+ * until the first retransmission request. Then it is halved (never below the initial size), and from there it only
+ * grows by one packet per round trip. It never exceeds the maximum size given at construction (the window advertised
+ * by the client)
+ */
+class SynchSendWindow {
+
+    static final int INITIAL_WINDOW = 4;
+
+    private final int maxWindow;
+
+    /**
+     * Sent packets pending of acknowledgement, by sequence number
+     */
+    private final TreeMap<Integer, byte[]> unacknowledged;
+
+    private int nextSequence;
+
+    private int window;
+
+    /**
+     * Whether we are growing the window exponentially (no retransmission requested yet)
+     */
+    private boolean slowStart;
+
+    /**
+     * Packets acknowledged since the window grew last time (only used after slow start)
+     */
+    private int acknowledgedInRound;
+
+    private int acknowledgedPackets;
+
+    private int retransmittedPackets;
+
+    SynchSendWindow(int maxWindow) {
+        this.maxWindow = Math.max(maxWindow, 1);
+        unacknowledged = new TreeMap<>();
+        nextSequence = 0;
+        window = Math.min(INITIAL_WINDOW, this.maxWindow);
+        slowStart = true;
+        acknowledgedInRound = 0;
+        acknowledgedPackets = 0;
+        retransmittedPackets = 0;
+    }
+
+    boolean canSend() {
+        return unacknowledged.size() < window;
+    }
+
+    /**
+     * Registers a new packet to be sent
+     *
+     * @param packet packet data, without sequence number
+     * @return the sequence number assigned to the packet
+     */
+    int register(byte[] packet) {
+        int sequence = nextSequence++;
+        unacknowledged.put(sequence, packet);
+        return sequence;
+    }
+
+    byte[] getPacket(int sequence) {
+        return unacknowledged.get(sequence);
+    }
+
+    /**
+     * Processes an acknowledgement from the client
+     *
+     * @param cumulativeAck last sequence number such that it and all previous packets were received (-1 for none)
+     * @param retransmit    sequence numbers of packets that must be sent again
+     * @return the sequence numbers of the packets to retransmit, in order
+     * @throws IllegalArgumentException if the client acknowledges packets that were never sent
+     */
+    List<Integer> acknowledge(int cumulativeAck, Collection<Integer> retransmit) throws IllegalArgumentException {
+        if (cumulativeAck >= nextSequence) {
+            throw new IllegalArgumentException("Acknowledged packet " + cumulativeAck + " was not sent");
+        }
+        int acknowledged = unacknowledged.headMap(cumulativeAck, true).size();
+        unacknowledged.headMap(cumulativeAck, true).clear();
+        acknowledgedPackets += acknowledged;
+        List<Integer> toRetransmit = new ArrayList<>();
+        for (Integer sequence : retransmit) {
+            if (unacknowledged.containsKey(sequence)) {
+                toRetransmit.add(sequence);
+            }
+        }
+        if (!toRetransmit.isEmpty()) {
+            retransmittedPackets += toRetransmit.size();
+            slowStart = false;
+            acknowledgedInRound = 0;
+            window = Math.max(window / 2, Math.min(INITIAL_WINDOW, maxWindow));
+        } else {
+            grow(acknowledged);
+        }
+        return toRetransmit;
+    }
+
+    private void grow(int acknowledged) {
+        if (slowStart) {
+            window = Math.min(window + acknowledged, maxWindow);
+        } else {
+            acknowledgedInRound += acknowledged;
+            if (acknowledgedInRound >= window) {
+                acknowledgedInRound -= window;
+                window = Math.min(window + 1, maxWindow);
+            }
+        }
+    }
+
+    boolean allAcknowledged() {
+        return unacknowledged.isEmpty();
+    }
+
+    int getWindow() {
+        return window;
+    }
+
+    int getAcknowledgedPackets() {
+        return acknowledgedPackets;
+    }
+
+    int getRetransmittedPackets() {
+        return retransmittedPackets;
+    }
+}
@@ -1,15 +1,25 @@
 package jacz.peerengineservice.util.datatransfer;
 
 import jacz.peerengineservice.util.datatransfer.master.DownloadManager;
+import jacz.peerengineservice.util.datatransfer.master.DownloadState;
+import org.aanguita.jacuzzi.concurrency.task_executor.ThreadExecutor;
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.function.LongSupplier;
 
 
 /**
  * This class handles the current downloads. Downloads are classified in visible and invisible. The former are periodically notified to the client.
  * <p/>
  * We can request it to notify us every fixed time, and we can iterate through the active downloads.
+ * <p/>
+ * New downloads are queued. Queued downloads are started, in order of priority, while there are less running
+ * downloads than the configured maximum. Paused downloads, and downloads that have had no providers for some time
+ * (stalled), do not count for this maximum, so they do not block the rest of the queue.
+ * <p/>
+ * Queued downloads of a resource that another download is already fetching do not wait for room: they follow that
+ * download and get a copy of its data, so the same resource is not fetched twice
  */
 public class DownloadsManager extends TransfersManager<DownloadManager> {
 
@@ -18,14 +28,66 @@ public class DownloadsManager extends TransfersManager<DownloadManager> {
      */
     private final ResourceTransferEvents resourceTransferEvents;
 
+    public static final int DEFAULT_MAX_ACTIVE_DOWNLOADS = 5;
+
+    private static final long QUEUE_UPDATE_PERIOD = 5000L;
+
+    /**
+     * Time without providers after which a running download is considered stalled
+     */
+    private static final long STALL_TIMEOUT = 60000L;
+
+    /**
+     * Downloads with no master resource streamer (queued, paused in the queue or following another download), in
+     * order of arrival
+     */
+    private final List<DownloadManager> queuedDownloads;
+
+    /**
+     * For each active download (by download manager id), the time since it has had no providers
+     */
+    private final Map<String, Long> noProvidersSince;
+
+    private int maxActiveDownloads;
+
+    private final LongSupplier clock;
+
+    /**
+     * Serializes queue updates. Never acquired while holding this object's lock, as starting downloads takes
+     * other locks
+     */
+    private final Object queueLock;
+
+    private final Timer queueTimer;
+
+    private volatile boolean queueAlive;
+
     /**
      * Class constructor
      *
      * @param resourceTransferEvents peer client action implementation for periodically notifying downloads
      */
     public DownloadsManager(ResourceTransferEvents resourceTransferEvents) {
+        this(resourceTransferEvents, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock source of the current time, in millis (used for detecting stalled downloads)
+     */
+    DownloadsManager(ResourceTransferEvents resourceTransferEvents, LongSupplier clock) {
         super("DownloadsManager");
+        this.clock = clock;
         this.resourceTransferEvents = resourceTransferEvents;
+        queuedDownloads = new ArrayList<>();
+        noProvidersSince = new HashMap<>();
+        maxActiveDownloads = DEFAULT_MAX_ACTIVE_DOWNLOADS;
+        queueLock = new Object();
+        queueAlive = true;
+        // the timer detects stalled downloads
+        queueTimer = new Timer(QUEUE_UPDATE_PERIOD, timer -> {
+            updateQueueNow();
+            return null;
+        }, "DownloadsManagerQueue");
     }
 
     /**
@@ -44,6 +106,140 @@ public class DownloadsManager extends TransfersManager<DownloadManager> {
      */
     synchronized void removeDownload(String store, String id) {
         removeTransfer(store, id);
+        // a download completed or was stopped, there might be room for a queued one
+        updateQueue();
+    }
+
+    /**
+     * Puts a download in the queue, and starts it right away if there is room for it. Must not be invoked while
+     * holding the lock of the resource streaming manager or of the download
+     *
+     * @param downloadManager the queued download
+     */
+    void startOrEnqueueDownload(DownloadManager downloadManager) {
+        synchronized (this) {
+            queuedDownloads.add(downloadManager);
+        }
+        updateQueueNow();
+    }
+
+    /**
+     * Puts a download (e.g. a stopped download that is resumed) in the queue
+     *
+     * @param downloadManager the queued download
+     */
+    public synchronized void enqueueDownload(DownloadManager downloadManager) {
+        if (!queuedDownloads.contains(downloadManager)) {
+            queuedDownloads.add(downloadManager);
+        }
+        updateQueue();
+    }
+
+    /**
+     * Removes a download from the queue (e.g. because it was stopped or cancelled before starting)
+     *
+     * @param downloadManager the download to remove
+     */
+    public synchronized void removeQueuedDownload(DownloadManager downloadManager) {
+        queuedDownloads.remove(downloadManager);
+    }
+
+    public synchronized int getMaxActiveDownloads() {
+        return maxActiveDownloads;
+    }
+
+    public synchronized void setMaxActiveDownloads(int maxActiveDownloads) {
+        this.maxActiveDownloads = Math.max(maxActiveDownloads, 1);
+        updateQueue();
+    }
+
+    /**
+     * Requests an update of the queue, which is performed in a separate thread
+     */
+    public void updateQueue() {
+        if (queueAlive) {
+            ThreadExecutor.submit(this::updateQueueNow);
+        }
+    }
+
+    /**
+     * Starts queued downloads while there is room for them
+     */
+    void updateQueueNow() {
+        synchronized (queueLock) {
+            if (!queueAlive) {
+                return;
+            }
+            List<DownloadManager> activeDownloads;
+            List<DownloadManager> candidates;
+            int maxActiveDownloads;
+            synchronized (this) {
+                activeDownloads = getAllTransfers();
+                candidates = new ArrayList<>(queuedDownloads);
+                maxActiveDownloads = this.maxActiveDownloads;
+            }
+            int runningDownloads = countRunningDownloads(activeDownloads);
+            // current fetches, that queued downloads of the same resource can follow
+            Map<String, DownloadManager> fetches = new HashMap<>();
+            for (DownloadManager downloadManager : activeDownloads) {
+                if (downloadManager.isFetching()) {
+                    fetches.putIfAbsent(downloadManager.getFetchKey(), downloadManager);
+                }
+            }
+            candidates.removeIf(downloadManager -> downloadManager.getState() != DownloadState.QUEUED);
+            if (runningDownloads < maxActiveDownloads && candidates.size() > maxActiveDownloads - runningDownloads) {
+                // highest priority first. The sort is stable, so arrival order is kept for equal priorities.
+                // Only needed if not all candidates fit, so priorities are otherwise not read
+                candidates.sort(Comparator.comparing(downloadManager -> -downloadManager.getPriority()));
+            }
+            for (DownloadManager downloadManager : candidates) {
+                DownloadManager leader = fetches.get(downloadManager.getFetchKey());
+                if (leader != null && leader.addFollower(downloadManager)) {
+                    continue;
+                }
+                if (runningDownloads >= maxActiveDownloads) {
+                    // later downloads might still follow a current fetch
+                    continue;
+                }
+                synchronized (this) {
+                    queuedDownloads.remove(downloadManager);
+                }
+                if (downloadManager.start()) {
+                    runningDownloads++;
+                    fetches.putIfAbsent(downloadManager.getFetchKey(), downloadManager);
+                } else if (downloadManager.getState() == DownloadState.PAUSED) {
+                    // paused meanwhile, it stays in the queue
+                    synchronized (this) {
+                        queuedDownloads.add(downloadManager);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the running downloads, excluding the stalled ones
+     */
+    private int countRunningDownloads(List<DownloadManager> activeDownloads) {
+        long now = clock.getAsLong();
+        Set<String> activeIds = new HashSet<>();
+        int runningDownloads = 0;
+        for (DownloadManager downloadManager : activeDownloads) {
+            activeIds.add(downloadManager.getId());
+            if (downloadManager.getState() == DownloadState.RUNNING) {
+                if (downloadManager.getActiveProviderCount() > 0) {
+                    noProvidersSince.remove(downloadManager.getId());
+                    runningDownloads++;
+                } else {
+                    Long since = noProvidersSince.putIfAbsent(downloadManager.getId(), now);
+                    if (since == null || now - since < STALL_TIMEOUT) {
+                        runningDownloads++;
+                    }
+                }
+            }
+        }
+        noProvidersSince.keySet().retainAll(activeIds);
+        return runningDownloads;
     }
 
     /**
@@ -52,7 +248,13 @@ public class DownloadsManager extends TransfersManager<DownloadManager> {
      * @return a shallow copy of the active downloads
      */
     public synchronized List<DownloadManager> getDownloads(String store) {
-        return getTransfers(store);
+        List<DownloadManager> downloadManagers = getTransfers(store);
+        for (DownloadManager downloadManager : queuedDownloads) {
+            if (downloadManager.getStoreName().equals(store)) {
+                downloadManagers.add(downloadManager);
+            }
+        }
+        return downloadManagers;
     }
 
     /**
@@ -61,7 +263,9 @@ public class DownloadsManager extends TransfersManager<DownloadManager> {
      * @return a shallow copy of the active downloads
      */
     public synchronized List<DownloadManager> getAllDownloads() {
-        return getAllTransfers();
+        List<DownloadManager> downloadManagers = getAllTransfers();
+        downloadManagers.addAll(queuedDownloads);
+        return downloadManagers;
     }
 
     public synchronized List<DownloadManager> getDownloadsForResource(String resourceId) {
@@ -83,6 +287,13 @@ public class DownloadsManager extends TransfersManager<DownloadManager> {
         return null;
     }
 
+    @Override
+    synchronized void stop() {
+        queueAlive = false;
+        queueTimer.stop();
+        super.stop();
+    }
+
     @Override
     protected void notifyClient() {
         resourceTransferEvents.periodicDownloadsNotification(this);
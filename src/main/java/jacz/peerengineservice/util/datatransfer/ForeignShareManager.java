@@ -1,14 +1,12 @@
 package jacz.peerengineservice.util.datatransfer;
 
+import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.util.ForeignStoreShare;
 import org.aanguita.jacuzzi.concurrency.task_executor.ThreadExecutor;
 import org.aanguita.jacuzzi.event.notification.NotificationReceiver;
 import org.aanguita.jacuzzi.id.AlphaNumFactory;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -28,7 +26,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * The client is in charge of properly updating all the given ForeignStoreShare objects. The data contained in this
  * class is for internal use of the ResourceStreamingManager only.
  * <p/>
- * This class offers ability for subscribing for receiving updates on changes. The jacz.util event notification api is used for this
+ * This class offers ability for subscribing for receiving updates on changes. The jacz.util event notification api is used for this.
+ * Stores notify the changes in their providers (deltas), which are grouped over a short delay and applied incrementally
  * <p/>
  * Synchronization is done to avoid clashes between the resource streaming manager and the notification receiver handler that invokes newEvent
  */
@@ -178,11 +177,34 @@ class ForeignShareManager implements NotificationReceiver {
         }
         if (resourceStore != null) {
             final String finalResourceStore = resourceStore;
-            final List<String> affectedResources = new ArrayList<>();
-            for (Object message : groupedMessages) {
-                affectedResources.add((String) message);
+            final Map<String, Set<PeerId>> addedProviders = coalesceProviderChanges(groupedMessages);
+            if (!addedProviders.isEmpty()) {
+                ThreadExecutor.submit(() -> resourceStreamingManager.reportProvidersShareChanges(finalResourceStore, addedProviders));
             }
-            ThreadExecutor.submit(() -> resourceStreamingManager.reportProvidersShareChanges(finalResourceStore, affectedResources));
         }
     }
+
+    /**
+     * Applies in order the provider changes received in one notification, and obtains the providers added to each
+     * resource. Removed providers only cancel previous additions, since active downloads detect by themselves
+     * the providers that stop serving them
+     *
+     * @param providerChanges provider changes, in the order they were produced
+     * @return for each affected resource, the peers that were added as providers
+     */
+    static Map<String, Set<PeerId>> coalesceProviderChanges(List<Object> providerChanges) {
+        Map<String, Set<PeerId>> addedProviders = new HashMap<>();
+        for (Object message : providerChanges) {
+            ForeignStoreShare.ProviderChange providerChange = (ForeignStoreShare.ProviderChange) message;
+            if (providerChange.isAdded()) {
+                addedProviders.computeIfAbsent(providerChange.getResourceID(), k -> new HashSet<>()).add(providerChange.getPeerId());
+            } else if (addedProviders.containsKey(providerChange.getResourceID())) {
+                addedProviders.get(providerChange.getResourceID()).remove(providerChange.getPeerId());
+                if (addedProviders.get(providerChange.getResourceID()).isEmpty()) {
+                    addedProviders.remove(providerChange.getResourceID());
+                }
+            }
+        }
+        return addedProviders;
+    }
 }
@@ -49,8 +49,9 @@ public class GenericPriorityManager implements TimerAction {
         }
 
         // update variations of stakeholders
-        float totalConsumption = PriorityResourceDistribution.distributeResources(resources.keySet(), maxDesiredSpeedInterface.getMaxDesiredSpeed());
-        boolean maxSpeedReached = maxDesiredSpeedInterface.getMaxDesiredSpeed() != null && totalConsumption > maxDesiredSpeedInterface.getMaxDesiredSpeed();
+        Float maxDesiredSpeed = maxDesiredSpeedInterface.getMaxDesiredSpeed();
+        float totalConsumption = PriorityResourceDistribution.distributeResources(resources.keySet(), maxDesiredSpeed);
+        boolean maxSpeedReached = maxDesiredSpeed != null && totalConsumption > maxDesiredSpeed;
 
         // transmit variations to resources
         for (Map.Entry<GenericPriorityManagerStakeholder, Set<GenericPriorityManagerRegulatedResource>> stakeholderResources : resources.entrySet()) {
@@ -23,7 +23,6 @@ import org.aanguita.jacuzzi.io.serialization.MutableOffset;
 import org.aanguita.jacuzzi.io.serialization.ObjectListWrapper;
 import org.aanguita.jacuzzi.io.serialization.Serializer;
 import org.aanguita.jacuzzi.lists.DoubleElementArrayList;
-import org.aanguita.jacuzzi.lists.tuple.Duple;
 import org.aanguita.jacuzzi.queues.event_processing.MessageHandler;
 import org.aanguita.jacuzzi.queues.event_processing.MessageProcessor;
 import org.aanguita.jacuzzi.sets.availableelements.AvailableElementsShort;
@@ -37,6 +36,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * This class maintains connections with all connected peers in order to send and receive files at request. Every time
@@ -589,6 +589,16 @@ public class ResourceStreamingManager {
      */
     private final GenericPriorityManager downloadPriorityManager;
 
+    /**
+     * Limits the uploads that send data at the same time. The rest are choked until they get a slot
+     */
+    private final UploadSlotManager uploadSlotManager;
+
+    /**
+     * Listener for changes in the transfers configuration (speed limits)
+     */
+    private final TransfersConfig.Listener transfersConfigListener;
+
     private final TransferStatistics transferStatistics;
 
     private final Lock writeDataLock;
@@ -609,6 +619,16 @@ public class ResourceStreamingManager {
             ConnectedPeersMessenger connectedPeersMessenger,
             String transferStatisticsPath,
             TransfersConfig transfersConfig) throws IOException {
+        this(ownPeerId, resourceTransferEvents, connectedPeersMessenger, transferStatisticsPath, transfersConfig, peerId -> false);
+    }
+
+    public ResourceStreamingManager(
+            PeerId ownPeerId,
+            ResourceTransferEvents resourceTransferEvents,
+            ConnectedPeersMessenger connectedPeersMessenger,
+            String transferStatisticsPath,
+            TransfersConfig transfersConfig,
+            Predicate<PeerId> isFavoritePeer) throws IOException {
         this.ownPeerId = ownPeerId;
         this.resourceTransferEventsBridge = new ResourceTransferEventsBridge(resourceTransferEvents);
         this.connectedPeersMessenger = connectedPeersMessenger;
@@ -623,6 +643,13 @@ public class ResourceStreamingManager {
         this.transfersConfig = transfersConfig;
         uploadPriorityManager = new GenericPriorityManager(this.transfersConfig::getMaxUploadSpeed, true);
         downloadPriorityManager = new GenericPriorityManager(this.transfersConfig::getMaxDownloadSpeed, true);
+        uploadSlotManager = new UploadSlotManager(isFavoritePeer);
+        // speed limits are applied as soon as they change, instead of waiting for the next periodic update
+        transfersConfigListener = config -> ThreadExecutor.submit(() -> {
+            uploadPriorityManager.update();
+            downloadPriorityManager.update();
+        });
+        this.transfersConfig.addTransfersConfigListener(transfersConfigListener);
         this.transferStatistics = new TransferStatistics(transferStatisticsPath);
         writeDataLock = new ReentrantLock(true);
         alive = new AtomicBoolean(true);
@@ -785,9 +812,10 @@ public class ResourceStreamingManager {
      * @param totalHash                           hexadecimal value for the total resource hash (null if not used)
      * @param totalHashAlgorithm                  algorithm for calculating the total hash (null if not used)
      * @return a DownloadManager object for controlling this download, or null if the download could not be created
-     * (due to the resource store name given not corresponding to any existing resource store)
+     * (due to the resource store name given not corresponding to any existing resource store). The download might
+     * be queued, if the maximum number of active downloads has been reached
      */
-    public synchronized DownloadManager downloadResource(
+    public DownloadManager downloadResource(
             String resourceStoreName,
             String resourceID,
             ResourceWriter resourceWriter,
@@ -795,9 +823,15 @@ public class ResourceStreamingManager {
             double streamingNeed,
             String totalHash,
             String totalHashAlgorithm) throws NotAliveException {
-        if (alive.get()) {
+        DownloadManager downloadManager;
+        synchronized (this) {
+            if (!alive.get()) {
+                throw new NotAliveException();
+            }
             // the download is created even if there is no matching global resource store
-            Duple<MasterResourceStreamer, DownloadManager> masterAndDM = createMasterResourceStreamer(
+            downloadManager = new DownloadManager(
+                    this,
+                    transfersConfig,
                     null,
                     resourceStoreName,
                     resourceID,
@@ -805,11 +839,12 @@ public class ResourceStreamingManager {
                     downloadProgressNotificationHandler,
                     streamingNeed,
                     totalHash,
-                    totalHashAlgorithm, () -> resourceTransferEventsBridge.globalDownloadInitiated(resourceStoreName, resourceID, streamingNeed, totalHash, totalHashAlgorithm));
-            return masterAndDM.element2;
-        } else {
-            throw new NotAliveException();
+                    totalHashAlgorithm);
+            resourceTransferEventsBridge.globalDownloadInitiated(resourceStoreName, resourceID, streamingNeed, totalHash, totalHashAlgorithm);
         }
+        // outside our lock, as master resource streamers invoke us while holding their own lock
+        downloadsManager.startOrEnqueueDownload(downloadManager);
+        return downloadManager;
     }
 
     /**
@@ -828,9 +863,10 @@ public class ResourceStreamingManager {
      * @param totalHash                           hexadecimal value for the total resource hash (null if not used)
      * @param totalHashAlgorithm                  algorithm for calculating the total hash (null if not used)
      * @return a DownloadManager object for controlling this download, or null if the download could not be created
-     * (due to the resource store name given not corresponding to any existing resource store)
+     * (due to the resource store name given not corresponding to any existing resource store). The download might
+     * be queued, if the maximum number of active downloads has been reached
      */
-    public synchronized DownloadManager downloadResource(
+    public DownloadManager downloadResource(
             PeerId serverPeerId,
             String resourceStoreName,
             String resourceID,
@@ -839,8 +875,14 @@ public class ResourceStreamingManager {
             double streamingNeed,
             String totalHash,
             String totalHashAlgorithm) throws NotAliveException {
-        if (alive.get()) {
-            Duple<MasterResourceStreamer, DownloadManager> masterAndDM = createMasterResourceStreamer(
+        DownloadManager downloadManager;
+        synchronized (this) {
+            if (!alive.get()) {
+                throw new NotAliveException();
+            }
+            downloadManager = new DownloadManager(
+                    this,
+                    transfersConfig,
                     serverPeerId,
                     resourceStoreName,
                     resourceID,
@@ -848,38 +890,12 @@ public class ResourceStreamingManager {
                     downloadProgressNotificationHandler,
                     streamingNeed,
                     totalHash,
-                    totalHashAlgorithm, () -> resourceTransferEventsBridge.peerDownloadInitiated(serverPeerId, resourceStoreName, resourceID, streamingNeed, totalHash, totalHashAlgorithm));
-            reportResourceProviderForPeerSpecificDownload(serverPeerId, masterAndDM.element1);
-            return masterAndDM.element2;
-        } else {
-            throw new NotAliveException();
+                    totalHashAlgorithm);
+            resourceTransferEventsBridge.peerDownloadInitiated(serverPeerId, resourceStoreName, resourceID, streamingNeed, totalHash, totalHashAlgorithm);
         }
-    }
-
-    private Duple<MasterResourceStreamer, DownloadManager> createMasterResourceStreamer(
-            PeerId serverPeerId,
-            String resourceStoreName,
-            String resourceID,
-            ResourceWriter resourceWriter,
-            DownloadProgressNotificationHandler downloadProgressNotificationHandler,
-            double streamingNeed,
-            String totalHash,
-            String totalHashAlgorithm,
-            Runnable reportAction) {
-        MasterResourceStreamer masterResourceStreamer =
-                new MasterResourceStreamer(
-                        this,
-                        transfersConfig,
-                        serverPeerId,
-                        resourceStoreName,
-                        resourceID,
-                        resourceWriter,
-                        downloadProgressNotificationHandler,
-                        streamingNeed,
-                        totalHash,
-                        totalHashAlgorithm);
-        activateMasterResourceStreamer(masterResourceStreamer, reportAction);
-        return new Duple<>(masterResourceStreamer, masterResourceStreamer.getDownloadManager());
+        // outside our lock, as master resource streamers invoke us while holding their own lock
+        downloadsManager.startOrEnqueueDownload(downloadManager);
+        return downloadManager;
     }
 
     public void activateMasterResourceStreamer(MasterResourceStreamer masterResourceStreamer, Runnable reportAction) {
@@ -888,6 +904,15 @@ public class ResourceStreamingManager {
             activeDownloadSet.addDownload(masterResourceStreamer);
             downloadsManager.addDownload(masterResourceStreamer.getStoreName(), masterResourceStreamer.getId(), masterResourceStreamer.getDownloadManager());
             reportAction.run();
+            if (masterResourceStreamer.getSpecificPeerDownload() != null) {
+                reportResourceProviderForPeerSpecificDownload(masterResourceStreamer.getSpecificPeerDownload(), masterResourceStreamer);
+            } else {
+                // do not wait for the next general provider update (e.g. when many downloads are resumed at once)
+                ForeignStoreShare foreignStoreShare = foreignShareManager.getResourceProviderShare(masterResourceStreamer.getStoreName());
+                if (foreignStoreShare != null) {
+                    reportProvidersToGroupDownloads(Collections.singleton(masterResourceStreamer), foreignStoreShare.getForeignPeerShares(masterResourceStreamer.getResourceId()));
+                }
+            }
         }
     }
 
@@ -924,6 +949,7 @@ public class ResourceStreamingManager {
 
     public void reportDownloadedSize(PeerId peerId, long bytes) {
         transferStatistics.addDownloadedBytes(bytes);
+        uploadSlotManager.reportReceivedBytes(peerId, bytes);
     }
 
     /**
@@ -959,8 +985,10 @@ public class ResourceStreamingManager {
             }
             synchronized (this) {
                 futureCollection.clear();
+                transfersConfig.removeTransfersConfigListener(transfersConfigListener);
                 uploadPriorityManager.stop();
                 downloadPriorityManager.stop();
+                uploadSlotManager.stop();
                 foreignShareManager.stop();
                 activeDownloadSet.stop();
                 subchannelManager.stop();
@@ -989,31 +1017,26 @@ public class ResourceStreamingManager {
     }
 
 
-    synchronized void reportProvidersShareChanges(String resourceStoreName, List<String> affectedResources) {
-        for (String resource : affectedResources) {
-            reportProvidersForOneActiveDownload(resourceStoreName, resource);
+    /**
+     * Reports new providers of some resources of a foreign store to the active group downloads of those resources
+     *
+     * @param resourceStoreName name of the foreign store
+     * @param addedProviders    for each affected resource, the peers that were added as providers
+     */
+    synchronized void reportProvidersShareChanges(String resourceStoreName, Map<String, Set<PeerId>> addedProviders) {
+        for (Map.Entry<String, Set<PeerId>> resourceProviders : addedProviders.entrySet()) {
+            Collection<MasterResourceStreamer> downloads = activeDownloadSet.getDownload(resourceStoreName, resourceProviders.getKey());
+            if (!downloads.isEmpty()) {
+                reportProvidersToGroupDownloads(downloads, resourceProviders.getValue());
+            }
         }
     }
 
     private void reportProvidersForOneActiveDownload(String resourceStoreName, String resourceID) {
         ForeignStoreShare foreignStoreShare = foreignShareManager.getResourceProviderShare(resourceStoreName);
-        Set<ResourceProvider> resourceProviders = null;
         if (foreignStoreShare != null) {
-            Set<PeerId> peersSharing = foreignStoreShare.getForeignPeerShares(resourceID);
-            resourceProviders = new HashSet<>(peersSharing.size());
-            for (PeerId peerId : peersSharing) {
-                ResourceProvider peerResourceProvider = generateResourceProvider(peerId);
-                resourceProviders.add(peerResourceProvider);
-            }
             // report the new providers to the client
-        }
-        if (resourceProviders != null) {
-            for (MasterResourceStreamer masterResourceStreamer : activeDownloadSet.getDownload(resourceStoreName, resourceID)) {
-                if (masterResourceStreamer.getSpecificPeerDownload() == null) {
-                    // group download -> give the assessed provider set
-                    masterResourceStreamer.reportAvailableResourceProviders(resourceProviders);
-                }
-            }
+            reportProvidersToGroupDownloads(activeDownloadSet.getDownload(resourceStoreName, resourceID), foreignStoreShare.getForeignPeerShares(resourceID));
         }
         // specific peer download do not need a foreign share registered, so check them apart of all previous calculations
         for (MasterResourceStreamer masterResourceStreamer : activeDownloadSet.getDownload(resourceStoreName, resourceID)) {
@@ -1024,6 +1047,20 @@ public class ResourceStreamingManager {
         }
     }
 
+    private void reportProvidersToGroupDownloads(Collection<MasterResourceStreamer> downloads, Set<PeerId> peersSharing) {
+        Set<ResourceProvider> resourceProviders = new HashSet<>(peersSharing.size());
+        for (PeerId peerId : peersSharing) {
+            ResourceProvider peerResourceProvider = generateResourceProvider(peerId);
+            resourceProviders.add(peerResourceProvider);
+        }
+        for (MasterResourceStreamer masterResourceStreamer : downloads) {
+            if (masterResourceStreamer.getSpecificPeerDownload() == null) {
+                // group download -> give the assessed provider set
+                masterResourceStreamer.reportAvailableResourceProviders(resourceProviders);
+            }
+        }
+    }
+
     private void reportResourceProviderForPeerSpecificDownload(PeerId serverPeerId, MasterResourceStreamer masterResourceStreamer) {
         ResourceProvider resourceProvider = generateResourceProvider(serverPeerId);
         List<ResourceProvider> providerList = new ArrayList<>(1);
@@ -1061,6 +1098,8 @@ public class ResourceStreamingManager {
             Short incomingSubchannel = subchannelManager.requestSubchannel(slave);
             if (incomingSubchannel != null) {
                 resourceTransferEventsBridge.approveResourceRequest(request, response);
+                // the slot is decided before the slave starts sending data
+                uploadSlotManager.addUpload(slave);
                 slave.initialize(response.getResourceReader(), request.getRequestingPeer(), incomingSubchannel, request.getSubchannel());
                 uploadPriorityManager.addRegulatedResource(new RemotePeerStakeholder(request.getRequestingPeer()), slave);
                 uploadsManager.addUpload(request.getStoreName(), slave.getId(), uploadManager);
@@ -1089,10 +1128,15 @@ public class ResourceStreamingManager {
      */
     public void reportDeadSlaveResourceStreamer(SlaveResourceStreamer slave) {
         uploadPriorityManager.removeRegulatedResource(new RemotePeerStakeholder(slave.getResourceRequest().getRequestingPeer()), slave);
+        uploadSlotManager.removeUpload(slave);
         uploadsManager.removeUpload(slave.getResourceRequest().getStoreName(), slave.getId());
         freeSubchannel(slave.getIncomingChannel());
     }
 
+    public UploadSlotManager getUploadSlotManager() {
+        return uploadSlotManager;
+    }
+
     public GenericPriorityManager getDownloadPriorityManager() {
         return downloadPriorityManager;
     }
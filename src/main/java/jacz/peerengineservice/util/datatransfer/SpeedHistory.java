@@ -0,0 +1,98 @@
+package jacz.peerengineservice.util.datatransfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transferred bytes counter with a history of speeds.
+ * <p/>
+ * Bytes are accumulated in a LongAdder, so threads adding bytes do not contend. The speed is sampled periodically
+ * by one single thread, and stored in a fixed-size ring buffer that readers access without locking. A reader
+ * running at the same time as a sample might see the oldest value already replaced by the newest one
+ */
+class SpeedHistory {
+
+    private final LongAdder bytes;
+
+    /**
+     * Sampled speeds (bytes per second), stored as raw long bits
+     */
+    private final AtomicLongArray history;
+
+    /**
+     * Number of samples taken so far. The next sample is stored at position samples % history length
+     */
+    private final AtomicLong samples;
+
+    /**
+     * Byte totals and times of the last samples, to measure speeds over several samples. Only the sampling
+     * thread accesses these
+     */
+    private final long[] recentTotals;
+
+    private final long[] recentTimes;
+
+    /**
+     * @param measureSamples number of sample periods over which each speed is measured
+     * @param storedSamples  number of speeds kept in the history
+     */
+    SpeedHistory(int measureSamples, int storedSamples) {
+        bytes = new LongAdder();
+        history = new AtomicLongArray(Math.max(storedSamples, 1));
+        samples = new AtomicLong(0);
+        recentTotals = new long[Math.max(measureSamples, 1)];
+        recentTimes = new long[recentTotals.length];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < recentTimes.length; i++) {
+            recentTimes[i] = now;
+        }
+    }
+
+    void addBytes(long bytes) {
+        this.bytes.add(bytes);
+    }
+
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    void resetBytes() {
+        bytes.reset();
+    }
+
+    /**
+     * Takes a speed sample. Must be invoked periodically, always from the same thread
+     */
+    void sample() {
+        long sample = samples.get();
+        long total = bytes.sum();
+        long now = System.currentTimeMillis();
+        int current = (int) (sample % recentTotals.length);
+        // the oldest recent sample is the one overwritten now
+        long oldestTotal = recentTotals[current];
+        long oldestTime = recentTimes[current];
+        recentTotals[current] = total;
+        recentTimes[current] = now;
+        long elapsed = Math.max(now - oldestTime, 1L);
+        double speed = Math.max(total - oldestTotal, 0L) * 1000d / elapsed;
+        history.set((int) (sample % history.length()), Double.doubleToRawLongBits(speed));
+        samples.set(sample + 1);
+    }
+
+    /**
+     * Retrieves the stored speeds, from oldest to newest
+     *
+     * @return the speeds in bytes per second
+     */
+    Double[] getRegistry() {
+        long sample = samples.get();
+        int count = (int) Math.min(sample, history.length());
+        Double[] registry = new Double[count];
+        for (int i = 0; i < count; i++) {
+            long index = sample - count + i;
+            registry[i] = Double.longBitsToDouble(history.get((int) (index % history.length())));
+        }
+        return registry;
+    }
+}
@@ -2,17 +2,17 @@ package jacz.peerengineservice.util.datatransfer;
 
 import org.aanguita.jacuzzi.concurrency.timer.Timer;
 import org.aanguita.jacuzzi.concurrency.timer.TimerAction;
-import org.aanguita.jacuzzi.date_time.SpeedRegistry;
 import org.aanguita.jacuzzi.io.serialization.localstorage.Updater;
 import org.aanguita.jacuzzi.io.serialization.localstorage.VersionedLocalStorage;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * todo this is disabled for better performance. When enabled, we need either a daemon or a timer writing increases
- * in the background
+ * Statistics of uploaded and downloaded bytes.
+ * <p/>
+ * Bytes reported from the data path go to contention-free counters. A monitor timer samples them to build the speed
+ * histories, and a separate timer stores the global totals in the local storage, only when they have changed
  */
 public class TransferStatistics implements Updater, TimerAction {
 
@@ -33,24 +33,43 @@ public class TransferStatistics implements Updater, TimerAction {
     private static final long STORE_ACCUMULATED_BYTES_PERIODICITY = 5000L;
 
 
-    private final SpeedRegistry uploadSpeed;
+    private final SpeedHistory uploadSpeed;
 
-    private final SpeedRegistry downloadSpeed;
+    private final SpeedHistory downloadSpeed;
 
     private final VersionedLocalStorage localStorage;
 
-    private final AtomicLong accumulatedUploadedBytes;
+    /**
+     * Global totals at the last reset of the speed counters (these accumulate the bytes since then)
+     */
+    private volatile long baseUploadedBytes;
 
-    private final AtomicLong accumulatedDownloadedBytes;
+    private volatile long baseDownloadedBytes;
+
+    /**
+     * Last totals written to the local storage
+     */
+    private long storedUploadedBytes;
+
+    private long storedDownloadedBytes;
+
+    private final Timer speedMonitorTimer;
 
     private final Timer storeAccumulatedBytesTimer;
 
     public TransferStatistics(String localStoragePath) throws IOException {
-        uploadSpeed = new SpeedRegistry(SPEED_MILLIS_MEASURE, SPEED_TIME_STORED, SPEED_MONITOR_FREQUENCY);
-        downloadSpeed = new SpeedRegistry(SPEED_MILLIS_MEASURE, SPEED_TIME_STORED, SPEED_MONITOR_FREQUENCY);
+        int measureSamples = (int) (SPEED_MILLIS_MEASURE / SPEED_MONITOR_FREQUENCY);
+        int storedSamples = (int) (SPEED_TIME_STORED / SPEED_MONITOR_FREQUENCY);
+        uploadSpeed = new SpeedHistory(measureSamples, storedSamples);
+        downloadSpeed = new SpeedHistory(measureSamples, storedSamples);
         localStorage = new VersionedLocalStorage(localStoragePath);
-        accumulatedUploadedBytes = new AtomicLong(0);
-        accumulatedDownloadedBytes = new AtomicLong(0);
+        baseUploadedBytes = storedUploadedBytes = readLong(UPLOADED_BYTES_GLOBAL);
+        baseDownloadedBytes = storedDownloadedBytes = readLong(DOWNLOADED_BYTES_GLOBAL);
+        speedMonitorTimer = new Timer(SPEED_MONITOR_FREQUENCY, timer -> {
+            uploadSpeed.sample();
+            downloadSpeed.sample();
+            return null;
+        }, this.getClass().getName() + "SpeedMonitor");
         storeAccumulatedBytesTimer = new Timer(STORE_ACCUMULATED_BYTES_PERIODICITY, this, this.getClass().getName() + "StoreAccumulatedBytes");
     }
 
@@ -61,7 +80,16 @@ public class TransferStatistics implements Updater, TimerAction {
         return transferStatistics;
     }
 
-    private void init() {
+    private long readLong(String key) {
+        Long value = localStorage.getLong(key);
+        return value != null ? value : 0L;
+    }
+
+    private synchronized void init() {
+        uploadSpeed.resetBytes();
+        downloadSpeed.resetBytes();
+        baseUploadedBytes = storedUploadedBytes = 0L;
+        baseDownloadedBytes = storedDownloadedBytes = 0L;
         localStorage.setLong(UPLOADED_BYTES_GLOBAL, 0L);
         localStorage.setLong(DOWNLOADED_BYTES_GLOBAL, 0L);
     }
@@ -75,35 +103,33 @@ public class TransferStatistics implements Updater, TimerAction {
     }
 
     public void addUploadedBytes(long bytes) {
-        accumulatedUploadedBytes.getAndAdd(bytes);
-        uploadSpeed.addProgress(bytes);
+        uploadSpeed.addBytes(bytes);
     }
 
     public void addDownloadedBytes(long bytes) {
-        accumulatedDownloadedBytes.getAndAdd(bytes);
-        downloadSpeed.addProgress(bytes);
+        downloadSpeed.addBytes(bytes);
     }
 
     public long getUploadedBytes() {
-        return localStorage.getLong(UPLOADED_BYTES_GLOBAL);
+        return baseUploadedBytes + uploadSpeed.getBytes();
     }
 
     public long getDownloadedBytes() {
-        return localStorage.getLong(DOWNLOADED_BYTES_GLOBAL);
+        return baseDownloadedBytes + downloadSpeed.getBytes();
     }
 
-    public synchronized Double[] getUploadSpeedRegistry() {
+    public Double[] getUploadSpeedRegistry() {
         return uploadSpeed.getRegistry();
     }
 
-    public synchronized Double[] getDownloadSpeedRegistry() {
+    public Double[] getDownloadSpeedRegistry() {
         return downloadSpeed.getRegistry();
     }
 
-    public synchronized void stop() {
-        uploadSpeed.stop();
-        downloadSpeed.stop();
+    public void stop() {
+        speedMonitorTimer.stop();
         storeAccumulatedBytesTimer.stop();
+        storeAccumulatedBytes();
     }
 
     @Override
@@ -114,9 +140,23 @@ public class TransferStatistics implements Updater, TimerAction {
 
     @Override
     public Long wakeUp(Timer timer) {
-        // store the accumulated uploaded and downloaded bytes to the local storage
-        localStorage.setLong(UPLOADED_BYTES_GLOBAL, accumulatedUploadedBytes.get());
-        localStorage.setLong(DOWNLOADED_BYTES_GLOBAL, accumulatedDownloadedBytes.get());
+        storeAccumulatedBytes();
         return null;
     }
+
+    /**
+     * Stores the global uploaded and downloaded bytes to the local storage, if they changed since the last time
+     */
+    private synchronized void storeAccumulatedBytes() {
+        long uploadedBytes = getUploadedBytes();
+        long downloadedBytes = getDownloadedBytes();
+        if (uploadedBytes != storedUploadedBytes) {
+            localStorage.setLong(UPLOADED_BYTES_GLOBAL, uploadedBytes);
+            storedUploadedBytes = uploadedBytes;
+        }
+        if (downloadedBytes != storedDownloadedBytes) {
+            localStorage.setLong(DOWNLOADED_BYTES_GLOBAL, downloadedBytes);
+            storedDownloadedBytes = downloadedBytes;
+        }
+    }
 }
@@ -2,12 +2,27 @@ package jacz.peerengineservice.util.datatransfer;
 
 /**
  * Read-only interface for different transfer-related configuration options
+ * <p/>
+ * Getters are invoked from the transfer hot paths, so implementations must make them cheap (no storage accesses or
+ * locks)
  */
 public interface TransfersConfig {
 
+    /**
+     * Listener for changes in the transfer configuration
+     */
+    interface Listener {
+
+        void transfersConfigChanged(TransfersConfig transfersConfig);
+    }
+
     Float getMaxDownloadSpeed();
 
     Float getMaxUploadSpeed();
 
     double getDownloadPartSelectionAccuracy();
+
+    void addTransfersConfigListener(Listener listener);
+
+    void removeTransfersConfigListener(Listener listener);
 }
@@ -0,0 +1,288 @@
+package jacz.peerengineservice.util.datatransfer;
+
+import jacz.peerengineservice.PeerId;
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Limits the number of uploads that actively send data. The rest of uploads are choked (kept alive, but sending
+ * nothing) until they get a slot.
+ * <p/>
+ * Slots are periodically rotated. Most slots go to the uploads of favorite peers and of peers that recently sent us
+ * more data (reciprocity), with the longest waiting uploads first in case of ties (active uploads are not waiting, so
+ * they give their slots to choked uploads of the same rank). One slot is optimistic: it rotates among the rest of
+ * uploads, so every upload eventually progresses
+ */
+public class UploadSlotManager {
+
+    /**
+     * An upload that can be choked
+     */
+    public interface Upload {
+
+        PeerId getRequestingPeer();
+
+        /**
+         * Stops sending data, until unchoked
+         */
+        void choke();
+
+        void unchoke();
+
+        /**
+         * Invoked periodically while choked, so the downloading peer does not time out
+         */
+        void keepAlive();
+    }
+
+    private static final class UploadEntry {
+
+        private final Upload upload;
+
+        /**
+         * Order in which the upload was last choked, or last unchoked if it is active
+         */
+        private long waitingSince;
+
+        private boolean active;
+
+        private UploadEntry(Upload upload, long waitingSince) {
+            this.upload = upload;
+            this.waitingSince = waitingSince;
+            active = false;
+        }
+    }
+
+    public static final int DEFAULT_MAX_ACTIVE_SLOTS = 4;
+
+    static final long DEFAULT_ROTATION_PERIOD = 10000L;
+
+    /**
+     * Weight of the previous reciprocity values in each rotation
+     */
+    private static final double RECIPROCITY_DECAY = 0.5d;
+
+    private final Predicate<PeerId> isFavorite;
+
+    private final Map<Upload, UploadEntry> uploads;
+
+    /**
+     * Bytes received from each peer since the last rotation
+     */
+    private final Map<PeerId, LongAdder> receivedBytes;
+
+    /**
+     * Decayed amount of bytes received from each peer in the last rotations
+     */
+    private final Map<PeerId, Double> reciprocity;
+
+    private int maxActiveSlots;
+
+    private long order;
+
+    private final Timer rotationTimer;
+
+    public UploadSlotManager(Predicate<PeerId> isFavorite) {
+        this(isFavorite, DEFAULT_MAX_ACTIVE_SLOTS, DEFAULT_ROTATION_PERIOD);
+    }
+
+    UploadSlotManager(Predicate<PeerId> isFavorite, int maxActiveSlots, long rotationPeriod) {
+        this.isFavorite = isFavorite;
+        uploads = new LinkedHashMap<>();
+        receivedBytes = new ConcurrentHashMap<>();
+        reciprocity = new HashMap<>();
+        this.maxActiveSlots = Math.max(maxActiveSlots, 1);
+        order = 0L;
+        rotationTimer = new Timer(rotationPeriod, timer -> {
+            rotate();
+            return null;
+        }, this.getClass().getName());
+    }
+
+    /**
+     * Adds a new upload. It gets a slot if there is a free one, otherwise it is choked until the next rotations
+     *
+     * @param upload the new upload
+     */
+    public synchronized void addUpload(Upload upload) {
+        UploadEntry uploadEntry = new UploadEntry(upload, order++);
+        uploads.put(upload, uploadEntry);
+        if (activeCount() < maxActiveSlots) {
+            setActive(uploadEntry, true);
+        } else {
+            upload.choke();
+        }
+    }
+
+    /**
+     * Removes a finished upload. Its slot goes to the best choked upload
+     *
+     * @param upload the finished upload
+     */
+    public synchronized void removeUpload(Upload upload) {
+        UploadEntry uploadEntry = uploads.remove(upload);
+        if (uploadEntry != null && uploadEntry.active) {
+            fillFreeSlots();
+        }
+    }
+
+    /**
+     * Reports data received from a peer, which counts for his reciprocity
+     *
+     * @param peerId peer that sent us data
+     * @param bytes  amount of bytes received
+     */
+    public void reportReceivedBytes(PeerId peerId, long bytes) {
+        receivedBytes.computeIfAbsent(peerId, p -> new LongAdder()).add(bytes);
+    }
+
+    public synchronized int getMaxActiveSlots() {
+        return maxActiveSlots;
+    }
+
+    public void setMaxActiveSlots(int maxActiveSlots) {
+        synchronized (this) {
+            this.maxActiveSlots = Math.max(maxActiveSlots, 1);
+        }
+        rotate();
+    }
+
+    public synchronized int getActiveUploadCount() {
+        return activeCount();
+    }
+
+    public synchronized int getChokedUploadCount() {
+        return uploads.size() - activeCount();
+    }
+
+    /**
+     * Re-assigns the slots, and keeps the choked uploads alive
+     */
+    void rotate() {
+        for (Upload upload : assignSlots()) {
+            // outside the lock, as uploads might report their end to us meanwhile
+            upload.keepAlive();
+        }
+    }
+
+    /**
+     * @return the uploads that remain choked
+     */
+    private synchronized List<Upload> assignSlots() {
+        updateReciprocity();
+        List<UploadEntry> ranking = rankUploads();
+        Set<UploadEntry> selected = new HashSet<>();
+        int regularSlots = maxActiveSlots > 1 ? maxActiveSlots - 1 : maxActiveSlots;
+        for (UploadEntry uploadEntry : ranking) {
+            if (selected.size() == regularSlots) {
+                break;
+            }
+            selected.add(uploadEntry);
+        }
+        if (selected.size() < maxActiveSlots) {
+            // optimistic slot: the choked upload that has been waiting for longest
+            UploadEntry optimistic = null;
+            for (UploadEntry uploadEntry : uploads.values()) {
+                if (!selected.contains(uploadEntry) && !uploadEntry.active && (optimistic == null || uploadEntry.waitingSince < optimistic.waitingSince)) {
+                    optimistic = uploadEntry;
+                }
+            }
+            if (optimistic != null) {
+                selected.add(optimistic);
+            }
+        }
+        for (UploadEntry uploadEntry : uploads.values()) {
+            if (uploadEntry.active && !selected.contains(uploadEntry)) {
+                setActive(uploadEntry, false);
+            }
+        }
+        for (UploadEntry uploadEntry : selected) {
+            if (!uploadEntry.active) {
+                setActive(uploadEntry, true);
+            }
+        }
+        // in case the optimistic pick was not possible, fill with the best remaining uploads
+        fillFreeSlots();
+        List<Upload> chokedUploads = new ArrayList<>();
+        for (UploadEntry uploadEntry : uploads.values()) {
+            if (!uploadEntry.active) {
+                chokedUploads.add(uploadEntry.upload);
+            }
+        }
+        return chokedUploads;
+    }
+
+    private void updateReciprocity() {
+        Set<PeerId> peers = new HashSet<>(reciprocity.keySet());
+        peers.addAll(receivedBytes.keySet());
+        for (PeerId peerId : peers) {
+            LongAdder bytes = receivedBytes.remove(peerId);
+            double value = reciprocity.getOrDefault(peerId, 0d) * RECIPROCITY_DECAY + (bytes != null ? bytes.sum() : 0L);
+            if (value < 1d) {
+                reciprocity.remove(peerId);
+            } else {
+                reciprocity.put(peerId, value);
+            }
+        }
+    }
+
+    /**
+     * Ranks the uploads: favorite peers first, then by reciprocity, then by waiting time. Active uploads are not
+     * waiting, so they go after the choked ones (the most recently unchoked first)
+     */
+    private List<UploadEntry> rankUploads() {
+        Map<PeerId, Boolean> favorites = new HashMap<>();
+        List<UploadEntry> ranking = new ArrayList<>(uploads.values());
+        for (UploadEntry uploadEntry : ranking) {
+            favorites.computeIfAbsent(uploadEntry.upload.getRequestingPeer(), isFavorite::test);
+        }
+        ranking.sort(Comparator
+                .comparing((UploadEntry uploadEntry) -> !favorites.get(uploadEntry.upload.getRequestingPeer()))
+                .thenComparing(uploadEntry -> -reciprocity.getOrDefault(uploadEntry.upload.getRequestingPeer(), 0d))
+                .thenComparing(uploadEntry -> uploadEntry.active)
+                .thenComparingLong(uploadEntry -> uploadEntry.active ? -uploadEntry.waitingSince : uploadEntry.waitingSince));
+        return ranking;
+    }
+
+    private void fillFreeSlots() {
+        if (activeCount() < maxActiveSlots) {
+            for (UploadEntry uploadEntry : rankUploads()) {
+                if (activeCount() == maxActiveSlots) {
+                    break;
+                }
+                if (!uploadEntry.active) {
+                    setActive(uploadEntry, true);
+                }
+            }
+        }
+    }
+
+    private void setActive(UploadEntry uploadEntry, boolean active) {
+        uploadEntry.active = active;
+        // a choked upload waits again from now, and an unchoked one stops waiting
+        uploadEntry.waitingSince = order++;
+        if (active) {
+            uploadEntry.upload.unchoke();
+        } else {
+            uploadEntry.upload.choke();
+        }
+    }
+
+    private int activeCount() {
+        int count = 0;
+        for (UploadEntry uploadEntry : uploads.values()) {
+            if (uploadEntry.active) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void stop() {
+        rotationTimer.stop();
+    }
+}
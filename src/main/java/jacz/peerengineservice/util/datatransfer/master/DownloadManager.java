@@ -1,53 +1,272 @@
 package jacz.peerengineservice.util.datatransfer.master;
 
+import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.util.datatransfer.DownloadProgressNotificationHandler;
+import jacz.peerengineservice.util.datatransfer.DownloadsManager;
 import jacz.peerengineservice.util.datatransfer.ResourceStreamingManager;
+import jacz.peerengineservice.util.datatransfer.TransfersConfig;
 import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceWriter;
+import org.aanguita.jacuzzi.concurrency.task_executor.ThreadExecutor;
 import org.aanguita.jacuzzi.id.AlphaNumFactory;
+import org.aanguita.jacuzzi.numeric.range.LongRange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class gives the client the ability to control a single download. It also contains the statistics about the
  * download progress.
+ * <p/>
+ * New downloads wait in the downloads queue until there is room for them. Meanwhile, no master resource streamer
+ * exists for them, so they hold no threads nor open files.
+ * <p/>
+ * A download of a resource that is already being fetched by another download (same resource and total hash) does not
+ * fetch it again. It follows the other download (the leader), and receives a copy of the data once the leader
+ * completes with correct data. If the leader stops, fails or gets wrong data, its followers go back to the queue
+ * <p/>
+ * The resource can be read while it downloads, through a streaming channel. Reads block until the requested data is
+ * written, and the data right after the read position is requested first
  */
 public class DownloadManager {
 
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private static final String FETCHED_FILE_EXTENSION = ".fetched";
+
+    /**
+     * Maximum time that streaming readers wait before checking the state of the download again
+     */
+    private static final long STREAMING_WAIT = 250L;
+
     /**
      * Unique identifier of this download manager
      */
     private final String id;
 
-    private MasterResourceStreamer masterResourceStreamer;
+    /**
+     * Streamer of the download. Null until the download leaves the queue for the first time
+     */
+    private volatile MasterResourceStreamer masterResourceStreamer;
 
     private final ResourceStreamingManager resourceStreamingManager;
 
+    private final TransfersConfig transfersConfig;
+
+    private final PeerId specificPeerDownload;
+
+    private final String storeName;
+
+    private final String resourceId;
+
+    private final ResourceWriter resourceWriter;
+
+    private final DownloadProgressNotificationHandler downloadProgressNotificationHandler;
+
+    private final String totalHash;
+
+    private final String totalHashAlgorithm;
+
+    /**
+     * State of the download while it is not handled by a master resource streamer (queued, or paused, stopped or
+     * cancelled before leaving the queue). Null when the master resource streamer tells the state
+     */
+    private volatile DownloadState queueState;
+
+    /**
+     * Priority and streaming need while the download is queued. They are applied once it starts.
+     * <p/>
+     * The priority is null until needed, so queueing many downloads does not read their stored parameters
+     */
+    private volatile Float priority;
+
+    private double streamingNeed;
+
+    /**
+     * Whether the user changed the priority or the streaming need while the download was queued
+     */
+    private boolean queuedParametersChanged;
+
+    /**
+     * Whether the download was stopped before having a master resource streamer, and its STOPPED state was stored in
+     * the resource writer
+     */
+    private boolean stoppedStateStored;
+
+    /**
+     * Download that fetches the resource for us, while we follow it (our queue state is RUNNING meanwhile)
+     */
+    private volatile DownloadManager leader;
+
+    /**
+     * Downloads following us. Guarded by itself, not by this object, as our master resource streamer serves them
+     * while holding its own lock
+     */
+    private final List<DownloadManager> followers;
+
+    /**
+     * Whether our current fetch has finished, so no more followers are accepted. Guarded by followers
+     */
+    private boolean fetchOver;
+
+    /**
+     * Reports of the download while it has no master resource streamer (null if not created yet)
+     */
+    private DownloadReports queueReports;
+
+    private boolean followStartReported;
+
+    /**
+     * Number of open streaming channels, and the streaming need before the first of them was opened
+     */
+    private int openStreamingChannels;
+
+    private double streamingNeedBeforeStreaming;
+
+    /**
+     * Length of the resource copied from our leader (null if no copy was done)
+     */
+    private volatile Long copiedLength;
+
+    /**
+     * Statistics stored by previous sessions, given while the download has no statistics of its own (e.g. it is
+     * queued). Null until needed
+     */
+    private volatile ResourceDownloadStatistics storedStatistics;
+
     public DownloadManager(MasterResourceStreamer masterResourceStreamer, ResourceStreamingManager resourceStreamingManager) {
-        id = AlphaNumFactory.getStaticId();
+        this(resourceStreamingManager, null, masterResourceStreamer.getSpecificPeerDownload(), masterResourceStreamer.getStoreName(), masterResourceStreamer.getResourceId(), masterResourceStreamer.getResourceWriter(), masterResourceStreamer.getDownloadProgressNotificationHandler(), 0d, masterResourceStreamer.getTotalHash(), masterResourceStreamer.getTotalHashAlgorithm());
         this.masterResourceStreamer = masterResourceStreamer;
-        this.resourceStreamingManager = resourceStreamingManager;
+        queueState = null;
     }
 
     /**
-     * Pauses the download. If already paused, then this has no effect
+     * Creates a queued download. Its master resource streamer is created once the downloads queue starts it
      */
-    public void pause() {
-        masterResourceStreamer.pause();
+    public DownloadManager(
+            ResourceStreamingManager resourceStreamingManager,
+            TransfersConfig transfersConfig,
+            PeerId specificPeerDownload,
+            String storeName,
+            String resourceId,
+            ResourceWriter resourceWriter,
+            DownloadProgressNotificationHandler downloadProgressNotificationHandler,
+            double streamingNeed,
+            String totalHash,
+            String totalHashAlgorithm) {
+        id = AlphaNumFactory.getStaticId();
+        this.resourceStreamingManager = resourceStreamingManager;
+        this.transfersConfig = transfersConfig;
+        this.specificPeerDownload = specificPeerDownload;
+        this.storeName = storeName;
+        this.resourceId = resourceId;
+        this.resourceWriter = resourceWriter;
+        this.downloadProgressNotificationHandler = downloadProgressNotificationHandler;
+        this.streamingNeed = streamingNeed;
+        this.totalHash = totalHash;
+        this.totalHashAlgorithm = totalHashAlgorithm;
+        masterResourceStreamer = null;
+        queueState = DownloadState.QUEUED;
+        priority = null;
+        queuedParametersChanged = false;
+        stoppedStateStored = false;
+        leader = null;
+        followers = new ArrayList<>();
+        fetchOver = false;
+        queueReports = null;
+        followStartReported = false;
+        copiedLength = null;
+        storedStatistics = null;
+        openStreamingChannels = 0;
+        streamingNeedBeforeStreaming = streamingNeed;
     }
 
     /**
-     * Resumes a paused download. If already resumed, then this has no effect
+     * Starts a queued download. Invoked by the downloads queue when there is room for this download
+     *
+     * @return true if the download was started, false if it was not queued anymore
      */
-    public void resume() {
-        if (masterResourceStreamer.getState() != DownloadState.STOPPED) {
-            // the download can be normally resumed
-            masterResourceStreamer.resume();
+    public synchronized boolean start() {
+        if (queueState != DownloadState.QUEUED) {
+            return false;
+        }
+        if (masterResourceStreamer == null) {
+            if (stoppedStateStored) {
+                // the stored STOPPED state would be taken by the new master resource streamer
+                if (!storeState(DownloadState.RUNNING)) {
+                    return false;
+                }
+                stoppedStateStored = false;
+            }
+            masterResourceStreamer = new MasterResourceStreamer(resourceStreamingManager, transfersConfig, specificPeerDownload, storeName, resourceId, resourceWriter, downloadProgressNotificationHandler, streamingNeed, totalHash, totalHashAlgorithm, this, false);
         } else {
-            // the download is stopped -> the master resource streamer is not alive
-            // we must create a new download for this resource
+            // the download was stopped -> the old master resource streamer is not alive
             // first, reactivate the resource writer by changing its state
-            // then, create a new download and steal its master resource streamer
+            // then, create a new master resource streamer for this resource
             masterResourceStreamer.setState(DownloadState.RUNNING, true);
             masterResourceStreamer = new MasterResourceStreamer(masterResourceStreamer, this);
-            resourceStreamingManager.activateMasterResourceStreamer(masterResourceStreamer, () -> {});
+        }
+        queueState = null;
+        synchronized (followers) {
+            fetchOver = false;
+        }
+        if (queuedParametersChanged) {
+            masterResourceStreamer.setPriority(getPriority());
+            masterResourceStreamer.setStreamingNeed(streamingNeed);
+            queuedParametersChanged = false;
+        }
+        resourceStreamingManager.activateMasterResourceStreamer(masterResourceStreamer, () -> {});
+        return true;
+    }
+
+    /**
+     * Pauses the download. If already paused, then this has no effect
+     */
+    public synchronized void pause() {
+        if (leader != null) {
+            // stop following, we might follow again when resumed
+            leader = null;
+            queueState = DownloadState.PAUSED;
+        } else if (queueState == DownloadState.QUEUED) {
+            // paused downloads are not started by the queue
+            queueState = DownloadState.PAUSED;
+        } else if (queueState == null) {
+            masterResourceStreamer.pause();
+        }
+    }
+
+    /**
+     * Resumes a paused download. If already resumed, then this has no effect.
+     * <p/>
+     * Stopped downloads go back to the downloads queue
+     */
+    public synchronized void resume() {
+        if (queueState == DownloadState.PAUSED) {
+            queueState = DownloadState.QUEUED;
+            getDownloadsManager().enqueueDownload(this);
+        } else if (queueState == DownloadState.STOPPED || queueState == null && masterResourceStreamer.getState() == DownloadState.STOPPED) {
+            if (masterResourceStreamer != null) {
+                priority = masterResourceStreamer.getMasterPriority();
+                streamingNeed = masterResourceStreamer.getStreamingNeed();
+            }
+            queueState = DownloadState.QUEUED;
+            getDownloadsManager().enqueueDownload(this);
+        } else if (queueState == null) {
+            // the download can be normally resumed
+            masterResourceStreamer.resume();
         }
     }
 
@@ -56,73 +275,542 @@ public class DownloadManager {
      * for later resuming. If already stopped or cancelled, this has no effect
      */
     public void stop() {
-        masterResourceStreamer.stop(true);
+        stop(true);
     }
 
     public void stopDueToFinishedSession() {
-        masterResourceStreamer.stop(false);
+        stop(false);
+    }
+
+    private synchronized void stop(boolean writeStateThrough) {
+        if (queueState == DownloadState.QUEUED || queueState == DownloadState.PAUSED || leader != null) {
+            getDownloadsManager().removeQueuedDownload(this);
+            leader = null;
+            if (writeStateThrough) {
+                // so the download is not started again when it is loaded later
+                if (!storeState(DownloadState.STOPPED)) {
+                    return;
+                }
+                stoppedStateStored = masterResourceStreamer == null;
+            }
+            queueState = DownloadState.STOPPED;
+            try {
+                getQueueReports().reportStopped();
+            } catch (IOException e) {
+                // nothing was written for this download, ignore
+            }
+            stopQueueReports();
+        } else if (queueState == null) {
+            masterResourceStreamer.stop(writeStateThrough);
+        }
     }
 
     /**
      * Cancels the download. All achieved progress is deleted. If already stopped or cancelled, this has no effect
      */
-    public void cancel() {
-        if (masterResourceStreamer.getState() != DownloadState.STOPPED) {
+    public synchronized void cancel() {
+        if (queueState == DownloadState.CANCELLED) {
+            return;
+        }
+        if (queueState == null && masterResourceStreamer.getState() != DownloadState.STOPPED) {
             masterResourceStreamer.cancel(DownloadProgressNotificationHandler.CancellationReason.USER, null);
         } else {
-            // the master resource streamer has been stopped -> all resources are already closed and we cannot
-            // cancel directly. In this case, the download manager itself cancels the resource and duly notifies
-            // the client
-            masterResourceStreamer.setState(DownloadState.CANCELLED, false);
-            masterResourceStreamer.getResourceWriter().cancel();
-            DownloadReports downloadReports = new DownloadReports(this, masterResourceStreamer.getResourceId(), masterResourceStreamer.getStoreName(), masterResourceStreamer.getDownloadProgressNotificationHandler());
-            downloadReports.reportCancelled(DownloadProgressNotificationHandler.CancellationReason.USER, null);
-            downloadReports.stop();
+            // the download is queued, following another download, or its master resource streamer has been
+            // stopped -> all resources are already closed and we cannot cancel directly. In this case, the download
+            // manager itself cancels the resource and duly notifies the client
+            getDownloadsManager().removeQueuedDownload(this);
+            if (masterResourceStreamer != null) {
+                masterResourceStreamer.setState(DownloadState.CANCELLED, false);
+            }
+            leader = null;
+            queueState = DownloadState.CANCELLED;
+            resourceWriter.cancel();
+            getQueueReports().reportCancelled(DownloadProgressNotificationHandler.CancellationReason.USER, null);
+            stopQueueReports();
+        }
+    }
+
+    /**
+     * Stores the state of the download while it has no running master resource streamer. If the resource writer
+     * fails, the download is cancelled
+     *
+     * @return true if the state was stored, false if the download was cancelled
+     */
+    private boolean storeState(DownloadState state) {
+        try {
+            MasterResourceStreamer.storeState(resourceWriter, storeName, resourceId, totalHash, totalHashAlgorithm, priority, streamingNeed, queuedParametersChanged, state);
+            return true;
+        } catch (IOException e) {
+            getDownloadsManager().removeQueuedDownload(this);
+            leader = null;
+            queueState = DownloadState.CANCELLED;
+            resourceWriter.cancel();
+            getQueueReports().reportCancelled(DownloadProgressNotificationHandler.CancellationReason.IO_FAILURE, e);
+            stopQueueReports();
+            return false;
+        }
+    }
+
+    DownloadsManager getDownloadsManager() {
+        return resourceStreamingManager.getDownloadsManager();
+    }
+
+    private DownloadReports getQueueReports() {
+        if (queueReports == null) {
+            queueReports = new DownloadReports(this, resourceId, storeName, downloadProgressNotificationHandler);
+        }
+        return queueReports;
+    }
+
+    private void stopQueueReports() {
+        if (queueReports != null) {
+            queueReports.stop();
+            queueReports = null;
         }
     }
 
-    public double getStreamingNeed() {
-        return masterResourceStreamer.getStreamingNeed();
+    /**
+     * Identifies the fetched data. Downloads with the same key fetch the same data
+     */
+    public String getFetchKey() {
+        if (totalHash != null) {
+            return resourceId + "#" + totalHashAlgorithm + ":" + totalHash.toLowerCase();
+        } else {
+            // no hash to check the data against -> only the same resource in the same store (and from the same peer)
+            return storeName + "/" + resourceId + (specificPeerDownload != null ? "@" + specificPeerDownload : "");
+        }
     }
 
-    public void setStreamingNeed(double streamingNeed) {
-        masterResourceStreamer.setStreamingNeed(streamingNeed);
+    /**
+     * @return true if our master resource streamer is fetching the resource, so others can follow us
+     */
+    public boolean isFetching() {
+        DownloadState state = getState();
+        return queueState == null && (state == DownloadState.RUNNING || state == DownloadState.PAUSED);
     }
 
+    /**
+     * Makes a queued download follow us. Invoked by the downloads queue
+     *
+     * @param follower queued download of the same resource
+     * @return true if the follower follows us now, false otherwise
+     */
+    public boolean addFollower(DownloadManager follower) {
+        // evaluated before locking the followers, as it takes the lock of our master resource streamer
+        if (!isFetching()) {
+            return false;
+        }
+        synchronized (followers) {
+            if (fetchOver || !follower.follow(this)) {
+                return false;
+            }
+            followers.add(follower);
+            return true;
+        }
+    }
+
+    private List<DownloadManager> takeFollowers() {
+        synchronized (followers) {
+            fetchOver = true;
+            List<DownloadManager> takenFollowers = new ArrayList<>(followers);
+            followers.clear();
+            return takenFollowers;
+        }
+    }
+
+    /**
+     * Invoked by our master resource streamer once the resource is complete, before reporting it to the client (who
+     * might move the resulting file). If the data was verified, it is copied to our followers in background, from a
+     * link to (or a copy of) the fetched file. Otherwise, followers go back to the queue and fetch the resource by
+     * themselves, so each one checks its own data
+     *
+     * @param length   length of the resource
+     * @param verified true if the total hash of the data was correct, or there was no hash to check
+     */
+    void fetchCompleted(long length, boolean verified) {
+        List<DownloadManager> takenFollowers = takeFollowers();
+        if (takenFollowers.isEmpty()) {
+            return;
+        }
+        String path = resourceWriter.getPath();
+        Path fetchedFile = verified && path != null ? linkFetchedResource(Paths.get(path)) : null;
+        if (fetchedFile == null) {
+            // the data is not valid, or cannot be read back (e.g. it was kept in memory)
+            for (DownloadManager follower : takenFollowers) {
+                follower.stopFollowing(this);
+            }
+            return;
+        }
+        AtomicInteger pendingCopies = new AtomicInteger(takenFollowers.size());
+        for (DownloadManager follower : takenFollowers) {
+            ThreadExecutor.submit(() -> {
+                try {
+                    follower.copyFetchedResource(this, fetchedFile, length);
+                } finally {
+                    if (pendingCopies.decrementAndGet() == 0) {
+                        try {
+                            Files.deleteIfExists(fetchedFile);
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Links the fetched file to a new path next to it, so followers can read it after the client moves or deletes
+     * the original. If links are not supported, the file is copied instead
+     *
+     * @return the new path, or null if the file could not be linked nor copied
+     */
+    private Path linkFetchedResource(Path path) {
+        Path link = path.resolveSibling(path.getFileName() + "." + id + FETCHED_FILE_EXTENSION);
+        try {
+            return Files.createLink(link, path);
+        } catch (IOException | UnsupportedOperationException e) {
+            try {
+                return Files.copy(path, link, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e2) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Invoked when our master resource streamer dies. Followers that were not served go back to the queue
+     */
+    void fetchFinished() {
+        for (DownloadManager follower : takeFollowers()) {
+            follower.stopFollowing(this);
+        }
+    }
+
+    private synchronized boolean follow(DownloadManager leader) {
+        if (queueState != DownloadState.QUEUED) {
+            return false;
+        }
+        this.leader = leader;
+        queueState = DownloadState.RUNNING;
+        if (!followStartReported) {
+            try {
+                getQueueReports().initializeWriting();
+            } catch (IOException e) {
+                // nothing is written until the copy
+            }
+            followStartReported = true;
+        } else {
+            getQueueReports().reportResumed();
+        }
+        return true;
+    }
+
+    private synchronized void stopFollowing(DownloadManager leader) {
+        if (this.leader == leader) {
+            this.leader = null;
+            queueState = DownloadState.QUEUED;
+            getDownloadsManager().enqueueDownload(this);
+        }
+    }
+
+    /**
+     * Copies the data fetched by our leader. Our lock is only held for each written chunk, so the download can be
+     * paused, stopped or cancelled during the copy (which then ends)
+     */
+    private void copyFetchedResource(DownloadManager leader, Path fetchedFile, long length) {
+        try (InputStream inputStream = Files.newInputStream(fetchedFile)) {
+            synchronized (this) {
+                if (this.leader != leader) {
+                    return;
+                }
+                resourceWriter.init(length);
+            }
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long offset = 0L;
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                synchronized (this) {
+                    if (this.leader != leader) {
+                        return;
+                    }
+                    resourceWriter.write(offset, Arrays.copyOf(buffer, read));
+                }
+                offset += read;
+            }
+            synchronized (this) {
+                if (this.leader != leader) {
+                    return;
+                }
+                this.leader = null;
+                resourceWriter.complete();
+                copiedLength = length;
+                queueState = DownloadState.COMPLETED;
+                getQueueReports().reportCompleted(resourceWriter);
+                stopQueueReports();
+                getDownloadsManager().removeQueuedDownload(this);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (this.leader == leader) {
+                    this.leader = null;
+                    resourceWriter.cancel();
+                    queueState = DownloadState.CANCELLED;
+                    getQueueReports().reportCancelled(DownloadProgressNotificationHandler.CancellationReason.IO_FAILURE, e);
+                    stopQueueReports();
+                    getDownloadsManager().removeQueuedDownload(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a channel for reading the resource while it downloads (e.g. for playing a media file). Reads block until
+     * the requested data has been written. While the channel is open, the streaming need of the download is maximum,
+     * and the data right after the read position is requested before anything else
+     *
+     * @return a read-only channel over the resource, which supports seeking
+     */
+    public SeekableByteChannel openStreamingChannel() {
+        return new StreamingChannel(this);
+    }
+
+    /**
+     * Opens an input stream for reading the resource while it downloads. Works as {@link #openStreamingChannel()}
+     *
+     * @return an input stream over the resource
+     */
+    public InputStream openStreamingInputStream() {
+        return Channels.newInputStream(openStreamingChannel());
+    }
+
+    /**
+     * Reads data for a streaming reader, blocking until it has been written
+     *
+     * @param position position of the data in the resource
+     * @param length   length of the data
+     * @param open     tells if the reader is still open. Checked periodically while waiting
+     * @return the read data
+     * @throws IOException          the download was cancelled, the reader was closed, or the data could not be read
+     * @throws InterruptedException the thread was interrupted while waiting for the data
+     */
+    byte[] readStreamingData(long position, int length, BooleanSupplier open) throws IOException, InterruptedException {
+        LongRange segment = new LongRange(position, position + length - 1);
+        while (true) {
+            if (!open.getAsBoolean()) {
+                throw new AsynchronousCloseException();
+            } else if (getState() == DownloadState.CANCELLED) {
+                throw new IOException("The download was cancelled");
+            }
+            // while we follow another download, the data is read from the leader
+            DownloadManager leader = this.leader;
+            DownloadManager source = leader != null ? leader : this;
+            DownloadState sourceState = source.getState();
+            MasterResourceStreamer masterResourceStreamer = source.queueState == null ? source.masterResourceStreamer : null;
+            try {
+                if (sourceState == DownloadState.COMPLETED) {
+                    return source.resourceWriter.read(position, length);
+                } else if (masterResourceStreamer != null && (sourceState == DownloadState.RUNNING || sourceState == DownloadState.PAUSED)) {
+                    masterResourceStreamer.setStreamingPosition(position);
+                    if (masterResourceStreamer.awaitWritten(segment, STREAMING_WAIT)) {
+                        return source.resourceWriter.read(position, length);
+                    }
+                } else {
+                    // queued, stopped or our leader failed -> wait until the download fetches the data again
+                    Thread.sleep(STREAMING_WAIT);
+                }
+            } catch (IOException e) {
+                if (source.getState() == sourceState) {
+                    throw e;
+                }
+                // the download changed its state while reading (e.g. it completed and the file was moved) -> try again
+            }
+        }
+    }
+
+    /**
+     * Blocks until the length of the resource is known, for streaming readers
+     *
+     * @param open tells if the reader is still open. Checked periodically while waiting
+     * @return the length of the resource
+     * @throws IOException          the download was cancelled, or the reader was closed
+     * @throws InterruptedException the thread was interrupted while waiting
+     */
+    long awaitLength(BooleanSupplier open) throws IOException, InterruptedException {
+        while (true) {
+            Long length = getLength();
+            if (length != null) {
+                return length;
+            } else if (!open.getAsBoolean()) {
+                throw new AsynchronousCloseException();
+            } else if (getState() == DownloadState.CANCELLED) {
+                throw new IOException("The download was cancelled");
+            }
+            Thread.sleep(STREAMING_WAIT);
+        }
+    }
+
+    /**
+     * A streaming reader was opened. The first one raises the streaming need to the maximum
+     */
+    synchronized void streamingStarted() {
+        if (openStreamingChannels++ == 0) {
+            streamingNeedBeforeStreaming = getStreamingNeed();
+            setStreamingNeed(1d);
+        }
+    }
+
+    /**
+     * A streaming reader was closed. Once the last one is closed, the data after the read position is no longer
+     * requested first, and the previous streaming need is restored
+     */
+    synchronized void streamingFinished() {
+        if (--openStreamingChannels == 0) {
+            for (DownloadManager source : Arrays.asList(this, leader)) {
+                MasterResourceStreamer masterResourceStreamer = source != null ? source.masterResourceStreamer : null;
+                if (masterResourceStreamer != null) {
+                    masterResourceStreamer.setStreamingPosition(null);
+                }
+            }
+            setStreamingNeed(streamingNeedBeforeStreaming);
+        }
+    }
+
+    public synchronized double getStreamingNeed() {
+        return queueState == null ? masterResourceStreamer.getStreamingNeed() : streamingNeed;
+    }
+
+    public synchronized void setStreamingNeed(double streamingNeed) {
+        if (queueState == null) {
+            masterResourceStreamer.setStreamingNeed(streamingNeed);
+        } else {
+            this.streamingNeed = streamingNeed;
+            queuedParametersChanged = true;
+        }
+    }
+
+    /**
+     * Not synchronized, as the downloads queue reads it while ordering the queued downloads. The priority of a
+     * queued download is read from its resource writer the first time it is needed
+     */
     public float getPriority() {
-        return masterResourceStreamer.getMasterPriority();
+        MasterResourceStreamer masterResourceStreamer = this.masterResourceStreamer;
+        if (queueState == null && masterResourceStreamer != null) {
+            return masterResourceStreamer.getMasterPriority();
+        }
+        Float priority = this.priority;
+        if (priority == null) {
+            float storedPriority = MasterResourceStreamer.getStoredPriority(resourceWriter);
+            synchronized (this) {
+                // the priority might have been set while reading the stored one
+                if (this.priority == null) {
+                    this.priority = storedPriority;
+                }
+                priority = this.priority;
+            }
+        }
+        return priority;
+    }
+
+    public synchronized void setPriority(float priority) {
+        if (queueState == null) {
+            masterResourceStreamer.setPriority(priority);
+        } else {
+            this.priority = priority;
+            queuedParametersChanged = true;
+            getDownloadsManager().updateQueue();
+        }
     }
 
-    public void setPriority(float priority) {
-        masterResourceStreamer.setPriority(priority);
+    /**
+     * @return the number of providers currently serving this download (zero if the download is not active)
+     */
+    public int getActiveProviderCount() {
+        MasterResourceStreamer masterResourceStreamer = this.masterResourceStreamer;
+        return queueState == null && masterResourceStreamer != null ? masterResourceStreamer.getActiveSlaveCount() : 0;
     }
 
     public String getId() {
         return id;
     }
 
+    /**
+     * Not synchronized, as the downloads queue reads it while ordering the queued downloads
+     */
     public DownloadState getState() {
-        return masterResourceStreamer.getState();
+        DownloadState queueState = this.queueState;
+        return queueState != null ? queueState : masterResourceStreamer.getState();
     }
 
     public String getResourceID() {
-        return masterResourceStreamer.getResourceId();
+        return resourceId;
     }
 
     public String getStoreName() {
-        return masterResourceStreamer.getStoreName();
+        return storeName;
     }
 
     public Long getLength() {
-        return masterResourceStreamer.getResourceSize();
+        Long copiedLength = this.copiedLength;
+        if (copiedLength != null) {
+            return copiedLength;
+        }
+        DownloadManager leader = this.leader;
+        if (leader != null) {
+            return leader.getLength();
+        }
+        MasterResourceStreamer masterResourceStreamer = this.masterResourceStreamer;
+        return masterResourceStreamer != null ? masterResourceStreamer.getResourceSize() : null;
     }
 
+    /**
+     * @return the statistics of the download. While following another download, the statistics of the shared fetch.
+     * Downloads that are not active in this session (e.g. queued ones) give the statistics stored by previous
+     * sessions, so the result is never null
+     */
     public ResourceDownloadStatistics getStatistics() {
-        return masterResourceStreamer.getStatistics();
+        DownloadManager leader = this.leader;
+        if (leader != null) {
+            return leader.getStatistics();
+        }
+        MasterResourceStreamer masterResourceStreamer = this.masterResourceStreamer;
+        ResourceDownloadStatistics statistics = masterResourceStreamer != null ? masterResourceStreamer.getStatistics() : null;
+        if (statistics != null) {
+            return statistics;
+        }
+        statistics = this.storedStatistics;
+        if (statistics == null) {
+            ResourceDownloadStatistics readStatistics = readStoredStatistics();
+            synchronized (this) {
+                if (this.storedStatistics == null) {
+                    this.storedStatistics = readStatistics;
+                }
+                statistics = this.storedStatistics;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Builds the statistics stored in the resource writer, or empty statistics if there are none. Nothing is
+     * measured on them
+     */
+    private ResourceDownloadStatistics readStoredStatistics() {
+        Map<String, Serializable> systemDictionary = null;
+        if (resourceWriter != null) {
+            try {
+                systemDictionary = resourceWriter.getSystemDictionary();
+            } catch (IOException e) {
+                // the error will be reported once the download starts
+            }
+        }
+        ResourceDownloadStatistics statistics = new ResourceDownloadStatistics(resourceWriter, systemDictionary);
+        statistics.stop();
+        return statistics;
     }
 
     public ResourceWriter getResourceWriter() {
-        return masterResourceStreamer.getResourceWriter();
+        return resourceWriter;
     }
 
     @Override
@@ -132,11 +820,11 @@ public class DownloadManager {
 
         DownloadManager that = (DownloadManager) o;
 
-        return masterResourceStreamer.getId().equals(that.masterResourceStreamer.getId());
+        return id.equals(that.id);
     }
 
     @Override
     public int hashCode() {
-        return masterResourceStreamer.getId().hashCode();
+        return id.hashCode();
     }
 }
@@ -4,6 +4,7 @@ package jacz.peerengineservice.util.datatransfer.master;
  * The possible states of a download
  */
 public enum DownloadState {
+    QUEUED,
     RUNNING,
     PAUSED,
     STOPPED,
@@ -8,6 +8,7 @@ import jacz.peerengineservice.util.datatransfer.TransfersConfig;
 import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceLink;
 import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceProvider;
 import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceWriter;
+import jacz.peerengineservice.util.datatransfer.resource_accession.ResumeRecord;
 import jacz.peerengineservice.util.datatransfer.slave.ResourceChunk;
 import org.aanguita.jacuzzi.concurrency.daemon.Daemon;
 import org.aanguita.jacuzzi.concurrency.daemon.DaemonAction;
@@ -145,6 +146,11 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
 
     private final String totalHashAlgorithm;
 
+    /**
+     * Part of the resource already written in the resource writer. Streaming readers wait on it for the data they need
+     */
+    private final ResourcePart writtenPart;
+
     /**
      * Priority for this download
      */
@@ -225,6 +231,38 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             String totalHash,
             String totalHashAlgorithm,
             DownloadManager downloadManager
+    ) {
+        this(
+                resourceStreamingManager,
+                transfersConfig,
+                specificPeerDownload,
+                storeName,
+                resourceId,
+                resourceWriter,
+                downloadProgressNotificationHandler,
+                streamingNeed,
+                totalHash,
+                totalHashAlgorithm,
+                downloadManager,
+                downloadManager != null);
+    }
+
+    /**
+     * @param resumed true if this streamer resumes a stopped download, false if it starts a new download
+     */
+    MasterResourceStreamer(
+            ResourceStreamingManager resourceStreamingManager,
+            TransfersConfig transfersConfig,
+            PeerId specificPeerDownload,
+            String storeName,
+            String resourceId,
+            ResourceWriter resourceWriter,
+            DownloadProgressNotificationHandler downloadProgressNotificationHandler,
+            double streamingNeed,
+            String totalHash,
+            String totalHashAlgorithm,
+            DownloadManager downloadManager,
+            boolean resumed
     ) {
         id = AlphaNumFactory.getStaticId();
         this.resourceStreamingManager = resourceStreamingManager;
@@ -237,12 +275,15 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
         writeDaemon = new Daemon(new WriteDaemon(resourceStreamingManager));
         activeSlaves = new HashMap<>();
         LongRangeList availableSegments = null;
+        Map<String, Serializable> downloadParameters = null;
         priority = DEFAULT_PRIORITY;
         Exception initialWriteException = null;
         try {
-            resourceSize = resourceWriter.getSize();
-            availableSegments = resourceWriter.getAvailableSegments();
-            Map<String, Serializable> downloadParameters = resourceWriter.getSystemDictionary();
+            // all the stored data is read at once, so resuming many downloads is fast
+            ResumeRecord resumeRecord = resourceWriter.getResumeRecord();
+            resourceSize = resumeRecord.getSize();
+            availableSegments = resumeRecord.getAvailableSegments();
+            downloadParameters = resumeRecord.getSystemDictionary();
             if (downloadParameters != null && downloadParameters.containsKey(RESOURCE_WRITER_STREAMING_NEED_FIELD) && downloadParameters.containsKey(RESOURCE_WRITER_PRIORITY_FIELD)) {
                 // the resource writer had download parameters stored (from previous uses) -> ignore the given ones and use these
                 streamingNeed = (Double) downloadParameters.get(RESOURCE_WRITER_STREAMING_NEED_FIELD);
@@ -251,35 +292,29 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             } else {
                 // the resource writer had no download parameters stored, so this is the first time this resource writer is used
                 // use the given streaming need and, additionally, store it in the resource writer
-                resourceWriter.setSystemField(RESOURCE_WRITER_STREAMING_NEED_FIELD, streamingNeed);
-                resourceWriter.setSystemField(RESOURCE_WRITER_PRIORITY_FIELD, priority);
-
-                // in addition, write some information that can be used by the user: store name, resource id and hash info
-                resourceWriter.setSystemField(RESOURCE_WRITER_STORE_NAME_FIELD, storeName);
-                resourceWriter.setSystemField(RESOURCE_WRITER_RESOURCE_ID_FIELD, resourceId);
-                resourceWriter.setSystemField(RESOURCE_WRITER_TOTAL_HASH_FIELD, totalHash);
-                resourceWriter.setSystemField(RESOURCE_WRITER_HASH_ALGORITHM_FIELD, totalHashAlgorithm);
-                setState(DownloadState.RUNNING, true);
+                resourceWriter.setSystemFields(initialParameters(storeName, resourceId, totalHash, totalHashAlgorithm, streamingNeed, priority, DownloadState.RUNNING));
+                setState(DownloadState.RUNNING, false);
             }
         } catch (IOException e) {
             initialWriteException = e;
         }
+        this.downloadProgressNotificationHandler = downloadProgressNotificationHandler;
+        this.totalHash = totalHash;
+        this.totalHashAlgorithm = totalHashAlgorithm;
         if (downloadManager == null) {
             this.downloadManager = new DownloadManager(this, resourceStreamingManager);
         } else {
             this.downloadManager = downloadManager;
         }
-        this.downloadProgressNotificationHandler = downloadProgressNotificationHandler;
         downloadReports = new DownloadReports(this.downloadManager, resourceId, storeName, downloadProgressNotificationHandler);
         resourcePartScheduler = new ResourcePartScheduler(this, transfersConfig, resourceSize, availableSegments, streamingNeed);
-        this.totalHash = totalHash;
-        this.totalHashAlgorithm = totalHashAlgorithm;
+        writtenPart = availableSegments != null ? new ResourcePart(availableSegments) : new ResourcePart();
         active = new AtomicBoolean(state == DownloadState.RUNNING);
         alive = new AtomicBoolean(state != DownloadState.STOPPED);
         if (alive.get()) {
             try {
-                resourceDownloadStatistics = new ResourceDownloadStatistics(resourceWriter);
-                if (downloadManager == null) {
+                resourceDownloadStatistics = new ResourceDownloadStatistics(resourceWriter, downloadParameters);
+                if (!resumed) {
                     // this is a new download -> report start
                     downloadReports.initializeWriting();
                 } else {
@@ -297,6 +332,80 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
         }
     }
 
+    private static HashMap<String, Serializable> initialParameters(
+            String storeName,
+            String resourceId,
+            String totalHash,
+            String totalHashAlgorithm,
+            double streamingNeed,
+            float priority,
+            DownloadState state) {
+        HashMap<String, Serializable> fields = new HashMap<>();
+        fields.put(RESOURCE_WRITER_STREAMING_NEED_FIELD, streamingNeed);
+        fields.put(RESOURCE_WRITER_PRIORITY_FIELD, priority);
+        fields.put(RESOURCE_WRITER_STATE_FIELD, state);
+
+        // in addition, write some information that can be used by the user: store name, resource id and hash info
+        fields.put(RESOURCE_WRITER_STORE_NAME_FIELD, storeName);
+        fields.put(RESOURCE_WRITER_RESOURCE_ID_FIELD, resourceId);
+        fields.put(RESOURCE_WRITER_TOTAL_HASH_FIELD, totalHash);
+        fields.put(RESOURCE_WRITER_HASH_ALGORITHM_FIELD, totalHashAlgorithm);
+        return fields;
+    }
+
+    /**
+     * Reads the priority stored in a resource writer by previous uses, without creating a streamer for it
+     *
+     * @param resourceWriter the resource writer
+     * @return the stored priority, or the default priority if none was stored
+     */
+    static float getStoredPriority(ResourceWriter resourceWriter) {
+        try {
+            Map<String, Serializable> downloadParameters = resourceWriter.getSystemDictionary();
+            if (downloadParameters != null && downloadParameters.containsKey(RESOURCE_WRITER_PRIORITY_FIELD)) {
+                return (float) downloadParameters.get(RESOURCE_WRITER_PRIORITY_FIELD);
+            }
+        } catch (IOException e) {
+            // the error will be reported once the download starts
+        }
+        return DEFAULT_PRIORITY;
+    }
+
+    /**
+     * Stores the state of a download that has no streamer (e.g. it is stopped while queued), so a streamer created
+     * later for this resource writer finds it. If the resource writer was never used by a streamer, the download
+     * parameters are stored too
+     *
+     * @param priority          priority of the download, or null if it is the stored one
+     * @param streamingNeed     streaming need of the download
+     * @param parametersChanged whether the given parameters must replace the stored ones
+     */
+    static void storeState(
+            ResourceWriter resourceWriter,
+            String storeName,
+            String resourceId,
+            String totalHash,
+            String totalHashAlgorithm,
+            Float priority,
+            double streamingNeed,
+            boolean parametersChanged,
+            DownloadState state) throws IOException {
+        Map<String, Serializable> downloadParameters = resourceWriter.getSystemDictionary();
+        if (downloadParameters != null && downloadParameters.containsKey(RESOURCE_WRITER_STREAMING_NEED_FIELD) && downloadParameters.containsKey(RESOURCE_WRITER_PRIORITY_FIELD)) {
+            HashMap<String, Serializable> fields = new HashMap<>();
+            if (parametersChanged) {
+                fields.put(RESOURCE_WRITER_STREAMING_NEED_FIELD, streamingNeed);
+                if (priority != null) {
+                    fields.put(RESOURCE_WRITER_PRIORITY_FIELD, priority);
+                }
+            }
+            fields.put(RESOURCE_WRITER_STATE_FIELD, state);
+            resourceWriter.setSystemFields(fields);
+        } else {
+            resourceWriter.setSystemFields(initialParameters(storeName, resourceId, totalHash, totalHashAlgorithm, streamingNeed, priority != null ? priority : DEFAULT_PRIORITY, state));
+        }
+    }
+
     private void initializeWritingReport() throws IOException {
         downloadReports.initializeWriting();
     }
@@ -386,17 +495,28 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
     private synchronized void reportAvailableResourceProvidersSynch(Collection<? extends ResourceProvider> resourceProviders) {
         if (alive.get()) {
             // add the resource providers which are not active providers or active requests
+            // providers that were fast in previous sessions go first, as subchannels are limited
             Set<PeerId> activeResourceProviders = getActiveResourceProviders();
+            Map<PeerId, Double> knownProviderSpeeds = resourceDownloadStatistics.getKnownProviderSpeeds();
+            List<ResourceProvider> newResourceProviders = new ArrayList<>();
             for (ResourceProvider resourceProvider : resourceProviders) {
                 // check that the given resource provider is not null, as the resource streaming manager might include null providers due to those
                 // not being available
                 if (resourceProvider != null && !activeResourceProviders.contains(resourceProvider.getPeerId())) {
-                    newResourceProvider(resourceProvider);
+                    newResourceProviders.add(resourceProvider);
                 }
             }
+            newResourceProviders.sort(Comparator.comparingDouble(resourceProvider -> -knownProviderSpeeds.getOrDefault(resourceProvider.getPeerId(), 0d)));
+            for (ResourceProvider resourceProvider : newResourceProviders) {
+                newResourceProvider(resourceProvider);
+            }
         }
     }
 
+    synchronized int getActiveSlaveCount() {
+        return activeSlaves.size();
+    }
+
     /**
      * This method gives a set of the already registered active slaves
      *
@@ -549,6 +669,10 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
     private void writeDataInBackground(WriteDataBuffer.DataElement dataElement) {
         try {
             resourceWriter.write(dataElement.firstByte, dataElement.data);
+            synchronized (writtenPart) {
+                writtenPart.add(new LongRange(dataElement.firstByte, dataElement.firstByte + dataElement.data.length - 1));
+                writtenPart.notifyAll();
+            }
         } catch (IOException | IndexOutOfBoundsException e) {
             reportErrorWriting(e);
         }
@@ -575,7 +699,10 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             try {
                 flushWriteData();
                 resourceWriter.complete();
-                checkTotalHash();
+                boolean verified = checkTotalHash();
+                // downloads of the same resource that follow us get a copy, before the client can move the result.
+                // If our data is wrong, they fetch the resource by themselves
+                downloadManager.fetchCompleted(resourceSize, verified);
                 resourceDownloadStatistics.downloadComplete(resourceSize);
                 resourceDownloadStatistics.stop();
                 downloadReports.reportCompleted(resourceWriter);
@@ -588,7 +715,10 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
         }
     }
 
-    private void checkTotalHash() {
+    /**
+     * @return true if the total hash is correct or there is no total hash, false otherwise
+     */
+    private boolean checkTotalHash() {
         if (totalHash != null) {
             File file = new File(resourceWriter.getPath());
             HashFunction hashFunction;
@@ -596,7 +726,7 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
                 hashFunction = new HashFunction(totalHashAlgorithm);
             } catch (NoSuchAlgorithmException e) {
                 reportInvalidHashAlgorithm(null, totalHashAlgorithm);
-                return;
+                return false;
             }
             String hash;
             try {
@@ -623,10 +753,13 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             }
             if (totalHash.equalsIgnoreCase(hash)) {
                 downloadReports.reportCorrectTotalHash();
+                return true;
             } else {
                 downloadReports.reportFailedTotalHash();
+                return false;
             }
         }
+        return true;
     }
 
     synchronized void reportInvalidHashAlgorithm(LongRange segment, String hashAlgorithm) {
@@ -695,9 +828,14 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             try {
                 flushWriteData();
                 resourceWriter.stop();
-                resourceDownloadStatistics.stopSession();
+                // the statistics, the known providers and the state are stored with a single write
+                HashMap<String, Serializable> fields = resourceDownloadStatistics.stopSession();
+                if (writeStateThrough) {
+                    fields.put(RESOURCE_WRITER_STATE_FIELD, DownloadState.STOPPED);
+                }
+                resourceWriter.setSystemFields(fields);
                 downloadReports.reportStopped();
-                setState(DownloadState.STOPPED, writeStateThrough);
+                setState(DownloadState.STOPPED, false);
             } catch (IOException e) {
                 // error saving the download session -> cancel the download
                 cancel(DownloadProgressNotificationHandler.CancellationReason.IO_FAILURE, e);
@@ -768,6 +906,40 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
         }
     }
 
+    /**
+     * Sets the position at which the client is reading the resource while it downloads. The segments after it are
+     * requested first
+     *
+     * @param streamingPosition the reading position, or null if nobody is reading
+     */
+    void setStreamingPosition(Long streamingPosition) {
+        resourcePartScheduler.setStreamingPosition(streamingPosition);
+    }
+
+    /**
+     * Blocks until a segment of the resource has been written in the resource writer. Waiting ends earlier if this
+     * download dies
+     *
+     * @param segment segment to wait for
+     * @param timeout maximum time to wait, in millis
+     * @return true if the segment is written, false otherwise
+     * @throws InterruptedException the thread was interrupted while waiting
+     */
+    boolean awaitWritten(LongRange segment, long timeout) throws InterruptedException {
+        ResourcePart segmentPart = new ResourcePart(segment);
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (writtenPart) {
+            while (writtenPart.intersection(segmentPart).size() < segment.size()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !alive.get()) {
+                    return false;
+                }
+                writtenPart.wait(remaining);
+            }
+            return true;
+        }
+    }
+
     /**
      * Remove all slaves and free all resources (subchannels). The download dies
      */
@@ -778,6 +950,7 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             ThreadExecutor.submit(() -> {
                 resourceStreamingManager.freeAllSubchannels(MasterResourceStreamer.this);
                 resourceStreamingManager.removeDownload(MasterResourceStreamer.this);
+                downloadManager.fetchFinished();
             });
             Collection<SlaveController> slavesToRemove = new HashSet<>(activeSlaves.values());
             for (SlaveController slaveController : slavesToRemove) {
@@ -785,6 +958,10 @@ public class MasterResourceStreamer extends GenericPriorityManagerStakeholder im
             }
             downloadReports.stop();
             ThreadExecutor.shutdownClient(threadExecutorClientId);
+            synchronized (writtenPart) {
+                // streaming readers stop waiting for this download
+                writtenPart.notifyAll();
+            }
         }
     }
 
@@ -6,12 +6,8 @@ import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceWrite
 import org.aanguita.jacuzzi.date_time.SpeedMonitor;
 import org.aanguita.jacuzzi.numeric.range.LongRange;
 
-import java.io.IOException;
 import java.io.Serializable;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Statistics for a resource download. These statistics cover the different sessions for a download process
@@ -20,6 +16,12 @@ public class ResourceDownloadStatistics {
 
     private static final String RESOURCE_WRITER_CREATION_DATE_FIELD = "RESOURCE_DOWNLOAD_STATISTICS@CREATION_DATE";
     private static final String RESOURCE_WRITER_DOWNLOADED_PART_FIELD = "RESOURCE_DOWNLOAD_STATISTICS@DOWNLOADED_PART";
+    private static final String RESOURCE_WRITER_PROVIDER_SPEEDS_FIELD = "RESOURCE_DOWNLOAD_STATISTICS@PROVIDER_SPEEDS";
+
+    /**
+     * Maximum number of providers whose speed is remembered between sessions (the fastest ones are kept)
+     */
+    private static final int MAX_REMEMBERED_PROVIDERS = 32;
 
     static final long MILLIS_FOR_SPEED_MEASURE = 5000;
 
@@ -56,9 +58,17 @@ public class ResourceDownloadStatistics {
 
     private final HashMap<PeerId, ProviderStatistics> providers;
 
-    ResourceDownloadStatistics(ResourceWriter resourceWriter) throws IOException {
+    /**
+     * Last measured speed of the providers of this download, in this and previous sessions (peer id -> bytes per second)
+     */
+    private final HashMap<String, Double> providerSpeeds;
+
+    /**
+     * @param storedStatistics system dictionary of the resource writer, as read when the download started
+     */
+    @SuppressWarnings("unchecked")
+    ResourceDownloadStatistics(ResourceWriter resourceWriter, Map<String, Serializable> storedStatistics) {
         this.resourceWriter = resourceWriter;
-        Map<String, Serializable> storedStatistics = resourceWriter.getSystemDictionary();
         if (storedStatistics != null && storedStatistics.containsKey(RESOURCE_WRITER_CREATION_DATE_FIELD)) {
             creationDate = (Date) storedStatistics.get(RESOURCE_WRITER_CREATION_DATE_FIELD);
         } else {
@@ -72,13 +82,64 @@ public class ResourceDownloadStatistics {
         }
         downloadedSizeThisResource = downloadedPart.size();
         providers = new HashMap<>();
+        if (storedStatistics != null && storedStatistics.containsKey(RESOURCE_WRITER_PROVIDER_SPEEDS_FIELD)) {
+            providerSpeeds = (HashMap<String, Double>) storedStatistics.get(RESOURCE_WRITER_PROVIDER_SPEEDS_FIELD);
+        } else {
+            providerSpeeds = new HashMap<>();
+        }
         speed = new SpeedMonitor(MILLIS_FOR_SPEED_MEASURE);
     }
 
-    synchronized void stopSession() throws IOException {
+    /**
+     * Stops the statistics at the end of a download session
+     *
+     * @return the fields that must be stored in the resource writer, so the statistics are recovered in the next
+     * session. The caller writes them, together with its own fields
+     */
+    synchronized HashMap<String, Serializable> stopSession() {
+        for (ProviderStatistics providerStatistics : providers.values()) {
+            rememberProviderSpeed(providerStatistics);
+        }
         stop();
-        resourceWriter.setSystemField(RESOURCE_WRITER_CREATION_DATE_FIELD, creationDate);
-        resourceWriter.setSystemField(RESOURCE_WRITER_DOWNLOADED_PART_FIELD, downloadedPart);
+        HashMap<String, Serializable> fields = new HashMap<>();
+        fields.put(RESOURCE_WRITER_CREATION_DATE_FIELD, creationDate);
+        fields.put(RESOURCE_WRITER_DOWNLOADED_PART_FIELD, downloadedPart);
+        fields.put(RESOURCE_WRITER_PROVIDER_SPEEDS_FIELD, fastestProviderSpeeds());
+        return fields;
+    }
+
+    private void rememberProviderSpeed(ProviderStatistics providerStatistics) {
+        double providerSpeed = providerStatistics.getSpeed();
+        if (providerSpeed > 0d) {
+            providerSpeeds.put(providerStatistics.getResourceProviderID().toString(), providerSpeed);
+        }
+    }
+
+    private HashMap<String, Double> fastestProviderSpeeds() {
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(providerSpeeds.entrySet());
+        entries.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        HashMap<String, Double> fastest = new HashMap<>();
+        for (Map.Entry<String, Double> entry : entries.subList(0, Math.min(entries.size(), MAX_REMEMBERED_PROVIDERS))) {
+            fastest.put(entry.getKey(), entry.getValue());
+        }
+        return fastest;
+    }
+
+    /**
+     * Retrieves the last measured speed of the providers of this download, including those of previous sessions
+     *
+     * @return the speed of each known provider, in bytes per second
+     */
+    synchronized Map<PeerId, Double> getKnownProviderSpeeds() {
+        Map<PeerId, Double> knownProviderSpeeds = new HashMap<>();
+        for (Map.Entry<String, Double> entry : providerSpeeds.entrySet()) {
+            try {
+                knownProviderSpeeds.put(new PeerId(entry.getKey()), entry.getValue());
+            } catch (IllegalArgumentException e) {
+                // corrupt peer id, ignore it
+            }
+        }
+        return knownProviderSpeeds;
     }
 
     synchronized void stop() {
@@ -181,6 +242,7 @@ public class ResourceDownloadStatistics {
 //        return providerStatistics;
         ProviderStatistics providerStatistics = providers.remove(resourceProvider.getPeerId());
         if (providerStatistics != null) {
+            rememberProviderSpeed(providerStatistics);
             providerStatistics.stop();
         }
         return providerStatistics;
@@ -213,6 +213,12 @@ class ResourcePartScheduler {
 
     private static final int MAXIMUM_CANDIDATE_DEPTH = 12;
 
+    /**
+     * Bytes right after the streaming position that are assigned before any other segment (1MB), since a reader is
+     * waiting for them
+     */
+    private static final long STREAMING_READ_AHEAD = 1024L * 1024L;
+
 
     /**
      * MasterResourceStreamer owning this scheduler
@@ -251,6 +257,13 @@ class ResourcePartScheduler {
      */
     private ContinuousDegree streamingNeed;
 
+    /**
+     * Position at which the client is currently reading the resource while it downloads (null if nobody is reading).
+     * The segments right after this position are assigned first, and the streaming need favours the segments after
+     * this position instead of the first segments
+     */
+    private Long streamingPosition;
+
     ResourcePartScheduler(
             MasterResourceStreamer masterResourceStreamer,
             TransfersConfig transfersConfig,
@@ -389,6 +402,10 @@ class ResourcePartScheduler {
         this.streamingNeed = new ContinuousDegree(streamingNeed);
     }
 
+    synchronized void setStreamingPosition(Long streamingPosition) {
+        this.streamingPosition = streamingPosition;
+    }
+
     /**
      * Assigns a segment to a given slave
      *
@@ -432,9 +449,19 @@ class ResourcePartScheduler {
                 }
 
                 Long selectedPosition;
-                if (streamingNeed.isMax()) {
-                    // for maximum streaming need we skip all calculations and simply get the first block
-                    selectedPosition = assignableSegments.getPosition(0);
+                Long streamingPosition = getValidStreamingPosition();
+                Long readAheadPosition = streamingPosition != null ?
+                        firstPositionInRange(assignableSegments, streamingPosition, Math.min(streamingPosition + STREAMING_READ_AHEAD, resourceSize) - 1) :
+                        null;
+                if (readAheadPosition != null) {
+                    // a reader is waiting for the bytes right after the streaming position -> assign them before anything else
+                    selectedPosition = readAheadPosition;
+                } else if (streamingNeed.isMax()) {
+                    // for maximum streaming need we skip all calculations and simply get the first block (after the streaming position, if any)
+                    selectedPosition = streamingPosition != null ? firstPositionInRange(assignableSegments, streamingPosition, resourceSize - 1) : null;
+                    if (selectedPosition == null) {
+                        selectedPosition = assignableSegments.getPosition(0);
+                    }
                 } else {
                     // in the other case, evaluate all candidates and select the best
                     int blockCount = calculateBlockCount(transfersConfig.getDownloadPartSelectionAccuracy(), assignablePartSize);
@@ -481,7 +508,7 @@ class ResourcePartScheduler {
                         long position = assignableSegments.getPosition(offset);
 
                         // now this position must be evaluated
-                        double score = applyStreamingModifier(initialScore, fraction, streamingNeed);
+                        double score = applyStreamingModifier(initialScore, streamingFraction(streamingPosition, position, fraction), streamingNeed);
 
                         int slaveShareCountHighShare = slaveSharingAllCount;
                         int slaveShareCountLowShare = 0;
@@ -522,6 +549,41 @@ class ResourcePartScheduler {
         }
     }
 
+    /**
+     * @return the streaming position, or null if there is none or it is beyond the end of the resource
+     */
+    private Long getValidStreamingPosition() {
+        return streamingPosition != null && streamingPosition < resourceSize ? streamingPosition : null;
+    }
+
+    /**
+     * Finds the first position of some segments inside a given range
+     *
+     * @param segments segments to search in
+     * @param min      first position of the range
+     * @param max      last position of the range
+     * @return the first position of the segments inside the range, or null if there is none
+     */
+    private static Long firstPositionInRange(ResourcePart segments, long min, long max) {
+        ResourcePart segmentsInRange = segments.intersection(new ResourcePart(new LongRange(min, max)));
+        return segmentsInRange.isEmpty() ? null : segmentsInRange.getPosition(0);
+    }
+
+    /**
+     * Calculates the fraction used for applying the streaming need to a candidate block. Without streaming position,
+     * it is the fraction of the block in the assignable part. With a streaming position, blocks before it get no
+     * benefit, and blocks after it are favoured by their distance to it
+     */
+    private double streamingFraction(Long streamingPosition, long position, double fraction) {
+        if (streamingPosition == null) {
+            return fraction;
+        } else if (position < streamingPosition) {
+            return 1d;
+        } else {
+            return (double) (position - streamingPosition) / (double) (resourceSize - streamingPosition);
+        }
+    }
+
     private void updateAttributesDueToNewAssignment(String slaveID, LongRange assignedSegment) {
         addAssignmentToSlave(slaveID, assignedSegment);
         // this segment is no longer useful for all other slaves
@@ -0,0 +1,137 @@
+package jacz.peerengineservice.util.datatransfer.master;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-only channel over a resource that is being downloaded. Reads block until the requested data has been written
+ * by the download. Closing the channel makes blocked reads fail with an AsynchronousCloseException.
+ * <p/>
+ * While any channel of a download is open, the streaming need of the download is raised to the maximum, so the
+ * download prefers the data after the read position. The previous streaming need is restored when the last channel
+ * is closed.
+ * <p/>
+ * The class is thread-safe
+ */
+class StreamingChannel implements SeekableByteChannel {
+
+    /**
+     * Maximum amount of bytes read at once (256KB), so readers get data as soon as possible
+     */
+    private static final int MAX_READ_SIZE = 256 * 1024;
+
+    private final DownloadManager downloadManager;
+
+    /**
+     * Serializes reads and position changes. Close does not take it, so a blocked read does not prevent closing
+     */
+    private final Object readLock;
+
+    private long position;
+
+    private final AtomicBoolean open;
+
+    StreamingChannel(DownloadManager downloadManager) {
+        this.downloadManager = downloadManager;
+        readLock = new Object();
+        position = 0L;
+        open = new AtomicBoolean(true);
+        downloadManager.streamingStarted();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            checkOpen();
+            long size = size();
+            if (position >= size) {
+                return -1;
+            }
+            int length = (int) Math.min(Math.min(dst.remaining(), MAX_READ_SIZE), size - position);
+            if (length == 0) {
+                return 0;
+            }
+            byte[] data;
+            try {
+                data = downloadManager.readStreamingData(position, length, open::get);
+            } catch (InterruptedException e) {
+                throw interrupted();
+            }
+            dst.put(data);
+            position += data.length;
+            return data.length;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        synchronized (readLock) {
+            checkOpen();
+            return position;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        synchronized (readLock) {
+            checkOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position: " + newPosition);
+            }
+            position = newPosition;
+            return this;
+        }
+    }
+
+    /**
+     * Blocks until the size of the resource is known
+     */
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        try {
+            return downloadManager.awaitLength(open::get);
+        } catch (InterruptedException e) {
+            throw interrupted();
+        }
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    @Override
+    public void close() {
+        if (open.compareAndSet(true, false)) {
+            downloadManager.streamingFinished();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open.get()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private ClosedByInterruptException interrupted() {
+        close();
+        Thread.currentThread().interrupt();
+        return new ClosedByInterruptException();
+    }
+}
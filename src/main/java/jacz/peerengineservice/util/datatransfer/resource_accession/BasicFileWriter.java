@@ -78,6 +78,12 @@ public class BasicFileWriter extends SingleSessionResourceWriter {
         RandomAccess.write(file, offset, data);
     }
 
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        checkHasFailed();
+        return RandomAccess.read(file, offset, length);
+    }
+
     @Override
     public void complete() throws IOException {
     }
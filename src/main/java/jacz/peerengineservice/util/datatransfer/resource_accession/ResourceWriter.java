@@ -5,6 +5,7 @@ import org.aanguita.jacuzzi.numeric.range.LongRangeList;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This interface contains methods for generating a resource from the received byte arrays from other peers. Using
@@ -44,6 +45,31 @@ public interface ResourceWriter {
 
     void setSystemField(String key, Serializable value) throws IOException;
 
+    /**
+     * Sets several system fields at once. Resource writers that store their dictionaries in disk should write them
+     * in a single operation
+     *
+     * @param fields the fields to set
+     * @throws IOException problems writing the fields
+     */
+    default void setSystemFields(Map<String, Serializable> fields) throws IOException {
+        for (Map.Entry<String, Serializable> field : fields.entrySet()) {
+            setSystemField(field.getKey(), field.getValue());
+        }
+    }
+
+    /**
+     * Retrieves at once the size, the available segments and the system dictionary. This is invoked instead of the
+     * individual methods when a download starts or resumes. Resource writers that store their data in disk should
+     * read it in a single operation, so many downloads can be resumed quickly
+     *
+     * @return the resume record of this resource writer
+     * @throws IOException problems reading the resource data
+     */
+    default ResumeRecord getResumeRecord() throws IOException {
+        return new ResumeRecord(getSize(), getAvailableSegments(), getSystemDictionary());
+    }
+
     /**
      * Initializes the resource writer by providing the size of the resource to write. This method is only invoked at the beginning of a writing
      * process, and only if the size of the resource was not previously known
@@ -63,6 +89,21 @@ public interface ResourceWriter {
      */
     void write(long offset, byte[] data) throws IOException, IndexOutOfBoundsException;
 
+    /**
+     * Reads back a chunk of data already written into the resource (or of the completed resource). This allows
+     * playing a resource while it is downloaded. Only the parts already written are requested
+     * <p/>
+     * Resource writers that do not support reading can leave the default implementation, which fails
+     *
+     * @param offset offset for reading
+     * @param length length of the data to read
+     * @return the read data
+     * @throws IOException problems reading the data, or the resource writer does not support reading
+     */
+    default byte[] read(long offset, int length) throws IOException {
+        throw new IOException("This resource writer does not support reading");
+    }
+
     /**
      * This method is invoked after all data has been written into the resource, to notify the resource writer that the writing process is over.
      * The resource should remain in a final state so the user can use it as desired
@@ -0,0 +1,43 @@
+package jacz.peerengineservice.util.datatransfer.resource_accession;
+
+import org.aanguita.jacuzzi.numeric.range.LongRangeList;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * All the data that a resource writer holds for resuming a download: the resource size, the owned segments and the
+ * system dictionary (where the download state, parameters, statistics and known providers are stored)
+ */
+public class ResumeRecord {
+
+    private final Long size;
+
+    private final LongRangeList availableSegments;
+
+    private final HashMap<String, Serializable> systemDictionary;
+
+    public ResumeRecord(Long size, LongRangeList availableSegments, HashMap<String, Serializable> systemDictionary) {
+        this.size = size;
+        this.availableSegments = availableSegments;
+        this.systemDictionary = systemDictionary;
+    }
+
+    /**
+     * @return the size of the resource, or null if not known yet
+     */
+    public Long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the segments already owned, or null if the resource writer has not been initialized yet
+     */
+    public LongRangeList getAvailableSegments() {
+        return availableSegments;
+    }
+
+    public HashMap<String, Serializable> getSystemDictionary() {
+        return systemDictionary;
+    }
+}
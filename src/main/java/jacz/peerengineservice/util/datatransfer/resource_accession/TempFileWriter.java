@@ -1,11 +1,15 @@
 package jacz.peerengineservice.util.datatransfer.resource_accession;
 
 import jacz.peerengineservice.util.tempfile_api.TempFileManager;
+import jacz.peerengineservice.util.tempfile_api.TempFileSummary;
+import org.aanguita.jacuzzi.files.RandomAccess;
 import org.aanguita.jacuzzi.numeric.range.LongRangeList;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A resource writer implementation for temporary files
@@ -20,7 +24,7 @@ public class TempFileWriter implements ResourceWriter {
 
     private final HashMap<String, Serializable> userDictionary;
 
-    private String finalPath;
+    private volatile String finalPath;
 
     /**
      * New temporary download
@@ -87,6 +91,17 @@ public class TempFileWriter implements ResourceWriter {
         tempFileManager.setSystemField(tempFile, key, value);
     }
 
+    @Override
+    public void setSystemFields(Map<String, Serializable> fields) throws IOException {
+        tempFileManager.setSystemFields(tempFile, fields);
+    }
+
+    @Override
+    public ResumeRecord getResumeRecord() throws IOException {
+        TempFileSummary summary = tempFileManager.getSummary(tempFile);
+        return new ResumeRecord(summary.getTotalResourceSize(), summary.getOwnedParts(), summary.getSystemDictionary());
+    }
+
     @Override
     public void init(long size) throws IOException {
         tempFileManager.setTemporaryResourceSize(tempFile, size);
@@ -97,6 +112,16 @@ public class TempFileWriter implements ResourceWriter {
         tempFileManager.write(tempFile, offset, data);
     }
 
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        if (finalPath != null) {
+            // the temporary file has already been moved to its final location
+            return RandomAccess.read(new File(finalPath), offset, length);
+        } else {
+            return tempFileManager.read(tempFile, offset, length);
+        }
+    }
+
     @Override
     public void complete() throws IOException {
         finalPath = tempFileManager.completeTempFile(tempFile);
@@ -119,6 +119,8 @@ class SlaveMessageReader implements MessageReader {
             mustFlush = false;
             return new MessageForHandler(true);
         } else {
+            // do not send anything while the upload slot manager keeps us choked
+            slaveResourceStreamer.waitWhileChoked();
             SlaveResourceStreamer.RemovedRange removedRange;
             synchronized (this) {
                 removedRange = resourceSegmentQueue.remove((long) preferredBlockSize);
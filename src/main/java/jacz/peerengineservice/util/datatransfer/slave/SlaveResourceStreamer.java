@@ -4,6 +4,7 @@ import jacz.peerengineservice.PeerId;
 import jacz.peerengineservice.util.datatransfer.GenericPriorityManagerRegulatedResource;
 import jacz.peerengineservice.util.datatransfer.ResourceRequest;
 import jacz.peerengineservice.util.datatransfer.ResourceStreamingManager;
+import jacz.peerengineservice.util.datatransfer.UploadSlotManager;
 import jacz.peerengineservice.util.datatransfer.master.MasterMessage;
 import jacz.peerengineservice.util.datatransfer.master.ResourcePart;
 import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceReader;
@@ -21,7 +22,7 @@ import java.util.List;
 /**
  * This class handles a slave that serves a resource to a master
  */
-public class SlaveResourceStreamer extends GenericPriorityManagerRegulatedResource implements ResourceStreamingManager.SubchannelOwner, TimerAction {
+public class SlaveResourceStreamer extends GenericPriorityManagerRegulatedResource implements ResourceStreamingManager.SubchannelOwner, UploadSlotManager.Upload, TimerAction {
 
     static class RemovedRange {
 
@@ -133,6 +134,14 @@ public class SlaveResourceStreamer extends GenericPriorityManagerRegulatedResour
 
     private boolean alive;
 
+    /**
+     * Whether we are choked by the upload slot manager. A choked slave does not send data. Guarded by chokeLock
+     * (not by this object, as the data sender waits on it)
+     */
+    private boolean choked;
+
+    private final Object chokeLock;
+
     /**
      * Timer for controlling timeouts
      */
@@ -151,6 +160,8 @@ public class SlaveResourceStreamer extends GenericPriorityManagerRegulatedResour
         resourceUploadStatistics = new ResourceUploadStatistics();
         initialized = false;
         alive = true;
+        choked = false;
+        chokeLock = new Object();
     }
 
     public synchronized void initialize(ResourceReader resourceReader, PeerId otherPeer, short incomingChannel, short outgoingChannel) {
@@ -279,6 +290,54 @@ public class SlaveResourceStreamer extends GenericPriorityManagerRegulatedResour
         messageReader.softThrottle();
     }
 
+    @Override
+    public PeerId getRequestingPeer() {
+        return resourceRequest.getRequestingPeer();
+    }
+
+    @Override
+    public void choke() {
+        synchronized (chokeLock) {
+            choked = true;
+        }
+    }
+
+    @Override
+    public void unchoke() {
+        synchronized (chokeLock) {
+            choked = false;
+            chokeLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks the data sender while we are choked
+     */
+    void waitWhileChoked() {
+        synchronized (chokeLock) {
+            while (choked) {
+                try {
+                    chokeLock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void keepAlive() {
+        if (initialized && alive) {
+            // any message resets the timeout of the master. Our available segments are harmless to send
+            try {
+                ResourcePart resourcePart = new ResourcePart(resourceReader.availableSegments());
+                resourceStreamingManager.write(otherPeer, outgoingChannel, SlaveMessage.generateResourceAvailabilityMessage(resourcePart), false);
+            } catch (IOException e) {
+                die(true);
+            }
+        }
+    }
+
     public short getIncomingChannel() {
         return incomingChannel;
     }
@@ -296,6 +355,8 @@ public class SlaveResourceStreamer extends GenericPriorityManagerRegulatedResour
                 resourceStreamingManager.write(otherPeer, outgoingChannel, SlaveMessage.generateDiedMessage(), false);
             }
             stopProcessor();
+            // the data sender must not stay blocked, so it can process the stop order
+            unchoke();
             timeoutTimer.stop();
             resourceStreamingManager.reportDeadSlaveResourceStreamer(this);
             resourceUploadStatistics.stop();
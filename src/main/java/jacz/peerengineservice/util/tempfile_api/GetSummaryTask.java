@@ -0,0 +1,40 @@
+package jacz.peerengineservice.util.tempfile_api;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Retrieves all the metadata of a temp index file at once
+ */
+class GetSummaryTask extends TempIndexTask {
+
+    private TempFileSummary summary;
+
+    public GetSummaryTask(TempFileManager tempFileManager, String indexFilePath) {
+        super(tempFileManager, indexFilePath);
+        summary = null;
+    }
+
+    @Override
+    public void run() {
+        super.run();
+        if (tempIndex != null) {
+            // the summary is handed to other threads -> give copies of the dictionaries, not those of the index
+            summary = new TempFileSummary(
+                    tempIndex.getTotalResourceSize(),
+                    tempIndex.getOwnedDataParts(),
+                    copy(tempIndex.getUserDictionary()),
+                    copy(tempIndex.getSystemDictionary()));
+        }
+    }
+
+    private static HashMap<String, Serializable> copy(HashMap<String, Serializable> dictionary) {
+        return dictionary != null ? new HashMap<>(dictionary) : null;
+    }
+
+    public TempFileSummary getSummary() throws IOException {
+        checkIOException();
+        return summary;
+    }
+}
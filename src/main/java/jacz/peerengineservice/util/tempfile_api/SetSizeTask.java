@@ -20,7 +20,7 @@ class SetSizeTask extends TempIndexTask {
         if (tempIndex != null) {
             try {
                 tempIndex.setTotalSize(size);
-                TempFileManager.writeIndexFile(indexFilePath, tempIndex);
+                tempFileManager.writeIndexFile(indexFilePath, tempIndex);
             } catch (IOException e) {
                 ioException = e;
             }
@@ -2,20 +2,24 @@ package jacz.peerengineservice.util.tempfile_api;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Sets a system field in a temp index file
+ * Sets one or several system fields in a temp index file (the index file is written once)
  */
 public class SetSystemField extends TempIndexTask {
 
-    private final String key;
-
-    private final Serializable value;
+    private final Map<String, Serializable> fields;
 
     public SetSystemField(TempFileManager tempFileManager, String indexFilePath, String key, Serializable value) {
+        this(tempFileManager, indexFilePath, new HashMap<>());
+        fields.put(key, value);
+    }
+
+    public SetSystemField(TempFileManager tempFileManager, String indexFilePath, Map<String, Serializable> fields) {
         super(tempFileManager, indexFilePath);
-        this.key = key;
-        this.value = value;
+        this.fields = new HashMap<>(fields);
     }
 
     @Override
@@ -23,8 +27,8 @@ public class SetSystemField extends TempIndexTask {
         super.run();
         if (tempIndex != null) {
             try {
-                tempIndex.setSystemField(key, value);
-                TempFileManager.writeIndexFile(indexFilePath, tempIndex);
+                fields.forEach(tempIndex::setSystemField);
+                tempFileManager.writeIndexFile(indexFilePath, tempIndex);
             } catch (IOException e) {
                 ioException = e;
             }
@@ -11,10 +11,17 @@ import org.aanguita.jacuzzi.numeric.range.LongRangeList;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class provides access to temporary files. This includes reading and writing access and controlling concurrency.
@@ -73,6 +80,15 @@ public class TempFileManager {
 
     private static final int TEMP_FILE_INDEX_CRC_BYTES = 4;
 
+    private static final String MANIFEST_FILE_NAME = "temp_files.manifest";
+
+    private static final String MANIFEST_BACKUP_FILE_NAME = "temp_files.manifest.backup";
+
+    /**
+     * Maximum number of threads that check index files in parallel during the discovery of temporary files
+     */
+    private static final int MAX_DISCOVERY_THREADS = 8;
+
     /**
      * Directory where temp files are stored (ending with the path.separator character)
      */
@@ -92,6 +108,24 @@ public class TempFileManager {
      */
     private final Map<String, ConcurrencyController> concurrencyControllers;
 
+    /**
+     * Cache of the temporary files found in the base directory. Loaded in the first discovery of temporary files, or
+     * in the first write of an index file. Entries are removed as soon as their index file is written again, so they
+     * never describe an index file that changed since it was parsed
+     */
+    private TempFileManifest manifest;
+
+    /**
+     * Lock for the manifest. It is never held while waiting for a task over a temp file
+     */
+    private final Object manifestLock;
+
+    /**
+     * Index writes take the read lock, and discoveries take the write lock. This way no index file is written between
+     * the removal of its manifest entry and the end of its write while a discovery parses it
+     */
+    private final ReadWriteLock discoveryLock;
+
     private final AtomicBoolean alive;
 
     private final String threadExecutorClientId;
@@ -106,6 +140,9 @@ public class TempFileManager {
         this.baseDir = buildBaseDir(baseDir);
         this.tempFileManagerEventsBridge = new TempFileManagerEventsBridge(tempFileManagerEvents);
         concurrencyControllers = new HashMap<>();
+        manifest = null;
+        manifestLock = new Object();
+        discoveryLock = new ReentrantReadWriteLock();
         alive = new AtomicBoolean(true);
         threadExecutorClientId = ThreadExecutor.registerClient(this.getClass().getName());
     }
@@ -142,51 +179,171 @@ public class TempFileManager {
 
     /**
      * Returns a set containing all existing temporary files in the base directory
+     * <p/>
+     * Index files are checked in parallel. Those that did not change since the previous discovery (according to the
+     * manifest) are not parsed again, only their data file is checked. Index writes wait until the discovery is
+     * over
      *
      * @return a set with the names of the temporary files contained in the base directory (base names, no extension)
      */
     public synchronized Set<String> getExistingTempFiles() throws IOException {
-        // todo use nio
-        Set<String> tempFiles = new HashSet<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, "*." + TEMP_FILE_INDEX_NAME_END)) {
-            for (Path file : stream) {
-                // an index file was found -> look for its data file
-                String fileName = file.getFileName().toString();
-                String tempFile = generateIndexFilePath(fileName);
-                try {
-                    TempIndex tempIndex = readIndexFile(tempFile);
-                    String tempDataFilePath = tempIndex.getTempDataFilePath();
-                    if (new File(tempDataFilePath).isFile()) {
-                        // the data file also exists -> valid temp file
-                        tempFileManagerEventsBridge.indexFileRecovered(tempFile);
-                        tempFiles.add(fileName);
+        discoveryLock.writeLock().lock();
+        try {
+            return discoverTempFiles();
+        } finally {
+            discoveryLock.writeLock().unlock();
+        }
+    }
+
+    private Set<String> discoverTempFiles() throws IOException {
+        synchronized (manifestLock) {
+            loadManifest();
+            List<String> indexFileNames = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, "*." + TEMP_FILE_INDEX_NAME_END)) {
+                for (Path file : stream) {
+                    indexFileNames.add(file.getFileName().toString());
+                }
+            } catch (DirectoryIteratorException x) {
+                throw new IOException(x);
+            }
+            ExecutorService discoveryExecutor = Executors.newFixedThreadPool(discoveryThreadCount(indexFileNames.size()));
+            Map<String, Future<TempFileManifest.Entry>> discoveries = new HashMap<>();
+            for (String indexFileName : indexFileNames) {
+                TempFileManifest.Entry cachedEntry = manifest.get(indexFileName);
+                discoveries.put(indexFileName, discoveryExecutor.submit(() -> discoverTempFile(indexFileName, cachedEntry)));
+            }
+            discoveryExecutor.shutdown();
+            HashMap<String, TempFileManifest.Entry> entries = new HashMap<>();
+            boolean manifestChanged = indexFileNames.size() != manifest.getEntries().size();
+            try {
+                for (Map.Entry<String, Future<TempFileManifest.Entry>> discovery : discoveries.entrySet()) {
+                    TempFileManifest.Entry entry = discovery.getValue().get();
+                    if (entry != null) {
+                        tempFileManagerEventsBridge.indexFileRecovered(generateIndexFilePath(discovery.getKey()));
+                        entries.put(discovery.getKey(), entry);
                     }
-                } catch (IOException | VersionedSerializationException e) {
-                    // error reading the file, ignore
+                    manifestChanged |= entry != manifest.get(discovery.getKey());
                 }
+            } catch (InterruptedException e) {
+                discoveryExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while discovering the temporary files");
+            } catch (ExecutionException e) {
+                // cannot happen, discoveries do not throw exceptions
+                throw new IOException(e.getCause());
+            }
+            if (manifestChanged) {
+                manifest.setEntries(entries);
+                writeManifest();
+            }
+            return new HashSet<>(entries.keySet());
+        }
+    }
+
+    private static int discoveryThreadCount(int indexFileCount) {
+        return Math.max(1, Math.min(indexFileCount, Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_DISCOVERY_THREADS)));
+    }
+
+    /**
+     * Checks if an index file corresponds to a valid temporary file. The index file is only parsed if it changed since
+     * the previous discovery
+     *
+     * @param indexFileName name of the index file
+     * @param cachedEntry   manifest entry of the previous discovery, or null if there is none
+     * @return the manifest entry for the temporary file, or null if it is not valid
+     */
+    private TempFileManifest.Entry discoverTempFile(String indexFileName, TempFileManifest.Entry cachedEntry) {
+        String indexFilePath = generateIndexFilePath(indexFileName);
+        File indexFile = new File(indexFilePath);
+        long indexLastModified = indexFile.lastModified();
+        long indexLength = indexFile.length();
+        if (cachedEntry != null && cachedEntry.matchesIndex(indexLastModified, indexLength)) {
+            // the index file did not change -> it is valid if its data file still exists
+            return new File(cachedEntry.getTempDataFilePath()).isFile() ? cachedEntry : null;
+        }
+        try {
+            TempIndex tempIndex = readIndexFile(indexFilePath);
+            String tempDataFilePath = tempIndex.getTempDataFilePath();
+            if (new File(tempDataFilePath).isFile()) {
+                // the data file also exists -> valid temp file
+                return new TempFileManifest.Entry(tempDataFilePath, indexLastModified, indexLength, tempIndex.getTotalResourceSize(), tempIndex.getOwnedDataParts().size());
+            }
+        } catch (IOException | VersionedSerializationException e) {
+            // error reading the file, ignore
+        }
+        return null;
+    }
+
+    /**
+     * Loads the manifest if it was not loaded yet. Must be invoked with the manifest lock
+     */
+    private void loadManifest() {
+        if (manifest == null) {
+            try {
+                manifest = new TempFileManifest(baseDir.resolve(MANIFEST_FILE_NAME).toString(), baseDir.resolve(MANIFEST_BACKUP_FILE_NAME).toString());
+            } catch (IOException | VersionedSerializationException e) {
+                // no manifest yet, or it could not be read -> all index files will be parsed
+                manifest = new TempFileManifest();
+            }
+        }
+    }
+
+    /**
+     * Must be invoked with the manifest lock
+     */
+    private void writeManifest() {
+        try {
+            VersionedObjectSerializer.serialize(manifest, TEMP_FILE_INDEX_CRC_BYTES, baseDir.resolve(MANIFEST_FILE_NAME).toString(), baseDir.resolve(MANIFEST_BACKUP_FILE_NAME).toString());
+        } catch (IOException e) {
+            // the manifest is just a cache, the index files will be parsed again in the next discovery
+        }
+    }
+
+    /**
+     * Removes the manifest entry of a temporary file, and stores the manifest if there was such entry. This is
+     * invoked before writing its index file, so a stored entry never matches a modified index file (even if the
+     * modification kept its length and its modification time). Only the first write after a discovery stores the
+     * manifest
+     *
+     * @param indexFileName name of the index file
+     */
+    private void forgetManifestEntry(String indexFileName) {
+        synchronized (manifestLock) {
+            loadManifest();
+            if (manifest.remove(indexFileName)) {
+                writeManifest();
             }
-        } catch (DirectoryIteratorException x) {
-            throw new IOException(x);
         }
-//
-//        Collection<File> filesInBaseDir = FileUtils.listFiles(new File(baseDir.toUri()), extensions, false);
-//        for (File file : filesInBaseDir) {
-//            // an index file was found -> look for its data file
-//            String fineName = file.getName();
-//            String tempFile = generateIndexFilePath(fineName);
-//            try {
-//                TempIndex tempIndex = readIndexFile(tempFile);
-//                String tempDataFilePath = tempIndex.getTempDataFilePath();
-//                if (new File(tempDataFilePath).isFile()) {
-//                    // the data file also exists -> valid temp file
-//                    tempFileManagerEventsBridge.indexFileRecovered(tempFile);
-//                    tempFiles.add(fineName);
-//                }
-//            } catch (IOException | VersionedSerializationException e) {
-//                // error reading the file, ignore
-//            }
-//        }
-        return tempFiles;
+    }
+
+    /**
+     * Returns the size of the resource of a temporary file, as found in the last discovery of temporary files. The
+     * index file is not read
+     *
+     * @param tempFileName the name of the temporary file to query
+     * @return the cached size of the resource (null if not known, if the temporary file was not discovered, or if it
+     * was modified since)
+     */
+    public Long getCachedTemporaryResourceSize(String tempFileName) {
+        synchronized (manifestLock) {
+            TempFileManifest.Entry entry = manifest != null ? manifest.get(tempFileName) : null;
+            return entry != null ? entry.getTotalResourceSize() : null;
+        }
+    }
+
+    /**
+     * Returns the amount of data already owned by a temporary file, as found in the last discovery of temporary
+     * files. Together with the resource size, it tells the completion state of the temporary file without reading
+     * its index file
+     *
+     * @param tempFileName the name of the temporary file to query
+     * @return the cached owned size (null if the temporary file was not discovered, or if it was modified since)
+     */
+    public Long getCachedTemporaryOwnedSize(String tempFileName) {
+        synchronized (manifestLock) {
+            TempFileManifest.Entry entry = manifest != null ? manifest.get(tempFileName) : null;
+            return entry != null ? entry.getOwnedSize() : null;
+        }
     }
 
     /**
@@ -307,8 +464,9 @@ public class TempFileManager {
         } catch (Exception e) {
             throw new IOException();
         }
-        // the concurrency controller is no longer needed, remove it
+        // the concurrency controller and the manifest entry are no longer needed, remove them
         removeTempFileConcurrencyController(tempFileName);
+        forgetManifestEntry(tempFileName);
         return completerTask.getFinalPath();
     }
 
@@ -367,6 +525,47 @@ public class TempFileManager {
         setSystemField.checkCorrectResult();
     }
 
+    /**
+     * Sets several system fields of a temporary file, writing its index file only once
+     *
+     * @param tempFileName the name of the temporary file
+     * @param fields       the fields to set
+     * @throws IOException there were errors accessing the given temporary file
+     */
+    public void setSystemFields(String tempFileName, Map<String, Serializable> fields) throws IOException {
+        SetSystemField setSystemField = new SetSystemField(this, generateIndexFilePath(tempFileName), fields);
+        try {
+            ThreadExecutor.submit(
+                    setSystemField,
+                    accessTempFileConcurrencyController(tempFileName),
+                    ConcurrencyControllerReadWrite.WRITE_ACTIVITY).get();
+        } catch (Exception e) {
+            throw new IOException();
+        }
+        setSystemField.checkCorrectResult();
+    }
+
+    /**
+     * Retrieves all the metadata of a temporary file (size, owned parts and dictionaries) with a single read of its
+     * index file. This is much faster than querying each item separately, e.g. when resuming many downloads at once
+     *
+     * @param tempFileName the name of the temporary file to query
+     * @return the metadata of the temporary file
+     * @throws IOException there were errors accessing the given temporary file
+     */
+    public TempFileSummary getSummary(String tempFileName) throws IOException {
+        GetSummaryTask getSummaryTask = new GetSummaryTask(this, generateIndexFilePath(tempFileName));
+        try {
+            ThreadExecutor.submit(
+                    getSummaryTask,
+                    accessTempFileConcurrencyController(tempFileName),
+                    ConcurrencyControllerReadWrite.READ_ACTIVITY).get();
+        } catch (Exception e) {
+            throw new IOException();
+        }
+        return getSummaryTask.getSummary();
+    }
+
     /**
      * Reads a section of a temporary file
      *
@@ -441,8 +640,14 @@ public class TempFileManager {
         tempFileManagerEventsBridge.indexFileErrorRestoredWithBackup(indexFilePath);
     }
 
-    static void writeIndexFile(String indexFilePath, TempIndex index) throws IOException {
-        VersionedObjectSerializer.serialize(index, TEMP_FILE_INDEX_CRC_BYTES, indexFilePath, generateBackupPath(indexFilePath));
+    void writeIndexFile(String indexFilePath, TempIndex index) throws IOException {
+        discoveryLock.readLock().lock();
+        try {
+            forgetManifestEntry(Paths.get(indexFilePath).getFileName().toString());
+            VersionedObjectSerializer.serialize(index, TEMP_FILE_INDEX_CRC_BYTES, indexFilePath, generateBackupPath(indexFilePath));
+        } finally {
+            discoveryLock.readLock().unlock();
+        }
     }
 
     public static String generateBackupPath(String indexFilePath) {
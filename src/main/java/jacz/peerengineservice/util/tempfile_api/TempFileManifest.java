@@ -0,0 +1,132 @@
+package jacz.peerengineservice.util.tempfile_api;
+
+import org.aanguita.jacuzzi.io.serialization.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Small cache of the temporary files found in the base directory, stored in a single file. For each temp file it
+ * keeps its data file, resource size and owned size, together with the modification time and length of the index
+ * file when it was last parsed.
+ * <p/>
+ * At startup, index files that did not change since then are not parsed again. Their full parsing happens when
+ * the corresponding download is activated. The entry of a temp file is removed whenever its index file is written or
+ * the temp file is completed, so modifications that keep the modification time and length of the index file are
+ * not missed.
+ * <p/>
+ * The class is not thread-safe
+ */
+class TempFileManifest implements VersionedObject {
+
+    /**
+     * Cached data about one temporary file
+     */
+    static final class Entry implements Serializable {
+
+        private final String tempDataFilePath;
+
+        private final long indexLastModified;
+
+        private final long indexLength;
+
+        private final Long totalResourceSize;
+
+        private final long ownedSize;
+
+        Entry(String tempDataFilePath, long indexLastModified, long indexLength, Long totalResourceSize, long ownedSize) {
+            this.tempDataFilePath = tempDataFilePath;
+            this.indexLastModified = indexLastModified;
+            this.indexLength = indexLength;
+            this.totalResourceSize = totalResourceSize;
+            this.ownedSize = ownedSize;
+        }
+
+        String getTempDataFilePath() {
+            return tempDataFilePath;
+        }
+
+        /**
+         * @return true if the index file has not changed since this entry was created
+         */
+        boolean matchesIndex(long indexLastModified, long indexLength) {
+            return this.indexLastModified == indexLastModified && this.indexLength == indexLength;
+        }
+
+        Long getTotalResourceSize() {
+            return totalResourceSize;
+        }
+
+        long getOwnedSize() {
+            return ownedSize;
+        }
+    }
+
+    private final static String VERSION_0_1 = "0.1";
+
+    private final static String CURRENT_VERSION = VERSION_0_1;
+
+    /**
+     * Entries by index file name
+     */
+    private HashMap<String, Entry> entries;
+
+    TempFileManifest() {
+        entries = new HashMap<>();
+    }
+
+    TempFileManifest(String path, String backupPath) throws VersionedSerializationException, IOException {
+        VersionedObjectSerializer.deserialize(this, path, true, backupPath);
+    }
+
+    Entry get(String indexFileName) {
+        return entries.get(indexFileName);
+    }
+
+    /**
+     * @return true if there was an entry for the given index file
+     */
+    boolean remove(String indexFileName) {
+        return entries.remove(indexFileName) != null;
+    }
+
+    Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    void setEntries(HashMap<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public VersionStack getCurrentVersion() {
+        return new VersionStack(CURRENT_VERSION);
+    }
+
+    @Override
+    public Map<String, Serializable> serialize() {
+        Map<String, Serializable> map = new HashMap<>();
+        map.put("entries", entries);
+        return map;
+    }
+
+    @Override
+    public void deserialize(String version, Map<String, Object> attributes, VersionStack parentVersions) throws UnrecognizedVersionException {
+        if (version.equals(CURRENT_VERSION)) {
+            entries = new HashMap<>();
+            Object storedEntries = attributes.get("entries");
+            if (storedEntries instanceof Map) {
+                // copy only valid entries. Anything else is ignored, the index files will be parsed again
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) storedEntries).entrySet()) {
+                    if (entry.getKey() instanceof String && entry.getValue() instanceof Entry) {
+                        entries.put((String) entry.getKey(), (Entry) entry.getValue());
+                    }
+                }
+            }
+        } else {
+            throw new UnrecognizedVersionException();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package jacz.peerengineservice.util.tempfile_api;
+
+import org.aanguita.jacuzzi.numeric.range.LongRangeList;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * The metadata of a temporary file (resource size, owned parts and dictionaries), obtained with a single read of its
+ * index file
+ */
+public class TempFileSummary {
+
+    private final Long totalResourceSize;
+
+    private final LongRangeList ownedParts;
+
+    private final HashMap<String, Serializable> userDictionary;
+
+    private final HashMap<String, Serializable> systemDictionary;
+
+    TempFileSummary(Long totalResourceSize, LongRangeList ownedParts, HashMap<String, Serializable> userDictionary, HashMap<String, Serializable> systemDictionary) {
+        this.totalResourceSize = totalResourceSize;
+        this.ownedParts = ownedParts;
+        this.userDictionary = userDictionary;
+        this.systemDictionary = systemDictionary;
+    }
+
+    /**
+     * @return the size of the resource (null if not known)
+     */
+    public Long getTotalResourceSize() {
+        return totalResourceSize;
+    }
+
+    public LongRangeList getOwnedParts() {
+        return ownedParts;
+    }
+
+    public HashMap<String, Serializable> getUserDictionary() {
+        return userDictionary;
+    }
+
+    public HashMap<String, Serializable> getSystemDictionary() {
+        return systemDictionary;
+    }
+}
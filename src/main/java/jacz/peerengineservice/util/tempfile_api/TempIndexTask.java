@@ -13,7 +13,7 @@ public abstract class TempIndexTask implements Runnable {
 
     final static Logger logger = LoggerFactory.getLogger(TempIndexTask.class);
 
-    private final TempFileManager tempFileManager;
+    protected final TempFileManager tempFileManager;
 
     /**
      * Temp file to read from
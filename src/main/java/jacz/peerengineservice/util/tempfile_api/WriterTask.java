@@ -26,7 +26,7 @@ class WriterTask extends TempIndexTask {
         if (tempIndex != null) {
             try {
                 tempIndex.write(offset, data);
-                TempFileManager.writeIndexFile(indexFilePath, tempIndex);
+                tempFileManager.writeIndexFile(indexFilePath, tempIndex);
             } catch (IOException e) {
                 ioException = e;
             } catch (IndexOutOfBoundsException e) {
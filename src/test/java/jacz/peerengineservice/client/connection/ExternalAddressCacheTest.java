@@ -0,0 +1,114 @@
+package jacz.peerengineservice.client.connection;
+
+import org.junit.Assert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for the external address cache
+ */
+public class ExternalAddressCacheTest {
+
+    private final AtomicLong time = new AtomicLong(1000000L);
+
+    @org.junit.Test
+    public void testTtl() {
+        AtomicInteger detections = new AtomicInteger(0);
+        ExternalAddressCache externalAddressCache = new ExternalAddressCache(() -> {
+            detections.incrementAndGet();
+            return "80.1.1.1";
+        }, 100L, 50L, 400L, time::get);
+        Assert.assertEquals("80.1.1.1", externalAddressCache.get());
+        time.addAndGet(99L);
+        Assert.assertEquals("80.1.1.1", externalAddressCache.get());
+        Assert.assertEquals(1, detections.get());
+        time.addAndGet(1L);
+        externalAddressCache.get();
+        Assert.assertEquals(2, detections.get());
+        externalAddressCache.invalidate();
+        externalAddressCache.get();
+        Assert.assertEquals(3, detections.get());
+    }
+
+    @org.junit.Test
+    public void testBackoff() {
+        AtomicInteger detections = new AtomicInteger(0);
+        AtomicReference<String> detectedAddress = new AtomicReference<>("80.1.1.1");
+        ExternalAddressCache externalAddressCache = new ExternalAddressCache(() -> {
+            detections.incrementAndGet();
+            return detectedAddress.get();
+        }, 10L, 100L, 400L, time::get);
+        externalAddressCache.get();
+        detectedAddress.set(null);
+        time.addAndGet(10L);
+        // the detection fails, the last known address is still used during the backoff
+        Assert.assertEquals("80.1.1.1", externalAddressCache.get());
+        time.addAndGet(99L);
+        Assert.assertEquals("80.1.1.1", externalAddressCache.get());
+        Assert.assertEquals(2, detections.get());
+        time.addAndGet(1L);
+        externalAddressCache.get();
+        Assert.assertEquals(3, detections.get());
+        // second failure doubles the backoff
+        time.addAndGet(199L);
+        externalAddressCache.get();
+        Assert.assertEquals(3, detections.get());
+        time.addAndGet(1L);
+        detectedAddress.set("80.2.2.2");
+        Assert.assertEquals("80.2.2.2", externalAddressCache.get());
+        Assert.assertEquals(4, detections.get());
+    }
+
+    @org.junit.Test
+    public void testMaxBackoff() {
+        AtomicInteger detections = new AtomicInteger(0);
+        ExternalAddressCache externalAddressCache = new ExternalAddressCache(() -> {
+            detections.incrementAndGet();
+            return null;
+        }, 10L, 100L, 400L, time::get);
+        // backoffs of 100, 200, 400 and 400
+        long[] backoffs = {100L, 200L, 400L, 400L};
+        Assert.assertNull(externalAddressCache.get());
+        for (int i = 0; i < backoffs.length; i++) {
+            time.addAndGet(backoffs[i] - 1);
+            externalAddressCache.get();
+            Assert.assertEquals(i + 1, detections.get());
+            time.addAndGet(1L);
+            externalAddressCache.get();
+            Assert.assertEquals(i + 2, detections.get());
+        }
+    }
+
+    @org.junit.Test
+    public void testDetectorFailure() {
+        AtomicInteger detections = new AtomicInteger(0);
+        ExternalAddressCache externalAddressCache = new ExternalAddressCache(() -> {
+            detections.incrementAndGet();
+            throw new IllegalStateException("detector failure");
+        }, 10L, 100L, 400L, time::get);
+        // the exception counts as a failed detection, and the backoff applies
+        Assert.assertNull(externalAddressCache.get());
+        time.addAndGet(99L);
+        Assert.assertNull(externalAddressCache.get());
+        Assert.assertEquals(1, detections.get());
+        time.addAndGet(1L);
+        Assert.assertNull(externalAddressCache.get());
+        Assert.assertEquals(2, detections.get());
+    }
+
+    @org.junit.Test
+    public void testReport() {
+        AtomicInteger detections = new AtomicInteger(0);
+        ExternalAddressCache externalAddressCache = new ExternalAddressCache(() -> {
+            detections.incrementAndGet();
+            return null;
+        }, 60000L, 60000L, 60000L, time::get);
+        Assert.assertNull(externalAddressCache.get());
+        // the peer server reports our address, no detection is needed
+        externalAddressCache.report("80.3.3.3");
+        Assert.assertEquals("80.3.3.3", externalAddressCache.get());
+        Assert.assertEquals(1, detections.get());
+    }
+}
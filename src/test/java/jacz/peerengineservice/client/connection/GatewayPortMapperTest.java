@@ -0,0 +1,230 @@
+package jacz.peerengineservice.client.connection;
+
+import org.junit.Assert;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the gateway port mapper, using a local fake gateway
+ */
+public class GatewayPortMapperTest {
+
+    /**
+     * In-memory gateway. Counts discoveries and port mapping calls
+     */
+    private static class FakeGateway implements UpnpAPI.Gateway, UpnpAPI.GatewayLocator {
+
+        private static final String LOCATION = "http://192.168.1.1:5000/rootDesc.xml";
+
+        private static final String LOCAL_ADDRESS = "192.168.1.20";
+
+        private final String externalIPAddress;
+
+        private final Map<Integer, UpnpAPI.PortMapping> portMappings = new HashMap<>();
+
+        private final AtomicInteger discoveries = new AtomicInteger(0);
+
+        private final AtomicInteger loads = new AtomicInteger(0);
+
+        private final AtomicInteger portQueries = new AtomicInteger(0);
+
+        /**
+         * If set, the next port query waits (outside the gateway lock) until it is released
+         */
+        private CountDownLatch blockedQuery;
+
+        private final CountDownLatch blockedQueryEntered = new CountDownLatch(1);
+
+        private FakeGateway(String externalIPAddress) {
+            this.externalIPAddress = externalIPAddress;
+        }
+
+        @Override
+        public UpnpAPI.Gateway discover(String externalIPAddress) throws UpnpAPI.NoGatewayException {
+            discoveries.incrementAndGet();
+            if (!this.externalIPAddress.equals(externalIPAddress)) {
+                throw new UpnpAPI.NoGatewayException();
+            }
+            return this;
+        }
+
+        @Override
+        public UpnpAPI.Gateway load(String location, String localAddress) throws UpnpAPI.UpnpException {
+            loads.incrementAndGet();
+            if (!LOCATION.equals(location)) {
+                throw new UpnpAPI.UpnpException("Unknown location");
+            }
+            return this;
+        }
+
+        @Override
+        public String getLocation() {
+            return LOCATION;
+        }
+
+        @Override
+        public String getLocalAddress() {
+            return LOCAL_ADDRESS;
+        }
+
+        @Override
+        public String getExternalIPAddress() {
+            return externalIPAddress;
+        }
+
+        @Override
+        public UpnpAPI.PortMapping getPortMapping(int externalPort) {
+            CountDownLatch block;
+            synchronized (this) {
+                block = blockedQuery;
+                blockedQuery = null;
+            }
+            if (block != null) {
+                blockedQueryEntered.countDown();
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    // continue
+                }
+            }
+            synchronized (this) {
+                portQueries.incrementAndGet();
+                return portMappings.get(externalPort);
+            }
+        }
+
+        private synchronized CountDownLatch blockNextQuery() {
+            blockedQuery = new CountDownLatch(1);
+            return blockedQuery;
+        }
+
+        @Override
+        public synchronized void addPortMapping(int externalPort, int internalPort, String mappingDescription) throws UpnpAPI.UpnpException {
+            if (portMappings.containsKey(externalPort)) {
+                throw new UpnpAPI.UpnpException("Conflict in mapping entry");
+            }
+            portMappings.put(externalPort, new UpnpAPI.PortMapping(internalPort, externalPort, LOCAL_ADDRESS, "TCP", mappingDescription));
+        }
+
+        @Override
+        public synchronized void deletePortMapping(int externalPort) {
+            portMappings.remove(externalPort);
+        }
+
+        private synchronized void addForeignMapping(int externalPort) {
+            portMappings.put(externalPort, new UpnpAPI.PortMapping(80, externalPort, "192.168.1.30", "TCP", "other"));
+        }
+    }
+
+    private static NetworkConfiguration buildNetworkConfiguration() throws Exception {
+        File file = File.createTempFile("networkConfiguration", ".db");
+        file.delete();
+        file.deleteOnExit();
+        return new NetworkConfiguration(file.getPath(), 0, 20000);
+    }
+
+    @org.junit.Test
+    public void testCachedGatewayAndPort() throws Exception {
+        NetworkConfiguration networkConfiguration = buildNetworkConfiguration();
+        FakeGateway fakeGateway = new FakeGateway("80.1.1.1");
+        fakeGateway.addForeignMapping(20000);
+        fakeGateway.addForeignMapping(20001);
+
+        GatewayPortMapper gatewayPortMapper = new GatewayPortMapper(fakeGateway, networkConfiguration, 60000L, () -> {
+        });
+        Assert.assertEquals(20002, gatewayPortMapper.map("80.1.1.1", 20000, 40000, "JCZ_test"));
+        Assert.assertEquals(1, fakeGateway.discoveries.get());
+        Assert.assertEquals(3, fakeGateway.portQueries.get());
+        gatewayPortMapper.stop();
+
+        // restart, with a different local port: the gateway is loaded directly and the cached port is reused
+        gatewayPortMapper = new GatewayPortMapper(fakeGateway, networkConfiguration, 60000L, () -> {
+        });
+        Assert.assertEquals(20002, gatewayPortMapper.map("80.1.1.1", 20000, 40001, "JCZ_test"));
+        Assert.assertEquals(1, fakeGateway.discoveries.get());
+        Assert.assertEquals(1, fakeGateway.loads.get());
+        Assert.assertEquals(4, fakeGateway.portQueries.get());
+        Assert.assertEquals(40001, fakeGateway.getPortMapping(20002).internalPort);
+
+        gatewayPortMapper.unmap();
+        Assert.assertNull(fakeGateway.getPortMapping(20002));
+        gatewayPortMapper.stop();
+    }
+
+    @org.junit.Test
+    public void testFallbackToDiscovery() throws Exception {
+        NetworkConfiguration networkConfiguration = buildNetworkConfiguration();
+        networkConfiguration.setGateway("http://192.168.1.254:80/desc.xml", "192.168.1.20");
+        networkConfiguration.setMappedExternalPort(30000);
+        FakeGateway fakeGateway = new FakeGateway("80.1.1.1");
+        fakeGateway.addForeignMapping(30000);
+
+        GatewayPortMapper gatewayPortMapper = new GatewayPortMapper(fakeGateway, networkConfiguration, 60000L, () -> {
+        });
+        // the cached gateway does not exist anymore, and the cached port is taken
+        Assert.assertEquals(20000, gatewayPortMapper.map("80.1.1.1", 20000, 40000, "JCZ_test"));
+        Assert.assertEquals(1, fakeGateway.discoveries.get());
+        Assert.assertEquals(FakeGateway.LOCATION, networkConfiguration.getGatewayLocation());
+        Assert.assertEquals(20000, networkConfiguration.getMappedExternalPort().intValue());
+        gatewayPortMapper.stop();
+    }
+
+    @org.junit.Test
+    public void testRenewal() throws Exception {
+        NetworkConfiguration networkConfiguration = buildNetworkConfiguration();
+        FakeGateway fakeGateway = new FakeGateway("80.1.1.1");
+        AtomicInteger lostNotifications = new AtomicInteger(0);
+        GatewayPortMapper gatewayPortMapper = new GatewayPortMapper(fakeGateway, networkConfiguration, 50L, lostNotifications::incrementAndGet);
+        gatewayPortMapper.map("80.1.1.1", 20000, 40000, "JCZ_test");
+
+        // the gateway is rebooted and loses the rule -> it is recreated in the background
+        fakeGateway.deletePortMapping(20000);
+        Thread.sleep(200);
+        Assert.assertNotNull(fakeGateway.getPortMapping(20000));
+        Assert.assertFalse(gatewayPortMapper.isMappingLost());
+
+        // someone else takes the port -> the mapping is lost
+        fakeGateway.deletePortMapping(20000);
+        fakeGateway.addForeignMapping(20000);
+        Thread.sleep(200);
+        Assert.assertTrue(gatewayPortMapper.isMappingLost());
+        Assert.assertEquals(1, lostNotifications.get());
+        gatewayPortMapper.stop();
+    }
+
+    @org.junit.Test
+    public void testUnmapDuringRenewal() throws Exception {
+        NetworkConfiguration networkConfiguration = buildNetworkConfiguration();
+        FakeGateway fakeGateway = new FakeGateway("80.1.1.1");
+        GatewayPortMapper gatewayPortMapper = new GatewayPortMapper(fakeGateway, networkConfiguration, 50L, () -> {
+        });
+        gatewayPortMapper.map("80.1.1.1", 20000, 40000, "JCZ_test");
+
+        // a renewal finds the rule missing, and is still in the gateway when we unmap
+        fakeGateway.deletePortMapping(20000);
+        CountDownLatch release = fakeGateway.blockNextQuery();
+        Assert.assertTrue(fakeGateway.blockedQueryEntered.await(5, TimeUnit.SECONDS));
+        Thread unmapThread = new Thread(() -> {
+            try {
+                gatewayPortMapper.unmap();
+            } catch (UpnpAPI.UpnpException e) {
+                Assert.fail();
+            }
+        });
+        unmapThread.start();
+        Thread.sleep(100);
+        release.countDown();
+        unmapThread.join(5000);
+        Assert.assertFalse(unmapThread.isAlive());
+
+        // the renewal must not recreate the rule after the unmap
+        Thread.sleep(200);
+        Assert.assertNull(fakeGateway.getPortMapping(20000));
+        gatewayPortMapper.stop();
+    }
+}
@@ -0,0 +1,163 @@
+package jacz.peerengineservice.client.connection;
+
+import com.neovisionaries.i18n.CountryCode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jacz.peerengineservice.PeerEncryption;
+import jacz.peerengineservice.PeerId;
+import jacz.peerengineservice.client.ConnectionEventsImpl;
+import jacz.peerengineservice.client.PeersEventsImpl;
+import jacz.peerengineservice.client.connection.peers.PeerConnectionConfig;
+import jacz.peerengineservice.client.connection.peers.kb.PeerKnowledgeBase;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Startup latency of the connection manager, with a stub address detector and a stub peer server
+ */
+public class PeerClientConnectionManagerTest {
+
+    /**
+     * Generous bound for each step of the startup. Services notify their state changes, so none of the steps
+     * should wait for the retry timers (several seconds)
+     */
+    private static final long MAX_STEP_MILLIS = 3000L;
+
+    private static final String CONNECT_RESPONSE = "{\"response\":\"OK\",\"sessionID\":\"session\",\"minReminderTime\":\"600000\",\"maxReminderTime\":\"900000\"}";
+
+    /**
+     * Address detector that only detects the external address when the test releases it
+     */
+    private static class StubAddressDetector implements AddressDetector {
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String detectLocalAddress() throws IOException {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public String detectExternalAddress() {
+            try {
+                release.await();
+                return "127.0.0.1";
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+    }
+
+    private final AtomicInteger connectRequests = new AtomicInteger(0);
+
+    private HttpServer server;
+
+    private StubAddressDetector addressDetector;
+
+    private PeerClientConnectionManager peerClientConnectionManager;
+
+    /**
+     * Starts the stub peer server and builds a connection manager over new configuration files. Regular connections
+     * are not wished, so no peer is contacted
+     */
+    private void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/connect", exchange -> {
+            connectRequests.incrementAndGet();
+            respond(exchange, CONNECT_RESPONSE);
+        });
+        server.createContext("/disconnect", exchange -> respond(exchange, "{\"response\":\"OK\"}"));
+        server.createContext("/info", exchange -> respond(exchange, "{\"peerIDInfoList\":[]}"));
+        server.start();
+        String serverURL = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+
+        Path baseDir = Files.createTempDirectory("peerClientConnectionManager");
+        String peerConnectionConfigPath = baseDir.resolve("peerConnectionConfig.db").toString();
+        new PeerConnectionConfig(peerConnectionConfigPath, CountryCode.ES).setWishRegularConnections(false);
+        String peerKnowledgeBasePath = baseDir.resolve("peerKnowledgeBase.db").toString();
+        PeerKnowledgeBase.createNew(peerKnowledgeBasePath).stop();
+        String networkConfigurationPath = baseDir.resolve("networkConfig.db").toString();
+        new NetworkConfiguration(networkConfigurationPath, 0, 0);
+
+        addressDetector = new StubAddressDetector();
+        peerClientConnectionManager = new PeerClientConnectionManager(
+                new ConnectionEventsImpl(),
+                null,
+                new ConnectedPeers(),
+                PeerId.buildTestPeerId("1"),
+                new PeerEncryption(new byte[0]),
+                serverURL,
+                peerConnectionConfigPath,
+                peerKnowledgeBasePath,
+                networkConfigurationPath,
+                new PeersEventsImpl(),
+                addressDetector);
+    }
+
+    private void tearDown() {
+        peerClientConnectionManager.stop();
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        try (InputStream inputStream = exchange.getRequestBody()) {
+            while (inputStream.read() != -1) {
+                // discard the request
+            }
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    @org.junit.Test
+    public void testStartupLatency() throws IOException, InterruptedException {
+        setUp();
+        try {
+            peerClientConnectionManager.setWishForConnection(true);
+
+            // the local server opens while the external address is still being detected
+            Assert.assertTrue(waitFor(() -> peerClientConnectionManager.getLocalServerManager().getActualLocalPort() != null));
+            Assert.assertFalse(peerClientConnectionManager.getNetworkTopologyManager().isInWishedState());
+            Assert.assertEquals(0, connectRequests.get());
+            Assert.assertFalse(peerClientConnectionManager.isInWishedState());
+
+            // once detected, the rest of the services come up without waiting for any timer
+            long time = System.currentTimeMillis();
+            addressDetector.release.countDown();
+            Assert.assertTrue(waitFor(peerClientConnectionManager::isInWishedState));
+            Assert.assertTrue(System.currentTimeMillis() - time < MAX_STEP_MILLIS);
+            Assert.assertEquals(1, connectRequests.get());
+            // the reported state is updated right after entering each state
+            Assert.assertTrue(waitFor(() -> peerClientConnectionManager.getConnectionState().getConnectionToServerState() == ConnectionState.ConnectionToServerState.CONNECTED));
+            Assert.assertEquals(ConnectionState.LocalServerConnectionsState.LISTENING, peerClientConnectionManager.getConnectionState().getLocalServerConnectionsState());
+        } finally {
+            tearDown();
+        }
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + MAX_STEP_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+        return true;
+    }
+}
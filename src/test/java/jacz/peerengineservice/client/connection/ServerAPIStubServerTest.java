@@ -0,0 +1,147 @@
+package jacz.peerengineservice.client.connection;
+
+import com.neovisionaries.i18n.CountryCode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jacz.peerengineservice.PeerId;
+import org.junit.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests the server API client against an in-process stub server
+ */
+public class ServerAPIStubServerTest {
+
+    private static final int REQUESTS = 200;
+
+    /**
+     * Generous bound for the average round trip over loopback, so slow machines do not fail the test. Without
+     * connection reuse (a new connection and a delayed ack per request) it is exceeded by far
+     */
+    private static final long MAX_AVERAGE_ROUND_TRIP_MILLIS = 50L;
+
+    private static final String PEER_INFO = "{\"peerID\":\"%s\",\"localIPAddress\":\"192.168.1.%d\",\"externalIPAddress\":\"80.1.1.%d\"," +
+            "\"localMainServerPort\":\"%d\",\"externalMainServerPort\":\"%d\",\"clientCountryCode\":\"ES\",\"wishRegularConnections\":\"true\"}";
+
+    /**
+     * Remote ports of the connections accepted by the stub server
+     */
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<>());
+
+    private final AtomicInteger gzipResponses = new AtomicInteger(0);
+
+    private HttpServer startStubServer() throws IOException {
+        // avoid delayed acks in the stub server, so round trips measure the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/hello", exchange -> respond(exchange, 200, "hello"));
+        server.createContext("/info", exchange -> {
+            String request = readBody(exchange.getRequestBody());
+            StringBuilder response = new StringBuilder("{\"peerIDInfoList\":[");
+            for (int i = 1; i <= 20; i++) {
+                if (i > 1) {
+                    response.append(",");
+                }
+                response.append(String.format(PEER_INFO, PeerId.buildTestPeerId(Integer.toString(i)), i, i, 50000 + i, 60000 + i));
+            }
+            response.append("]}");
+            respond(exchange, request.contains("peerIDList") ? 200 : 400, response.toString());
+        });
+        server.createContext("/refresh", exchange -> {
+            readBody(exchange.getRequestBody());
+            respond(exchange, 503, "unavailable");
+        });
+        server.start();
+        return server;
+    }
+
+    private void respond(HttpExchange exchange, int code, String body) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+                gzipOutputStream.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            gzipResponses.incrementAndGet();
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+
+    private static String readBody(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String serverURL(HttpServer server) {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    @org.junit.Test
+    public void testRequests() throws IOException, ServerAccessException {
+        HttpServer server = startStubServer();
+        try {
+            ServerAPI serverAPI = new ServerAPI(serverURL(server), 2000, 2000, true);
+            Assert.assertEquals("hello", serverAPI.hello());
+            ServerAPI.InfoResponse infoResponse = serverAPI.info(new ServerAPI.InfoRequest(Collections.singletonList(PeerId.buildTestPeerId("1"))));
+            Assert.assertEquals(20, infoResponse.getPeerIdInfoList().size());
+            ServerAPI.PeerIdInfo peerIdInfo = infoResponse.getPeerIdInfoList().get(0);
+            Assert.assertEquals(PeerId.buildTestPeerId("1"), peerIdInfo.getPeerId());
+            Assert.assertEquals("192.168.1.1", peerIdInfo.getLocalIPAddress());
+            Assert.assertEquals(60001, peerIdInfo.getExternalMainServerPort());
+            Assert.assertEquals(CountryCode.ES, peerIdInfo.getMainCountry());
+            Assert.assertTrue(gzipResponses.get() > 0);
+            try {
+                serverAPI.refresh(new ServerAPI.UpdateRequest("session"));
+                Assert.fail();
+            } catch (ServerAccessException e) {
+                Assert.assertEquals(503, e.code);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @org.junit.Test
+    public void testConnectionReuse() throws IOException, ServerAccessException {
+        HttpServer server = startStubServer();
+        try {
+            ServerAPI serverAPI = new ServerAPI(serverURL(server));
+            List<PeerId> peerIds = Collections.singletonList(PeerId.buildTestPeerId("1"));
+            // warm up
+            serverAPI.info(new ServerAPI.InfoRequest(peerIds));
+            long time = System.nanoTime();
+            for (int i = 0; i < REQUESTS; i++) {
+                serverAPI.info(new ServerAPI.InfoRequest(peerIds));
+            }
+            time = System.nanoTime() - time;
+            // the same persistent connection is used for all sequential requests
+            Assert.assertEquals(1, clientPorts.size());
+            Assert.assertTrue(time / REQUESTS < MAX_AVERAGE_ROUND_TRIP_MILLIS * 1000000L);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package jacz.peerengineservice.client.connection;
+
+import org.junit.Assert;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup order of the connection services, using local stand-ins for the address detection, the local server
+ * and the peer server
+ */
+public class ServiceDependencyGraphTest {
+
+    /**
+     * Stand-in of a service that connects in the background when it is released, and reports when it is done
+     */
+    private static class FakeService {
+
+        private final CountDownLatch wished;
+
+        private final CountDownLatch release;
+
+        private final CountDownLatch connectedLatch;
+
+        private boolean wish;
+
+        private boolean connected;
+
+        private FakeService() {
+            wished = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+            connectedLatch = new CountDownLatch(1);
+        }
+
+        private synchronized void setWishForConnect(boolean wish) {
+            if (wish && !this.wish) {
+                wished.countDown();
+                new Thread(() -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (FakeService.this) {
+                        connected = true;
+                    }
+                    connectedLatch.countDown();
+                }).start();
+            } else if (!wish) {
+                connected = false;
+            }
+            this.wish = wish;
+        }
+
+        private synchronized boolean isInWishedState() {
+            return wish == connected;
+        }
+
+        private boolean isWished() {
+            return wished.getCount() == 0;
+        }
+
+        private void connect() throws InterruptedException {
+            release.countDown();
+            Assert.assertTrue(connectedLatch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @org.junit.Test
+    public void testStartupOrder() throws InterruptedException {
+        FakeService addressDetection = new FakeService();
+        FakeService localServer = new FakeService();
+        FakeService peerServer = new FakeService();
+        FakeService peerConnections = new FakeService();
+        ServiceDependencyGraph serviceGraph = new ServiceDependencyGraph();
+        serviceGraph.addService("networkTopology", addressDetection::setWishForConnect, addressDetection::isInWishedState);
+        serviceGraph.addService("localServer", localServer::setWishForConnect, localServer::isInWishedState);
+        serviceGraph.addService("peerServer", peerServer::setWishForConnect, peerServer::isInWishedState, "networkTopology", "localServer");
+        serviceGraph.addService("peerConnections", peerConnections::setWishForConnect, peerConnections::isInWishedState, "peerServer");
+
+        // address detection and local server start concurrently
+        Assert.assertFalse(serviceGraph.connect());
+        Assert.assertTrue(addressDetection.isWished());
+        Assert.assertTrue(localServer.isWished());
+        Assert.assertFalse(peerServer.isWished());
+
+        // the peer server waits for all its dependencies
+        addressDetection.connect();
+        Assert.assertFalse(serviceGraph.connect());
+        Assert.assertFalse(peerServer.isWished());
+        localServer.connect();
+        Assert.assertFalse(serviceGraph.connect());
+        Assert.assertTrue(peerServer.isWished());
+        Assert.assertFalse(peerConnections.isWished());
+
+        peerServer.connect();
+        Assert.assertFalse(serviceGraph.connect());
+        Assert.assertTrue(peerConnections.isWished());
+        peerConnections.connect();
+        Assert.assertTrue(serviceGraph.connect());
+
+        serviceGraph.disconnect();
+        Assert.assertTrue(serviceGraph.isInWishedState());
+    }
+
+    @org.junit.Test
+    public void testUnknownDependency() {
+        try {
+            new ServiceDependencyGraph().addService("peerServer", wish -> {
+            }, () -> true, "localServer");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
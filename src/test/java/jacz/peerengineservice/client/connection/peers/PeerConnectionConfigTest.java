@@ -0,0 +1,149 @@
+package jacz.peerengineservice.client.connection.peers;
+
+import com.neovisionaries.i18n.CountryCode;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the snapshot and the listeners of the connection configuration
+ */
+public class PeerConnectionConfigTest {
+
+    private PeerConnectionConfig peerConnectionConfig;
+
+    private List<PeerConnectionConfig.Snapshot[]> changes;
+
+    private int transfersChanges;
+
+    /**
+     * Creates a new configuration, with a listener that records all changes and counts the transfer related ones
+     * (as the connection manager does before notifying its transfers config listeners)
+     */
+    private void setUp() throws IOException {
+        String path = Files.createTempDirectory("peerConnectionConfig").resolve("config.db").toString();
+        peerConnectionConfig = new PeerConnectionConfig(path, CountryCode.ES);
+        changes = new ArrayList<>();
+        transfersChanges = 0;
+        peerConnectionConfig.addListener((previous, current) -> {
+            changes.add(new PeerConnectionConfig.Snapshot[]{previous, current});
+            if (current.transfersConfigDiffers(previous)) {
+                transfersChanges++;
+            }
+        });
+    }
+
+    @org.junit.Test
+    public void testSettersRebuildSnapshot() throws IOException {
+        setUp();
+        PeerConnectionConfig.Snapshot snapshot = peerConnectionConfig.getSnapshot();
+        Assert.assertEquals(100, snapshot.getMaxRegularConnections());
+        Assert.assertSame(snapshot, peerConnectionConfig.getSnapshot());
+
+        Assert.assertTrue(peerConnectionConfig.setMaxRegularConnections(50));
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(50, snapshot.getMaxRegularConnections());
+
+        Assert.assertTrue(peerConnectionConfig.setWishRegularConnections(false));
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertFalse(snapshot.isWishRegularConnections());
+
+        Assert.assertTrue(peerConnectionConfig.setMainCountry(CountryCode.FR));
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(CountryCode.FR, snapshot.getMainCountry());
+
+        peerConnectionConfig.setAdditionalCountries(Arrays.asList(CountryCode.US, CountryCode.GB));
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(Arrays.asList(CountryCode.US, CountryCode.GB), snapshot.getAdditionalCountries());
+
+        Assert.assertTrue(peerConnectionConfig.setMaxRegularConnectionsForAdditionalCountries(8));
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(8, snapshot.getMaxRegularConnectionsForAdditionalCountries());
+
+        peerConnectionConfig.setMaxDownloadSpeed(100f);
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(100f, snapshot.getMaxDownloadSpeed(), 0f);
+
+        peerConnectionConfig.setMaxUploadSpeed(50f);
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(50f, snapshot.getMaxUploadSpeed(), 0f);
+
+        peerConnectionConfig.setDownloadPartSelectionAccuracy(0.8d);
+        snapshot = assertRebuilt(snapshot);
+        Assert.assertEquals(0.8d, snapshot.getDownloadPartSelectionAccuracy(), 0d);
+        Assert.assertEquals(8, changes.size());
+
+        // setting the same value again does not rebuild the snapshot nor notify
+        Assert.assertFalse(peerConnectionConfig.setMaxRegularConnections(50));
+        Assert.assertSame(snapshot, peerConnectionConfig.getSnapshot());
+        Assert.assertEquals(8, changes.size());
+    }
+
+    @org.junit.Test
+    public void testTransfersChanges() throws IOException {
+        setUp();
+        peerConnectionConfig.setMaxRegularConnections(50);
+        peerConnectionConfig.setWishRegularConnections(false);
+        peerConnectionConfig.setMainCountry(CountryCode.FR);
+        peerConnectionConfig.setAdditionalCountries(Arrays.asList(CountryCode.US, CountryCode.GB));
+        peerConnectionConfig.setMaxRegularConnectionsForAdditionalCountries(8);
+        Assert.assertEquals(5, changes.size());
+        Assert.assertEquals(0, transfersChanges);
+
+        peerConnectionConfig.setMaxDownloadSpeed(100f);
+        Assert.assertEquals(1, transfersChanges);
+        peerConnectionConfig.setMaxUploadSpeed(50f);
+        Assert.assertEquals(2, transfersChanges);
+        peerConnectionConfig.setDownloadPartSelectionAccuracy(0.8d);
+        Assert.assertEquals(3, transfersChanges);
+        peerConnectionConfig.setMaxUploadSpeed(null);
+        Assert.assertEquals(4, transfersChanges);
+
+        // unchanged transfer values are notified to the listeners, but are not transfer changes
+        peerConnectionConfig.setMaxDownloadSpeed(100f);
+        Assert.assertEquals(10, changes.size());
+        Assert.assertEquals(4, transfersChanges);
+    }
+
+    @org.junit.Test
+    public void testSnapshotImmutable() throws IOException {
+        setUp();
+        peerConnectionConfig.setAdditionalCountries(Arrays.asList(CountryCode.US));
+        PeerConnectionConfig.Snapshot snapshot = peerConnectionConfig.getSnapshot();
+
+        peerConnectionConfig.setMaxRegularConnections(50);
+        peerConnectionConfig.setMainCountry(CountryCode.FR);
+        peerConnectionConfig.setAdditionalCountries(Arrays.asList(CountryCode.GB, CountryCode.DE));
+        peerConnectionConfig.setMaxDownloadSpeed(100f);
+        peerConnectionConfig.setDownloadPartSelectionAccuracy(0.8d);
+        Assert.assertEquals(100, snapshot.getMaxRegularConnections());
+        Assert.assertEquals(CountryCode.ES, snapshot.getMainCountry());
+        Assert.assertEquals(Arrays.asList(CountryCode.US), snapshot.getAdditionalCountries());
+        Assert.assertNull(snapshot.getMaxDownloadSpeed());
+        Assert.assertEquals(0.5d, snapshot.getDownloadPartSelectionAccuracy(), 0d);
+
+        try {
+            snapshot.getAdditionalCountries().add(CountryCode.IT);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        // the configuration hands out copies of the additional countries
+        peerConnectionConfig.getAdditionalCountries().add(CountryCode.IT);
+        Assert.assertEquals(Arrays.asList(CountryCode.GB, CountryCode.DE), peerConnectionConfig.getSnapshot().getAdditionalCountries());
+    }
+
+    private PeerConnectionConfig.Snapshot assertRebuilt(PeerConnectionConfig.Snapshot previous) {
+        PeerConnectionConfig.Snapshot current = peerConnectionConfig.getSnapshot();
+        Assert.assertNotSame(previous, current);
+        PeerConnectionConfig.Snapshot[] lastChange = changes.get(changes.size() - 1);
+        Assert.assertSame(previous, lastChange[0]);
+        Assert.assertSame(current, lastChange[1]);
+        return current;
+    }
+}
@@ -0,0 +1,139 @@
+package jacz.peerengineservice.client.connection.peers;
+
+import com.neovisionaries.i18n.CountryCode;
+import jacz.peerengineservice.PeerId;
+import jacz.peerengineservice.client.connection.ServerAPI;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for the peer info resolver
+ */
+public class PeerInfoResolverTest {
+
+    /**
+     * Fake server. Only knows peers with even ids
+     */
+    private static class FakeInfoSource implements PeerInfoResolver.InfoSource {
+
+        private final AtomicInteger calls = new AtomicInteger(0);
+
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        private final long delay;
+
+        private FakeInfoSource(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public ServerAPI.InfoResponse info(List<PeerId> peerIds) throws IOException {
+            calls.incrementAndGet();
+            batchSizes.add(peerIds.size());
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            List<ServerAPI.PeerIdInfo> peerIdInfoList = new ArrayList<>();
+            for (PeerId peerId : peerIds) {
+                if (ids.get(peerId) % 2 == 0) {
+                    peerIdInfoList.add(new ServerAPI.PeerIdInfo(peerId, "192.168.1.1", "80.1.1.1", 50000, -1, 50000, -1, CountryCode.ES, true));
+                }
+            }
+            return new ServerAPI.InfoResponse(peerIdInfoList);
+        }
+    }
+
+    private static final Map<PeerId, Integer> ids = new HashMap<>();
+
+    private static List<PeerId> peers(int from, int to) {
+        List<PeerId> peerIds = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            PeerId peerId = PeerId.buildTestPeerId(Integer.toString(i));
+            synchronized (ids) {
+                ids.put(peerId, i);
+            }
+            peerIds.add(peerId);
+        }
+        return peerIds;
+    }
+
+    @org.junit.Test
+    public void testCacheAndBatches() throws Exception {
+        FakeInfoSource infoSource = new FakeInfoSource(0);
+        PeerInfoResolver peerInfoResolver = new PeerInfoResolver(infoSource, 60000L, 10);
+        Assert.assertEquals(13, peerInfoResolver.resolve(peers(0, 25)).size());
+        Assert.assertEquals(3, infoSource.calls.get());
+        Assert.assertEquals(Arrays.asList(10, 10, 5), infoSource.batchSizes);
+        // known and unknown peers are cached
+        Assert.assertEquals(13, peerInfoResolver.resolve(peers(0, 25)).size());
+        Assert.assertEquals(3, infoSource.calls.get());
+        Assert.assertEquals(4, peerInfoResolver.resolve(peers(20, 27)).size());
+        Assert.assertEquals(4, infoSource.calls.get());
+        Assert.assertEquals(Arrays.asList(10, 10, 5, 2), infoSource.batchSizes);
+    }
+
+    @org.junit.Test
+    public void testExpiration() throws Exception {
+        FakeInfoSource infoSource = new FakeInfoSource(0);
+        PeerInfoResolver peerInfoResolver = new PeerInfoResolver(infoSource, 50L, 10);
+        peerInfoResolver.resolve(peers(0, 5));
+        Thread.sleep(100);
+        peerInfoResolver.resolve(peers(0, 5));
+        Assert.assertEquals(2, infoSource.calls.get());
+    }
+
+    @org.junit.Test
+    public void testCoalescing() throws Exception {
+        FakeInfoSource infoSource = new FakeInfoSource(200);
+        PeerInfoResolver peerInfoResolver = new PeerInfoResolver(infoSource, 60000L, 50);
+        List<PeerId> peerIds = peers(0, 20);
+        int threads = 10;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch end = new CountDownLatch(threads);
+        AtomicInteger resolvedPeers = new AtomicInteger(0);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    resolvedPeers.addAndGet(peerInfoResolver.resolve(peerIds).size());
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    end.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        end.await();
+        Assert.assertNull(failure.get());
+        // all threads get the info of all the known peers, with one server call
+        Assert.assertEquals(threads * 10, resolvedPeers.get());
+        Assert.assertEquals(1, infoSource.calls.get());
+    }
+
+    @org.junit.Test
+    public void testFailedLookup() throws Exception {
+        PeerInfoResolver peerInfoResolver = new PeerInfoResolver(peerIds -> {
+            throw new IOException("server down");
+        });
+        try {
+            peerInfoResolver.resolve(peers(0, 5));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        FakeInfoSource infoSource = new FakeInfoSource(0);
+        peerInfoResolver = new PeerInfoResolver(infoSource);
+        peerInfoResolver.store(Collections.singletonList(new ServerAPI.PeerIdInfo(peers(2, 3).get(0), "192.168.1.1", "80.1.1.1", 50000, -1, 50000, -1, CountryCode.ES, true)));
+        Assert.assertEquals(1, peerInfoResolver.resolve(peers(2, 3)).size());
+        Assert.assertEquals(0, infoSource.calls.get());
+    }
+}
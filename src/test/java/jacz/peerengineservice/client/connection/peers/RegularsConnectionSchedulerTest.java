@@ -0,0 +1,172 @@
+package jacz.peerengineservice.client.connection.peers;
+
+import com.neovisionaries.i18n.CountryCode;
+import jacz.peerengineservice.PeerId;
+import jacz.peerengineservice.client.connection.peers.kb.PeerEntryFacade;
+import jacz.peerengineservice.client.connection.peers.kb.PeerKnowledgeBase;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Tests for the backoff, batch sizing and refresh rules of the regulars connection scheduler
+ */
+public class RegularsConnectionSchedulerTest {
+
+    private static final String dbPath = "regularsScheduler.db";
+
+    private static final long BASE_BACKOFF = 10000L;
+
+    private static final long REFRESH_INTERVAL = 1000L * 60L * 5L;
+
+    private PeerKnowledgeBase pkb;
+
+    private AtomicLong time;
+
+    private RegularsConnectionScheduler scheduler;
+
+    private List<PeerEntryFacade> peers;
+
+    private AtomicInteger queries;
+
+    private Supplier<List<PeerEntryFacade>> query;
+
+    private void setUp(int peerCount) {
+        pkb = PeerKnowledgeBase.createNew(dbPath);
+        time = new AtomicLong(1000000L);
+        scheduler = new RegularsConnectionScheduler(time::get);
+        peers = new ArrayList<>();
+        for (int i = 1; i <= peerCount; i++) {
+            peers.add(pkb.getPeerEntryFacade(PeerId.buildTestPeerId("" + i)));
+        }
+        queries = new AtomicInteger(0);
+        query = () -> {
+            queries.incrementAndGet();
+            return new ArrayList<>(peers);
+        };
+    }
+
+    @org.junit.Test
+    public void testRefreshRules() {
+        setUp(10);
+
+        // first cycle queries the knowledge base, next cycles use the in-memory queue
+        Assert.assertTrue(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(10, scheduler.candidateCount(CountryCode.ES));
+        Assert.assertFalse(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(1, queries.get());
+
+        // other countries have their own queue
+        Assert.assertTrue(scheduler.refreshIfNeeded(CountryCode.FR, ArrayList::new));
+        Assert.assertEquals(0, scheduler.candidateCount(CountryCode.FR));
+
+        // new peers loaded in the knowledge base
+        peers.add(pkb.getPeerEntryFacade(PeerId.buildTestPeerId("11")));
+        Assert.assertFalse(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        scheduler.knowledgeBaseUpdated();
+        Assert.assertTrue(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(11, scheduler.candidateCount(CountryCode.ES));
+
+        // refresh interval expired. Peers no longer retrieved are removed
+        peers.remove(0);
+        time.addAndGet(REFRESH_INTERVAL);
+        Assert.assertFalse(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        time.addAndGet(1L);
+        Assert.assertTrue(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(10, scheduler.candidateCount(CountryCode.ES));
+        Assert.assertEquals(3, queries.get());
+
+        // empty queue (all candidates in flight or connected)
+        List<PeerEntryFacade> batch = scheduler.retrieveBatch(CountryCode.ES, 10, peerEntryFacade -> false);
+        Assert.assertEquals(10, batch.size());
+        for (PeerEntryFacade peerEntryFacade : batch) {
+            scheduler.attemptSucceeded(peerEntryFacade.getPeerId());
+        }
+        Assert.assertEquals(0, scheduler.candidateCount(CountryCode.ES));
+        Assert.assertTrue(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(4, queries.get());
+        pkb.stop();
+    }
+
+    @org.junit.Test
+    public void testBackoff() {
+        setUp(3);
+        scheduler.refreshIfNeeded(CountryCode.ES, query);
+
+        List<PeerEntryFacade> batch = scheduler.retrieveBatch(CountryCode.ES, 3, peerEntryFacade -> false);
+        Assert.assertEquals(3, batch.size());
+        Assert.assertFalse(scheduler.hasReadyCandidates(CountryCode.ES));
+        for (PeerEntryFacade peerEntryFacade : batch) {
+            scheduler.attemptFailed(peerEntryFacade.getPeerId());
+        }
+
+        // all candidates are backed off -> no ready candidates, and no knowledge base queries
+        Assert.assertEquals(3, scheduler.candidateCount(CountryCode.ES));
+        Assert.assertFalse(scheduler.hasReadyCandidates(CountryCode.ES));
+        Assert.assertFalse(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(1, queries.get());
+        Assert.assertTrue(scheduler.retrieveBatch(CountryCode.ES, 3, peerEntryFacade -> false).isEmpty());
+
+        // backoff survives refreshes
+        scheduler.knowledgeBaseUpdated();
+        Assert.assertTrue(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertFalse(scheduler.hasReadyCandidates(CountryCode.ES));
+
+        // after the backoff, candidates are ready again
+        time.addAndGet(BASE_BACKOFF);
+        Assert.assertTrue(scheduler.hasReadyCandidates(CountryCode.ES));
+        batch = scheduler.retrieveBatch(CountryCode.ES, 3, peerEntryFacade -> false);
+        Assert.assertEquals(3, batch.size());
+
+        // second failure doubles the backoff
+        scheduler.attemptFailed(batch.get(0).getPeerId());
+        time.addAndGet(BASE_BACKOFF);
+        Assert.assertFalse(scheduler.hasReadyCandidates(CountryCode.ES));
+        time.addAndGet(BASE_BACKOFF);
+        Assert.assertTrue(scheduler.hasReadyCandidates(CountryCode.ES));
+        Assert.assertEquals(1, scheduler.candidateCount(CountryCode.ES));
+
+        // unreported attempts eventually count as failures
+        time.addAndGet(10001L);
+        Assert.assertFalse(scheduler.refreshIfNeeded(CountryCode.ES, query));
+        Assert.assertEquals(3, scheduler.candidateCount(CountryCode.ES));
+        pkb.stop();
+    }
+
+    @org.junit.Test
+    public void testBatchSize() {
+        setUp(100);
+        peers.get(50).setAffinity(10);
+        scheduler.refreshIfNeeded(CountryCode.ES, query);
+
+        // higher affinity comes first, then the order of the knowledge base
+        List<PeerEntryFacade> batch = scheduler.retrieveBatch(CountryCode.ES, 1, peerEntryFacade -> false);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals(peers.get(50).getPeerId(), batch.get(0).getPeerId());
+        Assert.assertEquals(peers.get(0).getPeerId(), batch.get(1).getPeerId());
+
+        // attempts in flight count towards the needed connections
+        Assert.assertEquals(2, scheduler.retrieveBatch(CountryCode.ES, 2, peerEntryFacade -> false).size());
+        // but we always try at least a few peers
+        Assert.assertEquals(3, scheduler.retrieveBatch(CountryCode.ES, 3, peerEntryFacade -> false).size());
+        // and never too many
+        Assert.assertEquals(40, scheduler.retrieveBatch(CountryCode.ES, 50, peerEntryFacade -> false).size());
+
+        // a low success ratio enlarges the batches
+        RegularsConnectionScheduler otherScheduler = new RegularsConnectionScheduler(time::get);
+        otherScheduler.refreshIfNeeded(CountryCode.ES, query);
+        for (PeerEntryFacade peerEntryFacade : otherScheduler.retrieveBatch(CountryCode.ES, 10, peerEntryFacade -> false)) {
+            otherScheduler.attemptFailed(peerEntryFacade.getPeerId());
+        }
+        Assert.assertEquals(40, otherScheduler.retrieveBatch(CountryCode.ES, 4, peerEntryFacade -> false).size());
+
+        // discarded candidates are dropped from the queue. Backed off candidates stay
+        Assert.assertTrue(otherScheduler.retrieveBatch(CountryCode.ES, 5, peerEntryFacade -> true).isEmpty());
+        Assert.assertEquals(20, otherScheduler.candidateCount(CountryCode.ES));
+        pkb.stop();
+    }
+}
@@ -0,0 +1,75 @@
+package jacz.peerengineservice.client.connection.peers.kb;
+
+import com.neovisionaries.i18n.CountryCode;
+import org.aanguita.jacuzzi.lists.tuple.Duple;
+import org.javalite.activejdbc.DB;
+import org.junit.Assert;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schema versioning and query plan tests
+ */
+public class ManagementTest {
+
+    private static final String dbPath = "peerKBManagement.db";
+
+    @org.junit.Test
+    public void testSchemaVersion() {
+        Management.dropAndCreateKBDatabase(dbPath);
+        DB db = PooledConnectionController.connect(dbPath);
+        try {
+            Assert.assertEquals(Management.CURRENT_SCHEMA_VERSION, Management.getSchemaVersion(db));
+            // simulate a database from before schema versioning
+            db.exec("DROP INDEX " + Management.RELATIONSHIP_CONNECTED_COUNTRY_INDEX);
+            db.exec("PRAGMA user_version = 0");
+        } finally {
+            PooledConnectionController.disconnect(dbPath);
+        }
+
+        PeerKnowledgeBase pkb = new PeerKnowledgeBase(dbPath);
+        db = PooledConnectionController.connect(dbPath);
+        try {
+            Assert.assertEquals(Management.CURRENT_SCHEMA_VERSION, Management.getSchemaVersion(db));
+            Assert.assertEquals(1L, ((Number) db.firstCell("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ?", Management.RELATIONSHIP_CONNECTED_COUNTRY_INDEX)).longValue());
+        } finally {
+            PooledConnectionController.disconnect(dbPath);
+        }
+        pkb.stop();
+    }
+
+    @org.junit.Test
+    public void testQueryPlans() {
+        Management.dropAndCreateKBDatabase(dbPath);
+
+        assertPeerQueryUsesIndex(Management.Relationship.REGULAR, PeerKnowledgeBase.ConnectedQuery.DISCONNECTED, CountryCode.ES.toString(), Management.RELATIONSHIP_CONNECTED_COUNTRY_INDEX);
+        assertPeerQueryUsesIndex(Management.Relationship.FAVORITE, PeerKnowledgeBase.ConnectedQuery.DISCONNECTED, null, Management.RELATIONSHIP_CONNECTED_INDEX);
+        assertPeerQueryUsesIndex(Management.Relationship.BLOCKED, PeerKnowledgeBase.ConnectedQuery.ALL, null, Management.RELATIONSHIP_INDEX);
+
+        String plan = queryPlan("SELECT * FROM " + Management.TABLE_NAME + " WHERE " + Management.LAST_SESSION.name + " < ?", 0L);
+        Assert.assertTrue(plan, plan.contains(Management.LAST_SESSION_INDEX));
+    }
+
+    private void assertPeerQueryUsesIndex(Management.Relationship relationship, PeerKnowledgeBase.ConnectedQuery connectedQuery, String country, String index) {
+        Duple<String, Object[]> queryAndParams = PeerKnowledgeBase.buildQuery(relationship, connectedQuery, country);
+        String plan = queryPlan(
+                "SELECT * FROM " + Management.TABLE_NAME + " WHERE " + queryAndParams.element1 + " ORDER BY " + Management.PEER_ORDER,
+                queryAndParams.element2);
+        Assert.assertTrue(plan, plan.contains(index));
+        Assert.assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    private String queryPlan(String query, Object... params) {
+        DB db = PooledConnectionController.connect(dbPath);
+        try {
+            StringBuilder plan = new StringBuilder();
+            for (Map row : (List<Map>) db.findAll("EXPLAIN QUERY PLAN " + query, params)) {
+                plan.append(row.get("detail")).append("\n");
+            }
+            return plan.toString();
+        } finally {
+            PooledConnectionController.disconnect(dbPath);
+        }
+    }
+}
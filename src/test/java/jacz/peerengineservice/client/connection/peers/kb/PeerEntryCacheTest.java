@@ -0,0 +1,170 @@
+package jacz.peerengineservice.client.connection.peers.kb;
+
+import com.neovisionaries.i18n.CountryCode;
+import org.junit.Assert;
+
+/**
+ * Peer entry cache tests: hits, eviction, write-back of dirty entries and invalidation
+ */
+public class PeerEntryCacheTest {
+
+    private static final String dbPath = "peerEntryCache.db";
+
+    /**
+     * Long enough so the flush timer does not interfere with the tests
+     */
+    private static final long DURABILITY_WINDOW = 60000L;
+
+    @org.junit.Test
+    public void testHits() {
+        Management.dropAndCreateKBDatabase(dbPath);
+        PeerEntryCache cache = new PeerEntryCache(dbPath, DURABILITY_WINDOW, 2);
+
+        Assert.assertNull(cache.get("01"));
+        PeerEntry peerEntry = cache.load("01");
+        Assert.assertSame(peerEntry, cache.get("01"));
+        Assert.assertSame(peerEntry, cache.load("01"));
+        // entries read by queries reuse the cached instance
+        Assert.assertSame(peerEntry, cache.cache(readFromDatabase("01")));
+        cache.stop();
+    }
+
+    @org.junit.Test
+    public void testEviction() {
+        Management.dropAndCreateKBDatabase(dbPath);
+        PeerEntryCache cache = new PeerEntryCache(dbPath, DURABILITY_WINDOW, 2);
+
+        cache.load("01");
+        cache.load("02");
+        cache.load("03");
+        Assert.assertNull(cache.get("01"));
+
+        // dirty entries are evicted, but returned until they are written
+        PeerEntryFacade peerEntryFacade = new PeerEntryFacade(cache.load("01"), cache);
+        peerEntryFacade.setAffinity(5);
+        cache.load("02");
+        cache.load("03");
+        PeerEntry dirtyEntry = cache.get("01");
+        Assert.assertNotNull(dirtyEntry);
+        Assert.assertEquals(5, dirtyEntry.getInteger(Management.AFFINITY.name).intValue());
+
+        cache.flush();
+        cache.load("02");
+        cache.load("03");
+        Assert.assertNull(cache.get("01"));
+        Assert.assertEquals(5, cache.load("01").getInteger(Management.AFFINITY.name).intValue());
+        cache.stop();
+    }
+
+    @org.junit.Test
+    public void testEvictionWithFacade() {
+        Management.dropAndCreateKBDatabase(dbPath);
+        PeerEntryCache cache = new PeerEntryCache(dbPath, DURABILITY_WINDOW, 2);
+
+        // an evicted clean entry is stale, so its facade reads it again
+        PeerEntryFacade peerEntryFacade = new PeerEntryFacade(cache.load("01"), cache);
+        PeerEntry oldEntry = cache.get("01");
+        cache.load("02");
+        cache.load("03");
+        Assert.assertTrue(oldEntry.isStale());
+        Assert.assertFalse(cache.markDirty(oldEntry));
+        peerEntryFacade.setAffinity(4);
+        PeerEntry newEntry = cache.get("01");
+        Assert.assertNotSame(oldEntry, newEntry);
+        Assert.assertEquals(4, newEntry.getInteger(Management.AFFINITY.name).intValue());
+        // facades created later share the instance of the first facade
+        PeerEntryFacade otherPeerEntryFacade = new PeerEntryFacade(cache.load("01"), cache);
+        otherPeerEntryFacade.setAffinity(5);
+        Assert.assertEquals(5, peerEntryFacade.getAffinity());
+
+        // an evicted dirty entry is stale once written
+        cache.load("02");
+        cache.load("03");
+        Assert.assertFalse(newEntry.isStale());
+        cache.flush();
+        Assert.assertTrue(newEntry.isStale());
+        Assert.assertEquals(5, peerEntryFacade.getAffinity());
+        peerEntryFacade.setAffinity(6);
+        Assert.assertEquals(6, otherPeerEntryFacade.getAffinity());
+        cache.flush();
+        Assert.assertEquals(6, readFromDatabase("01").getInteger(Management.AFFINITY.name).intValue());
+        cache.stop();
+    }
+
+    @org.junit.Test
+    public void testDirtyWriteBack() {
+        Management.dropAndCreateKBDatabase(dbPath);
+        PeerEntryCache cache = new PeerEntryCache(dbPath, DURABILITY_WINDOW, 2);
+
+        PeerEntryFacade peerEntryFacade = new PeerEntryFacade(cache.load("01"), cache);
+        peerEntryFacade.setAffinity(7);
+        peerEntryFacade.setMainCountry(CountryCode.ES);
+        // modifications are kept in memory until the flush
+        Assert.assertEquals(0, readFromDatabase("01").getInteger(Management.AFFINITY.name).intValue());
+        cache.flush();
+        PeerEntry peerEntry = readFromDatabase("01");
+        Assert.assertEquals(7, peerEntry.getInteger(Management.AFFINITY.name).intValue());
+        Assert.assertEquals(CountryCode.ES.toString(), peerEntry.getString(Management.MAIN_COUNTRY.name));
+
+        // stopping the cache writes pending modifications
+        peerEntryFacade.setAffinity(8);
+        cache.stop();
+        Assert.assertEquals(8, readFromDatabase("01").getInteger(Management.AFFINITY.name).intValue());
+    }
+
+    @org.junit.Test
+    public void testInvalidate() {
+        Management.dropAndCreateKBDatabase(dbPath);
+        PeerEntryCache cache = new PeerEntryCache(dbPath, DURABILITY_WINDOW, 2);
+
+        PeerEntryFacade peerEntryFacade = new PeerEntryFacade(cache.load("01"), cache);
+        PeerEntry oldEntry = cache.get("01");
+        peerEntryFacade.setMainCountry(CountryCode.ES);
+        cache.invalidate(() -> {
+            PooledConnectionController.connect(dbPath);
+            try {
+                PeerEntry.updateAll(Management.AFFINITY.name + " = ?", 9);
+            } finally {
+                PooledConnectionController.disconnect(dbPath);
+            }
+        });
+
+        // pending modifications were written before the bulk modification
+        Assert.assertEquals(CountryCode.ES.toString(), readFromDatabase("01").getString(Management.MAIN_COUNTRY.name));
+        // the facade sees the bulk modification
+        Assert.assertTrue(oldEntry.isStale());
+        Assert.assertNull(cache.get("01"));
+        Assert.assertEquals(9, peerEntryFacade.getAffinity());
+        Assert.assertNotSame(oldEntry, cache.get("01"));
+
+        // the stale entry is not written back
+        cache.markDirty(oldEntry);
+        peerEntryFacade.setMainCountry(CountryCode.FR);
+        cache.flush();
+        PeerEntry peerEntry = readFromDatabase("01");
+        Assert.assertEquals(9, peerEntry.getInteger(Management.AFFINITY.name).intValue());
+        Assert.assertEquals(CountryCode.FR.toString(), peerEntry.getString(Management.MAIN_COUNTRY.name));
+
+        // deleted entries are created again
+        cache.invalidate(() -> {
+            PooledConnectionController.connect(dbPath);
+            try {
+                PeerEntry.deleteAll();
+            } finally {
+                PooledConnectionController.disconnect(dbPath);
+            }
+        });
+        Assert.assertEquals(0, peerEntryFacade.getAffinity());
+        Assert.assertNull(peerEntryFacade.getMainCountry());
+        cache.stop();
+    }
+
+    private static PeerEntry readFromDatabase(String peerId) {
+        PooledConnectionController.connect(dbPath);
+        try {
+            return PeerEntry.findFirst(Management.PEER_ID.name + " = ?", peerId);
+        } finally {
+            PooledConnectionController.disconnect(dbPath);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.aanguita.jacuzzi.concurrency.ThreadUtil;
 import org.aanguita.jacuzzi.network.IP4Port;
 import org.junit.Assert;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -206,6 +207,7 @@ public class PeerKnowledgeBaseTest {
         pkb.getPeerEntryFacade(peerId10).updateConnectionAttempt();
 
         // force new session
+        pkb.stop();
         pkb = new PeerKnowledgeBase(dbPath);
 
         checkNewSessionPeer(pkb, peerId01, Management.ConnectionWish.NO);
@@ -303,4 +305,38 @@ public class PeerKnowledgeBaseTest {
         Assert.assertEquals(peerId04, peers.get(8).getPeerId());
         Assert.assertEquals(peerId06, peers.get(9).getPeerId());
     }
+
+    @org.junit.Test
+    public void testUpdatePeers() {
+
+        Management.dropAndCreateKBDatabase(dbPath);
+
+        PeerKnowledgeBase pkb = new PeerKnowledgeBase(dbPath);
+        PeerId peerId01 = PeerId.buildTestPeerId("01");
+        pkb.getPeerEntryFacade(peerId01).setAffinity(10);
+
+        List<PeerKnowledgeBase.PeerDataUpdate> peerDataUpdates = new ArrayList<>();
+        for (int i = 1; i <= 500; i++) {
+            peerDataUpdates.add(new PeerKnowledgeBase.PeerDataUpdate(
+                    PeerId.buildTestPeerId("" + i),
+                    CountryCode.ES,
+                    i % 2 == 0 ? Management.ConnectionWish.YES : Management.ConnectionWish.NO,
+                    new PeerAddress(new IP4Port("205.103.101.94", 30000 + i), new IP4Port("192.168.1.27", 50000))));
+        }
+        pkb.updatePeers(peerDataUpdates);
+
+        Assert.assertEquals(500, pkb.getRegularPeersCount(PeerKnowledgeBase.ConnectedQuery.ALL, CountryCode.ES));
+        // existing peer keeps its data, and its cached entry sees the update
+        PeerEntryFacade peerEntryFacade = pkb.getPeerEntryFacade(peerId01);
+        Assert.assertEquals(10, peerEntryFacade.getAffinity());
+        Assert.assertEquals(CountryCode.ES, peerEntryFacade.getMainCountry());
+        Assert.assertEquals(Management.ConnectionWish.NO, peerEntryFacade.getWishForRegularConnections());
+        Assert.assertEquals(30001, peerEntryFacade.getPeerAddress().getExternalAddress().getPort());
+        // new peer gets default values
+        peerEntryFacade = pkb.getPeerEntryFacade(PeerId.buildTestPeerId("250"));
+        Assert.assertEquals(Management.Relationship.REGULAR, peerEntryFacade.getRelationship());
+        Assert.assertEquals(Management.ConnectionWish.YES, peerEntryFacade.getWishForRegularConnections());
+        Assert.assertEquals(30250, peerEntryFacade.getPeerAddress().getExternalAddress().getPort());
+        pkb.stop();
+    }
 }
@@ -0,0 +1,99 @@
+package jacz.peerengineservice.client.connection.peers.kb;
+
+import org.javalite.activejdbc.DB;
+import org.junit.Assert;
+
+/**
+ * Connection reuse and nesting tests. Temporary tables are private to each physical connection, so they tell which
+ * connection is attached to the thread
+ */
+public class PooledConnectionControllerTest {
+
+    private static final String dbPathA = "pooledConnectionA.db";
+
+    private static final String dbPathB = "pooledConnectionB.db";
+
+    @org.junit.Test
+    public void testReuse() {
+        DB db = PooledConnectionController.connect(dbPathA);
+        try {
+            db.exec("CREATE TEMP TABLE reuse_test(x INTEGER)");
+        } finally {
+            PooledConnectionController.disconnect(dbPathA);
+        }
+        // the idle connection is given again
+        db = PooledConnectionController.connect(dbPathA);
+        try {
+            Assert.assertEquals(0L, countRows(db, "reuse_test"));
+            db.exec("DROP TABLE reuse_test");
+        } finally {
+            PooledConnectionController.disconnect(dbPathA);
+        }
+        PooledConnectionController.close(dbPathA);
+    }
+
+    @org.junit.Test
+    public void testNesting() {
+        DB db = PooledConnectionController.connect(dbPathA);
+        try {
+            db.exec("CREATE TEMP TABLE nesting_test(x INTEGER)");
+            DB nestedDB = PooledConnectionController.connect(dbPathA);
+            try {
+                // same connection
+                nestedDB.exec("INSERT INTO nesting_test VALUES (1)");
+            } finally {
+                PooledConnectionController.disconnect(dbPathA);
+            }
+            // the inner disconnect does not release the connection
+            Assert.assertEquals(1L, countRows(db, "nesting_test"));
+        } finally {
+            PooledConnectionController.disconnect(dbPathA);
+        }
+        PooledConnectionController.close(dbPathA);
+    }
+
+    @org.junit.Test
+    public void testTwoDatabases() {
+        DB db = PooledConnectionController.connect(dbPathA);
+        try {
+            db.exec("CREATE TEMP TABLE table_a(x INTEGER)");
+            db = PooledConnectionController.connect(dbPathB);
+            try {
+                // the connection to B is attached, not the one to A
+                db.exec("CREATE TEMP TABLE table_b(x INTEGER)");
+                try {
+                    countRows(db, "table_a");
+                    Assert.fail();
+                } catch (RuntimeException e) {
+                    // expected
+                }
+                // nested access to A inside B
+                db = PooledConnectionController.connect(dbPathA);
+                try {
+                    Assert.assertEquals(0L, countRows(db, "table_a"));
+                } finally {
+                    PooledConnectionController.disconnect(dbPathA);
+                }
+                Assert.assertEquals(0L, countRows(db, "table_b"));
+            } finally {
+                PooledConnectionController.disconnect(dbPathB);
+            }
+            // the connection to A is attached again
+            Assert.assertEquals(0L, countRows(db, "table_a"));
+            try {
+                countRows(db, "table_b");
+                Assert.fail();
+            } catch (RuntimeException e) {
+                // expected
+            }
+        } finally {
+            PooledConnectionController.disconnect(dbPathA);
+        }
+        PooledConnectionController.close(dbPathA);
+        PooledConnectionController.close(dbPathB);
+    }
+
+    private static long countRows(DB db, String table) {
+        return ((Number) db.firstCell("SELECT COUNT(*) FROM " + table)).longValue();
+    }
+}
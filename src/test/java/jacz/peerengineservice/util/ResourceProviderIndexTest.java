@@ -0,0 +1,59 @@
+package jacz.peerengineservice.util;
+
+import jacz.peerengineservice.PeerId;
+import org.junit.Assert;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for the bidirectional resource provider index
+ */
+public class ResourceProviderIndexTest {
+
+    private static final PeerId PEER_A = PeerId.buildTestPeerId("1");
+
+    private static final PeerId PEER_B = PeerId.buildTestPeerId("2");
+
+    private static Set<PeerId> providers(ResourceProviderIndex index, String resourceID) {
+        Set<PeerId> peers = new HashSet<>();
+        index.addProviders(resourceID, peers);
+        return peers;
+    }
+
+    @org.junit.Test
+    public void testAddRemove() {
+        ResourceProviderIndex index = new ResourceProviderIndex();
+        Assert.assertTrue(index.add("r1", PEER_A));
+        Assert.assertFalse(index.add("r1", PEER_A));
+        Assert.assertTrue(index.add("r1", PEER_B));
+        Assert.assertTrue(index.add("r2", PEER_A));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(PEER_A, PEER_B)), providers(index, "r1"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("r1", "r2")), index.getResources(PEER_A));
+        Assert.assertTrue(index.remove("r1", PEER_B));
+        Assert.assertFalse(index.remove("r1", PEER_B));
+        Assert.assertTrue(index.getResources(PEER_B).isEmpty());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("r1", "r2")), index.removePeer(PEER_A));
+        Assert.assertTrue(providers(index, "r1").isEmpty());
+        Assert.assertTrue(providers(index, "r2").isEmpty());
+    }
+
+    @org.junit.Test
+    public void testReplacePeerResources() {
+        ResourceProviderIndex index = new ResourceProviderIndex();
+        index.add("r1", PEER_B);
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        index.replacePeerResources(PEER_A, new HashSet<>(Arrays.asList("r1", "r2")), added, removed);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("r1", "r2")), added);
+        Assert.assertTrue(removed.isEmpty());
+        // only the resources added or removed are reported
+        added.clear();
+        index.replacePeerResources(PEER_A, new HashSet<>(Arrays.asList("r2", "r3")), added, removed);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("r3")), added);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("r1")), removed);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("r2", "r3")), index.getResources(PEER_A));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(PEER_B)), providers(index, "r1"));
+    }
+}
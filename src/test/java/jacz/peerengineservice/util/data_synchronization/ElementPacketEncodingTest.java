@@ -0,0 +1,127 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import org.junit.Assert;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the encoding of element packets
+ */
+public class ElementPacketEncodingTest {
+
+    private static class Item implements Serializable {
+
+        private final String id;
+
+        private final long timestamp;
+
+        private final String name;
+
+        private Item(String id, long timestamp, String name) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Item)) {
+                return false;
+            }
+            Item item = (Item) o;
+            return id.equals(item.id) && timestamp == item.timestamp && (name != null ? name.equals(item.name) : item.name == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    private static class ItemCodec extends BinaryElementCodec<Item> {
+
+        private ItemCodec() {
+            super(Item.class);
+        }
+
+        @Override
+        public String getName() {
+            return "item";
+        }
+
+        @Override
+        protected void writeElement(Item element, DataOutput out) throws IOException {
+            out.writeUTF(element.id);
+            out.writeLong(element.timestamp);
+            writeNullableUTF(element.name, out);
+        }
+
+        @Override
+        protected Item readElement(DataInput in) throws IOException {
+            return new Item(in.readUTF(), in.readLong(), readNullableUTF(in));
+        }
+    }
+
+    private static List<Serializable> items(int count) {
+        List<Serializable> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new Item("item-" + i, 1000L + i, i % 10 == 0 ? null : "name of item " + i));
+        }
+        return items;
+    }
+
+    private static DataSynchServerFSM.ElementPacket roundTrip(DataSynchServerFSM.ElementPacket packet, ElementCodec codec, boolean compress) throws IOException {
+        return ElementPacketEncoding.decode(ElementPacketEncoding.encode(packet, codec, compress), codec);
+    }
+
+    @org.junit.Test
+    public void testRoundTrip() throws IOException {
+        List<Serializable> items = items(50);
+        DataSynchServerFSM.ElementPacket packet = new DataSynchServerFSM.ElementPacket(items, 50, 100, false);
+        for (ElementCodec codec : new ElementCodec[]{new SerializationElementCodec(), new ItemCodec()}) {
+            for (boolean compress : new boolean[]{false, true}) {
+                DataSynchServerFSM.ElementPacket decoded = roundTrip(packet, codec, compress);
+                Assert.assertEquals(items, decoded.elementPacket);
+                Assert.assertEquals(50, decoded.elementsSent);
+                Assert.assertEquals(100, decoded.totalElementsToSend);
+                Assert.assertFalse(decoded.lastPacket);
+                Assert.assertFalse(decoded.SERVER_ERROR);
+            }
+        }
+        DataSynchServerFSM.ElementPacket empty = roundTrip(new DataSynchServerFSM.ElementPacket(new ArrayList<>(), 0, 0, true), new ItemCodec(), true);
+        Assert.assertTrue(empty.elementPacket.isEmpty());
+        Assert.assertTrue(empty.lastPacket);
+        Assert.assertTrue(roundTrip(DataSynchServerFSM.ElementPacket.generateError(), new ItemCodec(), true).SERVER_ERROR);
+    }
+
+    @org.junit.Test
+    public void testEncodedSize() throws IOException {
+        List<Serializable> items = items(50);
+        DataSynchServerFSM.ElementPacket packet = new DataSynchServerFSM.ElementPacket(items, 50, 100, false);
+
+        // size of the former format: the whole packet written with java serialization
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectStream = new ObjectOutputStream(byteStream)) {
+            objectStream.writeObject(new ArrayList<>(items));
+            objectStream.writeInt(50);
+            objectStream.writeInt(100);
+        }
+        int serializedSize = byteStream.size();
+
+        int binarySize = ElementPacketEncoding.encode(packet, new ItemCodec(), false).length;
+        int compressedSerializedSize = ElementPacketEncoding.encode(packet, new SerializationElementCodec(), true).length;
+        int compressedBinarySize = ElementPacketEncoding.encode(packet, new ItemCodec(), true).length;
+        Assert.assertTrue(binarySize < serializedSize);
+        Assert.assertTrue(compressedSerializedSize < serializedSize / 2);
+        Assert.assertTrue(compressedBinarySize < binarySize);
+    }
+
+    @org.junit.Test(expected = NotSerializableException.class)
+    public void testWrongElementClass() throws IOException {
+        List<Serializable> elements = new ArrayList<>();
+        elements.add("not an item");
+        ElementPacketEncoding.encode(new DataSynchServerFSM.ElementPacket(elements, 1, 1, true), new ItemCodec(), false);
+    }
+}
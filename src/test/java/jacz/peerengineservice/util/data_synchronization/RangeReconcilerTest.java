@@ -0,0 +1,89 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import org.junit.Assert;
+
+import java.util.*;
+
+/**
+ * Tests for the range-hash reconciliation
+ */
+public class RangeReconcilerTest {
+
+    private static final int ELEMENTS = 20000;
+
+    /**
+     * Runs the reconciliation between a server and a client
+     *
+     * @return the keys that the client requests, and in element 0 of rounds the number of rounds
+     */
+    private static Set<String> reconcile(List<ElementDigest> serverDigests, List<ElementDigest> clientDigests, int[] rounds) {
+        RangeReconciler server = new RangeReconciler(serverDigests);
+        RangeReconciler client = new RangeReconciler(clientDigests);
+        List<RangeReconciler.KeyRange> ranges = Collections.singletonList(RangeReconciler.KeyRange.ALL);
+        List<String> differingKeys = new ArrayList<>();
+        rounds[0] = 0;
+        while (!ranges.isEmpty()) {
+            rounds[0]++;
+            List<RangeReconciler.KeyRange> nextRanges = new ArrayList<>();
+            client.compare(server.answer(ranges), nextRanges, differingKeys);
+            ranges = nextRanges;
+        }
+        Set<String> keySet = new HashSet<>(differingKeys);
+        Assert.assertEquals(differingKeys.size(), keySet.size());
+        return keySet;
+    }
+
+    private static List<ElementDigest> digests(int count) {
+        List<ElementDigest> digests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            digests.add(new ElementDigest("key-" + i, i * 7919L));
+        }
+        return digests;
+    }
+
+    @org.junit.Test
+    public void testEqualData() {
+        int[] rounds = new int[1];
+        List<ElementDigest> serverDigests = digests(ELEMENTS);
+        List<ElementDigest> clientDigests = new ArrayList<>(serverDigests);
+        Collections.shuffle(clientDigests, new Random(0));
+        Assert.assertTrue(reconcile(serverDigests, clientDigests, rounds).isEmpty());
+        Assert.assertEquals(1, rounds[0]);
+    }
+
+    @org.junit.Test
+    public void testNearlyEqualData() {
+        int[] rounds = new int[1];
+        List<ElementDigest> serverDigests = digests(ELEMENTS);
+        List<ElementDigest> clientDigests = new ArrayList<>(serverDigests);
+        Random random = new Random(0);
+        Set<String> expected = new HashSet<>();
+        // modified elements
+        for (int i = 0; i < 20; i++) {
+            int index = random.nextInt(clientDigests.size());
+            ElementDigest digest = clientDigests.get(index);
+            clientDigests.set(index, new ElementDigest(digest.key, digest.hash + 1));
+            expected.add(digest.key);
+        }
+        // elements missing in the client
+        for (int i = 0; i < 10; i++) {
+            ElementDigest digest = clientDigests.remove(random.nextInt(clientDigests.size()));
+            expected.add(digest.key);
+        }
+        // elements that only the client has are not requested
+        clientDigests.add(new ElementDigest("key-extra", 1L));
+        Assert.assertEquals(expected, reconcile(serverDigests, clientDigests, rounds));
+        Assert.assertTrue(rounds[0] <= 5);
+    }
+
+    @org.junit.Test
+    public void testEmptyClient() {
+        int[] rounds = new int[1];
+        Set<String> expected = new HashSet<>();
+        for (ElementDigest digest : digests(1000)) {
+            expected.add(digest.key);
+        }
+        Assert.assertEquals(expected, reconcile(digests(1000), new ArrayList<>(), rounds));
+        Assert.assertTrue(reconcile(new ArrayList<>(), digests(1000), rounds).isEmpty());
+    }
+}
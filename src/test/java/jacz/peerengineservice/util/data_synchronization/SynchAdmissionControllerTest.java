@@ -0,0 +1,52 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import jacz.peerengineservice.PeerId;
+import org.junit.Assert;
+
+/**
+ * Tests for the admission control of server synch processes
+ */
+public class SynchAdmissionControllerTest {
+
+    private static final PeerId PEER_A = PeerId.buildTestPeerId("1");
+
+    private static final PeerId PEER_B = PeerId.buildTestPeerId("2");
+
+    private static final PeerId PEER_C = PeerId.buildTestPeerId("3");
+
+    @org.junit.Test
+    public void testLimit() {
+        SynchAdmissionController admissionController = new SynchAdmissionController(2);
+        Assert.assertTrue(admissionController.tryAdmit(PEER_A));
+        Assert.assertTrue(admissionController.tryAdmit(PEER_A));
+        Assert.assertFalse(admissionController.tryAdmit(PEER_B));
+        Assert.assertEquals(2, admissionController.getActiveSynchs());
+        Assert.assertEquals(1, admissionController.getWaitingPeers());
+        admissionController.release(PEER_A);
+        Assert.assertTrue(admissionController.tryAdmit(PEER_B));
+        Assert.assertEquals(0, admissionController.getWaitingPeers());
+        // releasing peers with no active synchs has no effect
+        admissionController.release(PEER_C);
+        Assert.assertEquals(2, admissionController.getActiveSynchs());
+    }
+
+    @org.junit.Test
+    public void testFairness() {
+        SynchAdmissionController admissionController = new SynchAdmissionController(1);
+        Assert.assertTrue(admissionController.tryAdmit(PEER_A));
+        // B and C wait, in this order
+        Assert.assertFalse(admissionController.tryAdmit(PEER_B));
+        Assert.assertFalse(admissionController.tryAdmit(PEER_C));
+        admissionController.release(PEER_A);
+        // the freed slot is reserved for B: neither A (with more accessors to synch) nor C can take it
+        Assert.assertFalse(admissionController.tryAdmit(PEER_A));
+        Assert.assertFalse(admissionController.tryAdmit(PEER_C));
+        Assert.assertTrue(admissionController.tryAdmit(PEER_B));
+        admissionController.release(PEER_B);
+        // next is C, and then A, which went to the back of the queue
+        Assert.assertFalse(admissionController.tryAdmit(PEER_A));
+        Assert.assertTrue(admissionController.tryAdmit(PEER_C));
+        admissionController.release(PEER_C);
+        Assert.assertTrue(admissionController.tryAdmit(PEER_A));
+    }
+}
@@ -0,0 +1,182 @@
+package jacz.peerengineservice.util.data_synchronization;
+
+import org.junit.Assert;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the sliding window of the synch FSMs, through a loopback link with injected latency
+ */
+public class SynchWindowTest {
+
+    private static final long ONE_WAY_LATENCY = 20L;
+
+    /**
+     * Time that each packet occupies the link (simulates the bandwidth)
+     */
+    private static final long PACKET_TRANSMISSION_TIME = 1L;
+
+    private static final int PACKETS = 200;
+
+    /**
+     * One direction of the loopback link. Deliveries happen in order, in the thread of the link
+     */
+    private static class Link {
+
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+        private long freeAt = 0L;
+
+        synchronized void send(Runnable delivery) {
+            long now = System.currentTimeMillis();
+            freeAt = Math.max(now, freeAt) + PACKET_TRANSMISSION_TIME;
+            executor.schedule(delivery, freeAt - now + ONE_WAY_LATENCY, TimeUnit.MILLISECONDS);
+        }
+
+        void execute(Runnable runnable) {
+            executor.execute(runnable);
+        }
+
+        void stop() {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class LoopbackSynch {
+
+        private final Link dataLink = new Link();
+
+        private final Link ackLink = new Link();
+
+        private final SynchSendWindow sendWindow;
+
+        private final SynchReceiveWindow<byte[]> receiveWindow = new SynchReceiveWindow<>();
+
+        private final Set<Integer> corruptOnce;
+
+        private final List<Integer> delivered = Collections.synchronizedList(new ArrayList<>());
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private int built = 0;
+
+        private LoopbackSynch(int window, Set<Integer> corruptOnce) {
+            sendWindow = new SynchSendWindow(window);
+            this.corruptOnce = new HashSet<>(corruptOnce);
+        }
+
+        private long run() throws InterruptedException {
+            long start = System.currentTimeMillis();
+            // the sender runs in the thread of the ack link, the receiver in the thread of the data link
+            ackLink.execute(this::sendPackets);
+            Assert.assertTrue(finished.await(30, TimeUnit.SECONDS));
+            long elapsed = System.currentTimeMillis() - start;
+            dataLink.stop();
+            ackLink.stop();
+            return elapsed;
+        }
+
+        private void sendPackets() {
+            while (built < PACKETS && sendWindow.canSend()) {
+                byte[] packet = ByteBuffer.allocate(4).putInt(built++).array();
+                transmit(sendWindow.register(packet), packet);
+            }
+        }
+
+        private void transmit(int sequence, byte[] packet) {
+            boolean corrupt = corruptOnce.remove(sequence);
+            dataLink.send(() -> receive(sequence, packet, corrupt));
+        }
+
+        private void receive(int sequence, byte[] packet, boolean corrupt) {
+            if (corrupt) {
+                receiveWindow.corrupted(sequence);
+            } else {
+                for (byte[] deliveredPacket : receiveWindow.received(sequence, packet)) {
+                    delivered.add(ByteBuffer.wrap(deliveredPacket).getInt());
+                }
+            }
+            int cumulativeAck = receiveWindow.cumulativeAck();
+            List<Integer> retransmit = receiveWindow.pollRetransmissions();
+            ackLink.send(() -> acknowledge(cumulativeAck, retransmit));
+        }
+
+        private void acknowledge(int cumulativeAck, List<Integer> retransmit) {
+            for (int sequence : sendWindow.acknowledge(cumulativeAck, retransmit)) {
+                transmit(sequence, sendWindow.getPacket(sequence));
+            }
+            if (built == PACKETS && sendWindow.allAcknowledged()) {
+                finished.countDown();
+            } else {
+                sendPackets();
+            }
+        }
+    }
+
+    @org.junit.Test
+    public void testReceiveWindowOrdering() {
+        SynchReceiveWindow<String> receiveWindow = new SynchReceiveWindow<>();
+        Assert.assertEquals(-1, receiveWindow.cumulativeAck());
+        Assert.assertEquals(Collections.singletonList("a"), receiveWindow.received(0, "a"));
+        receiveWindow.corrupted(1);
+        Assert.assertTrue(receiveWindow.received(2, "c").isEmpty());
+        Assert.assertEquals(0, receiveWindow.cumulativeAck());
+        Assert.assertEquals(Collections.singletonList(1), receiveWindow.pollRetransmissions());
+        Assert.assertTrue(receiveWindow.pollRetransmissions().isEmpty());
+        Assert.assertEquals(Arrays.asList("b", "c"), receiveWindow.received(1, "b"));
+        Assert.assertEquals(2, receiveWindow.cumulativeAck());
+        // duplicates are ignored
+        Assert.assertTrue(receiveWindow.received(1, "b").isEmpty());
+    }
+
+    @org.junit.Test
+    public void testSendWindowAdaptation() {
+        SynchSendWindow sendWindow = new SynchSendWindow(16);
+        Assert.assertEquals(SynchSendWindow.INITIAL_WINDOW, sendWindow.getWindow());
+        for (int i = 0; i < SynchSendWindow.INITIAL_WINDOW; i++) {
+            sendWindow.register(new byte[0]);
+        }
+        Assert.assertFalse(sendWindow.canSend());
+        Assert.assertTrue(sendWindow.acknowledge(SynchSendWindow.INITIAL_WINDOW - 1, Collections.emptyList()).isEmpty());
+        Assert.assertEquals(2 * SynchSendWindow.INITIAL_WINDOW, sendWindow.getWindow());
+        Assert.assertTrue(sendWindow.allAcknowledged());
+        int first = sendWindow.register(new byte[0]);
+        sendWindow.register(new byte[0]);
+        Assert.assertEquals(Collections.singletonList(first + 1), sendWindow.acknowledge(first, Collections.singletonList(first + 1)));
+        Assert.assertEquals(SynchSendWindow.INITIAL_WINDOW, sendWindow.getWindow());
+        try {
+            sendWindow.acknowledge(first + 5, Collections.emptyList());
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected, packet never sent
+        }
+    }
+
+    @org.junit.Test
+    public void testLoopbackWithLatency() throws InterruptedException {
+        Set<Integer> corrupted = new HashSet<>(Arrays.asList(10, 50, 51, 120));
+        LoopbackSynch loopbackSynch = new LoopbackSynch(DataSynchronizer.DEFAULT_WINDOW, corrupted);
+        long elapsed = loopbackSynch.run();
+
+        // all packets delivered once, in order, despite the corrupted ones
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < PACKETS; i++) {
+            expected.add(i);
+        }
+        Assert.assertEquals(expected, loopbackSynch.delivered);
+        Assert.assertEquals(corrupted.size(), loopbackSynch.sendWindow.getRetransmittedPackets());
+
+        // a stop-and-wait transfer would need one round trip per packet. The windowed transfer is bounded by the
+        // bandwidth, plus a few round trips for growing the window and for the retransmissions
+        long roundTrip = 2 * ONE_WAY_LATENCY;
+        long stopAndWait = PACKETS * roundTrip;
+        long bandwidthBound = PACKETS * PACKET_TRANSMISSION_TIME;
+        Assert.assertTrue(elapsed >= bandwidthBound);
+        Assert.assertTrue("elapsed: " + elapsed, elapsed < stopAndWait / 4);
+    }
+}
@@ -0,0 +1,243 @@
+package jacz.peerengineservice.util.datatransfer;
+
+import jacz.peerengineservice.util.datatransfer.master.DownloadManager;
+import jacz.peerengineservice.util.datatransfer.master.DownloadState;
+import org.junit.Assert;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the downloads queue: concurrency cap, priority order, stalled downloads, stop/resume of queued downloads
+ * and statistics of queued downloads
+ */
+public class DownloadsManagerTest {
+
+    private static final String STORE = "store";
+
+    private static final long STALL_TIMEOUT = 60000L;
+
+    /**
+     * Download with no master resource streamer. Starting it just registers it as active
+     */
+    private static class FakeDownload extends DownloadManager {
+
+        private final DownloadsManager downloadsManager;
+
+        private final float priority;
+
+        private volatile DownloadState state;
+
+        private volatile int activeProviderCount;
+
+        private FakeDownload(DownloadsManager downloadsManager, String resourceId, float priority) {
+            super(null, null, null, STORE, resourceId, null, null, 0d, null, null);
+            this.downloadsManager = downloadsManager;
+            this.priority = priority;
+            state = DownloadState.QUEUED;
+            activeProviderCount = 1;
+        }
+
+        @Override
+        public synchronized boolean start() {
+            if (state != DownloadState.QUEUED) {
+                return false;
+            }
+            state = DownloadState.RUNNING;
+            downloadsManager.addDownload(STORE, getId(), this);
+            return true;
+        }
+
+        @Override
+        public synchronized void resume() {
+            if (state == DownloadState.STOPPED) {
+                state = DownloadState.QUEUED;
+                downloadsManager.enqueueDownload(this);
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            if (state == DownloadState.QUEUED) {
+                downloadsManager.removeQueuedDownload(this);
+                state = DownloadState.STOPPED;
+            } else if (state == DownloadState.RUNNING) {
+                state = DownloadState.STOPPED;
+                downloadsManager.removeDownload(STORE, getId());
+            }
+        }
+
+        @Override
+        public boolean isFetching() {
+            return false;
+        }
+
+        @Override
+        public float getPriority() {
+            return priority;
+        }
+
+        @Override
+        public DownloadState getState() {
+            return state;
+        }
+
+        @Override
+        public int getActiveProviderCount() {
+            return activeProviderCount;
+        }
+    }
+
+    private AtomicLong time;
+
+    private DownloadsManager downloadsManager;
+
+    private void setUp(int maxActiveDownloads) {
+        time = new AtomicLong(1000000L);
+        downloadsManager = new DownloadsManager(null, time::get);
+        downloadsManager.setMaxActiveDownloads(maxActiveDownloads);
+    }
+
+    private FakeDownload download(String resourceId, float priority) {
+        FakeDownload download = new FakeDownload(downloadsManager, resourceId, priority);
+        downloadsManager.startOrEnqueueDownload(download);
+        return download;
+    }
+
+    @org.junit.Test
+    public void testConcurrencyCap() {
+        setUp(2);
+        FakeDownload a = download("a", 10f);
+        FakeDownload b = download("b", 10f);
+        FakeDownload c = download("c", 10f);
+        FakeDownload d = download("d", 10f);
+
+        Assert.assertEquals(DownloadState.RUNNING, a.getState());
+        Assert.assertEquals(DownloadState.RUNNING, b.getState());
+        Assert.assertEquals(DownloadState.QUEUED, c.getState());
+        Assert.assertEquals(DownloadState.QUEUED, d.getState());
+        Assert.assertEquals(4, downloadsManager.getAllDownloads().size());
+        Assert.assertEquals(4, downloadsManager.getDownloads(STORE).size());
+
+        // a finished download makes room for the next one, in order of arrival
+        a.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, c.getState());
+        Assert.assertEquals(DownloadState.QUEUED, d.getState());
+
+        // paused downloads do not count
+        b.state = DownloadState.PAUSED;
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, d.getState());
+        downloadsManager.stop();
+    }
+
+    @org.junit.Test
+    public void testPriorityOrder() {
+        setUp(1);
+        FakeDownload a = download("a", 10f);
+        FakeDownload b = download("b", 1f);
+        FakeDownload c = download("c", 5f);
+        FakeDownload d = download("d", 3f);
+        FakeDownload e = download("e", 5f);
+        Assert.assertEquals(DownloadState.RUNNING, a.getState());
+
+        // highest priority first, arrival order for equal priorities
+        a.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, c.getState());
+        Assert.assertEquals(DownloadState.QUEUED, e.getState());
+        c.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, e.getState());
+        e.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, d.getState());
+        Assert.assertEquals(DownloadState.QUEUED, b.getState());
+        d.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, b.getState());
+        downloadsManager.stop();
+    }
+
+    @org.junit.Test
+    public void testStalledPromotion() {
+        setUp(1);
+        FakeDownload a = download("a", 10f);
+        a.activeProviderCount = 0;
+        FakeDownload b = download("b", 10f);
+        Assert.assertEquals(DownloadState.QUEUED, b.getState());
+
+        // a download without providers still counts until the stall timeout
+        time.addAndGet(STALL_TIMEOUT - 1);
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.QUEUED, b.getState());
+
+        // the stalled download no longer blocks the queue
+        time.addAndGet(1L);
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, b.getState());
+        Assert.assertEquals(DownloadState.RUNNING, a.getState());
+
+        // providers reset the stall detection
+        a.activeProviderCount = 1;
+        downloadsManager.updateQueueNow();
+        b.stop();
+        a.activeProviderCount = 0;
+        FakeDownload c = download("c", 10f);
+        Assert.assertEquals(DownloadState.QUEUED, c.getState());
+        time.addAndGet(STALL_TIMEOUT - 1);
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.QUEUED, c.getState());
+        time.addAndGet(1L);
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, c.getState());
+        downloadsManager.stop();
+    }
+
+    @org.junit.Test
+    public void testStopResumeQueued() {
+        setUp(1);
+        FakeDownload a = download("a", 10f);
+        FakeDownload b = download("b", 10f);
+        FakeDownload c = download("c", 10f);
+
+        // stopped queued downloads leave the queue
+        b.stop();
+        Assert.assertEquals(DownloadState.STOPPED, b.getState());
+        Assert.assertEquals(2, downloadsManager.getAllDownloads().size());
+        a.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.STOPPED, b.getState());
+        Assert.assertEquals(DownloadState.RUNNING, c.getState());
+
+        // resumed downloads go back to the queue, and start once there is room
+        b.resume();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.QUEUED, b.getState());
+        Assert.assertTrue(downloadsManager.getAllDownloads().contains(b));
+        c.stop();
+        downloadsManager.updateQueueNow();
+        Assert.assertEquals(DownloadState.RUNNING, b.getState());
+        downloadsManager.stop();
+    }
+
+    @org.junit.Test
+    public void testStatisticsOfQueuedDownloads() {
+        setUp(1);
+        FakeDownload a = download("a", 10f);
+        FakeDownload b = download("b", 10f);
+        b.stop();
+        download("c", 10f);
+        Assert.assertEquals(DownloadState.RUNNING, a.getState());
+
+        // queued downloads, and downloads stopped before starting, have (empty) statistics too
+        for (DownloadManager downloadManager : downloadsManager.getAllDownloads()) {
+            Assert.assertNotNull(downloadManager.getStatistics());
+            Assert.assertEquals(0d, downloadManager.getStatistics().getSpeed(), 0.0001d);
+            Assert.assertEquals(0L, downloadManager.getStatistics().getDownloadedSizeThisResource());
+        }
+        Assert.assertNotNull(b.getStatistics());
+        Assert.assertSame(b.getStatistics(), b.getStatistics());
+        downloadsManager.stop();
+    }
+}
@@ -0,0 +1,45 @@
+package jacz.peerengineservice.util.datatransfer;
+
+import org.junit.Assert;
+
+/**
+ * Tests for the transferred bytes counter and speed history
+ */
+public class SpeedHistoryTest {
+
+    @org.junit.Test
+    public void testConcurrentBytes() throws InterruptedException {
+        SpeedHistory speedHistory = new SpeedHistory(3, 10);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    speedHistory.addBytes(10);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(8000000L, speedHistory.getBytes());
+    }
+
+    @org.junit.Test
+    public void testRegistry() throws InterruptedException {
+        SpeedHistory speedHistory = new SpeedHistory(2, 5);
+        Assert.assertEquals(0, speedHistory.getRegistry().length);
+        for (int i = 0; i < 8; i++) {
+            speedHistory.addBytes(i < 4 ? 1000 : 0);
+            Thread.sleep(20);
+            speedHistory.sample();
+        }
+        Double[] registry = speedHistory.getRegistry();
+        // only the last 5 samples are kept, from oldest to newest
+        Assert.assertEquals(5, registry.length);
+        Assert.assertTrue(registry[0] > 0d);
+        Assert.assertEquals(0d, registry[4], 0d);
+        speedHistory.resetBytes();
+        Assert.assertEquals(0L, speedHistory.getBytes());
+    }
+}
@@ -0,0 +1,160 @@
+package jacz.peerengineservice.util.datatransfer;
+
+import jacz.peerengineservice.PeerId;
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for the upload slot manager
+ */
+public class UploadSlotManagerTest {
+
+    private static class FakeUpload implements UploadSlotManager.Upload {
+
+        private final PeerId peerId;
+
+        private boolean choked = false;
+
+        private int keepAlives = 0;
+
+        private FakeUpload(PeerId peerId) {
+            this.peerId = peerId;
+        }
+
+        @Override
+        public PeerId getRequestingPeer() {
+            return peerId;
+        }
+
+        @Override
+        public void choke() {
+            choked = true;
+        }
+
+        @Override
+        public void unchoke() {
+            choked = false;
+        }
+
+        @Override
+        public void keepAlive() {
+            keepAlives++;
+        }
+    }
+
+    private static final PeerId PEER_1 = PeerId.buildTestPeerId("1");
+
+    private static final PeerId PEER_2 = PeerId.buildTestPeerId("2");
+
+    private static final PeerId PEER_3 = PeerId.buildTestPeerId("3");
+
+    private static final PeerId PEER_4 = PeerId.buildTestPeerId("4");
+
+    @org.junit.Test
+    public void testSlots() {
+        UploadSlotManager uploadSlotManager = new UploadSlotManager(peerId -> false, 2, 60000L);
+        FakeUpload upload1 = new FakeUpload(PEER_1);
+        FakeUpload upload2 = new FakeUpload(PEER_2);
+        FakeUpload upload3 = new FakeUpload(PEER_3);
+        uploadSlotManager.addUpload(upload1);
+        uploadSlotManager.addUpload(upload2);
+        uploadSlotManager.addUpload(upload3);
+        Assert.assertFalse(upload1.choked);
+        Assert.assertFalse(upload2.choked);
+        Assert.assertTrue(upload3.choked);
+        Assert.assertEquals(2, uploadSlotManager.getActiveUploadCount());
+        Assert.assertEquals(1, uploadSlotManager.getChokedUploadCount());
+
+        // a finished upload frees its slot for the choked one
+        uploadSlotManager.removeUpload(upload1);
+        Assert.assertFalse(upload3.choked);
+        Assert.assertEquals(0, uploadSlotManager.getChokedUploadCount());
+
+        // more slots are filled as soon as they are available
+        uploadSlotManager.addUpload(upload1);
+        Assert.assertTrue(upload1.choked);
+        uploadSlotManager.setMaxActiveSlots(3);
+        Assert.assertFalse(upload1.choked);
+        uploadSlotManager.stop();
+    }
+
+    @org.junit.Test
+    public void testPriorities() {
+        Set<PeerId> favorites = new HashSet<>();
+        favorites.add(PEER_4);
+        UploadSlotManager uploadSlotManager = new UploadSlotManager(favorites::contains, 3, 60000L);
+        FakeUpload upload1 = new FakeUpload(PEER_1);
+        FakeUpload upload2 = new FakeUpload(PEER_2);
+        FakeUpload upload3 = new FakeUpload(PEER_3);
+        FakeUpload upload4 = new FakeUpload(PEER_4);
+        uploadSlotManager.addUpload(upload1);
+        uploadSlotManager.addUpload(upload2);
+        uploadSlotManager.addUpload(upload3);
+        uploadSlotManager.addUpload(upload4);
+        Assert.assertTrue(upload4.choked);
+
+        // peer 3 sends us data -> his upload ranks after the favorite peer, and the optimistic slot goes to the
+        // upload that has been waiting for longest
+        uploadSlotManager.reportReceivedBytes(PEER_3, 100000L);
+        uploadSlotManager.rotate();
+        Assert.assertFalse(upload4.choked);
+        Assert.assertFalse(upload3.choked);
+        Assert.assertEquals(3, uploadSlotManager.getActiveUploadCount());
+        Assert.assertEquals(1, uploadSlotManager.getChokedUploadCount());
+        FakeUpload optimistic = !upload1.choked ? upload1 : upload2;
+        FakeUpload waiting = !upload1.choked ? upload2 : upload1;
+        Assert.assertTrue(waiting.choked);
+        Assert.assertEquals(1, waiting.keepAlives);
+
+        // the optimistic slot rotates to the choked upload
+        uploadSlotManager.rotate();
+        Assert.assertFalse(waiting.choked);
+        Assert.assertTrue(optimistic.choked);
+        Assert.assertFalse(upload4.choked);
+        Assert.assertFalse(upload3.choked);
+        uploadSlotManager.stop();
+    }
+
+    @org.junit.Test
+    public void testRotation() {
+        UploadSlotManager uploadSlotManager = new UploadSlotManager(peerId -> false, 2, 60000L);
+        List<FakeUpload> uploads = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            FakeUpload upload = new FakeUpload(PeerId.buildTestPeerId(Integer.toString(i)));
+            uploads.add(upload);
+            uploadSlotManager.addUpload(upload);
+        }
+
+        // with no favorites nor reciprocity, the regular slot rotates too: the first uploads do not keep their slots
+        Set<FakeUpload> served = new HashSet<>();
+        Set<FakeUpload> previouslyActive = activeUploads(uploads);
+        for (int i = 0; i < 3; i++) {
+            uploadSlotManager.rotate();
+            Set<FakeUpload> active = activeUploads(uploads);
+            Assert.assertEquals(2, active.size());
+            // more waiting uploads than slots -> the slots go to waiting uploads
+            for (FakeUpload upload : active) {
+                Assert.assertFalse(previouslyActive.contains(upload));
+            }
+            served.addAll(active);
+            previouslyActive = active;
+        }
+        Assert.assertTrue(uploads.get(0).choked);
+        Assert.assertEquals(5, served.size());
+        uploadSlotManager.stop();
+    }
+
+    private static Set<FakeUpload> activeUploads(List<FakeUpload> uploads) {
+        Set<FakeUpload> active = new HashSet<>();
+        for (FakeUpload upload : uploads) {
+            if (!upload.choked) {
+                active.add(upload);
+            }
+        }
+        return active;
+    }
+}
@@ -0,0 +1,261 @@
+package jacz.peerengineservice.util.datatransfer.master;
+
+import jacz.peerengineservice.util.datatransfer.DownloadsManager;
+import jacz.peerengineservice.util.datatransfer.resource_accession.ResourceWriter;
+import org.aanguita.jacuzzi.numeric.range.LongRangeList;
+import org.junit.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for downloads that follow another download of the same resource: joining a fetch, and completion,
+ * cancellation and hash failure of the leader
+ */
+public class DownloadManagerTest {
+
+    private static final long TIMEOUT = 5000L;
+
+    /**
+     * Resource writer that keeps the data in memory, or reads it from a file
+     */
+    private static class FakeResourceWriter implements ResourceWriter {
+
+        private final String path;
+
+        private final HashMap<String, Serializable> systemDictionary = new HashMap<>();
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private volatile boolean complete = false;
+
+        private volatile boolean cancelled = false;
+
+        private FakeResourceWriter(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public Long getSize() {
+            return null;
+        }
+
+        @Override
+        public LongRangeList getAvailableSegments() {
+            return null;
+        }
+
+        @Override
+        public HashMap<String, Serializable> getUserDictionary() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public synchronized HashMap<String, Serializable> getSystemDictionary() {
+            return new HashMap<>(systemDictionary);
+        }
+
+        @Override
+        public synchronized void setSystemField(String key, Serializable value) {
+            systemDictionary.put(key, value);
+        }
+
+        @Override
+        public void init(long size) {
+            // nothing to do
+        }
+
+        @Override
+        public synchronized void write(long offset, byte[] data) {
+            Assert.assertEquals(offset, this.data.size());
+            this.data.write(data, 0, data.length);
+        }
+
+        @Override
+        public void complete() {
+            complete = true;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void stop() {
+            // nothing to do
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Download with no master resource streamer. The leader pretends to be fetching, and followers record when the
+     * queue starts them
+     */
+    private static class TestDownload extends DownloadManager {
+
+        private final DownloadsManager downloadsManager;
+
+        private final FakeResourceWriter resourceWriter;
+
+        private volatile boolean fetching = false;
+
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private TestDownload(DownloadsManager downloadsManager, FakeResourceWriter resourceWriter) {
+            super(null, null, null, "store", "resource", resourceWriter, null, 0d, "0123abcd", "MD5");
+            this.downloadsManager = downloadsManager;
+            this.resourceWriter = resourceWriter;
+        }
+
+        @Override
+        public boolean start() {
+            started.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean isFetching() {
+            return fetching;
+        }
+
+        @Override
+        DownloadsManager getDownloadsManager() {
+            return downloadsManager;
+        }
+    }
+
+    private DownloadsManager downloadsManager;
+
+    private File fetchedFile;
+
+    private TestDownload leader;
+
+    private void setUp() throws IOException {
+        downloadsManager = new DownloadsManager(null);
+        fetchedFile = File.createTempFile("fetched", ".data");
+        fetchedFile.deleteOnExit();
+        byte[] data = new byte[3 * 1024 * 1024 + 5];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        Files.write(fetchedFile.toPath(), data);
+        leader = new TestDownload(downloadsManager, new FakeResourceWriter(fetchedFile.getPath()));
+        leader.fetching = true;
+    }
+
+    /**
+     * @return a queued download of the same resource. It is not put in the downloads queue, so the queue only starts
+     * it if it goes back to the queue
+     */
+    private TestDownload follower() {
+        return new TestDownload(downloadsManager, new FakeResourceWriter(null));
+    }
+
+    @org.junit.Test
+    public void testJoinFetch() throws IOException {
+        setUp();
+        TestDownload follower = follower();
+        Assert.assertEquals(leader.getFetchKey(), follower.getFetchKey());
+        Assert.assertTrue(leader.addFollower(follower));
+        Assert.assertEquals(DownloadState.RUNNING, follower.getState());
+        // only queued downloads can follow
+        Assert.assertFalse(leader.addFollower(follower));
+
+        // a download that is not fetching cannot be followed
+        TestDownload other = follower();
+        leader.fetching = false;
+        Assert.assertFalse(leader.addFollower(other));
+        Assert.assertEquals(DownloadState.QUEUED, other.getState());
+    }
+
+    @org.junit.Test
+    public void testLeaderCompletion() throws Exception {
+        setUp();
+        TestDownload follower1 = follower();
+        TestDownload follower2 = follower();
+        Assert.assertTrue(leader.addFollower(follower1));
+        Assert.assertTrue(leader.addFollower(follower2));
+
+        leader.fetchCompleted(fetchedFile.length(), true);
+        // the fetched file can be moved by the client right away
+        Assert.assertTrue(fetchedFile.delete());
+        awaitState(follower1, DownloadState.COMPLETED);
+        awaitState(follower2, DownloadState.COMPLETED);
+        Assert.assertTrue(follower1.resourceWriter.complete);
+        Assert.assertEquals(3 * 1024 * 1024 + 5, follower1.resourceWriter.data.size());
+        Assert.assertEquals(3 * 1024 * 1024 + 5, follower2.resourceWriter.data.size());
+        Assert.assertEquals((byte) 1000, follower2.resourceWriter.data.toByteArray()[1000]);
+
+        // the link to the fetched file is removed after the copies
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (countFetchedFiles() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(0, countFetchedFiles());
+
+        // no more followers after the fetch is over
+        Assert.assertFalse(leader.addFollower(follower()));
+    }
+
+    @org.junit.Test
+    public void testLeaderCancellation() throws Exception {
+        setUp();
+        TestDownload follower = follower();
+        Assert.assertTrue(leader.addFollower(follower));
+
+        leader.fetchFinished();
+        Assert.assertEquals(DownloadState.QUEUED, follower.getState());
+        // back to the queue, which starts it
+        Assert.assertTrue(follower.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertFalse(follower.resourceWriter.cancelled);
+        Assert.assertEquals(0, follower.resourceWriter.data.size());
+    }
+
+    @org.junit.Test
+    public void testLeaderHashFailure() throws Exception {
+        setUp();
+        TestDownload follower = follower();
+        Assert.assertTrue(leader.addFollower(follower));
+
+        // the wrong data is not copied, the follower fetches the resource by itself
+        leader.fetchCompleted(fetchedFile.length(), false);
+        Assert.assertEquals(DownloadState.QUEUED, follower.getState());
+        Assert.assertTrue(follower.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, follower.resourceWriter.data.size());
+        Assert.assertFalse(follower.resourceWriter.complete);
+        Assert.assertEquals(0, countFetchedFiles());
+        // the leader dies afterwards, which has no effect on former followers
+        leader.fetchFinished();
+        Assert.assertEquals(DownloadState.QUEUED, follower.getState());
+    }
+
+    private static void awaitState(DownloadManager downloadManager, DownloadState state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (downloadManager.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(state, downloadManager.getState());
+    }
+
+    private int countFetchedFiles() throws IOException {
+        int count = 0;
+        try (java.nio.file.DirectoryStream<Path> stream = Files.newDirectoryStream(fetchedFile.getParentFile().toPath(), fetchedFile.getName() + ".*")) {
+            for (Path ignored : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,210 @@
+package jacz.peerengineservice.util.datatransfer.master;
+
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests for streaming channels: reads, blocking reads, close, and several channels over the same download
+ */
+public class StreamingChannelTest {
+
+    private static final long TIMEOUT = 5000L;
+
+    private static final int LENGTH = 1000;
+
+    /**
+     * Queued download whose data is served from memory. Reads block until the requested data is made available
+     */
+    private static class TestDownload extends DownloadManager {
+
+        private final byte[] data;
+
+        private int available;
+
+        private final CountDownLatch readBlocked = new CountDownLatch(1);
+
+        private TestDownload(int available) {
+            super(null, null, null, "store", "resource", null, null, 0.3d, null, null);
+            data = new byte[LENGTH];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            this.available = available;
+        }
+
+        private synchronized void setAvailable(int available) {
+            this.available = available;
+            notifyAll();
+        }
+
+        @Override
+        public Long getLength() {
+            return (long) LENGTH;
+        }
+
+        @Override
+        byte[] readStreamingData(long position, int length, BooleanSupplier open) throws IOException, InterruptedException {
+            synchronized (this) {
+                while (position + length > available) {
+                    if (!open.getAsBoolean()) {
+                        throw new AsynchronousCloseException();
+                    }
+                    readBlocked.countDown();
+                    wait(10L);
+                }
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(data, (int) position, result, 0, length);
+            return result;
+        }
+    }
+
+    @org.junit.Test
+    public void testRead() throws IOException {
+        TestDownload download = new TestDownload(LENGTH);
+        StreamingChannel channel = new StreamingChannel(download);
+        Assert.assertEquals(LENGTH, channel.size());
+
+        ByteBuffer buffer = ByteBuffer.allocate(300);
+        Assert.assertEquals(300, channel.read(buffer));
+        Assert.assertEquals(300L, channel.position());
+        Assert.assertEquals((byte) 299, buffer.get(299));
+
+        // seek, and read up to the end
+        channel.position(900L);
+        buffer.clear();
+        Assert.assertEquals(100, channel.read(buffer));
+        Assert.assertEquals((byte) 950, buffer.get(50));
+        buffer.clear();
+        Assert.assertEquals(-1, channel.read(buffer));
+        channel.position(LENGTH + 10L);
+        Assert.assertEquals(-1, channel.read(buffer));
+        channel.close();
+    }
+
+    @org.junit.Test
+    public void testBlockingRead() throws Exception {
+        TestDownload download = new TestDownload(0);
+        StreamingChannel channel = new StreamingChannel(download);
+
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = read(channel, result);
+        Assert.assertTrue(download.readBlocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertNull(result.get());
+
+        // the read returns once its data is written
+        download.setAvailable(LENGTH);
+        reader.join(TIMEOUT);
+        Assert.assertEquals(LENGTH, result.get());
+        channel.close();
+    }
+
+    @org.junit.Test
+    public void testClose() throws Exception {
+        TestDownload download = new TestDownload(0);
+        StreamingChannel channel = new StreamingChannel(download);
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = read(channel, result);
+        Assert.assertTrue(download.readBlocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the blocked read does not prevent closing, and it fails afterwards
+        Thread closer = new Thread(channel::close);
+        closer.start();
+        closer.join(TIMEOUT);
+        Assert.assertFalse(closer.isAlive());
+        Assert.assertFalse(channel.isOpen());
+        reader.join(TIMEOUT);
+        Assert.assertTrue(result.get() instanceof AsynchronousCloseException);
+
+        try {
+            channel.read(ByteBuffer.allocate(10));
+            Assert.fail();
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+        try {
+            channel.position();
+            Assert.fail();
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+        // closing again has no effect
+        channel.close();
+        Assert.assertEquals(0.3d, download.getStreamingNeed(), 0.0001d);
+    }
+
+    @org.junit.Test
+    public void testCloseWhileWaitingForLength() throws Exception {
+        // the length of a queued download is not known yet
+        DownloadManager download = new DownloadManager(null, null, null, "store", "resource", null, null, 0.3d, null, null);
+        StreamingChannel channel = new StreamingChannel(download);
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread reader = read(channel, result);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (reader.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+
+        channel.close();
+        reader.join(TIMEOUT);
+        Assert.assertFalse(reader.isAlive());
+        Assert.assertTrue(result.get() instanceof AsynchronousCloseException);
+    }
+
+    @org.junit.Test
+    public void testMultipleChannels() throws IOException {
+        TestDownload download = new TestDownload(LENGTH);
+        StreamingChannel channel1 = new StreamingChannel(download);
+        Assert.assertEquals(1d, download.getStreamingNeed(), 0.0001d);
+        StreamingChannel channel2 = new StreamingChannel(download);
+        Assert.assertEquals(1d, download.getStreamingNeed(), 0.0001d);
+
+        // each channel has its own position
+        channel2.position(500L);
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        channel1.read(buffer);
+        Assert.assertEquals((byte) 0, buffer.get(0));
+        buffer.clear();
+        channel2.read(buffer);
+        Assert.assertEquals((byte) 500, buffer.get(0));
+
+        // closed in order of opening
+        channel1.close();
+        Assert.assertEquals(1d, download.getStreamingNeed(), 0.0001d);
+        channel2.close();
+        Assert.assertEquals(0.3d, download.getStreamingNeed(), 0.0001d);
+
+        // closed out of order
+        channel1 = new StreamingChannel(download);
+        channel2 = new StreamingChannel(download);
+        channel2.close();
+        Assert.assertEquals(1d, download.getStreamingNeed(), 0.0001d);
+        channel1.close();
+        Assert.assertEquals(0.3d, download.getStreamingNeed(), 0.0001d);
+    }
+
+    /**
+     * Reads the whole resource in a new thread
+     *
+     * @param result receives the read length, or the exception
+     */
+    private static Thread read(StreamingChannel channel, AtomicReference<Object> result) {
+        Thread reader = new Thread(() -> {
+            try {
+                result.set(channel.read(ByteBuffer.allocate(LENGTH)));
+            } catch (IOException e) {
+                result.set(e);
+            }
+        });
+        reader.start();
+        return reader;
+    }
+}
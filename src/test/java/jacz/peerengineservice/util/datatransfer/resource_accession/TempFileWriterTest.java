@@ -0,0 +1,176 @@
+package jacz.peerengineservice.util.datatransfer.resource_accession;
+
+import jacz.peerengineservice.util.tempfile_api.TempFileManager;
+import jacz.peerengineservice.util.tempfile_api.TempFileManagerEvents;
+import org.aanguita.jacuzzi.numeric.range.LongRange;
+import org.aanguita.jacuzzi.numeric.range.LongRangeList;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the resume records of temp file writers: round trip, stale and corrupt index files, and resuming many
+ * downloads at once
+ */
+public class TempFileWriterTest {
+
+    private static final long TIMEOUT = 5000L;
+
+    private static class Events implements TempFileManagerEvents {
+
+        private final CountDownLatch restoredWithBackup = new CountDownLatch(1);
+
+        @Override
+        public void indexFileGenerated(String indexFilePath) {
+            // ignore
+        }
+
+        @Override
+        public void indexFileRecovered(String indexFilePath) {
+            // ignore
+        }
+
+        @Override
+        public void indexFileErrorRestoredWithBackup(String indexFilePath) {
+            restoredWithBackup.countDown();
+        }
+
+        @Override
+        public void indexFileError(String indexFilePath, Exception e) {
+            // ignore
+        }
+    }
+
+    private Path baseDir;
+
+    private Events events;
+
+    private TempFileManager tempFileManager;
+
+    private void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("tempFileWriter");
+        events = new Events();
+        tempFileManager = new TempFileManager(baseDir.toString(), events);
+    }
+
+    private TempFileWriter newTempFile(long size, int index) throws IOException {
+        TempFileWriter tempFileWriter = new TempFileWriter(tempFileManager);
+        tempFileWriter.init(size);
+        tempFileWriter.write(10L, new byte[20]);
+        HashMap<String, Serializable> fields = new HashMap<>();
+        fields.put("index", index);
+        fields.put("state", "RUNNING");
+        tempFileWriter.setSystemFields(fields);
+        return tempFileWriter;
+    }
+
+    @org.junit.Test
+    public void testRoundTrip() throws IOException {
+        setUp();
+        TempFileWriter tempFileWriter = newTempFile(100L, 7);
+
+        // a writer for the same temp file (as in a later session) gets everything in one record
+        ResumeRecord resumeRecord = new TempFileWriter(tempFileManager, tempFileWriter.getTempFile()).getResumeRecord();
+        Assert.assertEquals(100L, resumeRecord.getSize().longValue());
+        assertSegment(resumeRecord.getAvailableSegments(), 10L, 29L);
+        Assert.assertEquals(7, resumeRecord.getSystemDictionary().get("index"));
+        Assert.assertEquals("RUNNING", resumeRecord.getSystemDictionary().get("state"));
+        Assert.assertEquals(tempFileWriter.getSystemDictionary(), resumeRecord.getSystemDictionary());
+
+        // the record does not share its data with the index
+        resumeRecord.getSystemDictionary().put("state", "CHANGED");
+        resumeRecord.getAvailableSegments().add(new LongRange(50L, 59L));
+        ResumeRecord otherResumeRecord = tempFileWriter.getResumeRecord();
+        Assert.assertEquals("RUNNING", otherResumeRecord.getSystemDictionary().get("state"));
+        assertSegment(otherResumeRecord.getAvailableSegments(), 10L, 29L);
+        tempFileManager.stop();
+    }
+
+    @org.junit.Test
+    public void testStaleAndCorruptIndex() throws Exception {
+        setUp();
+        TempFileWriter tempFileWriter = newTempFile(100L, 7);
+        ResumeRecord staleResumeRecord = tempFileWriter.getResumeRecord();
+
+        // records are taken from the index, so later modifications are never lost
+        tempFileWriter.write(30L, new byte[10]);
+        tempFileWriter.setSystemField("state", "STOPPED");
+        ResumeRecord resumeRecord = tempFileWriter.getResumeRecord();
+        assertSegment(resumeRecord.getAvailableSegments(), 10L, 39L);
+        Assert.assertEquals("STOPPED", resumeRecord.getSystemDictionary().get("state"));
+        Assert.assertEquals("RUNNING", staleResumeRecord.getSystemDictionary().get("state"));
+
+        // a corrupt index file is restored from its backup
+        Path indexFile = baseDir.resolve(tempFileWriter.getTempFile());
+        byte[] garbage = new byte[(int) Files.size(indexFile)];
+        Files.write(indexFile, garbage);
+        resumeRecord = new TempFileWriter(tempFileManager, tempFileWriter.getTempFile()).getResumeRecord();
+        Assert.assertTrue(events.restoredWithBackup.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(100L, resumeRecord.getSize().longValue());
+        assertSegment(resumeRecord.getAvailableSegments(), 10L, 39L);
+        Assert.assertEquals("STOPPED", resumeRecord.getSystemDictionary().get("state"));
+
+        // without index nor backup there is no record
+        Files.write(indexFile, garbage);
+        Files.write(Paths.get(TempFileManager.generateBackupPath(indexFile.toString())), garbage);
+        try {
+            tempFileWriter.getResumeRecord();
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        tempFileManager.stop();
+    }
+
+    @org.junit.Test
+    public void testResumeManyRecords() throws Exception {
+        setUp();
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            newTempFile(100L + i, i);
+        }
+        tempFileManager.stop();
+
+        // next session: all downloads resume at once
+        tempFileManager = new TempFileManager(baseDir.toString(), events);
+        Set<String> tempFiles = tempFileManager.getExistingTempFiles();
+        Assert.assertEquals(count, tempFiles.size());
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<ResumeRecord>> resumeRecords = new ArrayList<>();
+        for (String tempFile : tempFiles) {
+            resumeRecords.add(executorService.submit(() -> new TempFileWriter(tempFileManager, tempFile).getResumeRecord()));
+        }
+        boolean[] resumed = new boolean[count];
+        for (Future<ResumeRecord> future : resumeRecords) {
+            ResumeRecord resumeRecord = future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            int index = (Integer) resumeRecord.getSystemDictionary().get("index");
+            Assert.assertFalse(resumed[index]);
+            resumed[index] = true;
+            Assert.assertEquals(100L + index, resumeRecord.getSize().longValue());
+            assertSegment(resumeRecord.getAvailableSegments(), 10L, 29L);
+        }
+        executorService.shutdown();
+        tempFileManager.stop();
+    }
+
+    /**
+     * Checks that the given segments are exactly one range
+     */
+    private static void assertSegment(LongRangeList segments, long first, long last) {
+        Assert.assertEquals(last - first + 1, segments.size());
+        Assert.assertTrue(segments.contains(new LongRange(first, last)));
+    }
+}
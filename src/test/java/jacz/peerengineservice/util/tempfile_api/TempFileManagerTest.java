@@ -0,0 +1,178 @@
+package jacz.peerengineservice.util.tempfile_api;
+
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests for the discovery of temporary files backed by the manifest: manifest hits and misses, and corrupt manifests
+ */
+public class TempFileManagerTest {
+
+    private static final String MANIFEST_FILE_NAME = "temp_files.manifest";
+
+    private static final String MANIFEST_BACKUP_FILE_NAME = "temp_files.manifest.backup";
+
+    private static class Events implements TempFileManagerEvents {
+
+        @Override
+        public void indexFileGenerated(String indexFilePath) {
+            // ignore
+        }
+
+        @Override
+        public void indexFileRecovered(String indexFilePath) {
+            // ignore
+        }
+
+        @Override
+        public void indexFileErrorRestoredWithBackup(String indexFilePath) {
+            // ignore
+        }
+
+        @Override
+        public void indexFileError(String indexFilePath, Exception e) {
+            // ignore
+        }
+    }
+
+    private Path baseDir;
+
+    private TempFileManager tempFileManager;
+
+    private List<String> tempFiles;
+
+    /**
+     * Creates three temp files of 100 bytes with their first 10 bytes written, and restarts the manager
+     */
+    private void setUp() throws IOException {
+        baseDir = Files.createTempDirectory("tempFileManager");
+        tempFileManager = new TempFileManager(baseDir.toString(), new Events());
+        tempFiles = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String tempFile = tempFileManager.createNewTempFile(new HashMap<>());
+            tempFileManager.setTemporaryResourceSize(tempFile, 100L);
+            tempFileManager.write(tempFile, 0L, new byte[10]);
+            tempFiles.add(tempFile);
+        }
+        restart();
+    }
+
+    private void restart() {
+        tempFileManager.stop();
+        tempFileManager = new TempFileManager(baseDir.toString(), new Events());
+    }
+
+    @org.junit.Test
+    public void testDiscoveryWithManifest() throws IOException {
+        setUp();
+        // no manifest yet -> all index files are parsed, and the manifest is stored
+        Assert.assertFalse(Files.exists(baseDir.resolve(MANIFEST_FILE_NAME)));
+        Assert.assertEquals(new HashSet<>(tempFiles), tempFileManager.getExistingTempFiles());
+        Assert.assertTrue(Files.exists(baseDir.resolve(MANIFEST_FILE_NAME)));
+        for (String tempFile : tempFiles) {
+            Assert.assertEquals(100L, tempFileManager.getCachedTemporaryResourceSize(tempFile).longValue());
+            Assert.assertEquals(10L, tempFileManager.getCachedTemporaryOwnedSize(tempFile).longValue());
+        }
+
+        // the next session gets the same result from the manifest. Temp files without data file are not valid
+        restart();
+        Files.delete(dataFile(tempFiles.get(0)));
+        Assert.assertEquals(new HashSet<>(tempFiles.subList(1, 3)), tempFileManager.getExistingTempFiles());
+        Assert.assertNull(tempFileManager.getCachedTemporaryResourceSize(tempFiles.get(0)));
+        Assert.assertEquals(100L, tempFileManager.getCachedTemporaryResourceSize(tempFiles.get(1)).longValue());
+        Assert.assertEquals(10L, tempFileManager.getCachedTemporaryOwnedSize(tempFiles.get(2)).longValue());
+        tempFileManager.stop();
+    }
+
+    @org.junit.Test
+    public void testManifestHit() throws IOException {
+        setUp();
+        tempFileManager.getExistingTempFiles();
+        restart();
+
+        // an index file with the same length and modification time is not parsed again (garbage would not be valid)
+        Path indexFile = baseDir.resolve(tempFiles.get(0));
+        FileTime lastModified = Files.getLastModifiedTime(indexFile);
+        Files.write(indexFile, new byte[(int) Files.size(indexFile)]);
+        Files.setLastModifiedTime(indexFile, lastModified);
+        Assert.assertEquals(new HashSet<>(tempFiles), tempFileManager.getExistingTempFiles());
+        Assert.assertEquals(10L, tempFileManager.getCachedTemporaryOwnedSize(tempFiles.get(0)).longValue());
+        tempFileManager.stop();
+    }
+
+    @org.junit.Test
+    public void testManifestMiss() throws IOException {
+        setUp();
+        tempFileManager.getExistingTempFiles();
+
+        // writing an index file removes its entry, even for the next session
+        String tempFile = tempFiles.get(0);
+        Path indexFile = baseDir.resolve(tempFile);
+        FileTime lastModified = Files.getLastModifiedTime(indexFile);
+        tempFileManager.write(tempFile, 10L, new byte[10]);
+        Assert.assertNull(tempFileManager.getCachedTemporaryResourceSize(tempFile));
+        Assert.assertNull(tempFileManager.getCachedTemporaryOwnedSize(tempFile));
+        Assert.assertEquals(10L, tempFileManager.getCachedTemporaryOwnedSize(tempFiles.get(1)).longValue());
+        restart();
+        // the modification is detected even if the modification time did not change
+        Files.setLastModifiedTime(indexFile, lastModified);
+        Assert.assertEquals(new HashSet<>(tempFiles), tempFileManager.getExistingTempFiles());
+        Assert.assertEquals(20L, tempFileManager.getCachedTemporaryOwnedSize(tempFile).longValue());
+
+        // completed and removed temp files leave the manifest
+        Path completedDataFile = Paths.get(tempFileManager.completeTempFile(tempFile));
+        Assert.assertNull(tempFileManager.getCachedTemporaryOwnedSize(tempFile));
+        tempFileManager.removeTempFile(tempFiles.get(1));
+        Assert.assertNull(tempFileManager.getCachedTemporaryOwnedSize(tempFiles.get(1)));
+        restart();
+        Files.delete(completedDataFile);
+        Assert.assertEquals(new HashSet<>(tempFiles.subList(2, 3)), tempFileManager.getExistingTempFiles());
+
+        // new temp files are parsed in the next discovery
+        String newTempFile = tempFileManager.createNewTempFile(new HashMap<>());
+        tempFileManager.setTemporaryResourceSize(newTempFile, 50L);
+        Assert.assertNull(tempFileManager.getCachedTemporaryResourceSize(newTempFile));
+        restart();
+        tempFileManager.getExistingTempFiles();
+        Assert.assertEquals(50L, tempFileManager.getCachedTemporaryResourceSize(newTempFile).longValue());
+        Assert.assertEquals(0L, tempFileManager.getCachedTemporaryOwnedSize(newTempFile).longValue());
+        tempFileManager.stop();
+    }
+
+    @org.junit.Test
+    public void testCorruptManifest() throws Exception {
+        setUp();
+        tempFileManager.getExistingTempFiles();
+        restart();
+
+        // a corrupt manifest is restored from its backup
+        Path manifestFile = baseDir.resolve(MANIFEST_FILE_NAME);
+        byte[] garbage = new byte[(int) Files.size(manifestFile)];
+        Files.write(manifestFile, garbage);
+        Assert.assertEquals(new HashSet<>(tempFiles), tempFileManager.getExistingTempFiles());
+        Assert.assertEquals(10L, tempFileManager.getCachedTemporaryOwnedSize(tempFiles.get(0)).longValue());
+
+        // without manifest nor backup, all index files are parsed again and the manifest is stored again
+        restart();
+        Files.write(manifestFile, garbage);
+        Files.write(baseDir.resolve(MANIFEST_BACKUP_FILE_NAME), garbage);
+        Assert.assertEquals(new HashSet<>(tempFiles), tempFileManager.getExistingTempFiles());
+        Assert.assertEquals(100L, tempFileManager.getCachedTemporaryResourceSize(tempFiles.get(1)).longValue());
+        Assert.assertEquals(10L, tempFileManager.getCachedTemporaryOwnedSize(tempFiles.get(1)).longValue());
+        Assert.assertNotNull(new TempFileManifest(manifestFile.toString(), baseDir.resolve(MANIFEST_BACKUP_FILE_NAME).toString()).get(tempFiles.get(1)));
+        tempFileManager.stop();
+    }
+
+    private Path dataFile(String tempFile) {
+        return baseDir.resolve(tempFile.replace("ndx", "dat"));
+    }
+}